@@ -23,6 +23,8 @@ import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
 import java.util.Arrays;
 
 // A generic hash table which will be used to keep track of byte runs
@@ -70,6 +72,10 @@ public class BlockHash {
 	//
 	// If you change kBlockSize to a smaller value, please increase
 	// kMaxMatchesToCheck accordingly.
+	//
+	// kBlockSize, kMaxMatchesToCheck and kMaxProbes are the defaults; a
+	// BlockHash created with VCDiffEngineParameters uses the values given
+	// there instead.
 	public static final int kBlockSize = 16;
 
 	// FindBestMatch() will not process more than this number
@@ -104,10 +110,22 @@ public class BlockHash {
 	// to find the next matching entry in the hash chain.
 	protected static final int kMaxProbes = 16;
 
-	protected static final RollingHash rollingHash = new RollingHash(kBlockSize);
+	private final VCDiffEngineParameters parameters;
+
+	// Copies of the values in parameters, for use in the inner loops.
+	private final int block_size;
+	private final int max_matches_to_check;
+	private final int max_probes;
+
+	// A rolling hash whose window is block_size bytes.
+	private final RollingHashFunction rolling_hash;
 	
 	private final ByteBuffer source_data;
 
+	// A little-endian view of source_data, used to compare eight bytes at a
+	// time when extending matches.
+	private final ByteBuffer source_words;
+
 	// The size of this array is determined using CalcTableSize().  It has at
 	// least one element for each kBlockSize-byte block in the source data.
 	// GetHashTableIndex() returns an index into this table for a given hash
@@ -116,12 +134,18 @@ public class BlockHash {
 	// GetHashTableIndex(), or -1 if there is no matching block.  This value can
 	// then be used as an index into next_block_table_ to retrieve the entire set
 	// of matching block numbers.
-	private final int[] hash_table;
+	//
+	// In a growable hash (see CreateTargetHash()) this table and the block
+	// tables below cover only the blocks added so far, and are enlarged by
+	// EnsureCapacity() as blocks are added.
+	//
+	// It is null for a hash loaded by BlockHashIndex; see mapped_hash_table.
+	private int[] hash_table;
 
 	// An array containing one element for each source block.  Each element is
 	// either -1 (== not found) or the index of the next block whose hash value
 	// would produce a matching result from GetHashTableIndex().
-	private final int[] next_block_table;
+	private int[] next_block_table;
 
 	// This vector has the same size as next_block_table_.  For every block number
 	// B that is referenced in hash_table_, last_block_table_[B] will contain
@@ -134,11 +158,19 @@ public class BlockHash {
 	// lists, so that the match with the lowest index is returned first.  This
 	// should result in a more compact encoding because the VCDIFF format favors
 	// smaller index values and repeated index values.
-	private final int[] last_block_table;
+	// It is null for a hash loaded by BlockHashIndex, which is never modified.
+	private int[] last_block_table;
+
+	// The hash table and next block table of a dictionary hash loaded by
+	// BlockHashIndex, which are views of a memory-mapped file.  They are null
+	// for a hash built in memory, so that lookups in heap tables are plain
+	// array accesses.
+	private final IntBuffer mapped_hash_table;
+	private final IntBuffer mapped_next_block_table;
 
 	// Performing a bitwise AND with hash_table_mask_ will produce a value ranging
 	// from 0 to the number of elements in hash_table_.
-	private final int hash_table_mask;
+	private int hash_table_mask;
 
 	// The offset of the first byte of source data (the data at source_data_[0]).
 	// For the purpose of computing offsets, the source data and target data
@@ -156,9 +188,31 @@ public class BlockHash {
 	// for successive calls to AddBlock(), and is also
 	// used to determine the starting block for AddAllBlocksThroughIndex().
 	private int last_block_added = -1;
+
+	// True if the tables are sized to the blocks added so far, rather than to
+	// the whole of source_data.
+	private final boolean growable;
+
+	// The amount of source data covered by the initial tables of a growable
+	// hash.  Targets up to this size get the same tables as before.
+	protected static final int kInitialGrowableSize = 1 << 16;
 	
+	// Prices a candidate COPY instruction for a Match; see
+	// VCDiffEngineParameters.cost_aware_matching().
+	public interface CopyCostModel {
+		// Returns the number of bytes that a COPY of size bytes from
+		// source_offset would add to the delta file, if the match starts at
+		// target_offset (relative to the target_start of FindBestMatch()).
+		int CopyCost(int size, int source_offset, int target_offset);
+	}
+
 	// This class is used to store the best match found by FindBestMatch()
 	// and return it to the caller.
+	//
+	// By default the best match is the longest one.  With a CopyCostModel,
+	// it is the one that saves the most bytes: its size minus the cost of
+	// its COPY.  Matches shorter than the minimum size given with the model
+	// are never encoded, so they only win against each other, by size.
 	public static class Match {
 		// The size of the best (longest) match passed to ReplaceIfBetterMatch().
 		private int size = 0;
@@ -171,17 +225,54 @@ public class BlockHash {
 		// data at target_start, which is an argument of FindBestMatch().
 		private int target_offset = -1;
 
+		private CopyCostModel cost_model = null;
+		private int minimum_size = 0;
+
+		// size minus the cost of the match, if size >= minimum_size.
+		private int savings = 0;
+
 		public Match() {
 		}
 
+		// Makes ReplaceIfBetterMatch() compare matches by the bytes they save
+		// according to cost_model, rather than by size.
+		public void SetCostModel(CopyCostModel cost_model, int minimum_size) {
+			this.cost_model = cost_model;
+			this.minimum_size = minimum_size;
+		}
+
+		public boolean HasCostModel() {
+			return cost_model != null;
+		}
+
+
+		// Returns this object to its initial state, so that it can be reused
+		// for the next candidate position.
+		public void Reset() {
+			size = 0;
+			source_offset = -1;
+			target_offset = -1;
+			savings = 0;
+		}
 
 		public void ReplaceIfBetterMatch(int candidate_size,
 				int candidate_source_offset,
 				int candidate_target_offset) {
-			if (candidate_size > size) {
+			if (cost_model == null || candidate_size < minimum_size) {
+				if (candidate_size > size) {
+					size = candidate_size;
+					source_offset = candidate_source_offset;
+					target_offset = candidate_target_offset;
+				}
+				return;
+			}
+			final int candidate_savings = candidate_size
+					- cost_model.CopyCost(candidate_size, candidate_source_offset, candidate_target_offset);
+			if (size < minimum_size || candidate_savings > savings) {
 				size = candidate_size;
 				source_offset = candidate_source_offset;
 				target_offset = candidate_target_offset;
+				savings = candidate_savings;
 			}
 		}
 
@@ -203,31 +294,81 @@ public class BlockHash {
 	}
 	
 	public BlockHash(ByteBuffer source_data, int starting_offset, boolean populate_hash_table) {
-		final int table_size = CalcTableSize(source_data.remaining());
+		this(source_data, starting_offset, populate_hash_table, VCDiffEngineParameters.kDefault);
+	}
+
+	public BlockHash(ByteBuffer source_data, int starting_offset, boolean populate_hash_table,
+			VCDiffEngineParameters parameters) {
+		this(source_data, starting_offset, populate_hash_table, parameters, false);
+	}
+
+	private BlockHash(ByteBuffer source_data, int starting_offset, boolean populate_hash_table,
+			VCDiffEngineParameters parameters, boolean growable) {
+		final int covered_size = growable ? Math.min(source_data.remaining(), kInitialGrowableSize) : source_data.remaining();
+		final int table_size = CalcTableSize(covered_size);
 		if (table_size == 0) {
 			throw new IllegalArgumentException("Error finding table size for source size " + source_data.remaining());
 		}
 		
+		this.parameters = parameters;
+		this.block_size = parameters.block_size();
+		this.max_matches_to_check = parameters.max_matches_to_check();
+		this.max_probes = parameters.max_probes();
+		this.rolling_hash = parameters.CreateRollingHash();
 		this.source_data = source_data;
+		this.source_words = source_data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
 		this.starting_offset = starting_offset;
+		this.growable = growable;
 		
 		// Since table_size is a power of 2, (table_size - 1) is a bit mask
 		// containing all the bits below table_size.
 		hash_table_mask = table_size - 1;
-		hash_table = new int[table_size];
-		Arrays.fill(hash_table, -1);
-
-		next_block_table = new int[GetNumberOfBlocks()];
-		last_block_table = new int[GetNumberOfBlocks()];
-
-		Arrays.fill(next_block_table, -1);
-		Arrays.fill(last_block_table, -1);
+		hash_table = NewTable(table_size);
+		next_block_table = NewTable(covered_size / block_size);
+		last_block_table = NewTable(covered_size / block_size);
+		mapped_hash_table = null;
+		mapped_next_block_table = null;
 
 		if (populate_hash_table) {
 			AddAllBlocks();
 		}
 	}
 
+	// Creates a fully populated dictionary hash around tables that were built
+	// earlier (see BlockHashIndex).  The tables are used as they are, without
+	// copying; their sizes must match those that the constructor above would
+	// have allocated for source_data.
+	BlockHash(ByteBuffer source_data, IntBuffer hash_table, IntBuffer next_block_table,
+			VCDiffEngineParameters parameters) {
+		this.parameters = parameters;
+		this.block_size = parameters.block_size();
+		this.max_matches_to_check = parameters.max_matches_to_check();
+		this.max_probes = parameters.max_probes();
+		this.rolling_hash = parameters.CreateRollingHash();
+		this.source_data = source_data;
+		this.source_words = source_data.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+		this.starting_offset = 0;
+		this.hash_table_mask = hash_table.capacity() - 1;
+		this.hash_table = null;
+		this.next_block_table = null;
+		this.last_block_table = null;
+		this.mapped_hash_table = hash_table;
+		this.mapped_next_block_table = next_block_table;
+		this.growable = false;
+		if (hash_table.capacity() != CalcTableSize(source_data.remaining())
+				|| next_block_table.capacity() != GetNumberOfBlocks()) {
+			throw new IllegalArgumentException("Hash tables do not match source size " + source_data.remaining());
+		}
+		// Every block is already in the tables.
+		this.last_block_added = GetNumberOfBlocks() - 1;
+	}
+
+	private static int[] NewTable(int size) {
+		final int[] table = new int[size];
+		Arrays.fill(table, -1);
+		return table;
+	}
+
 	// In the context of the open-vcdiff encoder, BlockHash is used for two
 	// purposes: to hash the source (dictionary) data, and to hash
 	// the previously encoded target data.  The main differences between
@@ -258,12 +399,36 @@ public class BlockHash {
 		return new BlockHash(dictionary_data, 0, true);
 	}
 
+	public static BlockHash CreateDictionaryHash(ByteBuffer dictionary_data) {
+		return new BlockHash(dictionary_data, 0, true);
+	}
+
+	public static BlockHash CreateDictionaryHash(ByteBuffer dictionary_data, VCDiffEngineParameters parameters) {
+		return new BlockHash(dictionary_data, 0, true, parameters);
+	}
+
 	public static BlockHash CreateTargetHash(byte[] target_data, int dictionary_size) {
-		return new BlockHash(target_data, dictionary_size, false);
+		return CreateTargetHash(ByteBuffer.wrap(target_data), dictionary_size);
 	}
 	
 	public static BlockHash CreateTargetHash(ByteBuffer target_data, int dictionary_size) {
-		return new BlockHash(target_data, dictionary_size, false);
+		return CreateTargetHash(target_data, dictionary_size, VCDiffEngineParameters.kDefault);
+	}
+
+	// A target hash is growable: its tables start small and grow with the
+	// blocks added, so that its memory use tracks the amount of target data
+	// encoded so far rather than the size of the whole target.
+	//
+	// Until its hash table has reached the size CalcTableSize() gives for the
+	// whole target, more blocks share each bucket than in a hash sized up
+	// front, and the max_probes limit in SkipNonMatchingBlocks() may stop a
+	// search before it reaches a matching block.  So FindBestMatch() can
+	// return different (shorter or no) matches than a fixed-size hash while
+	// the tables are growing; once they are at full size it returns exactly
+	// the same matches.  Targets no larger than kInitialGrowableSize start at
+	// full size.
+	public static BlockHash CreateTargetHash(ByteBuffer target_data, int dictionary_size, VCDiffEngineParameters parameters) {
+		return new BlockHash(target_data, dictionary_size, false, parameters, true);
 	}
 
 	// This function will be called to add blocks incrementally to the target hash
@@ -303,7 +468,7 @@ public class BlockHash {
 		if (end_index > source_data.limit()) {
 			throw new IllegalArgumentException("AddAllBlocksThroughIndex() called with index " + end_index + " higher than end index " + source_data.limit());
 		}
-		final int last_index_added = last_block_added * kBlockSize;
+		final int last_index_added = last_block_added * block_size;
 		if (end_index <= last_index_added) {
 			throw new IllegalArgumentException("AddAllBlocksThroughIndex() called with index " + end_index + " <= last index added ( " + last_index_added + ")");
 		}
@@ -311,7 +476,7 @@ public class BlockHash {
 		// Don't allow reading any indices at or past source_size_.
 		// The Hash function extends (kBlockSize - 1) bytes past the index,
 		// so leave a margin of that size.
-		int last_legal_hash_index = source_data.limit() - kBlockSize;
+		int last_legal_hash_index = source_data.limit() - block_size;
 		if (end_limit > last_legal_hash_index) {
 			end_limit = last_legal_hash_index + 1;
 		}
@@ -321,7 +486,7 @@ public class BlockHash {
 		// temp.limit(end_limit);
 
 		while (temp.position() < end_limit) {
-			AddBlock((int)rollingHash.Hash(temp));
+			AddBlock((int)rolling_hash.Hash(temp));
 		}
 	}
 
@@ -410,31 +575,58 @@ public class BlockHash {
 	//     and best_match->size() = 6.
 
 	public void FindBestMatch(int hash_value, ByteBuffer target, Match best_match) {
+		FindBestMatch(hash_value, target.array(), null,
+				target.arrayOffset(), target.arrayOffset() + target.position(), target.arrayOffset() + target.limit(),
+				best_match);
+	}
+	
+	public void FindBestMatch(int hash_value, byte[] target_candidate, int target_candidate_start, byte[] target, int target_start, Match best_match) {
+		if (target_candidate != target) {
+			throw new IllegalArgumentException("target_candidate != target");
+		}
+		if (target_candidate_start < target_start) {
+			throw new IllegalArgumentException("target_candidate_start < target_start");
+		}
+		
+		FindBestMatch(hash_value, target, null, target_start, target_candidate_start, target.length, best_match);
+	}
+
+	// The version of FindBestMatch() used by VCDiffEngine.  All positions are
+	// indices into the target array: target_start is the start of the
+	// unencoded data, target_candidate_start the start of the candidate block,
+	// and target_end the end of the target data.  target_words may be a
+	// little-endian ByteBuffer that wraps the whole target array, or null, in
+	// which case one is created if a candidate block is found.  Nothing else is
+	// allocated.
+	void FindBestMatch(int hash_value, byte[] target, ByteBuffer target_words,
+			int target_start, int target_candidate_start, int target_end, Match best_match) {
 		// Keep a count of the number of matches found.  This will throttle the
 		// number of iterations in FindBestMatch.  For example, if the entire
 		// dictionary is made up of spaces (' ') and the search string is also
 		// made up of spaces, there will be one match for each block in the
 		// dictionary.
 		int match_counter = 0;
-		
-		// TODO: ?
-		for (int block_number = FirstMatchingBlock(hash_value, target.array(), target.arrayOffset() + target.position());
-		(block_number >= 0) && !(++match_counter > kMaxMatchesToCheck);
-		block_number = NextMatchingBlock(block_number, target.array(), target.arrayOffset() + target.position())) {
-			int source_match_offset = block_number * kBlockSize;
-			final int source_match_end = source_match_offset + kBlockSize;
 
-			int target_match_offset = target.position();
-			final int target_match_end = target_match_offset + kBlockSize;
+		for (int block_number = FirstMatchingBlock(hash_value, target, target_candidate_start);
+		(block_number >= 0) && !(++match_counter > max_matches_to_check);
+		block_number = NextMatchingBlock(block_number, target, target_candidate_start)) {
+			int source_match_offset = block_number * block_size;
+			final int source_match_end = source_match_offset + block_size;
 
-			int match_size = kBlockSize;
+			int target_match_offset = target_candidate_start - target_start;
+			final int target_match_end = target_match_offset + block_size;
+
+			int match_size = block_size;
+			if (target_words == null) {
+				target_words = ByteBuffer.wrap(target).order(ByteOrder.LITTLE_ENDIAN);
+			}
 			{
 				// Extend match start towards beginning of unencoded data
 				final int limit_bytes_to_left = Math.min(source_match_offset, target_match_offset);
 				final int matching_bytes_to_left =
 					MatchingBytesToLeft(
-							source_data, source_match_offset,
-							target.array(), target.arrayOffset() + target_match_offset,
+							source_words, source_match_offset,
+							target_words, target_start + target_match_offset,
 							limit_bytes_to_left);
 				source_match_offset -= matching_bytes_to_left;
 				target_match_offset -= matching_bytes_to_left;
@@ -443,12 +635,12 @@ public class BlockHash {
 			{
 				// Extend match end towards end of unencoded data
 				final int source_bytes_to_right = source_data.limit() - source_match_end;
-				final int target_bytes_to_right = target.limit() - target_match_end;
+				final int target_bytes_to_right = target_end - (target_start + target_match_end);
 				final int limit_bytes_to_right = Math.min(source_bytes_to_right, target_bytes_to_right);
 				match_size +=
 					MatchingBytesToRight(
-							source_data, source_match_end,
-							target.array(), target.arrayOffset() + target_match_end,
+							source_words, source_match_end,
+							target_words, target_start + target_match_end,
 							limit_bytes_to_right);
 			}
 			// Update in/out parameter if the best match found was better
@@ -456,20 +648,6 @@ public class BlockHash {
 			best_match.ReplaceIfBetterMatch(match_size, source_match_offset + starting_offset, target_match_offset);
 		}
 	}
-	
-	public void FindBestMatch(int hash_value, byte[] target_candidate, int target_candidate_start, byte[] target, int target_start, Match best_match) {
-		if (target_candidate != target) {
-			throw new IllegalArgumentException("target_candidate != target");
-		}
-		if (target_candidate_start < target_start) {
-			throw new IllegalArgumentException("target_candidate_start < target_start");
-		}
-		
-		ByteBuffer targetBuffer = ByteBuffer.wrap(target, target_start, target.length - target_start);
-		targetBuffer.position(target_candidate_start);
-		
-		FindBestMatch(hash_value, targetBuffer, best_match);
-	}
 
 	// Internal routine which calculates a hash table size based on kBlockSize and
 	// the dictionary_size.  Will return a power of two if successful, or 0 if an
@@ -508,8 +686,49 @@ public class BlockHash {
 		return table_size;
 	}
 
+	// Returns the number of heap bytes used by the hash table and the block
+	// tables, not counting the source data itself.  Tables that are mapped
+	// from a file do not count.
+	public long TableMemoryUsage() {
+		return HeapMemoryUsage(hash_table) + HeapMemoryUsage(next_block_table) + HeapMemoryUsage(last_block_table);
+	}
+
+	private static long HeapMemoryUsage(int[] table) {
+		return (table == null) ? 0 : 4L * table.length;
+	}
+
+	public VCDiffEngineParameters parameters() {
+		return parameters;
+	}
+
+	// The rolling hash that produces the hash values this BlockHash expects.
+	public RollingHashFunction rolling_hash() {
+		return rolling_hash;
+	}
+
+	ByteBuffer source_data() {
+		return source_data;
+	}
+
+	int starting_offset() {
+		return starting_offset;
+	}
+
+	IntBuffer hash_table() {
+		return (hash_table != null) ? IntBuffer.wrap(hash_table) : mapped_hash_table.duplicate();
+	}
+
+	IntBuffer next_block_table() {
+		return (next_block_table != null) ? IntBuffer.wrap(next_block_table) : mapped_next_block_table.duplicate();
+	}
+
+	// Returns true if every complete block of the source data has been added.
+	boolean IsFullyPopulated() {
+		return last_block_added == GetNumberOfBlocks() - 1;
+	}
+
 	protected int GetNumberOfBlocks() {
-		return source_data.limit() / kBlockSize;
+		return source_data.limit() / block_size;
 	}
 
 	// Use the lowest-order bits of the hash value
@@ -521,7 +740,7 @@ public class BlockHash {
 	// The index within source_data_ of the next block
 	// for which AddBlock() should be called.
 	protected int NextIndexToAdd() {
-		return (last_block_added + 1) * kBlockSize;
+		return (last_block_added + 1) * block_size;
 	}
 
 	// Adds an entry to the hash table for one block of source data of length
@@ -532,15 +751,26 @@ public class BlockHash {
 	protected void AddBlock(int hash_value) {
 		// The initial value of last_block_added_ is -1.
 		int block_number = last_block_added + 1;
-		final int total_blocks = (source_data.limit() / kBlockSize);  // round down
+		final int total_blocks = (source_data.limit() / block_size);  // round down
 		if (block_number >= total_blocks) {
 			LOGGER.error("BlockHash.AddBlock() called with block number {} this is past last block {}", block_number, total_blocks - 1);
 			return;
 		}
+		if (growable) {
+			EnsureCapacity(block_number);
+		}
 		if (next_block_table[block_number] != -1) {
 			LOGGER.error("Internal error in BlockHash::AddBlock(): block number = {}, next block should be -1 but is {}", block_number, next_block_table[block_number]);
 			return;
 		}
+		if (LinkBlock(block_number, hash_value)) {
+			last_block_added = block_number;
+		}
+	}
+
+	// Adds block_number at the end of the chain for hash_value.  Returns false
+	// if the tables are inconsistent.
+	private boolean LinkBlock(int block_number, int hash_value) {
 		final int hash_table_index = GetHashTableIndex(hash_value);
 		final int first_matching_block = hash_table[hash_table_index];
 		if (first_matching_block < 0) {
@@ -552,12 +782,103 @@ public class BlockHash {
 			final int last_matching_block = last_block_table[first_matching_block];
 			if (next_block_table[last_matching_block] != -1) {
 				LOGGER.error("Internal error in BlockHash::AddBlock(): first matching block = {}, last matching block = {}, next block should be -1 but is {}", first_matching_block, last_matching_block, next_block_table[last_matching_block]);
-				return;
+				return false;
 			}
 			next_block_table[last_matching_block] = block_number;
 			last_block_table[first_matching_block] = block_number;
 		}
-		last_block_added = block_number;
+		return true;
+	}
+
+	// Makes the tables of a growable hash large enough to add block_number.
+	// The block tables are doubled as needed.  The hash table is kept at the
+	// size CalcTableSize() gives for the data covered so far; when it has to
+	// grow, every block added so far is hashed again into the larger table,
+	// in the original order, so that the chains stay in FIFO order and a hash
+	// that has grown to full size matches a fixed-size one.  Both operations
+	// take amortized constant time per block.
+	private void EnsureCapacity(int block_number) {
+		final int total_blocks = GetNumberOfBlocks();
+		if (block_number >= next_block_table.length) {
+			final int new_size = (int) Math.min(total_blocks, Math.max(block_number + 1, 2L * next_block_table.length));
+			next_block_table = GrowTable(next_block_table, new_size);
+			last_block_table = GrowTable(last_block_table, new_size);
+		}
+		// Same test as CalcTableSize((block_number + 1) * block_size) > capacity.
+		final int min_table_size = ((block_number + 1) * block_size) / 4 + 1;
+		if (min_table_size > hash_table.length) {
+			int table_size = hash_table.length;
+			while (table_size < min_table_size) {
+				table_size <<= 1;
+			}
+			Rehash(table_size);
+		}
+	}
+
+	private void Rehash(int table_size) {
+		hash_table_mask = table_size - 1;
+		hash_table = NewTable(table_size);
+		for (int block_number = 0; block_number <= last_block_added; ++block_number) {
+			next_block_table[block_number] = -1;
+			last_block_table[block_number] = -1;
+		}
+		final ByteBuffer block = source_data.duplicate();
+		for (int block_number = 0; block_number <= last_block_added; ++block_number) {
+			block.position(block_number * block_size);
+			LinkBlock(block_number, (int)rolling_hash.Hash(block));
+		}
+	}
+
+	// Moves a fully populated dictionary hash forward by shift bytes, a
+	// multiple of the block size, after the caller has moved the contents of
+	// source_data down by shift bytes and refilled the end.  The blocks that
+	// were moved out are dropped from their chains, the kept blocks are
+	// renumbered in one pass over the tables, and only the blocks from the
+	// end of the kept data onwards are hashed.  The chains stay in FIFO order,
+	// so the tables end up the same as those of a new hash of source_data.
+	void SlideForward(int shift) {
+		if (growable || starting_offset != 0 || hash_table == null || !IsFullyPopulated()) {
+			throw new IllegalStateException("Only a complete dictionary hash in memory can slide");
+		}
+		if (shift <= 0 || shift % block_size != 0 || shift > source_data.limit()) {
+			throw new IllegalArgumentException("Cannot slide the hash by " + shift + " bytes");
+		}
+		final int dropped_blocks = shift / block_size;
+		final int number_of_blocks = GetNumberOfBlocks();
+		for (int hash_table_index = 0; hash_table_index < hash_table.length; ++hash_table_index) {
+			final int first_block = hash_table[hash_table_index];
+			if (first_block < 0) {
+				continue;
+			}
+			int block_number = first_block;
+			while (block_number >= 0 && block_number < dropped_blocks) {
+				block_number = next_block_table[block_number];
+			}
+			if (block_number >= 0) {
+				last_block_table[block_number] = last_block_table[first_block];
+				hash_table[hash_table_index] = block_number - dropped_blocks;
+			} else {
+				hash_table[hash_table_index] = -1;
+			}
+		}
+		// Chains only link blocks to later blocks, so the kept blocks never
+		// refer to a dropped one.
+		for (int block_number = dropped_blocks; block_number < number_of_blocks; ++block_number) {
+			final int next_block = next_block_table[block_number];
+			final int last_block = last_block_table[block_number];
+			next_block_table[block_number - dropped_blocks] = (next_block < 0) ? -1 : next_block - dropped_blocks;
+			last_block_table[block_number - dropped_blocks] = (last_block < 0) ? -1 : last_block - dropped_blocks;
+		}
+		Arrays.fill(next_block_table, number_of_blocks - dropped_blocks, number_of_blocks, -1);
+		Arrays.fill(last_block_table, number_of_blocks - dropped_blocks, number_of_blocks, -1);
+		last_block_added = number_of_blocks - dropped_blocks - 1;
+		AddAllBlocks();
+	}
+
+	private static int[] GrowTable(int[] table, int new_size) {
+		final int[] grown = Arrays.copyOf(table, new_size);
+		Arrays.fill(grown, table.length, new_size, -1);
+		return grown;
 	}
 
 	// Calls AddBlock() for each complete kBlockSize-byte block between
@@ -572,7 +893,11 @@ public class BlockHash {
 	// beginning at block1 are identical to the contents of
 	// the block beginning at block2; false otherwise.
 	protected static boolean BlockContentsMatch(byte[] block1, int block1_ofset, ByteBuffer block2, int block2_offset) {
-		for (int i = 0; i < kBlockSize; i++) {
+		return BlockContentsMatch(block1, block1_ofset, block2, block2_offset, kBlockSize);
+	}
+
+	protected static boolean BlockContentsMatch(byte[] block1, int block1_ofset, ByteBuffer block2, int block2_offset, int block_size) {
+		for (int i = 0; i < block_size; i++) {
 			if (block1[block1_ofset + i] != block2.get(block2_offset + i)) {
 				return false;
 			}
@@ -582,7 +907,11 @@ public class BlockHash {
 	}
 	
 	protected static boolean BlockContentsMatch(byte[] block1, int block1_ofset, byte[] block2, int block2_offset) {
-		for (int i = 0; i < kBlockSize; i++) {
+		return BlockContentsMatch(block1, block1_ofset, block2, block2_offset, kBlockSize);
+	}
+
+	protected static boolean BlockContentsMatch(byte[] block1, int block1_ofset, byte[] block2, int block2_offset, int block_size) {
+		for (int i = 0; i < block_size; i++) {
 			if (block1[block1_ofset + i] != block2[block2_offset + i]) {
 				return false;
 			}
@@ -604,7 +933,9 @@ public class BlockHash {
 	// using AddAllBlocks() or AddBlock(), it will simply return -1
 	// for any value of hash_value.
 	protected int FirstMatchingBlock(int hash_value, byte[] block_ptr, int offset) {
-		return SkipNonMatchingBlocks(hash_table[GetHashTableIndex(hash_value)], block_ptr, offset);
+		final int hash_table_index = GetHashTableIndex(hash_value);
+		return SkipNonMatchingBlocks((hash_table != null) ? hash_table[hash_table_index]
+				: mapped_hash_table.get(hash_table_index), block_ptr, offset);
 	}
 
 	// Given a block number returned by FirstMatchingBlock()
@@ -615,6 +946,12 @@ public class BlockHash {
 		if (block_number >= GetNumberOfBlocks()) {
 			throw new IllegalArgumentException("NextMatchingBlock called for invalid block number " + block_number);
 		}
+		if (next_block_table == null) {
+			return SkipNonMatchingBlocks(mapped_next_block_table.get(block_number), block_ptr, offset);
+		}
+		if (block_number >= next_block_table.length) {
+			return -1;  // Not yet added to a growable hash
+		}
 		return SkipNonMatchingBlocks(next_block_table[block_number], block_ptr, offset);
 	}
 
@@ -626,11 +963,12 @@ public class BlockHash {
 	// without skipping to the next block.
 	protected int SkipNonMatchingBlocks(int block_number, byte[] block_ptr, int offset) {
 		int probes = 0;
-		while (block_number >= 0 && !BlockContentsMatch(block_ptr, offset, source_data, block_number * kBlockSize)) {
-			if (++probes > kMaxProbes) {
+		while (block_number >= 0 && !BlockContentsMatch(block_ptr, offset, source_data, block_number * block_size, block_size)) {
+			if (++probes > max_probes) {
 				return -1;  // Avoid too much chaining
 			}
-			block_number = next_block_table[block_number];
+			block_number = (next_block_table != null) ? next_block_table[block_number]
+					: mapped_next_block_table.get(block_number);
 		}
 		return block_number;
 	}
@@ -667,6 +1005,28 @@ public class BlockHash {
 		return bytes_found;
 	}
 
+	// Same as the MatchingBytesToLeft() functions above, but compares eight
+	// bytes at a time.  Both buffers must be in little-endian byte order, so
+	// that the first byte that differs (the one with the highest index, when
+	// moving left) is the most significant byte that is non-zero in the
+	// exclusive or of the two words.  FindBestMatch() uses this version.
+	protected static int MatchingBytesToLeft(ByteBuffer source_words, int source_match_offset, ByteBuffer target_words, int target_match_offset, int max_bytes) {
+		int bytes_found = 0;
+		while (max_bytes - bytes_found >= 8) {
+			final long difference = source_words.getLong(source_match_offset - bytes_found - 8)
+					^ target_words.getLong(target_match_offset - bytes_found - 8);
+			if (difference != 0) {
+				return bytes_found + (Long.numberOfLeadingZeros(difference) >>> 3);
+			}
+			bytes_found += 8;
+		}
+		while (bytes_found < max_bytes
+				&& source_words.get(source_match_offset - bytes_found - 1) == target_words.get(target_match_offset - bytes_found - 1)) {
+			++bytes_found;
+		}
+		return bytes_found;
+	}
+
 	// Returns the number of bytes starting at source_match_end
 	// that match the corresponding bytes starting at target_match_end.
 	// Will not examine more than max_bytes bytes, which is to say that
@@ -690,4 +1050,25 @@ public class BlockHash {
 		}
 		return bytes_found;
 	}
+
+	// Same as the MatchingBytesToRight() functions above, but compares eight
+	// bytes at a time.  Both buffers must be in little-endian byte order, so
+	// that the first byte that differs is the least significant byte that is
+	// non-zero in the exclusive or of the two words.
+	protected static int MatchingBytesToRight(ByteBuffer source_words, int source_match_end, ByteBuffer target_words, int target_match_end, int max_bytes) {
+		int bytes_found = 0;
+		while (max_bytes - bytes_found >= 8) {
+			final long difference = source_words.getLong(source_match_end + bytes_found)
+					^ target_words.getLong(target_match_end + bytes_found);
+			if (difference != 0) {
+				return bytes_found + (Long.numberOfTrailingZeros(difference) >>> 3);
+			}
+			bytes_found += 8;
+		}
+		while (bytes_found < max_bytes
+				&& source_words.get(source_match_end + bytes_found) == target_words.get(target_match_end + bytes_found)) {
+			++bytes_found;
+		}
+		return bytes_found;
+	}
 }
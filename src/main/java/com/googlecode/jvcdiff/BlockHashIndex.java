@@ -0,0 +1,239 @@
+package com.googlecode.jvcdiff;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.zip.CRC32;
+
+/**
+ * Reads and writes a dictionary BlockHash as a file, so that the hash of a
+ * large dictionary can be built once and then loaded by every process that
+ * uses it.  Loading maps the file into memory and uses its tables directly:
+ * nothing is rehashed and the tables are not copied onto the heap.
+ *
+ * The file contains a fixed-size header followed by the two tables that
+ * FindBestMatch() reads.  All values are little-endian 32-bit integers,
+ * except for the checksum, which is a 64-bit integer.
+ *
+ *     magic               kMagic
+ *     version             kVersion
+ *     block size          the block size the hash was built with
+ *     rolling hash        RollingHashType.id() of the block hash function
+ *     hash table mask     (number of hash_table entries) - 1
+ *     dictionary size     in bytes
+ *     number of blocks    (number of next_block_table entries)
+ *     reserved            0
+ *     dictionary checksum CRC-32 of the dictionary contents
+ *     hash_table          (hash table mask + 1) entries
+ *     next_block_table    (number of blocks) entries
+ *
+ * The dictionary itself is not stored; it is passed to Load(), which checks
+ * it against the size and checksum in the header.  Only the block size and
+ * the rolling hash are part of the index; the other VCDiffEngineParameters
+ * only affect searching and may be chosen freely when loading.
+ */
+public class BlockHashIndex {
+
+	// "JVBH" when read as big-endian bytes.
+	public static final int kMagic = 0x4A564248;
+
+	// Increment when the layout of the file, or the hash function or table
+	// layout used by BlockHash, changes.
+	public static final int kVersion = 2;
+
+	private static final int kHeaderSize = 40;
+
+	private static final ByteOrder kByteOrder = ByteOrder.LITTLE_ENDIAN;
+
+	// Number of bytes copied through the heap at a time when writing a file
+	// or when computing the checksum of a direct dictionary buffer.
+	private static final int kCopyBufferSize = 1 << 16;
+
+	private BlockHashIndex() {
+	}
+
+	/**
+	 * Writes the tables of hash, which must be a dictionary hash created by
+	 * BlockHash.CreateDictionaryHash(), to file.  An existing file is
+	 * replaced.
+	 */
+	public static void Write(BlockHash hash, File file) throws IOException {
+		if (hash.starting_offset() != 0 || !hash.IsFullyPopulated()) {
+			throw new IllegalArgumentException("Only a complete dictionary hash can be written");
+		}
+		final ByteBuffer dictionary = hash.source_data();
+		final IntBuffer hash_table = hash.hash_table();
+		final IntBuffer next_block_table = hash.next_block_table();
+
+		final ByteBuffer header = ByteBuffer.allocate(kHeaderSize).order(kByteOrder);
+		header.putInt(kMagic);
+		header.putInt(kVersion);
+		header.putInt(hash.parameters().block_size());
+		header.putInt(hash.parameters().rolling_hash_type().id());
+		header.putInt(hash_table.capacity() - 1);
+		header.putInt(dictionary.remaining());
+		header.putInt(next_block_table.capacity());
+		header.putInt(0);
+		header.putLong(Checksum(dictionary));
+		header.flip();
+
+		final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.CREATE,
+				StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+		try {
+			WriteFully(channel, header);
+			final ByteBuffer buffer = ByteBuffer.allocate(kCopyBufferSize).order(kByteOrder);
+			WriteTable(channel, hash_table, buffer);
+			WriteTable(channel, next_block_table, buffer);
+			channel.force(false);
+		} finally {
+			channel.close();
+		}
+	}
+
+	/**
+	 * Maps an index written by Write() and returns a dictionary hash for the
+	 * remaining contents of dictionary, using the default parameters for the
+	 * block size and rolling hash stored in the index (see
+	 * VCDiffEngineParameters.ForBlockSize).
+	 */
+	public static BlockHash Load(File file, ByteBuffer dictionary) throws IOException {
+		return Load(file, dictionary, null);
+	}
+
+	/**
+	 * Maps an index written by Write() and returns a dictionary hash for the
+	 * remaining contents of dictionary.  The block size and rolling hash of
+	 * parameters must be the ones the index was built with.  Neither the
+	 * dictionary nor the file contents are copied, so the dictionary buffer
+	 * must not be modified while the hash is in use.  The mapping stays valid
+	 * after the file is closed.
+	 *
+	 * @throws IOException if the file cannot be read, is not a valid index,
+	 *         was written by an incompatible version, or was built for a
+	 *         different dictionary.
+	 */
+	public static BlockHash Load(File file, ByteBuffer dictionary, VCDiffEngineParameters parameters) throws IOException {
+		final ByteBuffer source_data = dictionary.slice();
+
+		final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+		try {
+			final ByteBuffer header = ReadFully(channel, file, 0, kHeaderSize);
+			if (header.getInt() != kMagic) {
+				throw new IOException(file + ": not a dictionary hash index");
+			}
+			final int version = header.getInt();
+			if (version != kVersion) {
+				throw new IOException(file + ": unsupported index version " + version + " (expected " + kVersion + ")");
+			}
+
+			final int block_size = header.getInt();
+			final int rolling_hash_id = header.getInt();
+			final RollingHashType rolling_hash_type = RollingHashType.ForId(rolling_hash_id);
+			if (rolling_hash_type == null) {
+				throw new IOException(file + ": unknown rolling hash " + rolling_hash_id);
+			}
+			if (parameters == null) {
+				try {
+					parameters = VCDiffEngineParameters.ForBlockSize(block_size, rolling_hash_type);
+				} catch (IllegalArgumentException e) {
+					throw new IOException(file + ": invalid block size " + block_size, e);
+				}
+			} else if (block_size != parameters.block_size()) {
+				throw new IOException(file + ": index block size " + block_size + " does not match " + parameters.block_size());
+			} else if (rolling_hash_type != parameters.rolling_hash_type()) {
+				throw new IOException(file + ": index rolling hash " + rolling_hash_type + " does not match " + parameters.rolling_hash_type());
+			}
+			final int hash_table_mask = header.getInt();
+			final int dictionary_size = header.getInt();
+			final int number_of_blocks = header.getInt();
+			header.getInt();  // reserved
+			final long checksum = header.getLong();
+
+			if (dictionary_size != source_data.remaining()) {
+				throw new IOException(file + ": index was built for a dictionary of " + dictionary_size
+						+ " bytes, not " + source_data.remaining());
+			}
+			if (hash_table_mask + 1 != BlockHash.CalcTableSize(dictionary_size)
+					|| number_of_blocks != dictionary_size / block_size) {
+				throw new IOException(file + ": table sizes do not match the dictionary size");
+			}
+			final long hash_table_bytes = 4L * (hash_table_mask + 1);
+			final long next_block_table_bytes = 4L * number_of_blocks;
+			if (channel.size() != kHeaderSize + hash_table_bytes + next_block_table_bytes) {
+				throw new IOException(file + ": file size " + channel.size() + " does not match its header");
+			}
+			if (checksum != Checksum(source_data)) {
+				throw new IOException(file + ": index was built for a different dictionary");
+			}
+
+			// The tables are mapped separately so that each of them may be up to
+			// the 2 GB limit of a single mapping.
+			final IntBuffer hash_table = MapTable(channel, kHeaderSize, hash_table_bytes);
+			final IntBuffer next_block_table = MapTable(channel, kHeaderSize + hash_table_bytes, next_block_table_bytes);
+			return new BlockHash(source_data, hash_table, next_block_table, parameters);
+		} finally {
+			channel.close();
+		}
+	}
+
+	private static ByteBuffer ReadFully(FileChannel channel, File file, long position, int size) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(size).order(kByteOrder);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer, position + buffer.position()) < 0) {
+				throw new IOException(file + ": file is too short for a dictionary hash index");
+			}
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	private static IntBuffer MapTable(FileChannel channel, long position, long size) throws IOException {
+		final MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+		return mapped.order(kByteOrder).asIntBuffer();
+	}
+
+	private static void WriteTable(FileChannel channel, IntBuffer table, ByteBuffer buffer) throws IOException {
+		final IntBuffer source = table.duplicate();
+		source.clear();
+		while (source.hasRemaining()) {
+			buffer.clear();
+			final IntBuffer ints = buffer.asIntBuffer();
+			final int count = Math.min(ints.remaining(), source.remaining());
+			final IntBuffer chunk = source.slice();
+			chunk.limit(count);
+			ints.put(chunk);
+			source.position(source.position() + count);
+			buffer.limit(4 * count);
+			WriteFully(channel, buffer);
+		}
+	}
+
+	private static void WriteFully(FileChannel channel, ByteBuffer buffer) throws IOException {
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+	}
+
+	// Returns the CRC-32 of the remaining bytes of data, without changing its
+	// position.
+	static long Checksum(ByteBuffer data) {
+		final CRC32 crc32 = new CRC32();
+		if (data.hasArray()) {
+			crc32.update(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		} else {
+			final ByteBuffer source = data.duplicate();
+			final byte[] buffer = new byte[Math.min(kCopyBufferSize, source.remaining())];
+			while (source.hasRemaining()) {
+				final int count = Math.min(buffer.length, source.remaining());
+				source.get(buffer, 0, count);
+				crc32.update(buffer, 0, count);
+			}
+		}
+		return crc32.getValue();
+	}
+}
@@ -0,0 +1,74 @@
+package com.googlecode.jvcdiff;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+/**
+ * A 64-bit cyclic polynomial rolling hash ("Buzhash").  Each byte value is
+ * mapped to a random 64-bit word; the hash of a window is the exclusive or of
+ * those words, each rotated left by its distance from the end of the window:
+ *
+ *     Hash(b[0] ... b[n-1]) = rotl(T[b[0]], n-1) ^ ... ^ rotl(T[b[n-1]], 0)
+ *
+ * Unlike RollingHash, whose values are reduced modulo 2^23 and whose low 8
+ * bits are just the sum of the bytes, all 64 bits of a Buzhash value depend
+ * on every byte of the window, so large hash tables are indexed evenly.
+ *
+ * Windows longer than 64 bytes are allowed, but two equal bytes exactly 64
+ * positions apart then cancel out.
+ */
+public class BuzHash implements RollingHashFunction {
+
+	// The seed of the byte table.  It is fixed, because hash values are stored
+	// in BlockHashIndex files and must be the same in every process.
+	private static final long kTableSeed = 0x6A09E667F3BCC908L;
+
+	private static final long[] kTable = BuildTable();
+
+	private final int window_size;
+
+	// The number of bits to rotate a table word by to remove it from a hash.
+	private final int remove_rotation;
+
+	public BuzHash(int window_size) {
+		if (window_size < 2) {
+			throw new IllegalArgumentException();
+		}
+		this.window_size = window_size;
+		this.remove_rotation = window_size & 63;
+	}
+
+	private static long[] BuildTable() {
+		final Random random = new Random(kTableSeed);
+		final long[] table = new long[256];
+		for (int i = 0; i < table.length; i++) {
+			table[i] = random.nextLong();
+		}
+		return table;
+	}
+
+	public int window_size() {
+		return window_size;
+	}
+
+	public long Hash(byte[] data, int offset, int length) {
+		long h = 0;
+		for (int i = 0; i < window_size; ++i) {
+			h = Long.rotateLeft(h, 1) ^ kTable[data[offset + i] & 0xff];
+		}
+		return h;
+	}
+
+	public long Hash(ByteBuffer data) {
+		long h = 0;
+		for (int i = 0; i < window_size; ++i) {
+			h = Long.rotateLeft(h, 1) ^ kTable[data.get() & 0xff];
+		}
+		return h;
+	}
+
+	public long UpdateHash(long old_hash, byte old_first_byte, byte new_last_byte) {
+		final long partial_hash = Long.rotateLeft(old_hash, 1) ^ Long.rotateLeft(kTable[old_first_byte & 0xff], remove_rotation);
+		return partial_hash ^ kTable[new_last_byte & 0xff];
+	}
+}
@@ -0,0 +1,78 @@
+package com.googlecode.jvcdiff;
+
+import java.util.zip.Checksum;
+
+// The CRC-32C (Castagnoli) checksum of RFC 3720, used instead of Adler32 for
+// the window checksums of VCDiffFormatExtensionFlags.VCD_FORMAT_CRC32C.
+// java.util.zip.CRC32C is only available from Java 9 on.
+//
+// Uses the "slicing-by-8" method: eight lookup tables, in which table k gives
+// the effect of a byte followed by k zero bytes, so that eight bytes are
+// processed with eight independent lookups rather than a chain of eight
+// dependent ones.
+public class CRC32C implements Checksum {
+
+	// The bit-reversed CRC-32C polynomial.
+	private static final int kPolynomial = 0x82F63B78;
+
+	private static final int[][] kTables = MakeTables();
+
+	private int crc = 0xffffffff;
+
+	private static int[][] MakeTables() {
+		final int[][] tables = new int[8][256];
+		for (int i = 0; i < 256; ++i) {
+			int crc = i;
+			for (int bit = 0; bit < 8; ++bit) {
+				crc = (crc >>> 1) ^ ((crc & 1) != 0 ? kPolynomial : 0);
+			}
+			tables[0][i] = crc;
+		}
+		for (int k = 1; k < 8; ++k) {
+			for (int i = 0; i < 256; ++i) {
+				final int previous = tables[k - 1][i];
+				tables[k][i] = (previous >>> 8) ^ tables[0][previous & 0xff];
+			}
+		}
+		return tables;
+	}
+
+	public void update(int b) {
+		crc = (crc >>> 8) ^ kTables[0][(crc ^ b) & 0xff];
+	}
+
+	public void update(byte[] b, int off, int len) {
+		if (off < 0 || len < 0 || off > b.length - len) {
+			throw new ArrayIndexOutOfBoundsException();
+		}
+		final int[] t0 = kTables[0], t1 = kTables[1], t2 = kTables[2], t3 = kTables[3];
+		final int[] t4 = kTables[4], t5 = kTables[5], t6 = kTables[6], t7 = kTables[7];
+		int crc = this.crc;
+		while (len >= 8) {
+			final int low = crc ^ ((b[off] & 0xff) | (b[off + 1] & 0xff) << 8
+					| (b[off + 2] & 0xff) << 16 | (b[off + 3] & 0xff) << 24);
+			final int high = (b[off + 4] & 0xff) | (b[off + 5] & 0xff) << 8
+					| (b[off + 6] & 0xff) << 16 | (b[off + 7] & 0xff) << 24;
+			crc = t7[low & 0xff] ^ t6[(low >>> 8) & 0xff] ^ t5[(low >>> 16) & 0xff] ^ t4[low >>> 24]
+					^ t3[high & 0xff] ^ t2[(high >>> 8) & 0xff] ^ t1[(high >>> 16) & 0xff] ^ t0[high >>> 24];
+			off += 8;
+			len -= 8;
+		}
+		while (len-- > 0) {
+			crc = (crc >>> 8) ^ t0[(crc ^ b[off++]) & 0xff];
+		}
+		this.crc = crc;
+	}
+
+	public void update(byte[] b) {
+		update(b, 0, b.length);
+	}
+
+	public long getValue() {
+		return ~crc & 0xffffffffL;
+	}
+
+	public void reset() {
+		crc = 0xffffffff;
+	}
+}
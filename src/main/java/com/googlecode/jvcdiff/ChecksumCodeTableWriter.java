@@ -0,0 +1,118 @@
+package com.googlecode.jvcdiff;
+
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.zip.Adler32;
+import java.util.zip.Checksum;
+
+/**
+ * Wraps another coder and adds the checksum of each target window to it,
+ * computing the checksum in the same pass as the encoding instead of in a
+ * separate pass over the window beforehand.
+ *
+ * VCDiffEngine produces instructions in target order, and together they cover
+ * every byte of the window exactly once, so the checksum is updated with the
+ * bytes of each instruction as it is passed on.  Those bytes have just been
+ * hashed and compared by the engine and are still in the processor cache,
+ * whereas a separate pass reads a multi-megabyte window from memory once more.
+ * The checksum is handed to the wrapped coder by AddChecksum() just before
+ * Output().
+ *
+ * SetTarget() must be called with the window's target data before the engine
+ * encodes it.
+ *
+ * NOT threadsafe.
+ */
+public class ChecksumCodeTableWriter<OUT> implements CodeTableWriterInterface<OUT> {
+
+	private final CodeTableWriterInterface<OUT> coder_;
+
+	private final Checksum checksum_;
+
+	// The target data of the current window, and the position in it of the
+	// next byte to be added to the checksum.
+	private byte[] target_;
+	private int target_position_;
+
+	public ChecksumCodeTableWriter(CodeTableWriterInterface<OUT> coder, Checksum checksum) {
+		if (coder == null || checksum == null) {
+			throw new NullPointerException();
+		}
+		this.coder_ = coder;
+		this.checksum_ = checksum;
+	}
+
+	/**
+	 * Returns a new Checksum of the kind that format_extensions asks for:
+	 * CRC32C for VCD_FORMAT_CRC32C, or Adler32 otherwise.
+	 */
+	public static Checksum CreateChecksum(EnumSet<VCDiffFormatExtensionFlags> format_extensions) {
+		if (format_extensions.contains(VCDiffFormatExtensionFlags.VCD_FORMAT_CRC32C)) {
+			return new CRC32C();
+		}
+		return new Adler32();
+	}
+
+	/**
+	 * Returns true if format_extensions asks for a checksum of each window.
+	 */
+	public static boolean HasChecksum(EnumSet<VCDiffFormatExtensionFlags> format_extensions) {
+		return format_extensions.contains(VCDiffFormatExtensionFlags.VCD_FORMAT_CHECKSUM)
+				|| format_extensions.contains(VCDiffFormatExtensionFlags.VCD_FORMAT_CRC32C);
+	}
+
+	/**
+	 * Sets the target data of the next window, which starts at
+	 * target[offset], and restarts the checksum.
+	 */
+	public void SetTarget(byte[] target, int offset) {
+		target_ = target;
+		target_position_ = offset;
+		checksum_.reset();
+	}
+
+	private void Checksum(int size) {
+		checksum_.update(target_, target_position_, size);
+		target_position_ += size;
+	}
+
+	public void Init(int dictionary_size) {
+		coder_.Init(dictionary_size);
+	}
+
+	public void WriteHeader(OUT out, EnumSet<VCDiffFormatExtensionFlags> format_extensions) throws IOException {
+		coder_.WriteHeader(out, format_extensions);
+	}
+
+	public void Add(byte[] data, int offset, int length) {
+		coder_.Add(data, offset, length);
+		Checksum(length);
+	}
+
+	public void Copy(int offset, int size) {
+		coder_.Copy(offset, size);
+		Checksum(size);
+	}
+
+	public void Run(int size, byte b) {
+		coder_.Run(size, b);
+		Checksum(size);
+	}
+
+	public void AddChecksum(int checksum) {
+		coder_.AddChecksum(checksum);
+	}
+
+	public void Output(OUT out) throws IOException {
+		coder_.AddChecksum((int) checksum_.getValue());
+		coder_.Output(out);
+	}
+
+	public void FinishEncoding(OUT out) throws IOException {
+		coder_.FinishEncoding(out);
+	}
+
+	public int target_length() {
+		return coder_.target_length();
+	}
+}
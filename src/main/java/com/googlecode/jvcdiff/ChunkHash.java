@@ -0,0 +1,322 @@
+package com.googlecode.jvcdiff;
+
+import com.googlecode.jvcdiff.BlockHash.Match;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Random;
+
+// An index of content-defined chunks, used instead of BlockHash when
+// VCDiffEngineParameters.match_finder_type() is
+// MatchFinderType.CONTENT_DEFINED_CHUNKS.
+//
+// The data is cut into chunks at positions chosen by its contents, in the
+// style of FastCDC: a Gear hash (h = (h << 1) + G[byte]) is rolled over the
+// data, and a chunk ends where the high-order bits of the hash are all zero.
+// Because the cut points depend only on the preceding 64 bytes, an insertion
+// or deletion moves only the boundaries around it, and the chunks of
+// unchanged data that follow are cut exactly as they are in the dictionary.
+// Each chunk is stored under a 64-bit fingerprint of its contents.
+//
+// The encoder cuts the target the same way and looks up each target chunk.
+// A chunk that is found is compared byte for byte, then extended to the left
+// and right with BlockHash.MatchingBytesToLeft() and MatchingBytesToRight(),
+// so that a single lookup usually produces a COPY that covers the whole
+// unchanged region around it.  Compared with BlockHash, which probes its hash
+// table at every byte position that is not covered by a COPY, this costs one
+// table shift and add per byte and one lookup per chunk; in exchange,
+// matches shorter than about two chunks are not found.
+//
+// The chunk sizes are derived from the block size of the parameters: chunks
+// are kChunkSizeFactor times the block size on average, no smaller than a
+// quarter of that and no larger than eight times that.
+public class ChunkHash {
+
+	// The average chunk size, as a multiple of the block size.
+	public static final int kChunkSizeFactor = 64;
+
+	// The Gear table maps each byte value to a random 64-bit word.  The seed
+	// is fixed so that the dictionary and target are always cut the same way.
+	private static final long kGearSeed = 0x3C6EF372FE94F82BL;
+
+	private static final long[] kGear = BuildGearTable();
+
+	// Multipliers of the xxHash64 algorithm, used by Fingerprint().
+	private static final long kPrime1 = 0x9E3779B185EBCA87L;
+	private static final long kPrime2 = 0xC2B2AE3D27D4EB4FL;
+	private static final long kPrime3 = 0x165667B19E3779F9L;
+	private static final long kPrime4 = 0x85EBCA77C2B2AE63L;
+	private static final long kPrime5 = 0x27D4EB2F165667C5L;
+
+	private static final int kMinimumTableSize = 16;
+
+	private final int min_chunk_size;
+	private final int average_chunk_size;
+	private final int max_chunk_size;
+
+	// FastCDC "normalized chunking": before the average chunk size is reached
+	// a cut needs two more zero bits than the average would suggest, and after
+	// it two fewer.  This narrows the spread of chunk sizes around the average.
+	private final long small_chunk_mask;
+	private final long large_chunk_mask;
+
+	// A little-endian view of the data that the chunks were taken from.
+	// Chunks are stored as indices into this buffer, and matches may only
+	// extend over [source_start, source_end).
+	private final ByteBuffer source_words;
+	private final int source_start;
+	private final int source_end;
+
+	// Added to a chunk index to obtain the offset reported in a Match: zero
+	// for a dictionary, and the dictionary size minus the start of the
+	// target data for a target hash.
+	private final int starting_offset;
+
+	// An open-addressing hash table of the chunks, indexed by the low-order
+	// bits of their fingerprints.  A length of zero marks an empty slot.  When
+	// several chunks have the same contents, only the first one is kept.
+	private long[] fingerprints;
+	private int[] chunk_starts;
+	private int[] chunk_lengths;
+	private int table_mask;
+	private int number_of_chunks;
+
+	private ChunkHash(ByteBuffer source_words, int source_start, int source_end, int starting_offset,
+			VCDiffEngineParameters parameters, int expected_chunks) {
+		this.average_chunk_size = parameters.block_size() * kChunkSizeFactor;
+		this.min_chunk_size = average_chunk_size / 4;
+		this.max_chunk_size = average_chunk_size * 8;
+		final int bits = Integer.numberOfTrailingZeros(average_chunk_size);
+		this.small_chunk_mask = -1L << (64 - (bits + 2));
+		this.large_chunk_mask = -1L << (64 - (bits - 2));
+		this.source_words = source_words;
+		this.source_start = source_start;
+		this.source_end = source_end;
+		this.starting_offset = starting_offset;
+
+		int table_size = kMinimumTableSize;
+		while (table_size < 2 * expected_chunks && table_size < (1 << 30)) {
+			table_size <<= 1;
+		}
+		AllocateTable(table_size);
+	}
+
+	// Chunks the remaining contents of dictionary and indexes every chunk.
+	public static ChunkHash CreateDictionaryHash(ByteBuffer dictionary, VCDiffEngineParameters parameters) {
+		final ByteBuffer source_words = dictionary.slice().order(ByteOrder.LITTLE_ENDIAN);
+		final int size = source_words.limit();
+		final ChunkHash hash = new ChunkHash(source_words, 0, size, 0, parameters,
+				size / (parameters.block_size() * kChunkSizeFactor) + 1);
+		int chunk_start = 0;
+		while (chunk_start < size) {
+			final int chunk_end = hash.NextBoundary(source_words, chunk_start, size);
+			hash.AddChunk(chunk_start, chunk_end - chunk_start,
+					Fingerprint(source_words, chunk_start, chunk_end - chunk_start));
+			chunk_start = chunk_end;
+		}
+		return hash;
+	}
+
+	// Creates an empty index for the target data in target_words between
+	// target_start and target_end, whose first byte has the address
+	// dictionary_size.  The encoder adds target chunks to it as it passes them.
+	public static ChunkHash CreateTargetHash(ByteBuffer target_words, int target_start, int target_end,
+			int dictionary_size, VCDiffEngineParameters parameters) {
+		if (target_words.order() != ByteOrder.LITTLE_ENDIAN) {
+			throw new IllegalArgumentException("Target buffer must be little-endian");
+		}
+		return new ChunkHash(target_words, target_start, target_end, dictionary_size - target_start,
+				parameters, kMinimumTableSize / 2);
+	}
+
+	private static long[] BuildGearTable() {
+		final Random random = new Random(kGearSeed);
+		final long[] table = new long[256];
+		for (int i = 0; i < table.length; i++) {
+			table[i] = random.nextLong();
+		}
+		return table;
+	}
+
+	private void AllocateTable(int table_size) {
+		fingerprints = new long[table_size];
+		chunk_starts = new int[table_size];
+		chunk_lengths = new int[table_size];
+		table_mask = table_size - 1;
+	}
+
+	public int min_chunk_size() {
+		return min_chunk_size;
+	}
+
+	public int average_chunk_size() {
+		return average_chunk_size;
+	}
+
+	public int max_chunk_size() {
+		return max_chunk_size;
+	}
+
+	public int number_of_chunks() {
+		return number_of_chunks;
+	}
+
+	public long TableMemoryUsage() {
+		return (long) fingerprints.length * (8 + 4 + 4);
+	}
+
+	// Returns the end of the chunk that starts at data[start]: the index just
+	// past its last byte, which is at most end.
+	public int NextBoundary(byte[] data, int start, int end) {
+		if (end - start <= min_chunk_size) {
+			return end;
+		}
+		final int normal_end = Math.min(end, start + average_chunk_size);
+		final int chunk_end = Math.min(end, start + max_chunk_size);
+		long hash = 0;
+		int i = start + min_chunk_size;
+		for (; i < normal_end; ++i) {
+			hash = (hash << 1) + kGear[data[i] & 0xff];
+			if ((hash & small_chunk_mask) == 0) {
+				return i + 1;
+			}
+		}
+		for (; i < chunk_end; ++i) {
+			hash = (hash << 1) + kGear[data[i] & 0xff];
+			if ((hash & large_chunk_mask) == 0) {
+				return i + 1;
+			}
+		}
+		return chunk_end;
+	}
+
+	public int NextBoundary(ByteBuffer data, int start, int end) {
+		if (end - start <= min_chunk_size) {
+			return end;
+		}
+		final int normal_end = Math.min(end, start + average_chunk_size);
+		final int chunk_end = Math.min(end, start + max_chunk_size);
+		long hash = 0;
+		int i = start + min_chunk_size;
+		for (; i < normal_end; ++i) {
+			hash = (hash << 1) + kGear[data.get(i) & 0xff];
+			if ((hash & small_chunk_mask) == 0) {
+				return i + 1;
+			}
+		}
+		for (; i < chunk_end; ++i) {
+			hash = (hash << 1) + kGear[data.get(i) & 0xff];
+			if ((hash & large_chunk_mask) == 0) {
+				return i + 1;
+			}
+		}
+		return chunk_end;
+	}
+
+	// A 64-bit hash of data[offset, offset + length - 1], eight bytes at a
+	// time.  data must be little-endian so that the fingerprint of the same
+	// bytes is the same in every buffer.
+	public static long Fingerprint(ByteBuffer data, int offset, int length) {
+		long hash = kPrime5 + length;
+		final int end = offset + length;
+		int i = offset;
+		for (; i + 8 <= end; i += 8) {
+			hash ^= Long.rotateLeft(data.getLong(i) * kPrime2, 31) * kPrime1;
+			hash = Long.rotateLeft(hash, 27) * kPrime1 + kPrime4;
+		}
+		for (; i < end; ++i) {
+			hash ^= (data.get(i) & 0xffL) * kPrime5;
+			hash = Long.rotateLeft(hash, 11) * kPrime1;
+		}
+		hash ^= hash >>> 33;
+		hash *= kPrime2;
+		hash ^= hash >>> 29;
+		hash *= kPrime3;
+		hash ^= hash >>> 32;
+		return hash;
+	}
+
+	// Adds the chunk of length bytes at source_words[chunk_start], unless a
+	// chunk with the same fingerprint and length is already present.
+	public void AddChunk(int chunk_start, int length, long fingerprint) {
+		if (2 * (number_of_chunks + 1) > fingerprints.length) {
+			Grow();
+		}
+		int slot = (int) fingerprint & table_mask;
+		while (chunk_lengths[slot] != 0) {
+			if (fingerprints[slot] == fingerprint && chunk_lengths[slot] == length) {
+				return;
+			}
+			slot = (slot + 1) & table_mask;
+		}
+		fingerprints[slot] = fingerprint;
+		chunk_starts[slot] = chunk_start;
+		chunk_lengths[slot] = length;
+		++number_of_chunks;
+	}
+
+	private void Grow() {
+		final long[] old_fingerprints = fingerprints;
+		final int[] old_chunk_starts = chunk_starts;
+		final int[] old_chunk_lengths = chunk_lengths;
+		AllocateTable(2 * old_fingerprints.length);
+		number_of_chunks = 0;
+		for (int i = 0; i < old_fingerprints.length; ++i) {
+			if (old_chunk_lengths[i] != 0) {
+				AddChunk(old_chunk_starts[i], old_chunk_lengths[i], old_fingerprints[i]);
+			}
+		}
+	}
+
+	// Looks for an indexed chunk with the same contents as the chunk of
+	// chunk_size bytes at target_words[chunk_start].  If there is one, the
+	// match is extended in both directions, but not before target_start nor
+	// past target_end, and best_match is replaced with it if it is larger.
+	// As in BlockHash.FindBestMatch(), the target offset of best_match is
+	// relative to target_start.
+	public void FindBestMatch(long fingerprint, ByteBuffer target_words, int target_start, int chunk_start,
+			int chunk_size, int target_end, Match best_match) {
+		int slot = (int) fingerprint & table_mask;
+		while (chunk_lengths[slot] != 0) {
+			if (fingerprints[slot] == fingerprint && chunk_lengths[slot] == chunk_size) {
+				final int source_chunk_start = chunk_starts[slot];
+				if (BlockHash.MatchingBytesToRight(source_words, source_chunk_start,
+						target_words, chunk_start, chunk_size) == chunk_size) {
+					ExtendMatch(source_chunk_start, target_words, target_start, chunk_start, chunk_size,
+							target_end, best_match);
+				}
+				return;
+			}
+			slot = (slot + 1) & table_mask;
+		}
+	}
+
+	private void ExtendMatch(int source_match_offset, ByteBuffer target_words, int target_start,
+			int target_match_offset, int match_size, int target_end, Match best_match) {
+		final int source_match_end = source_match_offset + match_size;
+		final int target_match_end = target_match_offset + match_size;
+		{
+			// Extend match start towards beginning of unencoded data
+			final int limit_bytes_to_left = Math.min(source_match_offset - source_start,
+					target_match_offset - target_start);
+			final int matching_bytes_to_left = BlockHash.MatchingBytesToLeft(
+					source_words, source_match_offset,
+					target_words, target_match_offset,
+					limit_bytes_to_left);
+			source_match_offset -= matching_bytes_to_left;
+			target_match_offset -= matching_bytes_to_left;
+			match_size += matching_bytes_to_left;
+		}
+		{
+			// Extend match end towards end of unencoded data
+			final int limit_bytes_to_right = Math.min(source_end - source_match_end,
+					target_end - target_match_end);
+			match_size += BlockHash.MatchingBytesToRight(
+					source_words, source_match_end,
+					target_words, target_match_end,
+					limit_bytes_to_right);
+		}
+		best_match.ReplaceIfBetterMatch(match_size, source_match_offset + starting_offset,
+				target_match_offset - target_start);
+	}
+}
@@ -18,6 +18,14 @@ import java.util.EnumSet;
  */
 public interface CodeTableWriterInterface<OUT> {
 
+	/**
+	 * Initializes the constructed object for use.  It must be called before
+	 * any of the other methods, and can be called again to restore the initial
+	 * state of the object.
+	 * @param dictionary_size
+	 */
+	void Init(int dictionary_size);
+
 	/**
 	 * Writes the header to the output string.
 	 * @param format_extensions
@@ -20,6 +20,11 @@ public class JSONCodeTableWriter implements CodeTableWriterInterface<Appendable>
 		this.target_length_ = 0;
 	}
 
+	public void Init(int dictionary_size) {
+		// The JSON format does not reference the dictionary size.
+		target_length_ = 0;
+	}
+
 	public void Add(final byte[] data, final int offset, final int length) {
 		if (offset < 0 || offset + length > data.length) {
 			throw new IllegalArgumentException();
@@ -0,0 +1,32 @@
+package com.googlecode.jvcdiff;
+
+/**
+ * The ways in which a VCDiffEngine can look for matches between the target
+ * and the dictionary (and previously encoded target data).
+ */
+public enum MatchFinderType {
+
+	/**
+	 * Looks up every target position that is not covered by a COPY in a
+	 * BlockHash.  This finds every match of at least
+	 * VCDiffEngineParameters.minimum_match_size() bytes, and is the default.
+	 */
+	BLOCK_HASH,
+
+	/**
+	 * Cuts the dictionary and target into content-defined chunks and looks up
+	 * only whole chunks (see ChunkHash).  This is many times faster on large
+	 * inputs that are mostly unchanged, such as disk images, but misses
+	 * matches shorter than about two chunks, so deltas are somewhat larger.
+	 */
+	CONTENT_DEFINED_CHUNKS,
+
+	/**
+	 * Finds the longest match, of any length, at every target position with
+	 * a suffix array of the dictionary and of the target window (see
+	 * SuffixArray).  This gives the smallest deltas, but is several times
+	 * slower than BLOCK_HASH and uses more memory; see
+	 * VCDiffEngineParameters.ForMaximumCompression().
+	 */
+	SUFFIX_ARRAY
+}
@@ -2,7 +2,9 @@ package com.googlecode.jvcdiff;
 
 import java.nio.ByteBuffer;
 
-public class RollingHash {
+// The Rabin-Karp rolling hash of open-vcdiff, and the default
+// RollingHashFunction (see RollingHashType.RABIN_KARP).
+public class RollingHash implements RollingHashFunction {
 	private final int window_size;
 
 	// We keep a table that maps from any byte "b" to
@@ -19,6 +21,10 @@ public class RollingHash {
 		remove_table = RollingHashUtil.BuildRemoveTable(window_size);
 	}
 
+	public int window_size() {
+		return window_size;
+	}
+
 	// Compute a hash of the window "ptr[0, window_size - 1]".
 	public long Hash(byte[] data, int offset, int length) {
 		long h = RollingHashUtil.HashFirstTwoBytes(data, offset);
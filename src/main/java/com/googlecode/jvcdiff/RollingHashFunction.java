@@ -0,0 +1,40 @@
+package com.googlecode.jvcdiff;
+
+import java.nio.ByteBuffer;
+
+/**
+ * A hash of a fixed-size window of bytes that can be moved forward one byte
+ * at a time.  BlockHash and VCDiffEngine use one of these, chosen through
+ * VCDiffEngineParameters, to hash the blocks of the dictionary and target.
+ *
+ * BlockHash uses the low-order bits of (int) Hash() to index its hash
+ * table, so every one of those bits should depend on every byte of the
+ * window.  Implementations must be immutable and thread-safe.
+ */
+public interface RollingHashFunction {
+
+	/**
+	 * The number of bytes in the hashed window.
+	 */
+	int window_size();
+
+	/**
+	 * Computes the hash of data[offset, offset + window_size() - 1].
+	 * length is the number of bytes available from offset, and must be at
+	 * least window_size().
+	 */
+	long Hash(byte[] data, int offset, int length);
+
+	/**
+	 * Computes the hash of the next window_size() bytes of data, advancing
+	 * its position past them.
+	 */
+	long Hash(ByteBuffer data);
+
+	/**
+	 * Given the hash of buffer[0] ... buffer[window_size() - 1], along with
+	 * buffer[0] (old_first_byte) and buffer[window_size()] (new_last_byte),
+	 * returns the hash of buffer[1] ... buffer[window_size()].
+	 */
+	long UpdateHash(long old_hash, byte old_first_byte, byte new_last_byte);
+}
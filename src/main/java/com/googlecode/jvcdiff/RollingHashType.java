@@ -0,0 +1,53 @@
+package com.googlecode.jvcdiff;
+
+/**
+ * The rolling hash functions that a VCDiffEngine can use to hash blocks.
+ * The id of each type is stored in BlockHashIndex files and must not change.
+ */
+public enum RollingHashType {
+
+	/**
+	 * The Rabin-Karp hash of open-vcdiff (see RollingHash): multiplier 257,
+	 * modulo 2^23.  This is the default.
+	 */
+	RABIN_KARP(0),
+
+	/**
+	 * A 64-bit table-driven cyclic polynomial hash (see BuzHash).  It spreads
+	 * blocks more evenly over large hash tables, which means fewer false
+	 * probes for dictionaries of more than a few megabytes.
+	 */
+	BUZHASH(1);
+
+	private final int id_;
+
+	private RollingHashType(int id) {
+		this.id_ = id;
+	}
+
+	public int id() {
+		return id_;
+	}
+
+	/**
+	 * Returns the type with the given id, or null if there is none.
+	 */
+	public static RollingHashType ForId(int id) {
+		for (RollingHashType type : values()) {
+			if (type.id_ == id) {
+				return type;
+			}
+		}
+		return null;
+	}
+
+	public RollingHashFunction Create(int window_size) {
+		switch (this) {
+		case BUZHASH:
+			return new BuzHash(window_size);
+		case RABIN_KARP:
+		default:
+			return new RollingHash(window_size);
+		}
+	}
+}
@@ -0,0 +1,326 @@
+package com.googlecode.jvcdiff;
+
+import com.googlecode.jvcdiff.BlockHash.Match;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+// A suffix array of the dictionary, with its LCP (longest common prefix)
+// array, used instead of BlockHash when
+// VCDiffEngineParameters.match_finder_type() is MatchFinderType.SUFFIX_ARRAY.
+//
+// BlockHash only finds matches that contain a whole aligned block, and
+// gives up after max_matches_to_check candidates.  The suffix array instead
+// finds the longest match of any length for a target position: a binary
+// search locates the place where the target string would be inserted among
+// the sorted suffixes of the dictionary, and the longest match is with one
+// of the two suffixes next to that place.  Among all the dictionary
+// positions that share that longest match (a run of neighbouring suffixes
+// whose LCP is at least the match length), the lowest one is used, as
+// BlockHash does.
+//
+// Matches within the target window itself are found with
+// PreviousMatchFinder, which uses a suffix array of the window.
+//
+// The suffix array is built by prefix doubling with radix sorts, in
+// O(n log n) time and with about 16 bytes of temporary memory per byte of
+// input; the finished index keeps 8 bytes per byte of dictionary.
+public class SuffixArray {
+
+	private final ByteBuffer data;
+	private final int size;
+
+	// The starting positions of the suffixes of data, in lexicographic order.
+	private final int[] suffix_array;
+
+	// lcp[i] is the length of the longest common prefix of the suffixes at
+	// suffix_array[i - 1] and suffix_array[i]; lcp[0] is 0.
+	private final int[] lcp;
+
+	// The maximum number of equally long matches examined to find the one
+	// with the lowest dictionary offset.
+	private final int max_matches_to_check;
+
+	// Indexes the remaining contents of data, which must not be modified
+	// while the index is in use.
+	public SuffixArray(ByteBuffer data, VCDiffEngineParameters parameters) {
+		this.data = data.slice();
+		this.size = this.data.limit();
+		this.max_matches_to_check = parameters.max_matches_to_check();
+		final int[] rank = new int[size];
+		this.suffix_array = BuildSuffixArray(this.data, size, rank);
+		this.lcp = BuildLcpArray(this.data, size, suffix_array, rank);
+	}
+
+	public int size() {
+		return size;
+	}
+
+	public long TableMemoryUsage() {
+		return 4L * (suffix_array.length + lcp.length);
+	}
+
+	// Sorts the suffixes of data[0, size - 1].  On return, rank holds the
+	// inverse of the suffix array: suffix_array[rank[i]] == i.
+	static int[] BuildSuffixArray(ByteBuffer data, int size, int[] rank) {
+		final int[] suffix_array = new int[size];
+		if (size == 0) {
+			return suffix_array;
+		}
+		final int[] tmp = new int[size];
+		final int[] count = new int[Math.max(256, size)];
+
+		// Sort by the first byte.
+		for (int i = 0; i < size; ++i) {
+			++count[data.get(i) & 0xff];
+		}
+		for (int c = 1; c < 256; ++c) {
+			count[c] += count[c - 1];
+		}
+		for (int i = size - 1; i >= 0; --i) {
+			suffix_array[--count[data.get(i) & 0xff]] = i;
+		}
+		rank[suffix_array[0]] = 0;
+		for (int i = 1; i < size; ++i) {
+			final boolean same = data.get(suffix_array[i]) == data.get(suffix_array[i - 1]);
+			rank[suffix_array[i]] = rank[suffix_array[i - 1]] + (same ? 0 : 1);
+		}
+		int classes = rank[suffix_array[size - 1]] + 1;
+
+		// Each pass sorts by the first 2k bytes, given the order by the first
+		// k bytes: the key is (rank[i], rank[i + k]), and a suffix shorter
+		// than k + 1 bytes has an empty, smallest second half.
+		for (int k = 1; classes < size; k <<= 1) {
+			// Order by the second half of the key.
+			int p = 0;
+			for (int i = size - k; i < size; ++i) {
+				tmp[p++] = i;
+			}
+			for (int i = 0; i < size; ++i) {
+				if (suffix_array[i] >= k) {
+					tmp[p++] = suffix_array[i] - k;
+				}
+			}
+			// Stable counting sort by the first half.
+			Arrays.fill(count, 0, classes, 0);
+			for (int i = 0; i < size; ++i) {
+				++count[rank[i]];
+			}
+			for (int c = 1; c < classes; ++c) {
+				count[c] += count[c - 1];
+			}
+			for (int i = size - 1; i >= 0; --i) {
+				suffix_array[--count[rank[tmp[i]]]] = tmp[i];
+			}
+			// Assign the new ranks.
+			tmp[suffix_array[0]] = 0;
+			for (int i = 1; i < size; ++i) {
+				final int previous = suffix_array[i - 1];
+				final int current = suffix_array[i];
+				final boolean same = rank[previous] == rank[current]
+						&& (previous + k < size ? rank[previous + k] : -1) == (current + k < size ? rank[current + k] : -1);
+				tmp[current] = tmp[previous] + (same ? 0 : 1);
+			}
+			System.arraycopy(tmp, 0, rank, 0, size);
+			classes = rank[suffix_array[size - 1]] + 1;
+		}
+		return suffix_array;
+	}
+
+	// Kasai's algorithm.
+	static int[] BuildLcpArray(ByteBuffer data, int size, int[] suffix_array, int[] rank) {
+		final int[] lcp = new int[size];
+		int h = 0;
+		for (int i = 0; i < size; ++i) {
+			if (rank[i] > 0) {
+				final int j = suffix_array[rank[i] - 1];
+				while (i + h < size && j + h < size && data.get(i + h) == data.get(j + h)) {
+					++h;
+				}
+				lcp[rank[i]] = h;
+				if (h > 0) {
+					--h;
+				}
+			} else {
+				h = 0;
+			}
+		}
+		return lcp;
+	}
+
+	// Returns the number of bytes, up to max_bytes, for which
+	// data[data_offset ...] and target[target_offset ...] are equal.
+	private int MatchingBytes(int data_offset, byte[] target, int target_offset, int max_bytes) {
+		int matched = 0;
+		while (matched < max_bytes && data.get(data_offset + matched) == target[target_offset + matched]) {
+			++matched;
+		}
+		return matched;
+	}
+
+	// Finds the longest prefix of target[target_candidate_start, target_end)
+	// that occurs anywhere in the data, and replaces best_match with it if it
+	// is larger.  As in BlockHash.FindBestMatch(), the target offset of
+	// best_match is relative to target_start.
+	public void FindBestMatch(byte[] target, int target_start, int target_candidate_start, int target_end,
+			Match best_match) {
+		final int target_size = target_end - target_candidate_start;
+		if (size == 0 || target_size == 0) {
+			return;
+		}
+		// Invariant: the target string sorts after the suffix at rank left and
+		// not after the suffix at rank right; left_lcp and right_lcp are their
+		// common prefix lengths with it.  Every comparison can skip the bytes
+		// that both bounds share with the target.
+		int left = -1;
+		int right = size;
+		int left_lcp = 0;
+		int right_lcp = 0;
+		while (right - left > 1) {
+			final int middle = (left + right) >>> 1;
+			final int suffix = suffix_array[middle];
+			int matched = Math.min(left_lcp, right_lcp);
+			matched += MatchingBytes(suffix + matched, target, target_candidate_start + matched,
+					Math.min(size - suffix, target_size) - matched);
+			if (matched == target_size) {
+				left = middle - 1;
+				right = middle;
+				left_lcp = 0;
+				right_lcp = matched;
+				break;
+			}
+			if (suffix + matched == size
+					|| (data.get(suffix + matched) & 0xff) < (target[target_candidate_start + matched] & 0xff)) {
+				left = middle;
+				left_lcp = matched;
+			} else {
+				right = middle;
+				right_lcp = matched;
+			}
+		}
+
+		int best_rank;
+		int best_size;
+		if (right < size && (left < 0 || right_lcp >= left_lcp)) {
+			best_rank = right;
+			best_size = right_lcp;
+		} else {
+			best_rank = left;
+			best_size = left_lcp;
+		}
+		// A match with a cost model may prefer a shorter match with a
+		// cheaper address.
+		if (best_size == 0 || (best_size <= best_match.size() && !best_match.HasCostModel())) {
+			return;
+		}
+
+		// All suffixes that share at least best_size bytes with the target
+		// are neighbours of best_rank; take the lowest position among them.
+		int best_offset = suffix_array[best_rank];
+		int checked = 1;
+		int low_rank = best_rank;
+		for (; low_rank > 0 && lcp[low_rank] >= best_size && checked < max_matches_to_check; --low_rank, ++checked) {
+			best_offset = Math.min(best_offset, suffix_array[low_rank - 1]);
+		}
+		int high_rank = best_rank + 1;
+		for (; high_rank < size && lcp[high_rank] >= best_size && checked < max_matches_to_check; ++high_rank, ++checked) {
+			best_offset = Math.min(best_offset, suffix_array[high_rank]);
+		}
+		final int target_offset = target_candidate_start - target_start;
+		best_match.ReplaceIfBetterMatch(best_size, best_offset, target_offset);
+		if (best_match.HasCostModel()) {
+			// The others may be cheaper to address, through the address cache
+			// or HERE mode.
+			for (int r = low_rank; r < high_rank; ++r) {
+				best_match.ReplaceIfBetterMatch(best_size, suffix_array[r], target_offset);
+			}
+		}
+	}
+
+	// Finds, for every position of a target window, the longest match that
+	// starts at an earlier position of the same window, which is what a COPY
+	// from previously decoded target data can reproduce.
+	//
+	// In suffix array order, the suffixes that share the longest prefix with
+	// the suffix at position p are its neighbours, and the common prefix gets
+	// shorter with distance.  So the longest earlier match is with the nearest
+	// suffix on either side (in suffix array order) that starts before p:
+	// the "previous smaller value" and "next smaller value" of p's rank.  Both
+	// are computed for all positions in linear time with a stack.
+	public static class PreviousMatchFinder {
+
+		private final byte[] data;
+		private final int start;
+		private final int end;
+
+		// For each position of the window (relative to start), the nearest
+		// earlier position whose suffix sorts before it, and the nearest one
+		// whose suffix sorts after it, or -1 if there is none.
+		private final int[] smaller_before;
+		private final int[] smaller_after;
+
+		public PreviousMatchFinder(byte[] data, int start, int end) {
+			this.data = data;
+			this.start = start;
+			this.end = end;
+			final int size = end - start;
+			final int[] suffix_array = BuildSuffixArray(ByteBuffer.wrap(data, start, size).slice(), size, new int[size]);
+
+			// The stack holds positions in increasing order, so the previous
+			// smaller value of each rank is the entry below it.
+			smaller_before = new int[size];
+			smaller_after = new int[size];
+			final int[] stack = new int[size];
+			int top = 0;
+			for (int r = 0; r < size; ++r) {
+				final int position = suffix_array[r];
+				while (top > 0 && stack[top - 1] > position) {
+					--top;
+				}
+				smaller_before[position] = top > 0 ? stack[top - 1] : -1;
+				stack[top++] = position;
+			}
+			top = 0;
+			for (int r = size - 1; r >= 0; --r) {
+				final int position = suffix_array[r];
+				while (top > 0 && stack[top - 1] > position) {
+					--top;
+				}
+				smaller_after[position] = top > 0 ? stack[top - 1] : -1;
+				stack[top++] = position;
+			}
+		}
+
+		public long TableMemoryUsage() {
+			return 4L * (smaller_before.length + smaller_after.length);
+		}
+
+		// Replaces best_match with the longest match for the target data at
+		// data[target_candidate_start] that starts earlier in the window, if
+		// that is larger.  The source offset of the match is its position in
+		// the window plus source_offset_of_start; its target offset is relative
+		// to target_start.
+		public void FindBestMatch(int target_start, int target_candidate_start, int source_offset_of_start,
+				Match best_match) {
+			final int position = target_candidate_start - start;
+			FindBestMatch(smaller_before[position], target_start, target_candidate_start, source_offset_of_start, best_match);
+			FindBestMatch(smaller_after[position], target_start, target_candidate_start, source_offset_of_start, best_match);
+		}
+
+		private void FindBestMatch(int source_position, int target_start, int target_candidate_start,
+				int source_offset_of_start, Match best_match) {
+			if (source_position < 0) {
+				return;
+			}
+			// The source may overlap the target, as a COPY allows.
+			final int source = start + source_position;
+			final int max_bytes = end - target_candidate_start;
+			int matched = 0;
+			while (matched < max_bytes && data[source + matched] == data[target_candidate_start + matched]) {
+				++matched;
+			}
+			best_match.ReplaceIfBetterMatch(matched, source_position + source_offset_of_start,
+					target_candidate_start - target_start);
+		}
+	}
+}
@@ -149,6 +149,15 @@ public class VCDiffAddressCacheImpl extends VCDiffAddressCache {
 			throw new IllegalArgumentException(String.format("EncodeAddress was called with address (%d) < here_address (%d)", address, here_address));
 		}
 
+		final short mode = FindMode(address, here_address, encoded_addr);
+		UpdateCache(address);
+		return mode;
+	}
+
+	// Returns the mode and encoded address that EncodeAddress() would use,
+	// without updating the caches.  The encoder uses this to compare the
+	// cost of candidate matches.  The arguments are not checked.
+	public short FindMode(int address, int here_address, AtomicInteger encoded_addr) {
 		// Try using the SAME cache.  This method, if available, always
 		// results in the smallest encoding and takes priority over other modes.
 		if (same_addresses_.length > 0) {
@@ -156,7 +165,6 @@ public class VCDiffAddressCacheImpl extends VCDiffAddressCache {
 			if (same_addresses_[same_cache_pos] == address) {
 				// This is the only mode for which an single byte will be written
 				// to the address stream instead of a variable-length integer.
-				UpdateCache(address);
 				encoded_addr.set(same_cache_pos % 256);
 				return (short) (FirstSameMode() + (same_cache_pos / 256));  // SAME mode
 			}
@@ -183,7 +191,6 @@ public class VCDiffAddressCacheImpl extends VCDiffAddressCache {
 			}
 		}
 
-		UpdateCache(address);
 		encoded_addr.set(best_encoded_address);
 		return best_mode;
 	}
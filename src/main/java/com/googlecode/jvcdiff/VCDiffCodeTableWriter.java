@@ -1,5 +1,6 @@
 package com.googlecode.jvcdiff;
 
+import com.googlecode.jvcdiff.codec.VCDiffHeaderParser;
 import com.googlecode.jvcdiff.mina_buffer.IoBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -77,8 +78,20 @@ public class VCDiffCodeTableWriter implements CodeTableWriterInterface<OutputStr
 
 	private final VCDiffAddressCache address_cache_;
 
+	// Out-parameter for address_cache_.EncodeAddress(), reused by every Copy().
+	private final AtomicInteger encoded_addr_ = new AtomicInteger();
+
 	private int dictionary_size_;
 
+	// The position of the source segment within the source file, written into
+	// the header of each delta window.  It is 0 (the segment is the whole
+	// dictionary) unless SetSourceSegmentPosition() has been called.
+	private long source_segment_position_;
+
+	// If true, the source segment is taken from the target data encoded before
+	// the window (VCD_TARGET) instead of from the dictionary (VCD_SOURCE).
+	private boolean source_segment_from_target_;
+
 	// The number of bytes of target data that has been encoded so far.
 	// Each time Add(), Copy(), or Run() is called, this will be incremented.
 	// The target length is used to compute HERE mode addresses
@@ -177,6 +190,31 @@ public class VCDiffCodeTableWriter implements CodeTableWriterInterface<OutputStr
 		InitSectionPointers(interleaved);
 	}
 
+	/**
+	 * Sets the position within the source file of the dictionary_size bytes
+	 * given to Init(), for encoders that encode each window against a bounded
+	 * segment of a larger source.  The position applies to every following
+	 * window until it is set again; Init() does not reset it.
+	 */
+	public void SetSourceSegmentPosition(long position) {
+		if (position < 0) {
+			throw new IllegalArgumentException("Source segment position " + position + " is invalid");
+		}
+		source_segment_position_ = position;
+	}
+
+	/**
+	 * Sets whether the source segment of the following windows is taken from
+	 * the target data that was encoded before them (VCD_TARGET) rather than
+	 * from the dictionary (VCD_SOURCE).  The segment is then the
+	 * dictionary_size bytes given to Init(), starting at the target position
+	 * set by SetSourceSegmentPosition().  Like the position, this is kept until
+	 * it is set again.
+	 */
+	public void SetSourceSegmentFromTarget(boolean from_target) {
+		source_segment_from_target_ = from_target;
+	}
+
 	/**
 	 * Initializes the constructed object for use.
 	 * This method must be called after a VCDiffCodeTableWriter is constructed
@@ -232,7 +270,7 @@ public class VCDiffCodeTableWriter implements CodeTableWriterInterface<OutputStr
 		// then the string instructions_and_sizes_ may be the same as
 		// addresses_for_copy_.  The address should therefore be encoded
 		// *after* the instruction and its size.
-		AtomicInteger encoded_addr = new AtomicInteger(0);
+		final AtomicInteger encoded_addr = encoded_addr_;
 		final byte mode = (byte)address_cache_.EncodeAddress(offset, dictionary_size_ + target_length_, encoded_addr);
 		EncodeInstruction(VCD_COPY, size, mode);
 		if (address_cache_.WriteAddressAsVarintForMode(mode)) {
@@ -259,7 +297,7 @@ public class VCDiffCodeTableWriter implements CodeTableWriterInterface<OutputStr
 				length_of_the_delta_encoding +
 						1 +  // Win_Indicator
 						CalculateLengthOfSizeAsVarint(dictionary_size_) +
-						CalculateLengthOfSizeAsVarint(0) +
+						VarInt.calculateLongLength(source_segment_position_) +
 						CalculateLengthOfSizeAsVarint(length_of_the_delta_encoding)
 				;
 	}
@@ -276,17 +314,19 @@ public class VCDiffCodeTableWriter implements CodeTableWriterInterface<OutputStr
 			CountingOutputStream out = new CountingOutputStream(out2);
 			
 			// Add first element: Win_Indicator
+			final int source_flag = source_segment_from_target_ ? VCD_TARGET : VCD_SOURCE;
 			if (add_checksum_) {
-				out.write(VCD_SOURCE | VCD_CHECKSUM);
+				out.write(source_flag | VCD_CHECKSUM);
 			} else {
-				out.write(VCD_SOURCE);
+				out.write(source_flag);
 			}
 
-			// Source segment size: dictionary size
+			// Source segment size: dictionary size, or the size of the earlier
+			// target data used as the source
 			VarInt.writeInt(out, dictionary_size_);
 			
-			// Source segment position: 0 (start of dictionary)
-			VarInt.writeInt(out, 0);
+			// Source segment position: 0 (start of dictionary) unless set
+			VarInt.writeLong(out, source_segment_position_);
 
 			// [Here is where a secondary compressor would be used
 			//  if the encoder and decoder supported that feature.]
@@ -353,6 +393,9 @@ public class VCDiffCodeTableWriter implements CodeTableWriterInterface<OutputStr
 	public void WriteHeader(OutputStream out, EnumSet<VCDiffFormatExtensionFlags> formatExtensions) throws IOException {
 		if (formatExtensions.contains(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT) && formatExtensions.size() == 1) {
 			out.write(kHeaderStandardFormat);
+		} else if (formatExtensions.contains(VCDiffFormatExtensionFlags.VCD_FORMAT_CRC32C)) {
+			out.write(kHeaderExtendedFormat, 0, kHeaderExtendedFormat.length - 1);
+			out.write(VCDiffHeaderParser.VCD_CRC32C);  // Hdr_Indicator
 		} else {
 			out.write(kHeaderExtendedFormat);
 		}
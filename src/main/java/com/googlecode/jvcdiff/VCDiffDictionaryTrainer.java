@@ -0,0 +1,453 @@
+package com.googlecode.jvcdiff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Builds a shared dictionary from a corpus of sample documents, for
+ * deployments in which many small, similar documents (such as the HTTP
+ * responses of one site) are each encoded against the same dictionary.
+ *
+ * Every block of block_size() bytes of every sample is hashed with the
+ * rolling hash of the parameters, exactly as BlockHash hashes blocks.
+ * Blocks with the same hash are compared byte by byte, and the number of
+ * samples that contain each distinct block is counted.  Runs of
+ * consecutive blocks that occur in at least two samples are the candidate
+ * segments.  Segments are then chosen greedily, in the style of the COVER
+ * algorithm: a segment's score is the sum of the sample counts of its
+ * distinct blocks, and once a segment is chosen, its blocks count for
+ * nothing in any other segment, so that the dictionary does not fill up
+ * with copies of the same content.  A chosen segment is trimmed to its
+ * blocks that still count, and kept if it is at least minimum_match_size()
+ * bytes long, since a shorter one would never be copied.
+ *
+ * The segments are laid out in the order in which they were chosen, so the
+ * most useful content has the lowest addresses: VCDIFF encodes an address
+ * that is not in its address cache as a variable-length integer, which is
+ * shortest for small values.
+ *
+ * Evaluate() measures the deltas of a set of documents encoded against a
+ * dictionary, and should be given documents that were not used for
+ * training.
+ *
+ * Usage from the command line:
+ *
+ *     java com.googlecode.jvcdiff.VCDiffDictionaryTrainer
+ *         [-s max_dictionary_size] [-b block_size] [-k held_out_every]
+ *         dictionary_file sample_file...
+ *
+ * Every held_out_every-th sample (10 by default) is held out of training and
+ * used to report the expected compression.
+ */
+public class VCDiffDictionaryTrainer {
+
+	public static final int kDefaultMaxDictionarySize = 1 << 16;
+
+	// Candidate segments are split into pieces of at most this many bytes,
+	// so that one long run of common content cannot take up the whole
+	// dictionary before its parts have been compared with other candidates.
+	private static final int kMaxSegmentSize = 1 << 12;
+
+	private final VCDiffEngineParameters parameters_;
+
+	private final int max_dictionary_size_;
+
+	/**
+	 * @param parameters the parameters that the dictionary will be used with;
+	 *        their block size is the unit in which common content is found
+	 * @param max_dictionary_size the largest dictionary to build
+	 */
+	public VCDiffDictionaryTrainer(VCDiffEngineParameters parameters, int max_dictionary_size) {
+		if (parameters == null) {
+			throw new NullPointerException();
+		}
+		if (max_dictionary_size <= 0) {
+			throw new IllegalArgumentException("Maximum dictionary size " + max_dictionary_size + " is invalid");
+		}
+		this.parameters_ = parameters;
+		this.max_dictionary_size_ = max_dictionary_size;
+	}
+
+	public VCDiffEngineParameters parameters() {
+		return parameters_;
+	}
+
+	public int max_dictionary_size() {
+		return max_dictionary_size_;
+	}
+
+	/**
+	 * Builds a dictionary of at most max_dictionary_size() bytes from
+	 * samples.  The result is empty if no content occurs in more than one
+	 * sample.
+	 */
+	public byte[] Train(List<byte[]> samples) {
+		final int block_size = parameters_.block_size();
+		final RollingHashFunction hasher = parameters_.CreateRollingHash();
+
+		// Find the distinct block at every position of every sample, and
+		// count the samples that contain each distinct block.
+		long total_blocks = 0;
+		for (byte[] sample : samples) {
+			total_blocks += Math.max(0, sample.length - block_size + 1);
+		}
+		final BlockCounts counts = new BlockCounts(samples, block_size, total_blocks);
+		final int[][] sample_blocks = new int[samples.size()][];
+		for (int i = 0; i < samples.size(); ++i) {
+			final byte[] sample = samples.get(i);
+			final int[] blocks = new int[Math.max(0, sample.length - block_size + 1)];
+			if (blocks.length > 0) {
+				long hash_value = hasher.Hash(sample, 0, sample.length);
+				for (int pos = 0; ; ++pos) {
+					blocks[pos] = counts.Add((int) hash_value, i, pos);
+					if (pos + 1 == blocks.length) {
+						break;
+					}
+					hash_value = hasher.UpdateHash(hash_value, sample[pos], sample[pos + block_size]);
+				}
+			}
+			sample_blocks[i] = blocks;
+		}
+
+		// Collect the runs of blocks that occur in more than one sample.
+		final int minimum_blocks = parameters_.minimum_match_size() - block_size + 1;
+		final int max_segment_blocks = Math.max(minimum_blocks, kMaxSegmentSize - block_size + 1);
+		final PriorityQueue<Segment> candidates = new PriorityQueue<Segment>();
+		for (int i = 0; i < samples.size(); ++i) {
+			final int[] blocks = sample_blocks[i];
+			int pos = 0;
+			while (pos < blocks.length) {
+				if (counts.Get(blocks[pos]) < 2) {
+					++pos;
+					continue;
+				}
+				int run_end = pos + 1;
+				while (run_end < blocks.length && counts.Get(blocks[run_end]) >= 2) {
+					++run_end;
+				}
+				for (int start = pos; run_end - start >= minimum_blocks; start += max_segment_blocks) {
+					final Segment segment = new Segment(i, start, Math.min(run_end, start + max_segment_blocks));
+					segment.score = Score(segment, blocks, counts);
+					candidates.add(segment);
+				}
+				pos = run_end;
+			}
+		}
+
+		// Choose segments greedily.  Scores only go down as blocks are
+		// covered, so a candidate whose score is still at least that of the
+		// next best one is the best one.
+		final ByteArrayOutputStream dictionary = new ByteArrayOutputStream(max_dictionary_size_);
+		while (!candidates.isEmpty() && max_dictionary_size_ - dictionary.size() >= parameters_.minimum_match_size()) {
+			final Segment segment = candidates.poll();
+			final int[] blocks = sample_blocks[segment.sample];
+			segment.score = Score(segment, blocks, counts);
+			if (segment.score == 0) {
+				continue;
+			}
+			if (!candidates.isEmpty() && segment.score < candidates.peek().score) {
+				candidates.add(segment);
+				continue;
+			}
+
+			// Trim blocks that are already covered from both ends.
+			int start = segment.start;
+			int end = segment.end;
+			while (start < end && counts.Get(blocks[start]) == 0) {
+				++start;
+			}
+			while (end > start && counts.Get(blocks[end - 1]) == 0) {
+				--end;
+			}
+			final int segment_size = Math.min(end - start + block_size - 1, max_dictionary_size_ - dictionary.size());
+			if (segment_size < parameters_.minimum_match_size()) {
+				continue;
+			}
+			dictionary.write(samples.get(segment.sample), start, segment_size);
+			for (int pos = start; pos + block_size <= start + segment_size; ++pos) {
+				counts.Clear(blocks[pos]);
+			}
+		}
+		return dictionary.toByteArray();
+	}
+
+	// The sum of the counts of the distinct blocks of segment.
+	private static long Score(Segment segment, int[] blocks, BlockCounts counts) {
+		long score = 0;
+		for (int pos = segment.start; pos < segment.end; ++pos) {
+			score += counts.Take(blocks[pos]);
+		}
+		for (int pos = segment.start; pos < segment.end; ++pos) {
+			counts.Restore(blocks[pos]);
+		}
+		return score;
+	}
+
+	// A run of blocks of one sample: the blocks that start at
+	// [start, end - 1], which cover the bytes [start, end + block_size - 2].
+	private static final class Segment implements Comparable<Segment> {
+		final int sample;
+		final int start;
+		final int end;
+		long score;
+
+		Segment(int sample, int start, int end) {
+			this.sample = sample;
+			this.start = start;
+			this.end = end;
+		}
+
+		// Highest score first; ties go to the earliest segment.
+		public int compareTo(Segment other) {
+			if (score != other.score) {
+				return score > other.score ? -1 : 1;
+			}
+			if (sample != other.sample) {
+				return sample < other.sample ? -1 : 1;
+			}
+			return start < other.start ? -1 : (start == other.start ? 0 : 1);
+		}
+	}
+
+	// An open-addressing table of the distinct blocks of the samples, which
+	// counts the samples that contain each block.  A block is identified by
+	// its slot, which Add() returns.  Blocks whose rolling hashes collide are
+	// told apart by comparing them with the first occurrence of the block
+	// in its slot.  Take() and Restore() let Score() count each distinct
+	// block of a segment once, by making its count negative until it is
+	// restored.
+	private static final class BlockCounts {
+		private final List<byte[]> samples;
+		private final int block_size;
+		private final int[] hashes;
+		private final int[] counts;
+		// The last sample counted for each block.
+		private final int[] last_samples;
+		// The sample in the high half and the position in the low half of the
+		// first occurrence of each block, or -1 for an empty slot.
+		private final long[] first_blocks;
+		private final int mask;
+
+		BlockCounts(List<byte[]> samples, int block_size, long expected_blocks) {
+			if (expected_blocks > (1 << 29)) {
+				throw new IllegalArgumentException("Too many samples: " + expected_blocks + " blocks");
+			}
+			int size = 16;
+			while (size < 2 * expected_blocks) {
+				size <<= 1;
+			}
+			this.samples = samples;
+			this.block_size = block_size;
+			hashes = new int[size];
+			counts = new int[size];
+			last_samples = new int[size];
+			first_blocks = new long[size];
+			Arrays.fill(first_blocks, -1);
+			mask = size - 1;
+		}
+
+		// Counts the block of block_size bytes at pos in sample, whose rolling
+		// hash is hash, and returns the block's slot.
+		int Add(int hash, int sample, int pos) {
+			int slot = Mix(hash) & mask;
+			while (first_blocks[slot] >= 0) {
+				if (hashes[slot] == hash && IsFirstBlock(slot, sample, pos)) {
+					if (last_samples[slot] != sample) {
+						last_samples[slot] = sample;
+						++counts[slot];
+					}
+					return slot;
+				}
+				slot = (slot + 1) & mask;
+			}
+			hashes[slot] = hash;
+			first_blocks[slot] = ((long) sample << 32) | pos;
+			last_samples[slot] = sample;
+			counts[slot] = 1;
+			return slot;
+		}
+
+		// Whether the block at pos in sample has the same bytes as the first
+		// block in slot.
+		private boolean IsFirstBlock(int slot, int sample, int pos) {
+			final byte[] first = samples.get((int) (first_blocks[slot] >>> 32));
+			final int first_pos = (int) first_blocks[slot];
+			final byte[] data = samples.get(sample);
+			for (int i = 0; i < block_size; ++i) {
+				if (first[first_pos + i] != data[pos + i]) {
+					return false;
+				}
+			}
+			return true;
+		}
+
+		// Spreads the bits of hash, whose low-order bits may be weak for small
+		// block sizes.
+		private static int Mix(int hash) {
+			hash *= 0x9E3779B1;
+			return hash ^ (hash >>> 16);
+		}
+
+		int Get(int block) {
+			return Math.max(0, counts[block]);
+		}
+
+		void Clear(int block) {
+			counts[block] = 0;
+		}
+
+		int Take(int block) {
+			final int count = counts[block];
+			if (count <= 0) {
+				return 0;
+			}
+			counts[block] = -count;
+			return count;
+		}
+
+		void Restore(int block) {
+			counts[block] = Math.abs(counts[block]);
+		}
+	}
+
+	/**
+	 * The result of encoding a set of documents against a dictionary.
+	 */
+	public static class Evaluation {
+		private final long document_bytes_;
+		private final long delta_bytes_;
+		private final long baseline_delta_bytes_;
+		private final long encode_nanos_;
+		private final long baseline_encode_nanos_;
+
+		Evaluation(long document_bytes, long delta_bytes, long baseline_delta_bytes,
+				long encode_nanos, long baseline_encode_nanos) {
+			this.document_bytes_ = document_bytes;
+			this.delta_bytes_ = delta_bytes;
+			this.baseline_delta_bytes_ = baseline_delta_bytes;
+			this.encode_nanos_ = encode_nanos;
+			this.baseline_encode_nanos_ = baseline_encode_nanos;
+		}
+
+		public long document_bytes() { return document_bytes_; }
+		// Total size of the deltas against the dictionary.
+		public long delta_bytes() { return delta_bytes_; }
+		// Total size of the deltas against an empty dictionary, which only
+		// find matches within each document.
+		public long baseline_delta_bytes() { return baseline_delta_bytes_; }
+		public long encode_nanos() { return encode_nanos_; }
+		public long baseline_encode_nanos() { return baseline_encode_nanos_; }
+
+		// The size of the deltas as a fraction of the size of the documents.
+		public double compression_ratio() {
+			return document_bytes_ == 0 ? 1 : (double) delta_bytes_ / document_bytes_;
+		}
+
+		public double baseline_compression_ratio() {
+			return document_bytes_ == 0 ? 1 : (double) baseline_delta_bytes_ / document_bytes_;
+		}
+	}
+
+	/**
+	 * Encodes each document separately against dictionary with parameters,
+	 * looking for target matches, and against an empty dictionary for
+	 * comparison.
+	 */
+	public static Evaluation Evaluate(byte[] dictionary, List<byte[]> documents, VCDiffEngineParameters parameters)
+			throws IOException {
+		final VCDiffEngine engine = new VCDiffEngine(dictionary, parameters);
+		final VCDiffEngine baseline_engine = new VCDiffEngine(new byte[0], parameters);
+		long document_bytes = 0;
+		long delta_bytes = 0;
+		long baseline_delta_bytes = 0;
+		long encode_nanos = 0;
+		long baseline_encode_nanos = 0;
+		for (byte[] document : documents) {
+			document_bytes += document.length;
+			long start = System.nanoTime();
+			delta_bytes += EncodedSize(engine, document);
+			encode_nanos += System.nanoTime() - start;
+			start = System.nanoTime();
+			baseline_delta_bytes += EncodedSize(baseline_engine, document);
+			baseline_encode_nanos += System.nanoTime() - start;
+		}
+		return new Evaluation(document_bytes, delta_bytes, baseline_delta_bytes, encode_nanos, baseline_encode_nanos);
+	}
+
+	private static int EncodedSize(VCDiffEngine engine, byte[] document) throws IOException {
+		final VCDiffStreamingEncoder<OutputStream> encoder = VCDiffStreamingEncoder.Create(engine,
+				EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), true,
+				VCDiffStreamingEncoder.kDefaultWindowSize);
+		final ByteArrayOutputStream delta = new ByteArrayOutputStream(document.length / 4 + 64);
+		encoder.StartEncoding(delta);
+		encoder.EncodeChunk(document, delta);
+		encoder.FinishEncoding(delta);
+		return delta.size();
+	}
+
+	public static void Print(Evaluation evaluation, PrintStream out) {
+		out.printf("%d bytes in held-out documents%n", evaluation.document_bytes());
+		out.printf("with dictionary:    %d bytes (%.1f%%), %.1f ms%n", evaluation.delta_bytes(),
+				100 * evaluation.compression_ratio(), evaluation.encode_nanos() / 1e6);
+		out.printf("without dictionary: %d bytes (%.1f%%), %.1f ms%n", evaluation.baseline_delta_bytes(),
+				100 * evaluation.baseline_compression_ratio(), evaluation.baseline_encode_nanos() / 1e6);
+	}
+
+	public static void main(String[] args) throws IOException {
+		int max_dictionary_size = kDefaultMaxDictionarySize;
+		int block_size = 8;
+		int held_out_every = 10;
+		int arg = 0;
+		while (arg < args.length && args[arg].startsWith("-")) {
+			if (args[arg].equals("-s") && arg + 1 < args.length) {
+				max_dictionary_size = Integer.parseInt(args[arg + 1]);
+			} else if (args[arg].equals("-b") && arg + 1 < args.length) {
+				block_size = Integer.parseInt(args[arg + 1]);
+			} else if (args[arg].equals("-k") && arg + 1 < args.length) {
+				held_out_every = Integer.parseInt(args[arg + 1]);
+			} else {
+				Usage();
+				return;
+			}
+			arg += 2;
+		}
+		if (args.length - arg < 2 || held_out_every < 2) {
+			Usage();
+			return;
+		}
+
+		final File dictionary_file = new File(args[arg]);
+		final List<byte[]> samples = new ArrayList<byte[]>();
+		final List<byte[]> held_out = new ArrayList<byte[]>();
+		for (int i = arg + 1; i < args.length; i++) {
+			final byte[] sample = Files.readAllBytes(new File(args[i]).toPath());
+			if ((i - arg) % held_out_every == 0) {
+				held_out.add(sample);
+			} else {
+				samples.add(sample);
+			}
+		}
+
+		final VCDiffEngineParameters parameters = VCDiffEngineParameters.ForBlockSize(block_size);
+		final byte[] dictionary = new VCDiffDictionaryTrainer(parameters, max_dictionary_size).Train(samples);
+		Files.write(dictionary_file.toPath(), dictionary);
+		System.out.printf("Wrote a %d-byte dictionary trained on %d samples to %s%n", dictionary.length,
+				samples.size(), dictionary_file);
+		if (!held_out.isEmpty()) {
+			Print(Evaluate(dictionary, held_out, parameters), System.out);
+		}
+	}
+
+	private static void Usage() {
+		System.err.println("Usage: VCDiffDictionaryTrainer [-s max_dictionary_size] [-b block_size] [-k held_out_every] dictionary_file sample_file...");
+	}
+}
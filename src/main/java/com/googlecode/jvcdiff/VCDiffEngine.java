@@ -6,7 +6,9 @@ import org.slf4j.LoggerFactory;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * All methods in this class are thread-safe.
@@ -20,28 +22,114 @@ public class VCDiffEngine {
 	 * instruction.  Since this value is more than twice the block size, the
 	 * encoder will always discover a match of this size, no matter whether it is
 	 * aligned on block boundaries in the dictionary text.
+	 *
+	 * This is the default; see VCDiffEngineParameters.minimum_match_size().
 	 */
 	public static final int kMinimumMatchSize = 32;
 
 	/**
-	 * A copy of the dictionary contents
+	 * See IsBetterLazyMatch().  With 1, lazy evaluation takes any longer
+	 * match; on text, distances beyond a few bytes then make the delta larger
+	 * instead of smaller.
+	 */
+	static final int kLazyMatchGainPerSkippedByte = 2;
+
+	protected final VCDiffEngineParameters parameters_;
+
+	/**
+	 * A copy of the dictionary contents, or the caller's buffer when the
+	 * engine was created around a prebuilt dictionary hash
 	 */
-	protected final byte[] dictionary_;
+	protected final ByteBuffer dictionary_;
 
 	/**
 	 * A hash that contains one element for every kBlockSize bytes of dictionary_.
 	 * This can be reused to encode many different target strings using the
 	 * same dictionary, without the need to compute the hash values each time.
+	 * It is null when the engine uses MatchFinderType.CONTENT_DEFINED_CHUNKS
+	 * and was not given a prebuilt hash.
 	 */
 	protected final BlockHash hashed_dictionary_;
 
+	/**
+	 * The content-defined chunks of dictionary_, if the engine uses
+	 * MatchFinderType.CONTENT_DEFINED_CHUNKS; otherwise null.
+	 */
+	protected final ChunkHash dictionary_chunks_;
+
+	/**
+	 * The suffix array of dictionary_, if the engine uses
+	 * MatchFinderType.SUFFIX_ARRAY; otherwise null.
+	 */
+	protected final SuffixArray dictionary_suffixes_;
+
 	public VCDiffEngine(byte[] dictionary) {
-		dictionary_ = Arrays.copyOf(dictionary, dictionary.length);
-		hashed_dictionary_ = BlockHash.CreateDictionaryHash(dictionary_);
+		this(dictionary, VCDiffEngineParameters.kDefault);
+	}
+
+	public VCDiffEngine(byte[] dictionary, VCDiffEngineParameters parameters) {
+		parameters_ = parameters;
+		dictionary_ = ByteBuffer.wrap(Arrays.copyOf(dictionary, dictionary.length));
+		switch (parameters.match_finder_type()) {
+		case CONTENT_DEFINED_CHUNKS:
+			hashed_dictionary_ = null;
+			dictionary_chunks_ = ChunkHash.CreateDictionaryHash(dictionary_, parameters);
+			dictionary_suffixes_ = null;
+			break;
+		case SUFFIX_ARRAY:
+			hashed_dictionary_ = null;
+			dictionary_chunks_ = null;
+			dictionary_suffixes_ = new SuffixArray(dictionary_, parameters);
+			break;
+		case BLOCK_HASH:
+		default:
+			hashed_dictionary_ = BlockHash.CreateDictionaryHash(dictionary_, parameters);
+			dictionary_chunks_ = null;
+			dictionary_suffixes_ = null;
+			break;
+		}
+	}
+
+	/**
+	 * Creates an engine around a dictionary hash that has already been built
+	 * for the remaining contents of dictionary, typically one loaded with
+	 * BlockHashIndex.Load().  Neither is copied; the dictionary buffer
+	 * (which may be memory-mapped) must not be modified while the engine is
+	 * in use.  The engine uses the parameters of the hash.
+	 */
+	public VCDiffEngine(ByteBuffer dictionary, BlockHash hashed_dictionary) {
+		if (hashed_dictionary.starting_offset() != 0
+				|| hashed_dictionary.source_data().remaining() != dictionary.remaining()
+				|| !hashed_dictionary.IsFullyPopulated()) {
+			throw new IllegalArgumentException("BlockHash is not a dictionary hash for this dictionary");
+		}
+		parameters_ = hashed_dictionary.parameters();
+		dictionary_ = dictionary.slice();
+		hashed_dictionary_ = hashed_dictionary;
+		dictionary_chunks_ = (parameters_.match_finder_type() == MatchFinderType.CONTENT_DEFINED_CHUNKS)
+				? ChunkHash.CreateDictionaryHash(dictionary_, parameters_) : null;
+		dictionary_suffixes_ = (parameters_.match_finder_type() == MatchFinderType.SUFFIX_ARRAY)
+				? new SuffixArray(dictionary_, parameters_) : null;
+	}
+
+	public VCDiffEngineParameters parameters() {
+		return parameters_;
 	}
 
 	public int dictionary_size() {
-		return dictionary_.length;
+		return dictionary_.limit();
+	}
+
+	/**
+	 * Returns the number of heap bytes retained by this engine: the dictionary
+	 * copy plus the tables of its dictionary hash, chunk index or suffix array.
+	 * Memory-mapped dictionaries and tables are not counted.
+	 */
+	public long MemoryUsage() {
+		return (dictionary_.isDirect() ? 0 : dictionary_.capacity())
+				+ (hashed_dictionary_ != null ? hashed_dictionary_.TableMemoryUsage() : 0)
+				+ (dictionary_chunks_ != null ? dictionary_chunks_.TableMemoryUsage() : 0)
+				+ (dictionary_suffixes_ != null ? dictionary_suffixes_.TableMemoryUsage() : 0);
 	}
 
 	/**
@@ -61,69 +149,298 @@ public class VCDiffEngine {
 		}
 
 		// Special case for really small input
-		if (target_data.remaining() < BlockHash.kBlockSize) {
+		final int block_size = parameters_.block_size();
+		if (target_data.remaining() < block_size) {
 			int target_size = target_data.remaining();
 			AddUnmatchedRemainder(target_data, coder);
 			FinishEncoding(target_size, diff, coder);
 			return;
 		}
-		
-		final ByteBuffer local_target_data = target_data.slice();
-		
-		RollingHash hasher = new RollingHash(BlockHash.kBlockSize);
-		final BlockHash target_hash;
-		if (look_for_target_matches) {
-			target_hash = BlockHash.CreateTargetHash(local_target_data.slice(), dictionary_size());
-		} else {
-			target_hash = null;
-		}
-		
-		//final int initial_position = local_target_data.position();
-		
-		final ByteBuffer candidate_pos = local_target_data.slice();
-		
-		int hash_value = (int)hasher.Hash(candidate_pos.array(), candidate_pos.arrayOffset() + candidate_pos.position(), candidate_pos.remaining());
+
+		if (dictionary_chunks_ != null) {
+			EncodeChunks(target_data, look_for_target_matches, diff, coder);
+			return;
+		}
+		if (dictionary_suffixes_ != null) {
+			EncodeSuffixArray(target_data, look_for_target_matches, diff, coder);
+			return;
+		}
+
+		final EncodeContext context = CreateEncodeContext(target_data,
+				look_for_target_matches ? BlockHash.CreateTargetHash(target_data.slice(), dictionary_size(), parameters_) : null);
+		final RollingHashFunction hasher = hashed_dictionary_.rolling_hash();
+		final byte[] data = context.data;
+
+		int candidate_pos = context.start;
+		// The full value is kept so that UpdateHash() works for 64-bit hashes;
+		// BlockHash only needs the low-order 32 bits.
+		long hash_value = hasher.Hash(data, candidate_pos, context.end - candidate_pos);
 		while (true) {
-			if (EncodeCopyForBestMatch(look_for_target_matches, hash_value, candidate_pos, local_target_data, target_hash, coder)) {
-				candidate_pos.position(local_target_data.position());
-				if (candidate_pos.remaining() < BlockHash.kBlockSize) {
+			if (EncodeRun(candidate_pos, context, coder)
+					|| EncodeCopyForBestMatch(hash_value, candidate_pos, context, coder)) {
+				candidate_pos = context.unencoded;
+				if (context.end - candidate_pos < block_size) {
 					break;  // Reached end of target data
 				}
 				// candidate_pos has jumped ahead by bytes_encoded bytes, so UpdateHash
 				// can't be used to calculate the hash value at its new position.
-				hash_value = (int)hasher.Hash(candidate_pos.array(),
-						candidate_pos.arrayOffset() + candidate_pos.position(),
-						candidate_pos.remaining());
-				if (look_for_target_matches) {
+				hash_value = hasher.Hash(data, candidate_pos, context.end - candidate_pos);
+				if (context.target_hash != null) {
 					// Update the target hash for the ADDed and COPYed data
-					target_hash.AddAllBlocksThroughIndex(candidate_pos.position());
+					context.target_hash.AddAllBlocksThroughIndex(candidate_pos - context.start);
 				}
 			} else {
 				// No match, or match is too small to be worth a COPY instruction.
 				// Move to the next position in the target data.
-				if (candidate_pos.remaining() - 1 < BlockHash.kBlockSize) {
+				if (context.end - candidate_pos - 1 < block_size) {
 					break;  // Reached end of target data
 				}
-				
-				if (look_for_target_matches) {
-					target_hash.AddOneIndexHash(candidate_pos.position(), hash_value);
+
+				if (context.target_hash != null) {
+					context.target_hash.AddOneIndexHash(candidate_pos - context.start, (int)hash_value);
 				}
-				
-				byte new_last_byte = candidate_pos.get(candidate_pos.position() + BlockHash.kBlockSize);
-				byte old_first_byte = candidate_pos.get();
-				
-				hash_value = (int)hasher.UpdateHash(hash_value, old_first_byte, new_last_byte);
+
+				hash_value = hasher.UpdateHash(hash_value, data[candidate_pos], data[candidate_pos + block_size]);
+				++candidate_pos;
 			}
 		}
-		
-		AddUnmatchedRemainder(local_target_data, coder);
-		FinishEncoding(local_target_data.capacity(), diff, coder);
-		
-		target_data.position(target_data.position() + local_target_data.position());
+
+		if (context.unencoded < context.end) {
+			coder.Add(data, context.unencoded, context.end - context.unencoded);
+		}
+		FinishEncoding(context.end - context.start, diff, coder);
+
+		target_data.position(target_data.limit());
 	}
 
-	protected static boolean ShouldGenerateCopyInstructionForMatchOfSize(int size) {
-		return size >= kMinimumMatchSize;
+	/**
+	 * The Encode() loop for MatchFinderType.CONTENT_DEFINED_CHUNKS.  Instead
+	 * of every position, only the content-defined chunk boundaries of the
+	 * target are looked up, in dictionary_chunks_ and, if
+	 * look_for_target_matches is set, in the chunks of the target data that
+	 * have been passed so far.  After a COPY, chunking restarts at the end of
+	 * the copied data.
+	 */
+	protected <OUT> void EncodeChunks(ByteBuffer target_data, boolean look_for_target_matches, OUT diff,
+			CodeTableWriterInterface<OUT> coder) throws IOException {
+		final EncodeContext context = CreateEncodeContext(target_data, null);
+		final ChunkHash target_chunks = look_for_target_matches
+				? ChunkHash.CreateTargetHash(context.target_words, context.start, context.end, dictionary_size(), parameters_)
+				: null;
+		final Match best_match = context.best_match;
+
+		int chunk_start = context.start;
+		while (chunk_start < context.end) {
+			final int chunk_end = dictionary_chunks_.NextBoundary(context.data, chunk_start, context.end);
+			final int chunk_size = chunk_end - chunk_start;
+			final long fingerprint = ChunkHash.Fingerprint(context.target_words, chunk_start, chunk_size);
+
+			best_match.Reset();
+			dictionary_chunks_.FindBestMatch(fingerprint, context.target_words, context.unencoded,
+					chunk_start, chunk_size, context.end, best_match);
+			if (target_chunks != null) {
+				target_chunks.FindBestMatch(fingerprint, context.target_words, context.unencoded,
+						chunk_start, chunk_size, context.end, best_match);
+			}
+
+			if (EncodeBestMatch(context, coder)) {
+				chunk_start = context.unencoded;
+			} else {
+				final int run_start = FindRun(context, chunk_start, chunk_end);
+				if (run_start >= 0 && EncodeRun(run_start, context, coder)) {
+					chunk_start = context.unencoded;
+				} else {
+					if (target_chunks != null) {
+						target_chunks.AddChunk(chunk_start, chunk_size, fingerprint);
+					}
+					chunk_start = chunk_end;
+				}
+			}
+		}
+
+		if (context.unencoded < context.end) {
+			coder.Add(context.data, context.unencoded, context.end - context.unencoded);
+		}
+		FinishEncoding(context.end - context.start, diff, coder);
+
+		target_data.position(target_data.limit());
+	}
+
+	/**
+	 * The Encode() loop for MatchFinderType.SUFFIX_ARRAY.  At every target
+	 * position that is not covered by a COPY, the longest match in the
+	 * dictionary and, if look_for_target_matches is set, the longest match
+	 * earlier in the target data are found; the longer of the two is encoded
+	 * if it is worth a COPY.
+	 */
+	protected <OUT> void EncodeSuffixArray(ByteBuffer target_data, boolean look_for_target_matches, OUT diff,
+			CodeTableWriterInterface<OUT> coder) throws IOException {
+		final EncodeContext context = CreateEncodeContext(target_data, null);
+		final SuffixArray.PreviousMatchFinder target_matches = look_for_target_matches
+				? new SuffixArray.PreviousMatchFinder(context.data, context.start, context.end)
+				: null;
+		final int minimum_match_size = parameters_.minimum_match_size();
+
+		int candidate_pos = context.start;
+		while (context.end - candidate_pos >= minimum_match_size) {
+			if (EncodeRun(candidate_pos, context, coder)) {
+				candidate_pos = context.unencoded;
+				continue;
+			}
+			FindSuffixArrayMatch(candidate_pos, target_matches, context, context.best_match);
+			if (ShouldGenerateCopyInstructionForMatchOfSize(context.best_match.size())) {
+				// Lazy evaluation: see whether a longer match starts soon after.
+				int lookahead_pos = candidate_pos;
+				int remaining = parameters_.lazy_match_distance();
+				while (remaining-- > 0 && context.end - (lookahead_pos + 1) >= minimum_match_size) {
+					++lookahead_pos;
+					FindSuffixArrayMatch(lookahead_pos, target_matches, context, context.lookahead_match);
+					if (IsBetterLazyMatch(context.best_match, context.lookahead_match)) {
+						context.SwapLookaheadMatch();
+						remaining = parameters_.lazy_match_distance();
+					}
+				}
+			}
+
+			if (EncodeBestMatch(context, coder)) {
+				candidate_pos = context.unencoded;
+			} else {
+				++candidate_pos;
+			}
+		}
+
+		if (context.unencoded < context.end) {
+			coder.Add(context.data, context.unencoded, context.end - context.unencoded);
+		}
+		FinishEncoding(context.end - context.start, diff, coder);
+
+		target_data.position(target_data.limit());
+	}
+
+	private void FindSuffixArrayMatch(int candidate_pos, SuffixArray.PreviousMatchFinder target_matches,
+			EncodeContext context, Match match) {
+		match.Reset();
+		dictionary_suffixes_.FindBestMatch(context.data, context.unencoded, candidate_pos, context.end, match);
+		if (target_matches != null) {
+			target_matches.FindBestMatch(context.unencoded, candidate_pos, dictionary_size(), match);
+		}
+	}
+
+	private EncodeContext CreateEncodeContext(ByteBuffer target_data, BlockHash target_hash) {
+		final EncodeContext context = new EncodeContext(target_data, target_hash, dictionary_size());
+		if (parameters_.cost_aware_matching()) {
+			context.EnableCostModel(parameters_.minimum_match_size());
+		}
+		return context;
+	}
+
+	/**
+	 * The state of one call to Encode().  It is created once per window, and
+	 * holds everything the loop over candidate positions needs, so that the
+	 * loop itself does not allocate any objects.
+	 *
+	 * With VCDiffEngineParameters.cost_aware_matching(), it is also the cost
+	 * model of its matches.  It keeps a copy of the address cache of the
+	 * coder, which is reset for each window as the coder's is, and updated
+	 * with every COPY that is encoded; so a candidate match is priced with
+	 * the address mode that the coder would choose for it.  The instruction
+	 * is priced with the default code table: one opcode byte, plus the size
+	 * if the table has no opcode for it, plus an ADD opcode if the match
+	 * leaves unencoded data before it.  A coder with other cache sizes or
+	 * another code table still produces a correct delta, only priced less
+	 * accurately.
+	 */
+	protected static final class EncodeContext implements BlockHash.CopyCostModel {
+		// The target array, and the array indices of the start and end of the
+		// target data.
+		final byte[] data;
+		final int start;
+		final int end;
+
+		// The array index of the first byte not yet encoded by an ADD or COPY.
+		int unencoded;
+
+		// The hash of the previously encoded target data, or null if target
+		// matches are not wanted.
+		final BlockHash target_hash;
+
+		// Scratch objects passed to BlockHash.FindBestMatch().  lookahead_match
+		// holds the matches found by lazy evaluation, and is swapped with
+		// best_match when it is better.
+		Match best_match = new Match();
+		Match lookahead_match = new Match();
+
+		// A scratch object for subclasses that search several dictionaries
+		// (see VCDiffMultiDictionaryEngine).
+		final Match dictionary_match = new Match();
+		final ByteBuffer target_words;
+
+		// The dictionary size that the coder addresses target data after.
+		final int dictionary_size;
+
+		// The copy of the coder's address cache, or null if matches are
+		// compared by size.
+		private VCDiffAddressCacheImpl address_cache;
+		private final AtomicInteger encoded_addr = new AtomicInteger();
+
+		EncodeContext(ByteBuffer target_data, BlockHash target_hash, int dictionary_size) {
+			this.data = target_data.array();
+			this.start = target_data.arrayOffset() + target_data.position();
+			this.end = target_data.arrayOffset() + target_data.limit();
+			this.unencoded = start;
+			this.target_hash = target_hash;
+			this.target_words = ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+			this.dictionary_size = dictionary_size;
+		}
+
+		void EnableCostModel(int minimum_match_size) {
+			address_cache = new VCDiffAddressCacheImpl();
+			address_cache.Init();
+			best_match.SetCostModel(this, minimum_match_size);
+			lookahead_match.SetCostModel(this, minimum_match_size);
+		}
+
+		// The address of the first byte of a match that starts at
+		// target_offset, relative to unencoded, in the coder's combined
+		// address space of dictionary and target window.
+		private int HereAddress(int target_offset) {
+			return dictionary_size + (unencoded - start) + target_offset;
+		}
+
+		public int CopyCost(int size, int source_offset, int target_offset) {
+			final short mode = address_cache.FindMode(source_offset, HereAddress(target_offset), encoded_addr);
+			int cost = address_cache.WriteAddressAsVarintForMode(mode)
+					? VarInt.calculateIntLength(encoded_addr.get()) : 1;
+			if (size <= 255 && VCDiffInstructionMap.DEFAULT_INSTRUCTION_MAP.LookupFirstOpcode(
+					VCDiffCodeTableData.VCD_COPY, (byte) size, (byte) mode) != VCDiffCodeTableData.kNoOpcode) {
+				cost += 1;
+			} else {
+				cost += 1 + VarInt.calculateIntLength(size);
+			}
+			if (target_offset > 0) {
+				cost += 1;
+			}
+			return cost;
+		}
+
+		// Updates the copy of the address cache for a COPY that is about to
+		// be encoded for best_match.
+		void RecordCopy() {
+			if (address_cache != null) {
+				address_cache.EncodeAddress(best_match.source_offset(), HereAddress(best_match.target_offset()),
+						encoded_addr);
+			}
+		}
+
+		void SwapLookaheadMatch() {
+			final Match match = best_match;
+			best_match = lookahead_match;
+			lookahead_match = match;
+		}
+	}
+
+	protected boolean ShouldGenerateCopyInstructionForMatchOfSize(int size) {
+		return size >= parameters_.minimum_match_size();
 	}
 
 	/**
@@ -159,51 +476,150 @@ public class VCDiffEngine {
 
 	/**
 	 * This helper function tries to find an appropriate match within
-	 * hashed_dictionary_ for the block starting at the current target position.
-	 * If target_hash is not NULL, this function will also look for a match
-	 * within the previously encoded target data.
+	 * hashed_dictionary_ for the block starting at candidate_pos (an index
+	 * into context.data).  If context.target_hash is not null, this function
+	 * will also look for a match within the previously encoded target data.
 	 *
 	 * If a match is found, this function will generate an ADD instruction
 	 * for all unencoded data that precedes the match,
-	 * and a COPY instruction for the match itself; then it returns
-	 * the number of bytes processed by both instructions,
-	 * which is guaranteed to be > 0.
-	 * If no appropriate match is found, the function returns 0.
+	 * and a COPY instruction for the match itself; then it advances
+	 * context.unencoded past both instructions and returns true.
+	 * If no appropriate match is found, the function returns false.
 	 *
-	 * The first four parameters are input parameters which are passed
-	 * directly to BlockHash::FindBestMatch; please see that function
-	 * for a description of their allowable values.
-	 * 
-	 * @param look_for_target_matches
-	 * @param hash_value
-	 * @param target_candidate
-	 * @param unencoded_target
-	 * @param target_hash
-	 * @param coder
-	 * @return
-	 */
-	protected boolean EncodeCopyForBestMatch(boolean look_for_target_matches, int hash_value,
-			ByteBuffer target_candidate, ByteBuffer unencoded_target,
-			BlockHash target_hash, CodeTableWriterInterface<?> coder) {
+	 * If parameters().lazy_match_distance() is not zero, a match is only
+	 * encoded after that many following positions have been checked for a
+	 * longer one.
+	 */
+	protected boolean EncodeCopyForBestMatch(long hash_value, int candidate_pos,
+			EncodeContext context, CodeTableWriterInterface<?> coder) {
+		FindBestMatch((int) hash_value, candidate_pos, context, context.best_match);
+		if (ShouldGenerateCopyInstructionForMatchOfSize(context.best_match.size())
+				&& parameters_.lazy_match_distance() > 0) {
+			LookAheadForLongerMatch(hash_value, candidate_pos, context);
+		}
+		return EncodeBestMatch(context, coder);
+	}
+
+	/**
+	 * Checks the lazy_match_distance() target positions after candidate_pos
+	 * for a match longer than context.best_match, and makes the longest one
+	 * found context.best_match.  Each time a longer match is found, the
+	 * search continues for another lazy_match_distance() positions.  The hash
+	 * values are rolled forward from hash_value, the hash at candidate_pos.
+	 */
+	private void LookAheadForLongerMatch(long hash_value, int candidate_pos, EncodeContext context) {
+		final RollingHashFunction hasher = hashed_dictionary_.rolling_hash();
+		final int block_size = parameters_.block_size();
+		final byte[] data = context.data;
+		int remaining = parameters_.lazy_match_distance();
+		while (remaining-- > 0 && context.end - candidate_pos - 1 >= block_size) {
+			hash_value = hasher.UpdateHash(hash_value, data[candidate_pos], data[candidate_pos + block_size]);
+			++candidate_pos;
+			FindBestMatch((int) hash_value, candidate_pos, context, context.lookahead_match);
+			if (IsBetterLazyMatch(context.best_match, context.lookahead_match)) {
+				context.SwapLookaheadMatch();
+				remaining = parameters_.lazy_match_distance();
+			}
+		}
+	}
+
+	/**
+	 * If parameters().minimum_run_size() is not zero and at least that many
+	 * copies of one byte value start at candidate_pos, this function creates
+	 * an ADD instruction for the target data from context.unencoded up to
+	 * candidate_pos, and a RUN instruction for the whole run; then it
+	 * advances context.unencoded past both instructions and returns true.
+	 * Otherwise it returns false.
+	 */
+	protected boolean EncodeRun(int candidate_pos, EncodeContext context, CodeTableWriterInterface<?> coder) {
+		final int minimum_run_size = parameters_.minimum_run_size();
+		if (minimum_run_size == 0 || context.end - candidate_pos < minimum_run_size) {
+			return false;
+		}
+		final byte[] data = context.data;
+		final byte value = data[candidate_pos];
+		int run_end = candidate_pos + 1;
+		while (run_end < context.end && data[run_end] == value) {
+			++run_end;
+		}
+		if (run_end - candidate_pos < minimum_run_size) {
+			return false;
+		}
+		if (candidate_pos > context.unencoded) {
+			coder.Add(data, context.unencoded, candidate_pos - context.unencoded);
+		}
+		coder.Run(run_end - candidate_pos, value);
+		context.unencoded = run_end;
+		return true;
+	}
 
+	/**
+	 * Returns the position in [start, end) where the first run of at least
+	 * parameters().minimum_run_size() copies of one byte value begins, or -1
+	 * if there is none.  The run itself may extend past end.
+	 */
+	private int FindRun(EncodeContext context, int start, int end) {
+		final int minimum_run_size = parameters_.minimum_run_size();
+		if (minimum_run_size == 0) {
+			return -1;
+		}
+		final byte[] data = context.data;
+		int run_start = start;
+		for (int i = start + 1; i < context.end && run_start < end; ++i) {
+			if (data[i] != data[run_start]) {
+				run_start = i;
+			} else if (i + 1 - run_start >= minimum_run_size) {
+				return run_start;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns true if lazy evaluation should encode lookahead_match instead of
+	 * best_match.  The target bytes that lookahead_match skips at the start
+	 * of best_match have to be ADDed, which costs about as much as they save
+	 * when copied, and greedy encoding would usually find the rest of
+	 * lookahead_match anyway with its next search.  So lookahead_match must
+	 * extend past the end of best_match by more than
+	 * kLazyMatchGainPerSkippedByte times the number of skipped bytes.
+	 */
+	protected static boolean IsBetterLazyMatch(Match best_match, Match lookahead_match) {
+		final int skipped_bytes = Math.max(0, lookahead_match.target_offset() - best_match.target_offset());
+		final int gained_bytes = (lookahead_match.target_offset() + lookahead_match.size())
+				- (best_match.target_offset() + best_match.size());
+		return gained_bytes > kLazyMatchGainPerSkippedByte * skipped_bytes;
+	}
+
+	/**
+	 * Finds the best match for the block at candidate_pos in
+	 * hashed_dictionary_ and, if context.target_hash is not null, in the
+	 * previously encoded target data, and stores it in match.
+	 */
+	protected void FindBestMatch(int hash_value, int candidate_pos, EncodeContext context, Match best_match) {
 		// When FindBestMatch() comes up with a match for a candidate block,
 		// it will populate best_match with the size, source offset,
 		// and target offset of the match.
-		BlockHash.Match best_match = new Match();
+		best_match.Reset();
 
-		ByteBuffer target = unencoded_target.slice();
-		target.position((target_candidate.arrayOffset() + target_candidate.position()) -
-				(unencoded_target.arrayOffset() + unencoded_target.position()));
-		
 		// First look for a match in the dictionary.
-		hashed_dictionary_.FindBestMatch(hash_value, target, best_match);
+		hashed_dictionary_.FindBestMatch(hash_value, context.data, context.target_words,
+				context.unencoded, candidate_pos, context.end, best_match);
 
 		// If target matching is enabled, then see if there is a better match
 		// within the target data that has been encoded so far.
-		if (look_for_target_matches) {
-			target_hash.FindBestMatch(hash_value, target, best_match);
+		if (context.target_hash != null) {
+			context.target_hash.FindBestMatch(hash_value, context.data, context.target_words,
+					context.unencoded, candidate_pos, context.end, best_match);
 		}
+	}
 
+	/**
+	 * Encodes context.best_match, if it is worth a COPY instruction, in the
+	 * same way as EncodeCopyForBestMatch() does, and returns whether it did.
+	 */
+	protected boolean EncodeBestMatch(EncodeContext context, CodeTableWriterInterface<?> coder) {
+		final Match best_match = context.best_match;
 		if (!ShouldGenerateCopyInstructionForMatchOfSize(best_match.size())) {
 			return false;
 		}
@@ -212,13 +628,12 @@ public class VCDiffEngine {
 			// Create an ADD instruction to encode all target bytes
 			// from the end of the last COPY match, if any, up to
 			// the beginning of this COPY match.
-			coder.Add(unencoded_target.array(),
-					unencoded_target.arrayOffset() + unencoded_target.position(),
-					best_match.target_offset());
+			coder.Add(context.data, context.unencoded, best_match.target_offset());
 		}
 
+		context.RecordCopy();
 		coder.Copy(best_match.source_offset(), best_match.size());
-		unencoded_target.position(unencoded_target.position() + best_match.target_offset() + best_match.size());
+		context.unencoded += best_match.target_offset() + best_match.size();
 		return best_match.target_offset() + best_match.size() > 0;
 	}
 }
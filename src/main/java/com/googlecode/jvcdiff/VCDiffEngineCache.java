@@ -0,0 +1,286 @@
+package com.googlecode.jvcdiff;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A process-wide registry of VCDiffEngine objects, keyed by a fingerprint of
+ * the dictionary contents.  Building a VCDiffEngine copies the dictionary and
+ * hashes every block of it; encoders that use the same few dictionaries over
+ * and over can share one engine per dictionary instead.  VCDiffEngine is
+ * thread-safe, so a cached engine may be used by any number of threads.
+ *
+ * The cache is bounded by the total number of bytes retained by its engines
+ * (see VCDiffEngine.MemoryUsage()).  When the bound is exceeded, the least
+ * recently used engines are evicted.  An engine that is larger than the bound
+ * by itself is built and returned, but not retained.
+ *
+ * If several threads ask for the same missing dictionary at the same time,
+ * only one of them builds the engine; the others wait for it.
+ *
+ * The fingerprint is a digest of the whole dictionary, computed on every
+ * call.  Callers that look up large dictionaries very often can name them
+ * with a key of their own instead; see GetEngine(Object, byte[],
+ * VCDiffEngineParameters).
+ *
+ * All methods in this class are thread-safe.
+ */
+public class VCDiffEngineCache {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(VCDiffEngineCache.class);
+
+	private static final String kFingerprintAlgorithm = "SHA-256";
+
+	private final long max_retained_bytes_;
+
+	// Entries in least-recently-used order, keyed by a Fingerprint or a
+	// CallerKey.  Guarded by "this".
+	private final LinkedHashMap<Object, Entry> entries_ =
+			new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+
+	// The sum of the weights of all completed entries.  Guarded by "this".
+	private long retained_bytes_;
+
+	private final AtomicLong hit_count_ = new AtomicLong();
+	private final AtomicLong miss_count_ = new AtomicLong();
+	private final AtomicLong eviction_count_ = new AtomicLong();
+
+	public VCDiffEngineCache(long max_retained_bytes) {
+		if (max_retained_bytes < 0) {
+			throw new IllegalArgumentException("Maximum retained bytes " + max_retained_bytes + " is invalid");
+		}
+		this.max_retained_bytes_ = max_retained_bytes;
+	}
+
+	/**
+	 * Returns an engine for the given dictionary contents, building it if no
+	 * engine for identical contents is cached.  The dictionary array is copied
+	 * when an engine is built, so the caller may reuse it afterwards.
+	 */
+	public VCDiffEngine GetEngine(byte[] dictionary) {
+		return GetEngine(dictionary, VCDiffEngineParameters.kDefault);
+	}
+
+	/**
+	 * Like GetEngine(byte[]), but for an engine with the given parameters.
+	 * Engines for the same dictionary with different parameters are cached
+	 * separately.
+	 */
+	public VCDiffEngine GetEngine(byte[] dictionary, VCDiffEngineParameters parameters) {
+		return Lookup(new Fingerprint(dictionary, parameters), dictionary, parameters);
+	}
+
+	/**
+	 * Like GetEngine(byte[], VCDiffEngineParameters), but the engine is cached
+	 * under dictionary_key (compared with equals()) instead of a digest of the
+	 * dictionary contents, so the dictionary is not hashed on every call.  The
+	 * caller must pass the same contents whenever it passes an equal key, for
+	 * example by using a name and version of the dictionary as the key.
+	 * Engines cached under a key are never shared with those cached by
+	 * contents.
+	 */
+	public VCDiffEngine GetEngine(Object dictionary_key, byte[] dictionary, VCDiffEngineParameters parameters) {
+		if (dictionary_key == null) {
+			throw new NullPointerException();
+		}
+		return Lookup(new CallerKey(dictionary_key, parameters), dictionary, parameters);
+	}
+
+	// Returns the engine cached under key, building it from dictionary if it
+	// is missing.
+	private VCDiffEngine Lookup(Object key, final byte[] dictionary, final VCDiffEngineParameters parameters) {
+
+		final Entry entry;
+		final boolean build;
+		synchronized (this) {
+			Entry existing = entries_.get(key);
+			if (existing != null) {
+				entry = existing;
+				build = false;
+			} else {
+				entry = new Entry(new FutureTask<VCDiffEngine>(new Callable<VCDiffEngine>() {
+					public VCDiffEngine call() {
+						return new VCDiffEngine(dictionary, parameters);
+					}
+				}));
+				entries_.put(key, entry);
+				build = true;
+			}
+		}
+
+		if (build) {
+			miss_count_.incrementAndGet();
+			entry.engine.run();
+			Completed(key, entry);
+		} else {
+			hit_count_.incrementAndGet();
+		}
+
+		try {
+			return entry.engine.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IllegalStateException("Interrupted while waiting for dictionary hash", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new IllegalStateException("Failed to build dictionary hash", e.getCause());
+		}
+	}
+
+	/**
+	 * Removes all entries from the cache.  Engines that are in use remain
+	 * valid.
+	 */
+	public synchronized void Clear() {
+		entries_.clear();
+		retained_bytes_ = 0;
+	}
+
+	public long max_retained_bytes() {
+		return max_retained_bytes_;
+	}
+
+	public synchronized long retained_bytes() {
+		return retained_bytes_;
+	}
+
+	public synchronized int size() {
+		return entries_.size();
+	}
+
+	public long hit_count() {
+		return hit_count_.get();
+	}
+
+	public long miss_count() {
+		return miss_count_.get();
+	}
+
+	public long eviction_count() {
+		return eviction_count_.get();
+	}
+
+	// Called by the building thread once an entry's engine is available (or
+	// has failed).  Accounts for its weight and evicts entries as needed.
+	private synchronized void Completed(Object key, Entry entry) {
+		if (entries_.get(key) != entry) {
+			// Removed by Clear() while it was being built.
+			return;
+		}
+
+		VCDiffEngine engine;
+		try {
+			engine = entry.engine.get();
+		} catch (Exception e) {
+			// Don't cache failures; the next caller will try again.
+			entries_.remove(key);
+			return;
+		}
+
+		entry.weight = engine.MemoryUsage();
+		if (entry.weight > max_retained_bytes_) {
+			LOGGER.debug("Dictionary hash of {} bytes exceeds cache limit of {} bytes; not cached",
+					entry.weight, max_retained_bytes_);
+			entries_.remove(key);
+			return;
+		}
+		retained_bytes_ += entry.weight;
+
+		// Evict least recently used entries.  Entries that are still being built
+		// have no weight yet, so evicting them would not help.
+		Iterator<Map.Entry<Object, Entry>> it = entries_.entrySet().iterator();
+		while (retained_bytes_ > max_retained_bytes_ && it.hasNext()) {
+			Entry candidate = it.next().getValue();
+			if (candidate == entry || candidate.weight == 0) {
+				continue;
+			}
+			it.remove();
+			retained_bytes_ -= candidate.weight;
+			eviction_count_.incrementAndGet();
+		}
+	}
+
+	private static final class Entry {
+		final FutureTask<VCDiffEngine> engine;
+
+		// The value of engine.MemoryUsage(), or 0 until the engine is built.
+		long weight;
+
+		Entry(FutureTask<VCDiffEngine> engine) {
+			this.engine = engine;
+		}
+	}
+
+	// A digest of the dictionary contents, together with its length and the
+	// engine parameters.
+	private static final class Fingerprint {
+		private final byte[] digest_;
+		private final int length_;
+		private final VCDiffEngineParameters parameters_;
+		private final int hash_code_;
+
+		Fingerprint(byte[] dictionary, VCDiffEngineParameters parameters) {
+			try {
+				digest_ = MessageDigest.getInstance(kFingerprintAlgorithm).digest(dictionary);
+			} catch (NoSuchAlgorithmException e) {
+				throw new IllegalStateException(kFingerprintAlgorithm + " is not available", e);
+			}
+			length_ = dictionary.length;
+			parameters_ = parameters;
+			hash_code_ = 31 * Arrays.hashCode(digest_) + parameters.hashCode();
+		}
+
+		@Override
+		public int hashCode() {
+			return hash_code_;
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof Fingerprint)) {
+				return false;
+			}
+			Fingerprint other = (Fingerprint) obj;
+			return length_ == other.length_ && parameters_.equals(other.parameters_)
+					&& Arrays.equals(digest_, other.digest_);
+		}
+	}
+
+	// A key chosen by the caller, together with the engine parameters.
+	private static final class CallerKey {
+		private final Object key_;
+		private final VCDiffEngineParameters parameters_;
+
+		CallerKey(Object key, VCDiffEngineParameters parameters) {
+			key_ = key;
+			parameters_ = parameters;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * key_.hashCode() + parameters_.hashCode();
+		}
+
+		@Override
+		public boolean equals(Object obj) {
+			if (!(obj instanceof CallerKey)) {
+				return false;
+			}
+			CallerKey other = (CallerKey) obj;
+			return key_.equals(other.key_) && parameters_.equals(other.parameters_);
+		}
+	}
+}
@@ -0,0 +1,299 @@
+package com.googlecode.jvcdiff;
+
+/**
+ * The tuning parameters of a VCDiffEngine and of the BlockHash objects it
+ * uses.  See BlockHash.kBlockSize, BlockHash.kMaxMatchesToCheck,
+ * BlockHash.kMaxProbes and VCDiffEngine.kMinimumMatchSize for a description
+ * of each value; kDefault contains exactly those values.
+ *
+ * As a rule of thumb, large binary data encodes faster and with smaller
+ * hash tables using larger blocks (32 or 64 bytes), while small text
+ * payloads find more matches with smaller blocks (8 bytes).
+ * VCDiffEngineTuner can be used to compare settings on a sample corpus.
+ *
+ * The rolling hash function used for blocks is also selected here; see
+ * RollingHashType.  So is the match finder (see MatchFinderType): for
+ * inputs of many gigabytes that are mostly unchanged,
+ * MatchFinderType.CONTENT_DEFINED_CHUNKS encodes much faster than the
+ * default BlockHash search, at the cost of slightly larger deltas.
+ *
+ * Runs of a single byte value, such as the zero padding of sparse binary
+ * files, can be encoded as RUN instructions; see minimum_run_size().
+ * Matches can be chosen by their encoded size rather than their length;
+ * see cost_aware_matching().
+ *
+ * Instances are immutable.
+ */
+public final class VCDiffEngineParameters {
+
+	public static final VCDiffEngineParameters kDefault = ForBlockSize(BlockHash.kBlockSize);
+
+	// The smallest match that ForMaximumCompression() encodes as a COPY.  A
+	// COPY of fewer bytes usually takes more space than adding them, and on
+	// text and source code 4 gives smaller deltas than both 3 and 6.
+	public static final int kMaximumCompressionMatchSize = 4;
+
+	// The smallest run of one byte value that ForMaximumCompression() encodes
+	// as a RUN instruction.  A RUN takes about three bytes, and shorter runs
+	// are usually part of a longer COPY.
+	public static final int kMaximumCompressionRunSize = 8;
+
+	private final int block_size_;
+	private final int max_matches_to_check_;
+	private final int max_probes_;
+	private final int minimum_match_size_;
+	private final RollingHashType rolling_hash_type_;
+	private final MatchFinderType match_finder_type_;
+	private final int lazy_match_distance_;
+	private final int minimum_run_size_;
+	private final boolean cost_aware_matching_;
+
+	/**
+	 * @param block_size the size of a hashed block; must be a power of two
+	 *        and at least 2
+	 * @param max_matches_to_check the maximum number of matching blocks
+	 *        FindBestMatch() examines per call
+	 * @param max_probes the maximum number of consecutive hash collisions
+	 *        skipped while walking a hash chain
+	 * @param minimum_match_size the smallest match that is encoded as a COPY;
+	 *        must be at least block_size
+	 */
+	public VCDiffEngineParameters(int block_size, int max_matches_to_check, int max_probes, int minimum_match_size) {
+		this(block_size, max_matches_to_check, max_probes, minimum_match_size, RollingHashType.RABIN_KARP,
+				MatchFinderType.BLOCK_HASH, 0, 0, false);
+	}
+
+	// The other options are only set through the With*() methods, which copy
+	// every value and replace one.
+	private VCDiffEngineParameters(int block_size, int max_matches_to_check, int max_probes, int minimum_match_size,
+			RollingHashType rolling_hash_type, MatchFinderType match_finder_type, int lazy_match_distance,
+			int minimum_run_size, boolean cost_aware_matching) {
+		if (rolling_hash_type == null || match_finder_type == null) {
+			throw new NullPointerException();
+		}
+		if (block_size < 2 || (block_size & (block_size - 1)) != 0) {
+			throw new IllegalArgumentException("Block size " + block_size + " is not a power of two >= 2");
+		}
+		if (max_matches_to_check <= 0) {
+			throw new IllegalArgumentException("Maximum matches to check " + max_matches_to_check + " is invalid");
+		}
+		if (max_probes < 0) {
+			throw new IllegalArgumentException("Maximum probes " + max_probes + " is invalid");
+		}
+		if (lazy_match_distance < 0) {
+			throw new IllegalArgumentException("Lazy match distance " + lazy_match_distance + " is invalid");
+		}
+		if (minimum_run_size < 0 || minimum_run_size == 1) {
+			throw new IllegalArgumentException("Minimum run size " + minimum_run_size + " is invalid");
+		}
+		if (minimum_match_size < block_size) {
+			throw new IllegalArgumentException("Minimum match size " + minimum_match_size
+					+ " is smaller than block size " + block_size);
+		}
+		this.block_size_ = block_size;
+		this.max_matches_to_check_ = max_matches_to_check;
+		this.max_probes_ = max_probes;
+		this.minimum_match_size_ = minimum_match_size;
+		this.rolling_hash_type_ = rolling_hash_type;
+		this.match_finder_type_ = match_finder_type;
+		this.lazy_match_distance_ = lazy_match_distance;
+		this.minimum_run_size_ = minimum_run_size;
+		this.cost_aware_matching_ = cost_aware_matching;
+	}
+
+	/**
+	 * Returns parameters for the given block size, with the other values
+	 * derived from it the same way as the defaults are: up to
+	 * 32 * (32 / block_size) matches checked (but at least 32), 16 probes, and
+	 * a minimum match size of twice the block size, so that every match of
+	 * that size contains a complete aligned block.
+	 */
+	public static VCDiffEngineParameters ForBlockSize(int block_size) {
+		return ForBlockSize(block_size, RollingHashType.RABIN_KARP);
+	}
+
+	public static VCDiffEngineParameters ForBlockSize(int block_size, RollingHashType rolling_hash_type) {
+		final int max_matches_to_check = (block_size >= 32) ? 32 : (32 * (32 / block_size));
+		return new VCDiffEngineParameters(block_size, max_matches_to_check, 16, 2 * block_size, rolling_hash_type,
+				MatchFinderType.BLOCK_HASH, 0, 0, false);
+	}
+
+	/**
+	 * Returns parameters for the smallest deltas, regardless of encoding
+	 * time: MatchFinderType.SUFFIX_ARRAY, with a minimum match size of
+	 * kMaximumCompressionMatchSize bytes, a lazy match distance of 1,
+	 * RUN instructions for runs of kMaximumCompressionRunSize bytes or more,
+	 * and cost-aware matching.
+	 * The block size only limits the size of targets that are searched for
+	 * matches at all.
+	 */
+	public static VCDiffEngineParameters ForMaximumCompression() {
+		return new VCDiffEngineParameters(4, 32, 16, kMaximumCompressionMatchSize, RollingHashType.RABIN_KARP,
+				MatchFinderType.SUFFIX_ARRAY, 1, kMaximumCompressionRunSize, true);
+	}
+
+	public int block_size() {
+		return block_size_;
+	}
+
+	public int max_matches_to_check() {
+		return max_matches_to_check_;
+	}
+
+	public int max_probes() {
+		return max_probes_;
+	}
+
+	public int minimum_match_size() {
+		return minimum_match_size_;
+	}
+
+	public RollingHashType rolling_hash_type() {
+		return rolling_hash_type_;
+	}
+
+	public MatchFinderType match_finder_type() {
+		return match_finder_type_;
+	}
+
+	/**
+	 * Returns a copy of these parameters that uses rolling_hash_type.
+	 */
+	public VCDiffEngineParameters WithRollingHashType(RollingHashType rolling_hash_type) {
+		return new VCDiffEngineParameters(block_size_, max_matches_to_check_, max_probes_, minimum_match_size_,
+				rolling_hash_type, match_finder_type_, lazy_match_distance_, minimum_run_size_, cost_aware_matching_);
+	}
+
+	/**
+	 * Returns a copy of these parameters that uses match_finder_type.
+	 */
+	public VCDiffEngineParameters WithMatchFinderType(MatchFinderType match_finder_type) {
+		return new VCDiffEngineParameters(block_size_, max_matches_to_check_, max_probes_, minimum_match_size_,
+				rolling_hash_type_, match_finder_type, lazy_match_distance_, minimum_run_size_, cost_aware_matching_);
+	}
+
+	/**
+	 * The number of target positions after a match that are checked for a
+	 * longer one before the match is encoded, as zlib's lazy evaluation does.
+	 * If a sufficiently longer match is found, it replaces the first one and
+	 * the search continues after it.  Greedy encoding (0, the default) is
+	 * fastest, but on shifted or lightly edited text often commits to a short
+	 * COPY that prevents a longer one starting a few bytes later.  On text, 4
+	 * to 8 works best with small block sizes, and 1 or 2 with
+	 * MatchFinderType.SUFFIX_ARRAY, which already finds matches of any
+	 * length; larger values cost time and may make the delta larger.  Ignored
+	 * by MatchFinderType.CONTENT_DEFINED_CHUNKS, whose matches are always
+	 * extended as far as they go.
+	 */
+	public int lazy_match_distance() {
+		return lazy_match_distance_;
+	}
+
+	/**
+	 * Returns a copy of these parameters that uses lazy_match_distance.
+	 */
+	public VCDiffEngineParameters WithLazyMatchDistance(int lazy_match_distance) {
+		return new VCDiffEngineParameters(block_size_, max_matches_to_check_, max_probes_, minimum_match_size_,
+				rolling_hash_type_, match_finder_type_, lazy_match_distance, minimum_run_size_, cost_aware_matching_);
+	}
+
+	/**
+	 * The shortest run of a single byte value that the encoder writes as a
+	 * RUN instruction instead of searching it for matches, or 0 (the
+	 * default) if RUN instructions are never used, as in open-vcdiff.  A run
+	 * is only detected where a match could start, so runs inside a COPY
+	 * stay part of the COPY.  With MatchFinderType.CONTENT_DEFINED_CHUNKS,
+	 * runs are only looked for in chunks that have no match.
+	 *
+	 * Runs are found without any hash lookups and encode in a few bytes
+	 * however long they are, so sparse data such as database pages or
+	 * zero-padded images encodes faster and smaller; a value between 8 and
+	 * the minimum match size is a good choice for such data.
+	 */
+	public int minimum_run_size() {
+		return minimum_run_size_;
+	}
+
+	/**
+	 * Returns a copy of these parameters that uses minimum_run_size.
+	 */
+	public VCDiffEngineParameters WithMinimumRunSize(int minimum_run_size) {
+		return new VCDiffEngineParameters(block_size_, max_matches_to_check_, max_probes_, minimum_match_size_,
+				rolling_hash_type_, match_finder_type_, lazy_match_distance_, minimum_run_size, cost_aware_matching_);
+	}
+
+	/**
+	 * Whether the match finder chooses, among the matches it finds for a
+	 * position, the one that saves the most bytes in the delta file (its
+	 * size minus the size of its COPY instruction and address) rather than
+	 * the longest one; false by default.
+	 *
+	 * A COPY address that is in the SAME cache takes one byte, one close to
+	 * a recently used address (NEAR mode) or to the current position (HERE
+	 * mode) takes one or two, but one far away in a large dictionary takes
+	 * up to five; and a COPY of 4 to 18 bytes needs no separate size.  So
+	 * when many matches are of medium length, a slightly shorter match with
+	 * a cheaper address often makes the delta smaller.  It makes little
+	 * difference to long matches, and matching is slightly slower.
+	 */
+	public boolean cost_aware_matching() {
+		return cost_aware_matching_;
+	}
+
+	/**
+	 * Returns a copy of these parameters that uses cost_aware_matching.
+	 */
+	public VCDiffEngineParameters WithCostAwareMatching(boolean cost_aware_matching) {
+		return new VCDiffEngineParameters(block_size_, max_matches_to_check_, max_probes_, minimum_match_size_,
+				rolling_hash_type_, match_finder_type_, lazy_match_distance_, minimum_run_size_, cost_aware_matching);
+	}
+
+	// Creates the rolling hash function for blocks of block_size() bytes.
+	public RollingHashFunction CreateRollingHash() {
+		return rolling_hash_type_.Create(block_size_);
+	}
+
+	@Override
+	public int hashCode() {
+		int result = block_size_;
+		result = 31 * result + max_matches_to_check_;
+		result = 31 * result + max_probes_;
+		result = 31 * result + minimum_match_size_;
+		result = 31 * result + rolling_hash_type_.id();
+		result = 31 * result + match_finder_type_.ordinal();
+		result = 31 * result + lazy_match_distance_;
+		result = 31 * result + minimum_run_size_;
+		result = 31 * result + (cost_aware_matching_ ? 1 : 0);
+		return result;
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (!(obj instanceof VCDiffEngineParameters)) {
+			return false;
+		}
+		VCDiffEngineParameters other = (VCDiffEngineParameters) obj;
+		return block_size_ == other.block_size_
+				&& max_matches_to_check_ == other.max_matches_to_check_
+				&& max_probes_ == other.max_probes_
+				&& minimum_match_size_ == other.minimum_match_size_
+				&& rolling_hash_type_ == other.rolling_hash_type_
+				&& match_finder_type_ == other.match_finder_type_
+				&& lazy_match_distance_ == other.lazy_match_distance_
+				&& minimum_run_size_ == other.minimum_run_size_
+				&& cost_aware_matching_ == other.cost_aware_matching_;
+	}
+
+	@Override
+	public String toString() {
+		return "block_size=" + block_size_
+				+ " max_matches_to_check=" + max_matches_to_check_
+				+ " max_probes=" + max_probes_
+				+ " minimum_match_size=" + minimum_match_size_
+				+ " rolling_hash=" + rolling_hash_type_
+				+ " match_finder=" + match_finder_type_
+				+ " lazy_match_distance=" + lazy_match_distance_
+				+ " minimum_run_size=" + minimum_run_size_
+				+ " cost_aware_matching=" + cost_aware_matching_;
+	}
+}
@@ -0,0 +1,206 @@
+package com.googlecode.jvcdiff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs a sample corpus through VCDiffEngine with several sets of
+ * VCDiffEngineParameters and reports, for each set, the time to build the
+ * dictionary hash, the memory retained by the engine, the encode throughput
+ * and the total delta size.  This is meant to help choose parameters for a
+ * particular kind of data; see the comments on BlockHash.kBlockSize.
+ *
+ * Usage from the command line:
+ *
+ *     java com.googlecode.jvcdiff.VCDiffEngineTuner
+ *         [-b block_size,...] [-h rolling_hash,...] [-m match_finder,...]
+ *         [-l lazy_match_distance,...] [-n iterations]
+ *         dictionary_file target_file...
+ *
+ * Each combination of block size, rolling hash (a RollingHashType name,
+ * such as buzhash), match finder (a MatchFinderType name, such as
+ * content_defined_chunks) and lazy match distance is tried with the
+ * parameters returned by VCDiffEngineParameters.ForBlockSize().
+ */
+public class VCDiffEngineTuner {
+
+	private static final int[] kDefaultBlockSizes = { 8, 16, 32, 64 };
+
+	/**
+	 * The measurements for one set of parameters.
+	 */
+	public static class Result {
+		private final VCDiffEngineParameters parameters_;
+		private final long build_nanos_;
+		private final long memory_usage_;
+		private final long target_bytes_;
+		private final long delta_bytes_;
+		private final long encode_nanos_;
+
+		Result(VCDiffEngineParameters parameters, long build_nanos, long memory_usage,
+				long target_bytes, long delta_bytes, long encode_nanos) {
+			this.parameters_ = parameters;
+			this.build_nanos_ = build_nanos;
+			this.memory_usage_ = memory_usage;
+			this.target_bytes_ = target_bytes;
+			this.delta_bytes_ = delta_bytes;
+			this.encode_nanos_ = encode_nanos;
+		}
+
+		public VCDiffEngineParameters parameters() { return parameters_; }
+		public long build_nanos() { return build_nanos_; }
+		public long memory_usage() { return memory_usage_; }
+		// Total size of the targets, and of their deltas, for one iteration.
+		public long target_bytes() { return target_bytes_; }
+		public long delta_bytes() { return delta_bytes_; }
+		// Average time to encode all targets once.
+		public long encode_nanos() { return encode_nanos_; }
+
+		public double throughput_mb_per_second() {
+			return encode_nanos_ == 0 ? 0 : (target_bytes_ / 1e6) / (encode_nanos_ / 1e9);
+		}
+	}
+
+	private VCDiffEngineTuner() {
+	}
+
+	/**
+	 * Encodes every target against dictionary with each of the given
+	 * settings.  Each setting is first run once untimed to warm up; the
+	 * reported encode time is the average of the following iterations.
+	 */
+	public static List<Result> Run(byte[] dictionary, List<byte[]> targets,
+			List<VCDiffEngineParameters> settings, int iterations) throws IOException {
+		if (iterations <= 0) {
+			throw new IllegalArgumentException("Iterations " + iterations + " is invalid");
+		}
+		final List<Result> results = new ArrayList<Result>(settings.size());
+		for (VCDiffEngineParameters parameters : settings) {
+			final long build_start = System.nanoTime();
+			final VCDiffEngine engine = new VCDiffEngine(dictionary, parameters);
+			final long build_nanos = System.nanoTime() - build_start;
+
+			long target_bytes = 0;
+			long delta_bytes = 0;
+			for (byte[] target : targets) {
+				target_bytes += target.length;
+				delta_bytes += EncodeAll(engine, target);
+			}
+
+			final long encode_start = System.nanoTime();
+			for (int i = 0; i < iterations; i++) {
+				for (byte[] target : targets) {
+					EncodeAll(engine, target);
+				}
+			}
+			final long encode_nanos = (System.nanoTime() - encode_start) / iterations;
+
+			results.add(new Result(parameters, build_nanos, engine.MemoryUsage(),
+					target_bytes, delta_bytes, encode_nanos));
+		}
+		return results;
+	}
+
+	// Encodes target as a single window and returns the size of the window.
+	private static int EncodeAll(VCDiffEngine engine, byte[] target) throws IOException {
+		final VCDiffCodeTableWriter coder = new VCDiffCodeTableWriter(false);
+		coder.Init(engine.dictionary_size());
+		final ByteArrayOutputStream delta = new ByteArrayOutputStream(target.length / 4 + 64);
+		engine.Encode(ByteBuffer.wrap(target), true, delta, coder);
+		return delta.size();
+	}
+
+	public static void Print(List<Result> results, PrintStream out) {
+		out.printf("%10s %12s %22s %5s %12s %10s %12s %12s %12s %8s%n", "block_size", "rolling_hash", "match_finder",
+				"lazy", "max_matches", "max_probes", "build_ms", "memory", "delta_bytes", "MB/s");
+		for (Result result : results) {
+			out.printf("%10d %12s %22s %5d %12d %10d %12.1f %12d %12d %8.1f%n",
+					result.parameters().block_size(),
+					result.parameters().rolling_hash_type(),
+					result.parameters().match_finder_type(),
+					result.parameters().lazy_match_distance(),
+					result.parameters().max_matches_to_check(),
+					result.parameters().max_probes(),
+					result.build_nanos() / 1e6,
+					result.memory_usage(),
+					result.delta_bytes(),
+					result.throughput_mb_per_second());
+		}
+	}
+
+	public static void main(String[] args) throws IOException {
+		int[] block_sizes = kDefaultBlockSizes;
+		RollingHashType[] rolling_hash_types = { RollingHashType.RABIN_KARP };
+		MatchFinderType[] match_finder_types = { MatchFinderType.BLOCK_HASH };
+		int[] lazy_match_distances = { 0 };
+		int iterations = 5;
+		int arg = 0;
+		while (arg < args.length && args[arg].startsWith("-")) {
+			if (args[arg].equals("-b") && arg + 1 < args.length) {
+				final String[] sizes = args[arg + 1].split(",");
+				block_sizes = new int[sizes.length];
+				for (int i = 0; i < sizes.length; i++) {
+					block_sizes[i] = Integer.parseInt(sizes[i].trim());
+				}
+			} else if (args[arg].equals("-h") && arg + 1 < args.length) {
+				final String[] names = args[arg + 1].split(",");
+				rolling_hash_types = new RollingHashType[names.length];
+				for (int i = 0; i < names.length; i++) {
+					rolling_hash_types[i] = RollingHashType.valueOf(names[i].trim().toUpperCase());
+				}
+			} else if (args[arg].equals("-m") && arg + 1 < args.length) {
+				final String[] names = args[arg + 1].split(",");
+				match_finder_types = new MatchFinderType[names.length];
+				for (int i = 0; i < names.length; i++) {
+					match_finder_types[i] = MatchFinderType.valueOf(names[i].trim().toUpperCase());
+				}
+			} else if (args[arg].equals("-l") && arg + 1 < args.length) {
+				final String[] distances = args[arg + 1].split(",");
+				lazy_match_distances = new int[distances.length];
+				for (int i = 0; i < distances.length; i++) {
+					lazy_match_distances[i] = Integer.parseInt(distances[i].trim());
+				}
+			} else if (args[arg].equals("-n") && arg + 1 < args.length) {
+				iterations = Integer.parseInt(args[arg + 1]);
+			} else {
+				Usage();
+				return;
+			}
+			arg += 2;
+		}
+		if (args.length - arg < 2) {
+			Usage();
+			return;
+		}
+
+		final byte[] dictionary = Files.readAllBytes(new File(args[arg]).toPath());
+		final List<byte[]> targets = new ArrayList<byte[]>();
+		for (int i = arg + 1; i < args.length; i++) {
+			targets.add(Files.readAllBytes(new File(args[i]).toPath()));
+		}
+		final List<VCDiffEngineParameters> settings = new ArrayList<VCDiffEngineParameters>();
+		for (int block_size : block_sizes) {
+			for (RollingHashType rolling_hash_type : rolling_hash_types) {
+				for (MatchFinderType match_finder_type : match_finder_types) {
+					for (int lazy_match_distance : lazy_match_distances) {
+						settings.add(VCDiffEngineParameters.ForBlockSize(block_size, rolling_hash_type)
+								.WithMatchFinderType(match_finder_type)
+								.WithLazyMatchDistance(lazy_match_distance));
+					}
+				}
+			}
+		}
+
+		Print(Run(dictionary, targets, settings, iterations), System.out);
+	}
+
+	private static void Usage() {
+		System.err.println("Usage: VCDiffEngineTuner [-b block_size,...] [-h rolling_hash,...] [-m match_finder,...] [-l lazy_match_distance,...] [-n iterations] dictionary_file target_file...");
+	}
+}
@@ -4,5 +4,7 @@ public enum VCDiffFormatExtensionFlags {
 	VCD_STANDARD_FORMAT,
 	VCD_FORMAT_INTERLEAVED,
 	VCD_FORMAT_CHECKSUM,
+	// Like VCD_FORMAT_CHECKSUM, but with a CRC-32C checksum instead of Adler32.
+	VCD_FORMAT_CRC32C,
 	VCD_FORMAT_JSON,
 }
@@ -0,0 +1,244 @@
+package com.googlecode.jvcdiff;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+
+/**
+ * Encodes a target against the best of several dictionaries, such as the
+ * previous versions of a file that a client already holds, without encoding
+ * it once per dictionary to find out which one is best.
+ *
+ * Encode() works in two passes.  The first encodes the target against the
+ * concatenation of all the dictionaries with a VCDiffMultiDictionaryEngine,
+ * window by window, and only counts how many bytes each dictionary supplies
+ * to COPY instructions.  The dictionaries that supply the most are then
+ * selected: at most max_dictionaries of them, leaving out any that supplies
+ * less than 1/kMinimumShare of the copied bytes.  The second pass writes the
+ * delta, using the selected dictionary as the source if there is only one,
+ * or their concatenation (in the order of their indices) otherwise.
+ *
+ * The caller must tell the decoder which dictionaries to use; Encode()
+ * returns their indices, and Concatenate() builds the source to decode with.
+ *
+ * Encoding may be done by any number of threads at the same time.
+ */
+public class VCDiffMultiDictionaryEncoder {
+
+	/**
+	 * A dictionary that supplies less than 1/kMinimumShare of the copied
+	 * bytes is not worth making the decoder load it.
+	 */
+	public static final int kMinimumShare = 32;
+
+	private final VCDiffMultiDictionaryEngine engine_;
+
+	private final EnumSet<VCDiffFormatExtensionFlags> format_extensions_;
+
+	private final boolean look_for_target_matches_;
+
+	private final int window_size_;
+
+	private final int max_dictionaries_;
+
+	/**
+	 * @param dictionaries engines for each of the dictionaries, which must all
+	 *        use the same parameters, with MatchFinderType.BLOCK_HASH
+	 * @param max_dictionaries the largest number of dictionaries that a
+	 *        delta may need; 1 always picks a single dictionary
+	 */
+	public VCDiffMultiDictionaryEncoder(List<VCDiffEngine> dictionaries,
+			EnumSet<VCDiffFormatExtensionFlags> format_extensions,
+			boolean look_for_target_matches,
+			int window_size,
+			int max_dictionaries) {
+		if (dictionaries == null || format_extensions == null) {
+			throw new NullPointerException();
+		}
+		if (window_size <= 0) {
+			throw new IllegalArgumentException("Window size " + window_size + " is invalid");
+		}
+		if (max_dictionaries <= 0) {
+			throw new IllegalArgumentException("Maximum dictionaries " + max_dictionaries + " is invalid");
+		}
+		this.engine_ = new VCDiffMultiDictionaryEngine(dictionaries);
+		this.format_extensions_ = EnumSet.copyOf(format_extensions);
+		this.look_for_target_matches_ = look_for_target_matches;
+		this.window_size_ = window_size;
+		this.max_dictionaries_ = max_dictionaries;
+	}
+
+	/**
+	 * Returns, for each dictionary, the number of bytes of
+	 * target[offset, offset + length - 1] that are COPYed from it when the
+	 * target is encoded against all the dictionaries at once.
+	 */
+	public long[] CopiedBytes(byte[] target, int offset, int length) throws IOException {
+		final CopyCounter counter = new CopyCounter(engine_);
+		for (int window = 0; window < length; window += window_size_) {
+			counter.Init(engine_.dictionary_size());
+			engine_.Encode(ByteBuffer.wrap(target, offset + window, Math.min(window_size_, length - window)),
+					false, null, counter);
+		}
+		return counter.copied_bytes_;
+	}
+
+	/**
+	 * Returns the indices, in increasing order, of the dictionaries that
+	 * target[offset, offset + length - 1] is best encoded against.  The
+	 * result is empty if no dictionary has anything in common with the
+	 * target.
+	 */
+	public int[] SelectDictionaries(byte[] target, int offset, int length) throws IOException {
+		final long[] copied_bytes = CopiedBytes(target, offset, length);
+		long total_copied_bytes = 0;
+		for (long bytes : copied_bytes) {
+			total_copied_bytes += bytes;
+		}
+
+		final boolean[] selected = new boolean[copied_bytes.length];
+		int number_selected = 0;
+		while (number_selected < max_dictionaries_) {
+			int best = -1;
+			for (int i = 0; i < copied_bytes.length; ++i) {
+				if (!selected[i] && (best < 0 || copied_bytes[i] > copied_bytes[best])) {
+					best = i;
+				}
+			}
+			// Stop when the rest supply too little to be worth it; the best
+			// dictionary is taken as long as it supplies anything.
+			if (best < 0 || copied_bytes[best] == 0
+					|| (number_selected > 0 && copied_bytes[best] * kMinimumShare < total_copied_bytes)) {
+				break;
+			}
+			selected[best] = true;
+			++number_selected;
+		}
+
+		final int[] selection = new int[number_selected];
+		for (int i = 0, j = 0; i < selected.length; ++i) {
+			if (selected[i]) {
+				selection[j++] = i;
+			}
+		}
+		return selection;
+	}
+
+	/**
+	 * Returns an engine whose source is the concatenation of the dictionaries
+	 * with the given indices, in the given order.
+	 */
+	public VCDiffEngine CreateEngine(int[] selection) {
+		if (selection.length == 0) {
+			return new VCDiffEngine(new byte[0], engine_.parameters());
+		}
+		if (selection.length == 1) {
+			return engine_.dictionary(selection[0]);
+		}
+		final List<VCDiffEngine> dictionaries = new ArrayList<VCDiffEngine>(selection.length);
+		for (int index : selection) {
+			dictionaries.add(engine_.dictionary(index));
+		}
+		return new VCDiffMultiDictionaryEngine(dictionaries);
+	}
+
+	/**
+	 * Selects the dictionaries for target[offset, offset + length - 1] with
+	 * SelectDictionaries(), and writes a complete delta file for it to out.
+	 *
+	 * @return the indices of the dictionaries that the decoder needs, in the
+	 *         order in which they must be concatenated to form its source
+	 */
+	public int[] Encode(byte[] target, int offset, int length, OutputStream out) throws IOException {
+		final int[] selection = SelectDictionaries(target, offset, length);
+		final VCDiffStreamingEncoder<OutputStream> encoder = new VCDiffStreamingEncoder<OutputStream>(
+				CreateEngine(selection), format_extensions_, look_for_target_matches_,
+				new VCDiffCodeTableWriter(format_extensions_.contains(VCDiffFormatExtensionFlags.VCD_FORMAT_INTERLEAVED)),
+				window_size_);
+		if (!encoder.StartEncoding(out)
+				|| !encoder.EncodeChunk(target, offset, length, out)
+				|| !encoder.FinishEncoding(out)) {
+			throw new IllegalStateException("Encoding failed");
+		}
+		return selection;
+	}
+
+	public int[] Encode(byte[] target, OutputStream out) throws IOException {
+		return Encode(target, 0, target.length, out);
+	}
+
+	/**
+	 * Returns the source that a delta returned by Encode() is decoded with:
+	 * the concatenation of the dictionaries with the indices in selection.
+	 */
+	public static byte[] Concatenate(List<byte[]> dictionaries, int[] selection) {
+		int size = 0;
+		for (int index : selection) {
+			size += dictionaries.get(index).length;
+		}
+		final byte[] source = new byte[size];
+		int offset = 0;
+		for (int index : selection) {
+			final byte[] dictionary = dictionaries.get(index);
+			System.arraycopy(dictionary, 0, source, offset, dictionary.length);
+			offset += dictionary.length;
+		}
+		return source;
+	}
+
+	// Counts the bytes copied from each dictionary of a
+	// VCDiffMultiDictionaryEngine, and produces no output.
+	private static final class CopyCounter implements CodeTableWriterInterface<Object> {
+
+		private final VCDiffMultiDictionaryEngine engine_;
+
+		private final long[] copied_bytes_;
+
+		private int target_length_;
+
+		CopyCounter(VCDiffMultiDictionaryEngine engine) {
+			this.engine_ = engine;
+			this.copied_bytes_ = new long[engine.number_of_dictionaries()];
+		}
+
+		public void Init(int dictionary_size) {
+			target_length_ = 0;
+		}
+
+		public void WriteHeader(Object out, EnumSet<VCDiffFormatExtensionFlags> format_extensions) {
+		}
+
+		public void Add(byte[] data, int offset, int length) {
+			target_length_ += length;
+		}
+
+		public void Copy(int offset, int size) {
+			final int index = engine_.DictionaryAt(offset);
+			if (index >= 0) {
+				copied_bytes_[index] += size;
+			}
+			target_length_ += size;
+		}
+
+		public void Run(int size, byte b) {
+			target_length_ += size;
+		}
+
+		public void AddChecksum(int checksum) {
+		}
+
+		public void Output(Object out) {
+			target_length_ = 0;
+		}
+
+		public void FinishEncoding(Object out) {
+		}
+
+		public int target_length() {
+			return target_length_;
+		}
+	}
+}
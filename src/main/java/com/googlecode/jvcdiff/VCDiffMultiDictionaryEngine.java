@@ -0,0 +1,151 @@
+package com.googlecode.jvcdiff;
+
+import com.googlecode.jvcdiff.BlockHash.Match;
+
+import java.util.List;
+
+/**
+ * A VCDiffEngine whose source is the concatenation of the dictionaries of
+ * several other engines, in the order given.  Each dictionary keeps its own
+ * BlockHash, so engines that have already been built (for example by a
+ * VCDiffEngineCache) are used as they are, and nothing is copied or hashed
+ * again.  For every candidate block, the hash of each dictionary is searched
+ * and the longest match in any of them is encoded; its address is its
+ * offset in its own dictionary plus dictionary_offset() of that dictionary.
+ *
+ * A delta encoded with this engine must be decoded with the concatenation of
+ * the same dictionaries, in the same order, as its source.
+ * VCDiffMultiDictionaryEncoder uses this engine to choose which dictionaries
+ * a target is encoded against.
+ *
+ * All the engines must use the same VCDiffEngineParameters, with
+ * MatchFinderType.BLOCK_HASH, and the dictionaries must add up to less than
+ * 2 GB.  Like VCDiffEngine, this class is thread-safe.
+ */
+public class VCDiffMultiDictionaryEngine extends VCDiffEngine {
+
+	private final VCDiffEngine[] dictionaries_;
+
+	// The address of the first byte of each dictionary in the concatenated
+	// source.
+	private final int[] dictionary_offsets_;
+
+	private final int total_dictionary_size_;
+
+	public VCDiffMultiDictionaryEngine(List<VCDiffEngine> dictionaries) {
+		super(CheckDictionaries(dictionaries).dictionary_, dictionaries.get(0).hashed_dictionary_);
+		dictionaries_ = dictionaries.toArray(new VCDiffEngine[dictionaries.size()]);
+		dictionary_offsets_ = new int[dictionaries_.length];
+		long offset = 0;
+		for (int i = 0; i < dictionaries_.length; ++i) {
+			dictionary_offsets_[i] = (int) offset;
+			offset += dictionaries_[i].dictionary_size();
+			if (offset > Integer.MAX_VALUE) {
+				throw new IllegalArgumentException("The dictionaries add up to more than 2 GB");
+			}
+		}
+		total_dictionary_size_ = (int) offset;
+	}
+
+	// Checks the requirements of the constructor, and returns the first
+	// dictionary, whose parameters and rolling hash the engine uses.
+	private static VCDiffEngine CheckDictionaries(List<VCDiffEngine> dictionaries) {
+		if (dictionaries.isEmpty()) {
+			throw new IllegalArgumentException("No dictionaries");
+		}
+		final VCDiffEngineParameters parameters = dictionaries.get(0).parameters();
+		for (VCDiffEngine dictionary : dictionaries) {
+			if (dictionary.hashed_dictionary_ == null
+					|| dictionary.parameters().match_finder_type() != MatchFinderType.BLOCK_HASH) {
+				throw new IllegalArgumentException("Dictionary engines must use MatchFinderType.BLOCK_HASH");
+			}
+			if (!dictionary.parameters().equals(parameters)) {
+				throw new IllegalArgumentException("Dictionary engines use different parameters: "
+						+ parameters + " and " + dictionary.parameters());
+			}
+		}
+		return dictionaries.get(0);
+	}
+
+	/**
+	 * The size of the concatenated source.
+	 */
+	@Override
+	public int dictionary_size() {
+		return total_dictionary_size_;
+	}
+
+	/**
+	 * Returns the memory retained by all the dictionary engines, which may be
+	 * shared with other users of those engines.
+	 */
+	@Override
+	public long MemoryUsage() {
+		long memory_usage = 0;
+		for (VCDiffEngine dictionary : dictionaries_) {
+			memory_usage += dictionary.MemoryUsage();
+		}
+		return memory_usage;
+	}
+
+	public int number_of_dictionaries() {
+		return dictionaries_.length;
+	}
+
+	public VCDiffEngine dictionary(int index) {
+		return dictionaries_[index];
+	}
+
+	public int dictionary_offset(int index) {
+		return dictionary_offsets_[index];
+	}
+
+	/**
+	 * Returns the index of the dictionary that contains source address
+	 * address, or -1 if the address is past the end of the source, that is,
+	 * in the target data.
+	 */
+	public int DictionaryAt(int address) {
+		if (address < 0 || address >= total_dictionary_size_) {
+			return -1;
+		}
+		// The last dictionary that starts at or before address; empty
+		// dictionaries share their offset with the next one, so they are
+		// never chosen.
+		int low = 0;
+		int high = dictionaries_.length - 1;
+		while (low < high) {
+			final int middle = (low + high + 1) >>> 1;
+			if (dictionary_offsets_[middle] <= address) {
+				low = middle;
+			} else {
+				high = middle - 1;
+			}
+		}
+		return low;
+	}
+
+	/**
+	 * Searches the hash of every dictionary, and then the previously encoded
+	 * target data, for the block at candidate_pos.  Among matches of the same
+	 * size, the one in the earliest dictionary is kept.
+	 */
+	@Override
+	protected void FindBestMatch(int hash_value, int candidate_pos, EncodeContext context, Match best_match) {
+		best_match.Reset();
+		final Match dictionary_match = context.dictionary_match;
+		for (int i = 0; i < dictionaries_.length; ++i) {
+			dictionary_match.Reset();
+			dictionaries_[i].hashed_dictionary_.FindBestMatch(hash_value, context.data, context.target_words,
+					context.unencoded, candidate_pos, context.end, dictionary_match);
+			best_match.ReplaceIfBetterMatch(dictionary_match.size(),
+					dictionary_match.source_offset() + dictionary_offsets_[i],
+					dictionary_match.target_offset());
+		}
+
+		if (context.target_hash != null) {
+			context.target_hash.FindBestMatch(hash_value, context.data, context.target_words,
+					context.unencoded, candidate_pos, context.end, best_match);
+		}
+	}
+}
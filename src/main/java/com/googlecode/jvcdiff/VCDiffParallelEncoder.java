@@ -0,0 +1,160 @@
+package com.googlecode.jvcdiff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.EnumSet;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+/**
+ * Encodes a target file as a series of independent VCD_SOURCE delta file
+ * windows, using a ForkJoinPool to encode several windows at the same time.
+ *
+ * Each window gets its own VCDiffCodeTableWriter (and so its own address
+ * cache); the dictionary hash of the shared VCDiffEngine is read-only and is
+ * used by all windows concurrently.  The encoded windows are written to the
+ * output in target order, so the delta file is byte-for-byte identical to
+ * the one produced by VCDiffStreamingEncoder with the same window size.
+ *
+ * To bound memory use, at most max_windows_in_flight encoded windows are held
+ * at a time; the oldest one is written out before another window is submitted.
+ *
+ * Only the VCDIFF format is supported; VCD_FORMAT_JSON is rejected.
+ */
+public class VCDiffParallelEncoder {
+
+	private final VCDiffEngine engine_;
+
+	private final EnumSet<VCDiffFormatExtensionFlags> format_extensions_;
+
+	private final boolean look_for_target_matches_;
+
+	private final boolean interleaved_;
+
+	private final boolean encode_checksum_;
+
+	private final int window_size_;
+
+	private final ForkJoinPool pool_;
+
+	private final int max_windows_in_flight_;
+
+	public VCDiffParallelEncoder(VCDiffEngine engine,
+			EnumSet<VCDiffFormatExtensionFlags> format_extensions,
+			boolean look_for_target_matches,
+			int window_size,
+			ForkJoinPool pool) {
+		this(engine, format_extensions, look_for_target_matches, window_size, pool, 2 * pool.getParallelism());
+	}
+
+	public VCDiffParallelEncoder(VCDiffEngine engine,
+			EnumSet<VCDiffFormatExtensionFlags> format_extensions,
+			boolean look_for_target_matches,
+			int window_size,
+			ForkJoinPool pool,
+			int max_windows_in_flight) {
+		if (engine == null || format_extensions == null || pool == null) {
+			throw new NullPointerException();
+		}
+		if (format_extensions.contains(VCDiffFormatExtensionFlags.VCD_FORMAT_JSON)) {
+			throw new IllegalArgumentException("The parallel encoder does not support the JSON format");
+		}
+		if (window_size <= 0) {
+			throw new IllegalArgumentException("Window size " + window_size + " is invalid");
+		}
+		if (max_windows_in_flight <= 0) {
+			throw new IllegalArgumentException("Maximum windows in flight " + max_windows_in_flight + " is invalid");
+		}
+		this.engine_ = engine;
+		this.format_extensions_ = EnumSet.copyOf(format_extensions);
+		this.look_for_target_matches_ = look_for_target_matches;
+		this.interleaved_ = format_extensions.contains(VCDiffFormatExtensionFlags.VCD_FORMAT_INTERLEAVED);
+		this.encode_checksum_ = ChecksumCodeTableWriter.HasChecksum(format_extensions);
+		this.window_size_ = window_size;
+		this.pool_ = pool;
+		this.max_windows_in_flight_ = max_windows_in_flight;
+	}
+
+	/**
+	 * Writes a complete delta file (header and all windows) for
+	 * "target[offset, offset + length - 1]" to out.  The target array must not
+	 * be modified until this method returns.
+	 */
+	public void Encode(byte[] target, int offset, int length, OutputStream out) throws IOException {
+		if (offset < 0 || length < 0 || offset + length > target.length) {
+			throw new IllegalArgumentException();
+		}
+
+		VCDiffCodeTableWriter header_writer = new VCDiffCodeTableWriter(interleaved_);
+		header_writer.WriteHeader(out, format_extensions_);
+
+		final ArrayDeque<ForkJoinTask<byte[]>> in_flight = new ArrayDeque<ForkJoinTask<byte[]>>();
+		try {
+			for (int window_start = 0; window_start < length; window_start += window_size_) {
+				if (in_flight.size() >= max_windows_in_flight_) {
+					out.write(JoinWindow(in_flight.removeFirst()));
+				}
+				final int window_length = Math.min(window_size_, length - window_start);
+				in_flight.addLast(pool_.submit(new WindowEncoder(target, offset + window_start, window_length)));
+			}
+			while (!in_flight.isEmpty()) {
+				out.write(JoinWindow(in_flight.removeFirst()));
+			}
+		} finally {
+			// Don't leave work running if the output failed.
+			for (ForkJoinTask<byte[]> task : in_flight) {
+				task.cancel(false);
+			}
+		}
+	}
+
+	public void Encode(byte[] target, OutputStream out) throws IOException {
+		Encode(target, 0, target.length, out);
+	}
+
+	private static byte[] JoinWindow(ForkJoinTask<byte[]> task) throws IOException {
+		try {
+			return task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new IOException("Interrupted while encoding delta window", e);
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof IOException) {
+				throw (IOException) e.getCause();
+			}
+			throw new IOException("Failed to encode delta window", e.getCause());
+		}
+	}
+
+	// Encodes a single target window into its own buffer.
+	private class WindowEncoder implements Callable<byte[]> {
+		private final byte[] target_;
+		private final int offset_;
+		private final int length_;
+
+		WindowEncoder(byte[] target, int offset, int length) {
+			this.target_ = target;
+			this.offset_ = offset;
+			this.length_ = length;
+		}
+
+		public byte[] call() throws IOException {
+			CodeTableWriterInterface<OutputStream> coder = new VCDiffCodeTableWriter(interleaved_);
+			if (encode_checksum_) {
+				ChecksumCodeTableWriter<OutputStream> checksum_coder = new ChecksumCodeTableWriter<OutputStream>(coder,
+						ChecksumCodeTableWriter.CreateChecksum(format_extensions_));
+				checksum_coder.SetTarget(target_, offset_);
+				coder = checksum_coder;
+			}
+			coder.Init(engine_.dictionary_size());
+			ByteArrayOutputStream window = new ByteArrayOutputStream(length_ / 4 + 64);
+			engine_.Encode(ByteBuffer.wrap(target_, offset_, length_), look_for_target_matches_, window, coder);
+			return window.toByteArray();
+		}
+	}
+}
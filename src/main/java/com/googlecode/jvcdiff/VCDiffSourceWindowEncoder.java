@@ -0,0 +1,305 @@
+package com.googlecode.jvcdiff;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+/**
+ * Encodes a target file against a source file that may be much larger than
+ * memory, in the style of xdelta's source window.
+ *
+ * Instead of hashing the whole source as one dictionary, each delta file
+ * window is encoded against a bounded segment of at most source_window_size
+ * bytes of the source, and the window header records where that segment
+ * starts (a non-zero source segment position).  The segment is read in from
+ * the source FileChannel as it is needed, so memory use depends only on the
+ * source and target window sizes, not on the size of either file.
+ *
+ * The segment for each target window is centred on the position in the
+ * source where the window's data is expected to be found: just after the
+ * last source byte copied by the previous window, or, if that window copied
+ * nothing from the source, as far along as the target has advanced since.
+ * This follows the source through insertions and deletions, as long as they
+ * are smaller than the slack between the source and target window sizes, so
+ * the source window size must be at least the target window size.
+ * The segment only moves in steps of about an eighth of the source window
+ * size.  When it moves forward, the part that is still in the segment is
+ * kept, so that for files that differ in place the source is read about once.
+ * With MatchFinderType.BLOCK_HASH the hash tables of the segment are kept as
+ * well: the blocks that left the segment are dropped, the kept blocks are
+ * renumbered in one sequential pass over the tables, and only the newly read
+ * blocks are hashed.  The other match finders index the whole segment again
+ * at every step, so they hash each source byte about eight times.
+ *
+ * The delta file can be decoded with the whole source as the dictionary.
+ *
+ * Only the VCDIFF format is supported; VCD_FORMAT_JSON is rejected.
+ *
+ * NOT threadsafe.
+ */
+public class VCDiffSourceWindowEncoder {
+
+	/**
+	 * The default maximum number of source bytes that each delta file window
+	 * is encoded against.
+	 */
+	public static final int kDefaultSourceWindowSize = 64 << 20;  // 64 MB
+
+	// The source segment is moved in steps of source_window_size / this,
+	// rounded down to a whole number of blocks.
+	private static final int kSegmentStepsPerWindow = 8;
+
+	private final FileChannel source_;
+
+	private final long source_size_;
+
+	private final VCDiffEngineParameters parameters_;
+
+	private final EnumSet<VCDiffFormatExtensionFlags> format_extensions_;
+
+	private final boolean look_for_target_matches_;
+
+	private final int source_window_size_;
+
+	private final int target_window_size_;
+
+	private final VCDiffCodeTableWriter writer_;
+
+	// If not null, wraps writer_ to add a checksum of each target window.
+	private final ChecksumCodeTableWriter<OutputStream> checksum_coder_;
+
+	// The coder passed to the engine; it wraps checksum_coder_ or writer_.
+	private final SourceCopyTracker coder_;
+
+	// The current source segment: segment_length_ bytes of the source starting
+	// at segment_start_, held in segment_, and the engine that encodes against
+	// it.  engine_ is null until the first segment has been read.
+	// segment_hash_ is the dictionary hash of the engine, or null unless the
+	// match finder is MatchFinderType.BLOCK_HASH.
+	private final byte[] segment_;
+	private long segment_start_;
+	private int segment_length_;
+	private VCDiffEngine engine_;
+	private BlockHash segment_hash_;
+
+	public VCDiffSourceWindowEncoder(FileChannel source,
+			VCDiffEngineParameters parameters,
+			EnumSet<VCDiffFormatExtensionFlags> format_extensions,
+			boolean look_for_target_matches) throws IOException {
+		this(source, parameters, format_extensions, look_for_target_matches,
+				kDefaultSourceWindowSize, VCDiffStreamingEncoder.kDefaultWindowSize);
+	}
+
+	public VCDiffSourceWindowEncoder(FileChannel source,
+			VCDiffEngineParameters parameters,
+			EnumSet<VCDiffFormatExtensionFlags> format_extensions,
+			boolean look_for_target_matches,
+			int source_window_size,
+			int target_window_size) throws IOException {
+		if (source == null || parameters == null || format_extensions == null) {
+			throw new NullPointerException();
+		}
+		if (format_extensions.contains(VCDiffFormatExtensionFlags.VCD_FORMAT_JSON)) {
+			throw new IllegalArgumentException("The source window encoder does not support the JSON format");
+		}
+		if (source_window_size <= 0) {
+			throw new IllegalArgumentException("Source window size " + source_window_size + " is invalid");
+		}
+		if (target_window_size <= 0) {
+			throw new IllegalArgumentException("Target window size " + target_window_size + " is invalid");
+		}
+		if (source_window_size < target_window_size) {
+			// The segment would have negative slack, and lag behind the data.
+			throw new IllegalArgumentException("Source window size " + source_window_size
+					+ " is smaller than target window size " + target_window_size);
+		}
+		this.source_ = source;
+		this.source_size_ = source.size();
+		this.parameters_ = parameters;
+		this.format_extensions_ = EnumSet.copyOf(format_extensions);
+		this.look_for_target_matches_ = look_for_target_matches;
+		this.source_window_size_ = source_window_size;
+		this.target_window_size_ = target_window_size;
+		this.writer_ = new VCDiffCodeTableWriter(
+				format_extensions.contains(VCDiffFormatExtensionFlags.VCD_FORMAT_INTERLEAVED));
+		if (ChecksumCodeTableWriter.HasChecksum(format_extensions)) {
+			this.checksum_coder_ = new ChecksumCodeTableWriter<OutputStream>(writer_,
+					ChecksumCodeTableWriter.CreateChecksum(format_extensions));
+			this.coder_ = new SourceCopyTracker(checksum_coder_);
+		} else {
+			this.checksum_coder_ = null;
+			this.coder_ = new SourceCopyTracker(writer_);
+		}
+		this.segment_ = new byte[(int) Math.min(source_window_size, source_size_)];
+	}
+
+	public int source_window_size() {
+		return source_window_size_;
+	}
+
+	public int target_window_size() {
+		return target_window_size_;
+	}
+
+	/**
+	 * Reads the target from target until it ends and writes a complete delta
+	 * file (header and all windows) for it to out.
+	 */
+	public void Encode(InputStream target, OutputStream out) throws IOException {
+		coder_.Init(0);
+		coder_.WriteHeader(out, format_extensions_);
+
+		final byte[] window = new byte[target_window_size_];
+		long expected_source_position = 0;
+		int window_length;
+		while ((window_length = ReadWindow(target, window)) > 0) {
+			MoveSourceSegment(expected_source_position);
+			coder_.Init(segment_length_);
+			writer_.SetSourceSegmentPosition(segment_start_);
+			if (checksum_coder_ != null) {
+				checksum_coder_.SetTarget(window, 0);
+			}
+			engine_.Encode(ByteBuffer.wrap(window, 0, window_length), look_for_target_matches_, out, coder_);
+
+			if (coder_.last_source_copy_end() >= 0) {
+				expected_source_position = segment_start_ + coder_.last_source_copy_end();
+			} else {
+				expected_source_position += window_length;
+			}
+		}
+		coder_.FinishEncoding(out);
+	}
+
+	// Fills window from target, returning fewer bytes only at the end of the
+	// target.
+	private static int ReadWindow(InputStream target, byte[] window) throws IOException {
+		int length = 0;
+		while (length < window.length) {
+			final int bytes_read = target.read(window, length, window.length - length);
+			if (bytes_read < 0) {
+				break;
+			}
+			length += bytes_read;
+		}
+		return length;
+	}
+
+	// Chooses the source segment for a target window whose data is expected
+	// to start at expected_source_position in the source, and reads it in and
+	// creates an engine for it unless it is the current segment.
+	private void MoveSourceSegment(long expected_source_position) throws IOException {
+		final int block_size = parameters_.block_size();
+		long step = Math.max(1, source_window_size_ / kSegmentStepsPerWindow);
+		if (step >= block_size) {
+			step -= step % block_size;
+		}
+		long start = expected_source_position - (source_window_size_ - target_window_size_) / 2;
+		start = Math.max(0, start - start % step);
+		start = Math.min(start, Math.max(0, source_size_ - source_window_size_));
+		if (engine_ != null && start == segment_start_) {
+			return;
+		}
+
+		final int length = (int) Math.min(source_window_size_, source_size_ - start);
+		final long segment_end = segment_start_ + segment_length_;
+		int kept = 0;
+		int shift = 0;
+		if (engine_ != null && start > segment_start_ && start < segment_end) {
+			// Moving forward: keep the overlap and read only the rest.
+			kept = (int) (segment_end - start);
+			shift = (int) (start - segment_start_);
+			System.arraycopy(segment_, shift, segment_, 0, kept);
+		}
+		ReadSource(start + kept, segment_, kept, length - kept);
+		segment_start_ = start;
+		segment_length_ = length;
+
+		ByteBuffer segment = ByteBuffer.wrap(segment_, 0, length);
+		if (parameters_.match_finder_type() == MatchFinderType.BLOCK_HASH) {
+			// segment_ is reused for every segment, so the engine need not copy it.
+			if (kept > 0 && shift % block_size == 0) {
+				segment_hash_.SlideForward(shift);
+			} else {
+				segment_hash_ = BlockHash.CreateDictionaryHash(segment, parameters_);
+			}
+			engine_ = new VCDiffEngine(segment, segment_hash_);
+		} else {
+			// The engine copies its dictionary, so don't copy a full segment twice.
+			engine_ = new VCDiffEngine(length == segment_.length ? segment_ : Arrays.copyOf(segment_, length), parameters_);
+		}
+	}
+
+	private void ReadSource(long position, byte[] buffer, int offset, int length) throws IOException {
+		ByteBuffer dst = ByteBuffer.wrap(buffer, offset, length);
+		while (dst.hasRemaining()) {
+			if (source_.read(dst, position + dst.position() - offset) < 0) {
+				throw new EOFException("Source ended at " + (position + dst.position() - offset)
+						+ " bytes, but its size was " + source_size_);
+			}
+		}
+	}
+
+	// Passes every call on to another coder, and records where the last COPY
+	// from the source segment of the current window ended.
+	private static class SourceCopyTracker implements CodeTableWriterInterface<OutputStream> {
+		private final CodeTableWriterInterface<OutputStream> coder;
+		private int dictionary_size;
+		private int last_source_copy_end;
+
+		SourceCopyTracker(CodeTableWriterInterface<OutputStream> coder) {
+			this.coder = coder;
+		}
+
+		// The end of the last COPY from the source segment since Init(), as an
+		// offset into the segment, or -1 if there was none.
+		int last_source_copy_end() {
+			return last_source_copy_end;
+		}
+
+		public void Init(int dictionary_size) {
+			this.dictionary_size = dictionary_size;
+			this.last_source_copy_end = -1;
+			coder.Init(dictionary_size);
+		}
+
+		public void WriteHeader(OutputStream out, EnumSet<VCDiffFormatExtensionFlags> format_extensions) throws IOException {
+			coder.WriteHeader(out, format_extensions);
+		}
+
+		public void Add(byte[] data, int offset, int length) {
+			coder.Add(data, offset, length);
+		}
+
+		public void Copy(int offset, int size) {
+			if (offset < dictionary_size) {
+				last_source_copy_end = Math.min(offset + size, dictionary_size);
+			}
+			coder.Copy(offset, size);
+		}
+
+		public void Run(int size, byte b) {
+			coder.Run(size, b);
+		}
+
+		public void AddChecksum(int checksum) {
+			coder.AddChecksum(checksum);
+		}
+
+		public void Output(OutputStream out) throws IOException {
+			coder.Output(out);
+		}
+
+		public void FinishEncoding(OutputStream out) throws IOException {
+			coder.FinishEncoding(out);
+		}
+
+		public int target_length() {
+			return coder.target_length();
+		}
+	}
+}
@@ -0,0 +1,276 @@
+package com.googlecode.jvcdiff;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+/**
+ * A streaming encoder class.  Takes a dictionary (source) file, held by a
+ * VCDiffEngine, and a target file delivered in chunks of arbitrary size, and
+ * produces a delta file.
+ *
+ * The client should use this class as follows:
+ *    VCDiffStreamingEncoder v = ...;
+ *    v.StartEncoding(out);
+ *    while (any data left) {
+ *      v.EncodeChunk(data, offset, length, out);
+ *    }
+ *    v.FinishEncoding(out);
+ *
+ * I.e., the allowed pattern of calls is
+ *    StartEncoding EncodeChunk* FinishEncoding
+ *
+ * Target data is collected into a window buffer of at most window_size bytes.
+ * Each time the buffer is full, its contents are encoded as one delta file
+ * window and passed to CodeTableWriterInterface.Output().  Memory use
+ * therefore depends on the window size, and not on the size of the target.
+ * Chunks that are at least as large as a whole window are encoded directly
+ * from the caller's array without being copied into the buffer.
+ *
+ * The delta file produced does not depend on how the target data was split
+ * into chunks, only on the window size.
+ *
+ * With VCD_FORMAT_CHECKSUM or VCD_FORMAT_CRC32C, the checksum of each window
+ * is computed by a ChecksumCodeTableWriter while the window is encoded.
+ *
+ * NOT threadsafe.
+ */
+public class VCDiffStreamingEncoder<OUT> {
+
+	private static final Logger LOGGER = LoggerFactory.getLogger(VCDiffStreamingEncoder.class);
+
+	/**
+	 * The default maximum number of target bytes encoded into each delta
+	 * file window.
+	 */
+	public static final int kDefaultWindowSize = 1 << 20;  // 1 MB
+
+	// The initial size of window_buffer_.  The buffer grows as needed up to
+	// window_size_, so that small targets do not pay for a full window.
+	private static final int kInitialWindowBufferSize = 4096;
+
+	private final VCDiffEngine engine_;
+
+	private final CodeTableWriterInterface<OUT> coder_;
+
+	private final EnumSet<VCDiffFormatExtensionFlags> format_extensions_;
+
+	// Determines whether to look for matches within the previously encoded
+	// target data of the current window, or just within the dictionary.
+	private final boolean look_for_target_matches_;
+
+	// If not null, coder_ is this ChecksumCodeTableWriter, which adds a
+	// checksum of each target window to the delta file.
+	private final ChecksumCodeTableWriter<OUT> checksum_coder_;
+
+	// The maximum number of target bytes in each delta file window.
+	private final int window_size_;
+
+	// Target data that has been passed to EncodeChunk() but does not yet
+	// fill a whole window.
+	private byte[] window_buffer_ = new byte[0];
+	private int window_buffer_length_;
+
+	// This value is used to ensure the correct order of calls to the interface
+	// functions, i.e., a single call to StartEncoding(), followed by zero or
+	// more calls to EncodeChunk(), followed by a single call to
+	// FinishEncoding().
+	private boolean encode_chunk_allowed_;
+
+	/**
+	 * Creates an encoder that writes each delta file window through the given
+	 * coder, using windows of up to kDefaultWindowSize target bytes.
+	 */
+	public VCDiffStreamingEncoder(VCDiffEngine engine,
+			EnumSet<VCDiffFormatExtensionFlags> format_extensions,
+			boolean look_for_target_matches,
+			CodeTableWriterInterface<OUT> coder) {
+		this(engine, format_extensions, look_for_target_matches, coder, kDefaultWindowSize);
+	}
+
+	public VCDiffStreamingEncoder(VCDiffEngine engine,
+			EnumSet<VCDiffFormatExtensionFlags> format_extensions,
+			boolean look_for_target_matches,
+			CodeTableWriterInterface<OUT> coder,
+			int window_size) {
+		if (engine == null || format_extensions == null || coder == null) {
+			throw new NullPointerException();
+		}
+		if (window_size <= 0) {
+			throw new IllegalArgumentException("Window size " + window_size + " is invalid");
+		}
+		this.engine_ = engine;
+		if (ChecksumCodeTableWriter.HasChecksum(format_extensions)) {
+			this.checksum_coder_ = new ChecksumCodeTableWriter<OUT>(coder,
+					ChecksumCodeTableWriter.CreateChecksum(format_extensions));
+			this.coder_ = checksum_coder_;
+		} else {
+			this.checksum_coder_ = null;
+			this.coder_ = coder;
+		}
+		this.format_extensions_ = EnumSet.copyOf(format_extensions);
+		this.look_for_target_matches_ = look_for_target_matches;
+		this.window_size_ = window_size;
+	}
+
+	/**
+	 * Creates an encoder that produces a VCDIFF delta file, using the standard
+	 * or interleaved format depending on format_extensions.
+	 */
+	public static VCDiffStreamingEncoder<OutputStream> Create(VCDiffEngine engine,
+			EnumSet<VCDiffFormatExtensionFlags> format_extensions,
+			boolean look_for_target_matches,
+			int window_size) {
+		final boolean interleaved = format_extensions.contains(VCDiffFormatExtensionFlags.VCD_FORMAT_INTERLEAVED);
+		return new VCDiffStreamingEncoder<OutputStream>(engine, format_extensions, look_for_target_matches,
+				new VCDiffCodeTableWriter(interleaved), window_size);
+	}
+
+	public int window_size() {
+		return window_size_;
+	}
+
+	/**
+	 * Writes the delta file header to out.  Must be called before
+	 * EncodeChunk().
+	 */
+	public boolean StartEncoding(OUT out) throws IOException {
+		if (encode_chunk_allowed_) {
+			LOGGER.error("StartEncoding() called twice without FinishEncoding()");
+			return false;
+		}
+		coder_.Init(engine_.dictionary_size());
+		coder_.WriteHeader(out, format_extensions_);
+		window_buffer_length_ = 0;
+		encode_chunk_allowed_ = true;
+		return true;
+	}
+
+	/**
+	 * Accepts "data[offset, offset + length - 1]" as additional target data.
+	 * Each time a whole window of target data is available, it is encoded
+	 * and appended to out.
+	 */
+	public boolean EncodeChunk(byte[] data, int offset, int length, OUT out) throws IOException {
+		if (!encode_chunk_allowed_) {
+			LOGGER.error("EncodeChunk called before StartEncoding");
+			return false;
+		}
+		if (offset < 0 || length < 0 || offset + length > data.length) {
+			throw new IllegalArgumentException();
+		}
+
+		// Top up a partially filled window first.
+		if (window_buffer_length_ > 0) {
+			final int bytes_to_buffer = Math.min(length, window_size_ - window_buffer_length_);
+			AppendToWindowBuffer(data, offset, bytes_to_buffer);
+			offset += bytes_to_buffer;
+			length -= bytes_to_buffer;
+			if (window_buffer_length_ == window_size_) {
+				FlushWindowBuffer(out);
+			}
+		}
+
+		// Whole windows can be encoded straight from the caller's data.
+		while (length >= window_size_) {
+			EncodeWindow(data, offset, window_size_, out);
+			offset += window_size_;
+			length -= window_size_;
+		}
+
+		if (length > 0) {
+			AppendToWindowBuffer(data, offset, length);
+		}
+		return true;
+	}
+
+	public boolean EncodeChunk(byte[] data, OUT out) throws IOException {
+		return EncodeChunk(data, 0, data.length, out);
+	}
+
+	/**
+	 * Accepts the remaining bytes of data as additional target data and
+	 * advances its position to its limit.  Direct buffers are copied into the
+	 * window buffer one window at a time.
+	 */
+	public boolean EncodeChunk(ByteBuffer data, OUT out) throws IOException {
+		if (data.hasArray()) {
+			if (!EncodeChunk(data.array(), data.arrayOffset() + data.position(), data.remaining(), out)) {
+				return false;
+			}
+			data.position(data.limit());
+			return true;
+		}
+
+		if (!encode_chunk_allowed_) {
+			LOGGER.error("EncodeChunk called before StartEncoding");
+			return false;
+		}
+		while (data.hasRemaining()) {
+			final int bytes_to_buffer = Math.min(data.remaining(), window_size_ - window_buffer_length_);
+			ReserveWindowBuffer(window_buffer_length_ + bytes_to_buffer);
+			data.get(window_buffer_, window_buffer_length_, bytes_to_buffer);
+			window_buffer_length_ += bytes_to_buffer;
+			if (window_buffer_length_ == window_size_) {
+				FlushWindowBuffer(out);
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * Encodes any buffered target data as a final (possibly short) window and
+	 * finishes the delta file.
+	 */
+	public boolean FinishEncoding(OUT out) throws IOException {
+		if (!encode_chunk_allowed_) {
+			LOGGER.error("FinishEncoding called before StartEncoding");
+			return false;
+		}
+		encode_chunk_allowed_ = false;
+		FlushWindowBuffer(out);
+		coder_.FinishEncoding(out);
+		return true;
+	}
+
+	private void AppendToWindowBuffer(byte[] data, int offset, int length) {
+		ReserveWindowBuffer(window_buffer_length_ + length);
+		System.arraycopy(data, offset, window_buffer_, window_buffer_length_, length);
+		window_buffer_length_ += length;
+	}
+
+	private void ReserveWindowBuffer(int wanted_capacity) {
+		if (wanted_capacity <= window_buffer_.length) {
+			return;
+		}
+		int new_capacity = Math.max(window_buffer_.length, kInitialWindowBufferSize);
+		while (new_capacity < wanted_capacity) {
+			new_capacity <<= 1;
+		}
+		window_buffer_ = Arrays.copyOf(window_buffer_, Math.min(new_capacity, window_size_));
+	}
+
+	private void FlushWindowBuffer(OUT out) throws IOException {
+		if (window_buffer_length_ > 0) {
+			EncodeWindow(window_buffer_, 0, window_buffer_length_, out);
+			window_buffer_length_ = 0;
+		}
+	}
+
+	/**
+	 * Encodes "data[offset, offset + length - 1]" as one delta file window and
+	 * appends it to out.  Subclasses may override this to choose how each
+	 * window is encoded; the windows are passed in target order.
+	 */
+	protected void EncodeWindow(byte[] data, int offset, int length, OUT out) throws IOException {
+		if (checksum_coder_ != null) {
+			checksum_coder_.SetTarget(data, offset);
+		}
+		engine_.Encode(ByteBuffer.wrap(data, offset, length), look_for_target_matches_, out, coder_);
+	}
+}
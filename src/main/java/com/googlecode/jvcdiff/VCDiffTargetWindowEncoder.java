@@ -0,0 +1,171 @@
+package com.googlecode.jvcdiff;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.EnumSet;
+
+/**
+ * A streaming encoder that may use the target data it has already encoded,
+ * instead of the dictionary, as the source segment of a delta file window
+ * (a VCD_TARGET window).  Long targets that repeat themselves, such as logs or
+ * appended datasets, then compress well without a huge dictionary.
+ *
+ * The last target_history_size bytes of target data before each window are
+ * kept.  Each window is encoded twice, once against the dictionary and once
+ * against that history, and the smaller of the two encodings is written;
+ * the dictionary is used if they are the same size.  The history is hashed
+ * again for every window, so encoding takes roughly twice as long as with
+ * VCDiffStreamingEncoder, plus the time to hash target_history_size bytes
+ * per window.
+ *
+ * The decoder must keep the target data that it has decoded (the default;
+ * see VCDiffStreamingDecoderImpl.SetAllowVcdTarget()).
+ *
+ * Only the VCDIFF format is supported; VCD_FORMAT_JSON is rejected.
+ *
+ * NOT threadsafe.
+ */
+public class VCDiffTargetWindowEncoder extends VCDiffStreamingEncoder<OutputStream> {
+
+	private final VCDiffEngine engine_;
+
+	private final boolean look_for_target_matches_;
+
+	// Write the windows encoded against the dictionary and against the
+	// history, respectively; each is wrapped by a ChecksumCodeTableWriter if
+	// the format extensions ask for checksums.
+	private final CodeTableWriterInterface<OutputStream> dictionary_coder_;
+	private final CodeTableWriterInterface<OutputStream> target_coder_;
+	private final VCDiffCodeTableWriter target_writer_;
+
+	// The two encodings of the current window.
+	private final ByteArrayOutputStream dictionary_window_ = new ByteArrayOutputStream();
+	private final ByteArrayOutputStream target_window_ = new ByteArrayOutputStream();
+
+	// The last history_length_ bytes of target data encoded so far.
+	private final byte[] history_;
+	private int history_length_;
+
+	// The number of target bytes encoded since StartEncoding().
+	private long target_position_;
+
+	// The number of windows written as VCD_TARGET windows since
+	// StartEncoding().
+	private int target_source_windows_;
+
+	public VCDiffTargetWindowEncoder(VCDiffEngine engine,
+			EnumSet<VCDiffFormatExtensionFlags> format_extensions,
+			boolean look_for_target_matches,
+			int window_size,
+			int target_history_size) {
+		super(engine, format_extensions, look_for_target_matches,
+				new VCDiffCodeTableWriter(format_extensions.contains(VCDiffFormatExtensionFlags.VCD_FORMAT_INTERLEAVED)),
+				window_size);
+		if (format_extensions.contains(VCDiffFormatExtensionFlags.VCD_FORMAT_JSON)) {
+			throw new IllegalArgumentException("The target window encoder does not support the JSON format");
+		}
+		if (target_history_size <= 0) {
+			throw new IllegalArgumentException("Target history size " + target_history_size + " is invalid");
+		}
+		final boolean interleaved = format_extensions.contains(VCDiffFormatExtensionFlags.VCD_FORMAT_INTERLEAVED);
+		this.engine_ = engine;
+		this.look_for_target_matches_ = look_for_target_matches;
+		this.target_writer_ = new VCDiffCodeTableWriter(interleaved);
+		this.target_writer_.SetSourceSegmentFromTarget(true);
+		this.dictionary_coder_ = WithChecksum(new VCDiffCodeTableWriter(interleaved), format_extensions);
+		this.target_coder_ = WithChecksum(target_writer_, format_extensions);
+		this.history_ = new byte[target_history_size];
+	}
+
+	private static CodeTableWriterInterface<OutputStream> WithChecksum(CodeTableWriterInterface<OutputStream> coder,
+			EnumSet<VCDiffFormatExtensionFlags> format_extensions) {
+		if (ChecksumCodeTableWriter.HasChecksum(format_extensions)) {
+			return new ChecksumCodeTableWriter<OutputStream>(coder,
+					ChecksumCodeTableWriter.CreateChecksum(format_extensions));
+		}
+		return coder;
+	}
+
+	public int target_history_size() {
+		return history_.length;
+	}
+
+	/**
+	 * Returns the number of windows that were encoded against the earlier
+	 * target data since StartEncoding().
+	 */
+	public int target_source_windows() {
+		return target_source_windows_;
+	}
+
+	@Override
+	public boolean StartEncoding(OutputStream out) throws IOException {
+		if (!super.StartEncoding(out)) {
+			return false;
+		}
+		history_length_ = 0;
+		target_position_ = 0;
+		target_source_windows_ = 0;
+		return true;
+	}
+
+	@Override
+	protected void EncodeWindow(byte[] data, int offset, int length, OutputStream out) throws IOException {
+		final ByteBuffer target = ByteBuffer.wrap(data, offset, length);
+
+		dictionary_window_.reset();
+		dictionary_coder_.Init(engine_.dictionary_size());
+		SetChecksumTarget(dictionary_coder_, data, offset);
+		engine_.Encode(target.duplicate(), look_for_target_matches_, dictionary_window_, dictionary_coder_);
+
+		target_window_.reset();
+		if (history_length_ > 0) {
+			target_coder_.Init(history_length_);
+			target_writer_.SetSourceSegmentPosition(target_position_ - history_length_);
+			SetChecksumTarget(target_coder_, data, offset);
+			CreateHistoryEngine().Encode(target.duplicate(), look_for_target_matches_, target_window_, target_coder_);
+		}
+
+		if (target_window_.size() > 0 && target_window_.size() < dictionary_window_.size()) {
+			target_window_.writeTo(out);
+			++target_source_windows_;
+		} else {
+			dictionary_window_.writeTo(out);
+		}
+
+		AppendToHistory(data, offset, length);
+		target_position_ += length;
+	}
+
+	private static void SetChecksumTarget(CodeTableWriterInterface<OutputStream> coder, byte[] data, int offset) {
+		if (coder instanceof ChecksumCodeTableWriter) {
+			((ChecksumCodeTableWriter<?>) coder).SetTarget(data, offset);
+		}
+	}
+
+	private VCDiffEngine CreateHistoryEngine() {
+		final VCDiffEngineParameters parameters = engine_.parameters();
+		if (parameters.match_finder_type() == MatchFinderType.BLOCK_HASH) {
+			// The engine is discarded before history_ changes, so it need not
+			// copy it.
+			ByteBuffer history = ByteBuffer.wrap(history_, 0, history_length_);
+			return new VCDiffEngine(history, BlockHash.CreateDictionaryHash(history, parameters));
+		}
+		return new VCDiffEngine(Arrays.copyOf(history_, history_length_), parameters);
+	}
+
+	private void AppendToHistory(byte[] data, int offset, int length) {
+		if (length >= history_.length) {
+			System.arraycopy(data, offset + length - history_.length, history_, 0, history_.length);
+			history_length_ = history_.length;
+			return;
+		}
+		final int kept = Math.min(history_length_, history_.length - length);
+		System.arraycopy(history_, history_length_ - kept, history_, 0, kept);
+		System.arraycopy(data, offset, history_, kept, length);
+		history_length_ = kept + length;
+	}
+}
@@ -0,0 +1,146 @@
+package com.googlecode.jvcdiff.codec;
+
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+/**
+ * A DecodedTarget that decodes straight into a caller's ByteBuffer, heap or
+ * direct, starting at its position.  The buffer is never grown: a window that
+ * does not fit between the end of the data and the buffer's limit is refused
+ * by reserve().  output() advances the buffer's position past the data handed
+ * to the caller; reset() leaves the data in place and starts the next window
+ * after it.
+ *
+ * Heap buffers are written with System.arraycopy() and Arrays.fill(); direct
+ * buffers with bulk ByteBuffer transfers through a reused duplicate.
+ */
+class ByteBufferDecodedTarget implements DecodedTarget {
+
+	// The size of the array that checksums and fills of direct buffers are
+	// staged through.
+	private static final int kScratchSize = 8192;
+
+	private final ByteBuffer buffer;
+
+	// A duplicate of buffer, whose position and limit are moved to write it.
+	private final ByteBuffer writer;
+
+	// The index in buffer of position 0 of the target, and the number of
+	// bytes held after it.
+	private int base;
+	private int count;
+
+	private byte[] scratch;
+
+	ByteBufferDecodedTarget(ByteBuffer buffer) {
+		this.buffer = buffer;
+		this.writer = buffer.duplicate();
+		this.base = buffer.position();
+	}
+
+	public long length() {
+		return count;
+	}
+
+	public boolean reserve(long capacity) {
+		return capacity <= buffer.limit() - base;
+	}
+
+	public void append(ByteBuffer src, int size) {
+		copyFrom(src, src.position(), size);
+		src.position(src.position() + size);
+	}
+
+	public void copyFrom(ByteBuffer src, int index, int size) {
+		if (buffer.hasArray() && src.hasArray()) {
+			System.arraycopy(src.array(), src.arrayOffset() + index,
+					buffer.array(), buffer.arrayOffset() + base + count, size);
+		} else if (src.hasArray()) {
+			WriterAtEnd().put(src.array(), src.arrayOffset() + index, size);
+		} else {
+			ByteBuffer from = src.duplicate();
+			from.limit(index + size).position(index);
+			WriterAtEnd().put(from);
+		}
+		count += size;
+	}
+
+	public void copyWithin(long position, int size) {
+		final int from = (int) position;
+		while (size > 0) {
+			final int block_size = Math.min(size, count - from);
+			if (buffer.hasArray()) {
+				final int start = buffer.arrayOffset() + base;
+				System.arraycopy(buffer.array(), start + from, buffer.array(), start + count, block_size);
+			} else {
+				ByteBuffer block = buffer.duplicate();
+				block.limit(base + from + block_size).position(base + from);
+				WriterAtEnd().put(block);
+			}
+			count += block_size;
+			size -= block_size;
+		}
+	}
+
+	public void fill(byte b, int size) {
+		if (buffer.hasArray()) {
+			final int start = buffer.arrayOffset() + base + count;
+			Arrays.fill(buffer.array(), start, start + size, b);
+			count += size;
+			return;
+		}
+		final byte[] run = Scratch();
+		Arrays.fill(run, 0, Math.min(size, run.length), b);
+		while (size > 0) {
+			final int chunk_size = Math.min(size, run.length);
+			WriterAtEnd().put(run, 0, chunk_size);
+			count += chunk_size;
+			size -= chunk_size;
+		}
+	}
+
+	public ByteBuffer segment(long position, int length) {
+		ByteBuffer segment = buffer.duplicate();
+		segment.limit(base + (int) position + length).position(base + (int) position);
+		return segment.slice();
+	}
+
+	public void updateChecksum(Checksum checksum, long position, int size) {
+		final int start = (int) position;
+		if (buffer.hasArray()) {
+			checksum.update(buffer.array(), buffer.arrayOffset() + base + start, size);
+			return;
+		}
+		// Java 7 checksums only read arrays, so stage the bytes through one.
+		final byte[] chunk = Scratch();
+		ByteBuffer bytes = buffer.duplicate();
+		bytes.limit(base + start + size).position(base + start);
+		while (bytes.hasRemaining()) {
+			final int chunk_size = Math.min(bytes.remaining(), chunk.length);
+			bytes.get(chunk, 0, chunk_size);
+			checksum.update(chunk, 0, chunk_size);
+		}
+	}
+
+	public void output(DecodedDataSink sink, long start, long size) {
+		buffer.position(base + (int) (start + size));
+	}
+
+	public void reset() {
+		base += count;
+		count = 0;
+	}
+
+	private ByteBuffer WriterAtEnd() {
+		writer.limit(buffer.limit()).position(base + count);
+		return writer;
+	}
+
+	private byte[] Scratch() {
+		if (scratch == null) {
+			scratch = new byte[kScratchSize];
+		}
+		return scratch;
+	}
+}
@@ -0,0 +1,47 @@
+package com.googlecode.jvcdiff.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Receives the target of a delta file from
+ * VCDiffStreamingDecoderImpl.DecodeChunk(byte[], int, int, DecodedDataSink)
+ * as it is decoded, without the decoder copying it anywhere.
+ *
+ * For each target window, BeginWindow() is called once its header has been
+ * read, then Output() one or more times with the window's data in order,
+ * then EndWindow() once the whole window has been decoded and its checksum,
+ * if any, verified.  By default each window's data is passed to Output() in
+ * one piece just before EndWindow(), so that the sink only sees verified
+ * windows.  VCDiffStreamingDecoderImpl.SetFlushThreshold() makes it pass the
+ * data on sooner, after the instruction that decoded it, which lowers the
+ * latency of a streaming consumer; if that window then fails its checksum,
+ * DecodeChunk() returns false after part of it has been output.
+ *
+ * An interleaved window that arrives over several DecodeChunk() calls is
+ * also output at the end of each call, as far as it has been decoded.
+ */
+public interface DecodedDataSink {
+
+	/**
+	 * Called when the header of a target window has been read.
+	 *
+	 * @param target_position the position in the target file of the first
+	 *        byte of the window
+	 * @param window_length the number of bytes in the window
+	 */
+	void BeginWindow(long target_position, int window_length) throws IOException;
+
+	/**
+	 * Receives the next decoded bytes: those between the position and the
+	 * limit of data.  data is a view of the decoder's own buffer; it must not
+	 * be modified, and is only valid until Output() returns.
+	 */
+	void Output(ByteBuffer data) throws IOException;
+
+	/**
+	 * Called when all the data of the current target window has been passed
+	 * to Output().
+	 */
+	void EndWindow() throws IOException;
+}
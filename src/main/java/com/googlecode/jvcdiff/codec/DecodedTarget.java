@@ -0,0 +1,82 @@
+package com.googlecode.jvcdiff.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.zip.Checksum;
+
+/**
+ * The target data decoded so far.  VCDiffDeltaFileWindow appends each
+ * instruction to it, and reads it again for COPY instructions that refer to
+ * the target and for VCD_TARGET source segments.  Positions are relative to
+ * the first byte held, which is the start of the target file unless reset()
+ * has been called.  They are longs, as a target decoded into a file may be
+ * larger than Integer.MAX_VALUE bytes; a single target window never is.
+ *
+ * The decoder keeps the target in a DecoratedByteArrayOutputStream, or, when
+ * it decodes into a caller's ByteBuffer or FileChannel, in a
+ * ByteBufferDecodedTarget or a FileDecodedTarget.
+ */
+interface DecodedTarget {
+
+	/**
+	 * Returns the position just after the last byte held.
+	 */
+	long length();
+
+	/**
+	 * Makes room for capacity bytes in all, so that the window being decoded
+	 * is not moved while it is decoded.  Called at the start of each target
+	 * window.  Returns false if there is no room.
+	 */
+	boolean reserve(long capacity) throws IOException;
+
+	/**
+	 * Appends the next size bytes of src, advancing its position.
+	 */
+	void append(ByteBuffer src, int size);
+
+	/**
+	 * Appends size bytes of src starting at index, without changing its
+	 * position.
+	 */
+	void copyFrom(ByteBuffer src, int index, int size);
+
+	/**
+	 * Appends size bytes starting at position from of this target, which is
+	 * within the window being decoded.  The bytes may overlap the ones being
+	 * appended, as in a COPY that repeats a pattern; the pattern is then
+	 * replicated in blocks of doubling size.
+	 */
+	void copyWithin(long from, int size);
+
+	/**
+	 * Appends size copies of b.
+	 */
+	void fill(byte b, int size);
+
+	/**
+	 * Returns the length bytes at position, which all precede the window
+	 * being decoded, as a buffer whose position is 0.  The buffer must not be
+	 * modified, and remains valid until the window has been decoded.
+	 */
+	ByteBuffer segment(long position, int length) throws IOException;
+
+	/**
+	 * Adds the size bytes at start, which is within the window being
+	 * decoded, to checksum.
+	 */
+	void updateChecksum(Checksum checksum, long start, int size);
+
+	/**
+	 * Hands the size bytes at start to the caller: passes them to sink, or,
+	 * for a caller's buffer or file, advances its position past them; sink is
+	 * then null.
+	 */
+	void output(DecodedDataSink sink, long start, long size) throws IOException;
+
+	/**
+	 * Discards the bytes held, so that the next byte appended is at
+	 * position 0.
+	 */
+	void reset();
+}
@@ -0,0 +1,132 @@
+package com.googlecode.jvcdiff.codec;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.Checksum;
+
+/**
+ * A DecodedTarget that writes the target to a caller's FileChannel, starting
+ * at its position, so that the heap needed does not grow with the target.
+ * Only the window being decoded is held, in an array that grows to the
+ * largest window; reserve() writes it to the file when the next window
+ * starts.  COPY instructions that address the target stay within the
+ * current window, so they are served from that array.  VCD_TARGET source
+ * segments lie in earlier windows, and are read through a read-only mapping
+ * of the file, so the channel must be readable if the delta file uses them.
+ *
+ * output() writes the data that has not been written yet and advances the
+ * channel's position past it; reset() starts the next window after the data
+ * written.
+ */
+class FileDecodedTarget implements DecodedTarget {
+
+	private final FileChannel channel;
+
+	// The position in channel of position 0 of the target.
+	private long base;
+
+	// The target position of window[0], the number of bytes of the current
+	// window held in window, and the number of them written to channel.
+	private long window_start;
+	private int window_length;
+	private int written;
+
+	private byte[] window = new byte[0];
+
+	FileDecodedTarget(FileChannel channel) throws IOException {
+		this.channel = channel;
+		this.base = channel.position();
+	}
+
+	public long length() {
+		return window_start + window_length;
+	}
+
+	public boolean reserve(long capacity) throws IOException {
+		Write(window_length);
+		window_start += window_length;
+		window_length = 0;
+		written = 0;
+		if (capacity - window_start > Integer.MAX_VALUE) {
+			return false;
+		}
+		Grow((int) (capacity - window_start));
+		return true;
+	}
+
+	public void append(ByteBuffer src, int size) {
+		Grow(window_length + size);
+		src.get(window, window_length, size);
+		window_length += size;
+	}
+
+	public void copyFrom(ByteBuffer src, int index, int size) {
+		Grow(window_length + size);
+		if (src.hasArray()) {
+			System.arraycopy(src.array(), src.arrayOffset() + index, window, window_length, size);
+		} else {
+			ByteBuffer from = src.duplicate();
+			from.position(index);
+			from.get(window, window_length, size);
+		}
+		window_length += size;
+	}
+
+	public void copyWithin(long position, int size) {
+		final int from = (int) (position - window_start);
+		Grow(window_length + size);
+		while (size > 0) {
+			final int block_size = Math.min(size, window_length - from);
+			System.arraycopy(window, from, window, window_length, block_size);
+			window_length += block_size;
+			size -= block_size;
+		}
+	}
+
+	public void fill(byte b, int size) {
+		Grow(window_length + size);
+		Arrays.fill(window, window_length, window_length + size, b);
+		window_length += size;
+	}
+
+	public ByteBuffer segment(long position, int length) throws IOException {
+		if (length == 0) {
+			return ByteBuffer.allocate(0);
+		}
+		// reserve() has written everything before the current window.
+		return channel.map(FileChannel.MapMode.READ_ONLY, base + position, length);
+	}
+
+	public void updateChecksum(Checksum checksum, long start, int size) {
+		checksum.update(window, (int) (start - window_start), size);
+	}
+
+	public void output(DecodedDataSink sink, long start, long size) throws IOException {
+		Write((int) (start + size - window_start));
+		channel.position(base + start + size);
+	}
+
+	public void reset() {
+		base += length();
+		window_start = 0;
+		window_length = 0;
+		written = 0;
+	}
+
+	// Writes window[written, end - 1] to its place in channel.
+	private void Write(int end) throws IOException {
+		final ByteBuffer data = ByteBuffer.wrap(window, written, end - written);
+		while (data.hasRemaining()) {
+			channel.write(data, base + window_start + data.position());
+		}
+		written = end;
+	}
+
+	private void Grow(int capacity) {
+		if (capacity > window.length) {
+			window = Arrays.copyOf(window, Math.max(capacity, window.length << 1));
+		}
+	}
+}
@@ -1,15 +1,17 @@
 package com.googlecode.jvcdiff.codec;
 
+import com.googlecode.jvcdiff.CRC32C;
 import com.googlecode.jvcdiff.VCDiffCodeTableData;
 import com.googlecode.jvcdiff.VCDiffCodeTableReader;
 import com.googlecode.jvcdiff.VarInt;
-import com.googlecode.jvcdiff.codec.VCDiffStreamingDecoderImpl.DecoratedByteArrayOutputStream;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.zip.Adler32;
+import java.util.zip.Checksum;
 
 import static com.googlecode.jvcdiff.VCDiffCodeTableData.*;
 import static com.googlecode.jvcdiff.VCDiffCodeTableWriter.*;
@@ -31,7 +33,7 @@ public class VCDiffDeltaFileWindow {
 		found_header_ = false;
 
 		// Mark the start of the current target window.
-		target_window_start_pos_ = (parent_ != null) ? parent_.decoded_target().size() : 0;
+		target_window_start_pos_ = (parent_ != null) ? parent_.decoded_target().length() : 0;
 		target_window_length_ = 0;
 
 		source_segment_ptr_ = null;
@@ -42,6 +44,7 @@ public class VCDiffDeltaFileWindow {
 		addresses_for_copy_ = null;
 
 		interleaved_bytes_expected_ = 0;
+		window_bytes_expected_ = 0;
 
 		has_checksum_ = false;
 		expected_checksum_.set(0);
@@ -61,7 +64,7 @@ public class VCDiffDeltaFileWindow {
 	// parseable_chunk->Advance() is called to point to the input data position
 	// just after the data that has been decoded.
 	//
-	public int DecodeWindow(ByteBuffer parseable_chunk) {
+	public int DecodeWindow(ByteBuffer parseable_chunk) throws IOException {
 		// TODO
 		/*
 		if (!parent_) {
@@ -70,6 +73,11 @@ public class VCDiffDeltaFileWindow {
 		}
 		 */
 		if (!found_header_) {
+			if (parseable_chunk.remaining() < window_bytes_expected_) {
+				// The window whose header was read by an earlier call has not
+				// arrived in full yet; don't parse the header again until it has.
+				return RESULT_END_OF_DATA;
+			}
 			switch (ReadHeader(parseable_chunk)) {
 			case RESULT_END_OF_DATA:
 				return RESULT_END_OF_DATA;
@@ -123,9 +131,9 @@ public class VCDiffDeltaFileWindow {
 		return IsInterleaved() && (interleaved_bytes_expected_ > 0);
 	}
 
-	public int target_window_start_pos() { return target_window_start_pos_; }
+	public long target_window_start_pos() { return target_window_start_pos_; }
 
-	public void set_target_window_start_pos(int new_start_pos) {
+	public void set_target_window_start_pos(long new_start_pos) {
 		target_window_start_pos_ = new_start_pos;
 	}
 
@@ -151,7 +159,7 @@ public class VCDiffDeltaFileWindow {
 	// Otherwise, returns RESULT_SUCCESS and advances parseable_chunk past the
 	// parsed header.
 	//
-	private int ReadHeader(ByteBuffer parseable_chunk) {
+	private int ReadHeader(ByteBuffer parseable_chunk) throws IOException {
 		// Here are the elements of the delta window header to be parsed,
 		// from section 4 of the RFC:
 		//
@@ -171,12 +179,12 @@ public class VCDiffDeltaFileWindow {
 		//		                 Instructions and sizes section   - array of bytes
 		//		                 Addresses section for COPYs      - array of bytes
 		//
-		DecoratedByteArrayOutputStream decoded_target = parent_.decoded_target();
+		DecodedTarget decoded_target = parent_.decoded_target();
 		VCDiffHeaderParser header_parser = new VCDiffHeaderParser(parseable_chunk.slice());
 
 		DeltaWindowHeader deltaWindowHeader = header_parser.ParseWinIndicatorAndSourceSegment(
 				parent_.dictionary_size(),
-				decoded_target.size(),
+				decoded_target.length(),
 				parent_.allow_vcd_target()
 		);
 
@@ -187,6 +195,10 @@ public class VCDiffDeltaFileWindow {
         this.source_segment_length_.set(deltaWindowHeader.source_segment_length);
 
 		has_checksum_ = parent_.AllowChecksum() && ((deltaWindowHeader.win_indicator & VCD_CHECKSUM) != 0);
+		if (has_checksum_) {
+			checksum_ = parent_.UseCrc32cChecksum() ? crc32c_ : adler32_;
+			checksum_.reset();
+		}
 		if ((target_window_length_ = header_parser.ParseWindowLengths()) == null) {
 			return header_parser.GetResult();
 		}
@@ -200,29 +212,28 @@ public class VCDiffDeltaFileWindow {
 			return setup_return_code;
 		}
 		// Reserve enough space in the output string for the current target window.
-		/*
-		final int wanted_capacity = target_window_start_pos_ + target_window_length_;
-		if (decoded_target.capacity() < wanted_capacity) {
-			decoded_target.reserve(wanted_capacity);
+		if (!decoded_target.reserve(target_window_start_pos_ + target_window_length_)) {
+			LOGGER.error("Target window of {} bytes does not fit in the output buffer", target_window_length_);
+			return RESULT_ERROR;
 		}
-		*/
-		
+
 		// Get a pointer to the start of the source segment.
 		if ((deltaWindowHeader.win_indicator & VCD_SOURCE) != 0) {
-			source_segment_ptr_ = ByteBuffer.wrap(parent_.dictionary_ptr());
-			source_segment_ptr_.position(deltaWindowHeader.source_segment_position);
+			source_segment_ptr_ = parent_.dictionary();
+			source_segment_ptr_.position((int) deltaWindowHeader.source_segment_position);
 		} else if ((deltaWindowHeader.win_indicator & VCD_TARGET) != 0) {
 			// This assignment must happen after the reserve().
 			// decoded_target should not be resized again while processing this window,
 			// so source_segment_ptr_ should remain valid.
-			source_segment_ptr_ = decoded_target.toByteBuffer();
-			source_segment_ptr_.position(deltaWindowHeader.source_segment_position);
+			source_segment_ptr_ = decoded_target.segment(deltaWindowHeader.source_segment_position,
+					deltaWindowHeader.source_segment_length);
 		}
 		// The whole window header was found and parsed successfully.
 		found_header_ = true;
 
 		parseable_chunk.position(parseable_chunk.position() + header_parser.unparsedData().position());
 		parent_.AddToTotalTargetWindowSize(target_window_length_);
+		parent_.BeginTargetWindow(target_window_length_);
 		return RESULT_SUCCESS;
 	}
 
@@ -276,10 +287,14 @@ public class VCDiffDeltaFileWindow {
 			// If interleaved format is not used, then the whole window contents
 			// must be available before decoding can begin.  If only part of
 			// the current window is available, then report end of data
-			// and re-parse the whole header when DecodeChunk() is called again.
-			if (header_parser.unparsedData().remaining() < (sectionLengths.add_and_run_data_length +
-                    sectionLengths.instructions_and_sizes_length +
-                    sectionLengths.addresses_length)) {
+			// and re-parse the whole header once DecodeChunk() has been given
+			// the rest of the window, whose length is kept in
+			// window_bytes_expected_.
+			final int body_length = sectionLengths.add_and_run_data_length +
+					sectionLengths.instructions_and_sizes_length +
+					sectionLengths.addresses_length;
+			if (header_parser.unparsedData().remaining() < body_length) {
+				window_bytes_expected_ = header_parser.unparsedData().position() + body_length;
 				return RESULT_END_OF_DATA;
 			}
 			
@@ -316,18 +331,22 @@ public class VCDiffDeltaFileWindow {
 	// decoding.  Appends as much of the decoded target window as possible to
 	// parent->decoded_target().
 	//
-	private int DecodeBody(ByteBuffer parseable_chunk) {
+	private int DecodeBody(ByteBuffer parseable_chunk) throws IOException {
         // FIXME: the ByteBuffer logic is probably bad
-		if (IsInterleaved() &&
+		// Only buffers backed by an accessible array can be compared; direct
+		// and read-only input is not checked.
+		if (IsInterleaved() && instructions_and_sizes_.hasArray() && parseable_chunk.hasArray() &&
 				(instructions_and_sizes_.array() != parseable_chunk.array() ||
 						instructions_and_sizes_.arrayOffset() + instructions_and_sizes_.position() != parseable_chunk.arrayOffset() + parseable_chunk.position())) {
 				
 			LOGGER.error("Internal error: interleaved format is used, but the input pointer does not point to the instructions section");
 			return RESULT_ERROR;
 		}
+		final AtomicInteger decoded_size = new AtomicInteger();
+		final AtomicInteger mode = new AtomicInteger();
 		while (TargetBytesDecoded() < target_window_length_) {
-			final AtomicInteger decoded_size = new AtomicInteger(VCD_INSTRUCTION_ERROR);
-			final AtomicInteger mode = new AtomicInteger(0);
+			decoded_size.set(VCD_INSTRUCTION_ERROR);
+			mode.set(0);
 			int instruction = reader_.GetNextInstruction(decoded_size, mode);
 			switch (instruction) {
 			case VCD_INSTRUCTION_END_OF_DATA:
@@ -373,6 +392,7 @@ public class VCDiffDeltaFileWindow {
 			case RESULT_SUCCESS:
 				break;
 			}
+			parent_.OutputIfFlushThresholdReached();
 		}
 		if (TargetBytesDecoded() != target_window_length_) {
 			LOGGER.error("Decoded target window size ({}bytes) does not match expected size ({} bytes)",
@@ -380,16 +400,9 @@ public class VCDiffDeltaFileWindow {
 			return RESULT_ERROR;
 		}
 		
-		final ByteBuffer target_window = parent_.decoded_target().toByteBuffer();
-		target_window.position(target_window_start_pos_);
-		target_window.limit(target_window_start_pos_ + target_window_length_);
-		
 		if (has_checksum_) {
-			adler32.update(target_window.array(), target_window.arrayOffset() + target_window.position(), target_window.remaining());
-			int checksum = (int)adler32.getValue();
-			adler32.reset();
-
-			if (checksum != expected_checksum_.get()) {
+			// The checksum has been updated as the target data was decoded.
+			if ((int) checksum_.getValue() != expected_checksum_.get()) {
 				LOGGER.error("Target data does not match checksum; this could mean that the wrong dictionary was used");
 				return RESULT_ERROR;
 			}
@@ -428,7 +441,7 @@ public class VCDiffDeltaFileWindow {
 
 	// Returns the number of bytes already decoded into the target window.
 	private int TargetBytesDecoded() {
-		return parent_.decoded_target().size() - target_window_start_pos_;
+		return (int) (parent_.decoded_target().length() - target_window_start_pos_);
 	}
 
 	// Decodes a single ADD instruction, updating parent_->decoded_target_.
@@ -453,10 +466,7 @@ public class VCDiffDeltaFileWindow {
 
 	// Decodes a single COPY instruction, updating parent_->decoded_target_.
 	private int DecodeCopy(int size, short mode) {
-		// Keep track of the number of target bytes decoded as a local variable
-		// to avoid recalculating it each time it is needed.
-		int target_bytes_decoded = TargetBytesDecoded();
-		final int here_address = source_segment_length_.get() + target_bytes_decoded;
+		final int here_address = source_segment_length_.get() + TargetBytesDecoded();
 		final int decoded_address = parent_.addr_cache().DecodeAddress(
 				here_address,
 				mode,
@@ -480,39 +490,21 @@ public class VCDiffDeltaFileWindow {
 		int address = decoded_address;
 		if ((address + size) <= source_segment_length_.get()) {
 			// Copy all data from source segment
-			CopyBytes((ByteBuffer) source_segment_ptr_.slice().position(address), size);
+			CopySourceBytes(address, size);
 			return RESULT_SUCCESS;
 		}
 		// Copy some data from target window...
 		if (address < source_segment_length_.get()) {
 			// ... plus some data from source segment
 			final int partial_copy_size = source_segment_length_.get() - address;
-			CopyBytes((ByteBuffer) source_segment_ptr_.slice().position(address), partial_copy_size);
-			target_bytes_decoded += partial_copy_size;
+			CopySourceBytes(address, partial_copy_size);
 			address += partial_copy_size;
 			size -= partial_copy_size;
 		}
 		address -= source_segment_length_.get();
-		// address is now based at start of target window
-		// const char* const target_segment_ptr = parent_.decoded_target().data() + target_window_start_pos_;
-		
-		ByteBuffer target_segment = parent_.decoded_target().toByteBuffer();
-		target_segment.position(target_window_start_pos_);
-		
-		while (size > (target_bytes_decoded - address)) {
-			// Recursive copy that extends into the yet-to-be-copied target data
-			final int partial_copy_size = target_bytes_decoded - address;
-            // TODO: does target_segment need to be recreated each time?
-            CopyBytes((ByteBuffer) target_segment.slice().position(address), partial_copy_size);
-			target_bytes_decoded += partial_copy_size;
-			address += partial_copy_size;
-			size -= partial_copy_size;
-
-            // This might not be needed, but refresh target_segment since bytes were just copied into target
-            target_segment = parent_.decoded_target().toByteBuffer();
-            target_segment.position(target_window_start_pos_);
-		}
-        CopyBytes((ByteBuffer) target_segment.slice().position(address), size);
+		// address is now based at start of target window.  The copy may extend
+		// into the target data that it produces itself.
+		CopyTargetBytes(target_window_start_pos_ + address, size);
 		return RESULT_SUCCESS;
 	}
 
@@ -546,20 +538,44 @@ public class VCDiffDeltaFileWindow {
 		return (addresses_for_copy_ == instructions_and_sizes_ && data_for_add_and_run_ == instructions_and_sizes_);
 	}
 
-    // Executes a single COPY or ADD instruction, appending data to
-    // parent_->decoded_target().
-    private void CopyBytes(ByteBuffer buffer, int size) {
-        // TODO: optimize
-        while (size-- > 0) {
-            parent_.decoded_target().write(buffer.get());
-        }
-    }
+	// Executes a single ADD instruction, appending the next size bytes of
+	// buffer to parent_->decoded_target().
+	private void CopyBytes(ByteBuffer buffer, int size) {
+		final long start = parent_.decoded_target().length();
+		parent_.decoded_target().append(buffer, size);
+		UpdateChecksum(start, size);
+	}
+
+	// Executes the part of a COPY instruction that reads the source segment,
+	// starting at address within it.
+	private void CopySourceBytes(int address, int size) {
+		final long start = parent_.decoded_target().length();
+		parent_.decoded_target().copyFrom(source_segment_ptr_, source_segment_ptr_.position() + address, size);
+		UpdateChecksum(start, size);
+	}
+
+	// Executes the part of a COPY instruction that reads the target data,
+	// starting at position from of parent_->decoded_target().
+	private void CopyTargetBytes(long from, int size) {
+		final long start = parent_.decoded_target().length();
+		parent_.decoded_target().copyWithin(from, size);
+		UpdateChecksum(start, size);
+	}
 
 	// Executes a single RUN instruction, appending data to
 	// parent_->decoded_target().
 	private void RunByte(byte b, int size) {
-		for (int i = 0; i < size; i++) {
-			parent_.decoded_target().write(b);
+		final long start = parent_.decoded_target().length();
+		parent_.decoded_target().fill(b, size);
+		UpdateChecksum(start, size);
+	}
+
+	// Adds the size bytes just appended to parent_->decoded_target() at start
+	// to the checksum, while they are still in the processor cache, so that
+	// the finished window does not have to be read again to verify it.
+	private void UpdateChecksum(long start, int size) {
+		if (has_checksum_) {
+			parent_.decoded_target().updateChecksum(checksum_, start, size);
 		}
 	}
 
@@ -622,20 +638,30 @@ public class VCDiffDeltaFileWindow {
 	// for the interleaved format.
 	private int interleaved_bytes_expected_;
 
+	// The length of the whole window, header included, once its header has
+	// been read but the rest of it has not arrived yet.  Only used for the
+	// standard format.
+	private int window_bytes_expected_;
+
 	// The expected length of the target window once it has been decoded.
 	private Integer target_window_length_;
 
 	// The index in decoded_target at which the first byte of the current
 	// target window was/will be written.
-	private int target_window_start_pos_;
+	private long target_window_start_pos_;
 
 	// If has_checksum_ is true, then expected_checksum_ contains an Adler32
-	// checksum of the target window data.  This is an extension included in the
-	// VCDIFF 'S' (SDCH) format, but is not part of the RFC 3284 draft standard.
+	// (or, if parent_.UseCrc32cChecksum(), a CRC-32C) checksum of the target
+	// window data.  This is an extension included in the VCDIFF 'S' (SDCH)
+	// format, but is not part of the RFC 3284 draft standard.
 	private boolean has_checksum_;
 	private final AtomicInteger expected_checksum_ = new AtomicInteger(0);
 
-	private final Adler32 adler32 = new Adler32(); 
+	// The checksum of the target window data decoded so far: adler32_ or
+	// crc32c_, depending on the delta file.
+	private Checksum checksum_;
+	private final Adler32 adler32_ = new Adler32();
+	private final CRC32C crc32c_ = new CRC32C();
 
 	private VCDiffCodeTableReader reader_ = new VCDiffCodeTableReader();
 }
@@ -21,6 +21,9 @@ public class VCDiffHeaderParser {
 
 	public static final byte VCD_DECOMPRESS = 0x01;
 	public static final byte VCD_CODETABLE = 0x02;
+	// Only defined for the 'S' format: the window checksums are CRC-32C
+	// rather than Adler32.
+	public static final byte VCD_CRC32C = 0x04;
 
     public static final byte VCD_DATACOMP = 0x01;
     public static final byte VCD_INSTCOMP = 0x02;
@@ -107,6 +110,28 @@ public class VCDiffHeaderParser {
 		}
 	}
 
+	// Parses a signed 64-bit value, for positions in a target file, which may
+	// be larger than Integer.MAX_VALUE bytes.
+	public Long ParseInt64(String variable_description) {
+		if (RESULT_SUCCESS != return_code_) {
+			return null;
+		}
+
+		buffer.mark();
+		try {
+			return VarInt.getLong(buffer);
+		} catch (VarIntParseException e) {
+			LOGGER.error("Expected {}; found invalid variable-length integer", variable_description);
+			return_code_ = RESULT_ERROR;
+			buffer.reset();
+			return null;
+		} catch (VarIntEndOfBufferException e) {
+			return_code_ = RESULT_END_OF_DATA;
+			buffer.reset();
+			return null;
+		}
+	}
+
 	// When an unsigned 32-bit integer is expected, parse a signed 64-bit value
 	// instead, then check the value limit.  The uint32_t type can't be parsed
 	// directly because two negative values are given special meanings (RESULT_ERROR
@@ -178,7 +203,7 @@ public class VCDiffHeaderParser {
 	// source_segment_position (output): The parsed zero-based index in the
 	//     source/target file from which the source segment is to be taken.
     public DeltaWindowHeader ParseWinIndicatorAndSourceSegment(int dictionary_size,
-                                                               int decoded_target_size,
+                                                               long decoded_target_size,
                                                                boolean allow_vcd_target) {
         Byte win_indicator = this.ParseByte();
         if (win_indicator == null) {
@@ -359,7 +384,16 @@ public class VCDiffHeaderParser {
             return null;
         }
 
-        Integer source_segment_position = ParseSize("source segment position");
+        // Only a target file can be larger than Integer.MAX_VALUE bytes, so
+        // smaller sources keep 32-bit positions, which reject overlong
+        // values as soon as they are read.
+        Long source_segment_position;
+        if (from_size > Integer.MAX_VALUE) {
+            source_segment_position = ParseInt64("source segment position");
+        } else {
+            Integer position = ParseSize("source segment position");
+            source_segment_position = (position != null) ? Long.valueOf(position) : null;
+        }
         if (source_segment_position == null) {
             return null;
         }
@@ -369,7 +403,7 @@ public class VCDiffHeaderParser {
             return_code_ = RESULT_ERROR;
             return null;
         }
-        int source_segment_end = source_segment_position + source_segment_length;
+        long source_segment_end = source_segment_position + source_segment_length;
         if (source_segment_end > from_size) {
             LOGGER.error("Source segment end position ({}) is past {} ({})",
                     source_segment_end, from_boundary_name, from_size);
@@ -382,9 +416,9 @@ public class VCDiffHeaderParser {
     public static final class DeltaWindowHeader {
         public final byte win_indicator;
         public final int source_segment_length;
-        public final int source_segment_position;
+        public final long source_segment_position;
 
-        public DeltaWindowHeader(byte win_indicator, int source_segment_length, int source_segment_position) {
+        public DeltaWindowHeader(byte win_indicator, int source_segment_length, long source_segment_position) {
             this.win_indicator = win_indicator;
             this.source_segment_length = source_segment_length;
             this.source_segment_position = source_segment_position;
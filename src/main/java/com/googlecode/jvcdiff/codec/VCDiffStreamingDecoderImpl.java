@@ -3,6 +3,9 @@ package com.googlecode.jvcdiff.codec;
 import com.googlecode.jvcdiff.VCDiffAddressCache;
 import com.googlecode.jvcdiff.VCDiffAddressCacheImpl;
 import com.googlecode.jvcdiff.VCDiffCodeTableData;
+import com.googlecode.jvcdiff.VarInt;
+import com.googlecode.jvcdiff.VarInt.VarIntEndOfBufferException;
+import com.googlecode.jvcdiff.VarInt.VarIntParseException;
 import com.googlecode.jvcdiff.mina_buffer.IoBuffer;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -11,7 +14,12 @@ import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.zip.Checksum;
 
+import static com.googlecode.jvcdiff.VCDiffCodeTableWriter.VCD_SOURCE;
+import static com.googlecode.jvcdiff.VCDiffCodeTableWriter.VCD_TARGET;
 import static com.googlecode.jvcdiff.codec.VCDiffHeaderParser.*;
 
 public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
@@ -30,14 +38,16 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
 	// for the target data.
 	public static final int kUnlimitedBytes = -3;
 
-	// Contents and length of the source (dictionary) data.
-	private byte[] dictionary_ptr_;
+	// Contents and length of the source (dictionary) data: a slice of the
+	// buffer given to StartDecoding(), which may be direct or read-only.
+	private ByteBuffer dictionary_;
 
 	// This string will be used to store any unparsed bytes left over when
 	// DecodeChunk() reaches the end of its input and returns RESULT_END_OF_DATA.
 	// It will also be used to concatenate those unparsed bytes with the data
 	// supplied to the next call to DecodeChunk(), so that they appear in
-	// contiguous memory.
+	// contiguous memory.  The data is appended to it in place (see
+	// AppendUnparsedBytes()), and it is kept from one delta file to the next.
 	private IoBuffer unparsed_bytes_ = IoBuffer.allocate(0);
 
 	// The portion of the target file that has been decoded so far.  This will be
@@ -47,13 +57,23 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
 	// data, the entire target file needs to be available to the decoder, not just
 	// the current target window.
 
-	// Originally a String
-	private final DecoratedByteArrayOutputStream decoded_target_ = new DecoratedByteArrayOutputStream(512); //IoBuffer.allocate(512);
+	// Originally a String.  It is decoded_array_ unless StartDecoding() was
+	// given an output ByteBuffer or FileChannel, in which case the target is
+	// decoded straight into that buffer or file.
+	private final DecoratedByteArrayOutputStream decoded_array_ = new DecoratedByteArrayOutputStream(512); //IoBuffer.allocate(512);
+	private DecodedTarget decoded_target_ = decoded_array_;
+
+	// True if decoded_target_ writes to the caller's output ByteBuffer or
+	// FileChannel.
+	private boolean decoding_in_place_;
 
 	// The VCDIFF version byte (also known as "header4") from the
 	// delta file header.
 	private byte vcdiff_version_code_;
 
+	// The Hdr_Indicator byte from the delta file header.
+	private byte hdr_indicator_;
+
 	private VCDiffDeltaFileWindow delta_window_;
 
 	private VCDiffAddressCache addr_cache_;
@@ -82,18 +102,18 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
 	// of the enclosing delta file.
 	private int planned_target_file_size_;
 
-	private int maximum_target_file_size_ = kDefaultMaximumTargetFileSize;
+	private long maximum_target_file_size_ = kDefaultMaximumTargetFileSize;
 
 	private int maximum_target_window_size_ = kDefaultMaximumTargetFileSize;
 
 	// Contains the sum of the decoded sizes of all target windows seen so far,
 	// including the expected total size of the current target window in progress
 	// (even if some of the current target window has not yet been decoded.)
-	private int total_of_target_window_sizes_;
+	private long total_of_target_window_sizes_;
 
 	// Contains the byte position within decoded_target_ of the first data that
 	// has not yet been output by AppendNewOutputText().
-	private int decoded_target_output_position_;
+	private long decoded_target_output_position_;
 
 	// This value is used to ensure the correct order of calls to the interface
 	// functions, i.e., a single call to StartDecoding(), followed by zero or
@@ -108,6 +128,17 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
 	// keep in memory any decoded target data prior to the current window.
 	private boolean allow_vcd_target_ = true;
 
+	// The sink that the DecodeChunk() call in progress outputs to, which is
+	// null if it decodes into an output buffer or file.  If output_windows_
+	// is true, the sink is told where windows begin and end, and is given
+	// each window's data when the window has been decoded.
+	private DecodedDataSink output_sink_;
+	private boolean output_windows_;
+
+	// If not 0, decoded data is output as soon as this many bytes of it are
+	// waiting.  See SetFlushThreshold().
+	private int flush_threshold_;
+
 	public VCDiffStreamingDecoderImpl() {
 		delta_window_ = new VCDiffDeltaFileWindow(this);
 		Reset();
@@ -116,8 +147,9 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
 	// Resets all member variables to their initial states.
 	public void Reset() {
 		start_decoding_was_called_ = false;
-		dictionary_ptr_ = null;
+		dictionary_ = null;
 		vcdiff_version_code_ = 0;
+		hdr_indicator_ = 0;
 		planned_target_file_size_ = kUnlimitedBytes;
 		total_of_target_window_sizes_ = 0;
 		addr_cache_ = null;
@@ -131,35 +163,224 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
 	// in VCDiffStreamingDecoder.
 	//
 	public void StartDecoding(byte[] dictionary_ptr) {
+		StartDecoding(ByteBuffer.wrap(dictionary_ptr));
+	}
+
+	/**
+	 * Like StartDecoding(byte[]), with the remaining bytes of dictionary as
+	 * the dictionary.  It may be a heap, direct or read-only buffer; it is not
+	 * copied, and its position is not changed.
+	 */
+	public void StartDecoding(ByteBuffer dictionary) {
 		if (start_decoding_was_called_) {
 			LOGGER.error("StartDecoding() called twice without FinishDecoding()");
 			return;
 		}
+		StartDecoding(dictionary, decoded_array_);
+		decoding_in_place_ = false;
+	}
 
-		unparsed_bytes_ = IoBuffer.allocate(0);
+	/**
+	 * Starts decoding a delta file whose target is written straight into
+	 * output, from its position onwards, instead of being collected in an
+	 * internal buffer and copied to an OutputStream.  output may be a heap or
+	 * a direct buffer; it is not grown, so it must have room for the whole
+	 * target (see GetTargetFileSize()), or DecodeChunk() fails on the first
+	 * window that does not fit.  Each call to DecodeChunk(data, offset, len)
+	 * advances the position of output past the data decoded so far.  The
+	 * decoded data must not be modified until FinishDecoding(), as later
+	 * windows may copy from it.
+	 */
+	public void StartDecoding(byte[] dictionary_ptr, ByteBuffer output) {
+		if (start_decoding_was_called_) {
+			LOGGER.error("StartDecoding() called twice without FinishDecoding()");
+			return;
+		}
+		if (output.isReadOnly()) {
+			throw new IllegalArgumentException("Cannot decode into a read-only buffer");
+		}
+		StartDecoding(ByteBuffer.wrap(dictionary_ptr), new ByteBufferDecodedTarget(output));
+		decoding_in_place_ = true;
+	}
+
+	/**
+	 * Starts decoding a delta file whose target is written to output, from
+	 * its position onwards, so that a target larger than the heap, or than
+	 * Integer.MAX_VALUE bytes, can be decoded (see
+	 * SetMaximumTargetFileSize(long)).  Only the target window being decoded
+	 * is kept on the heap.  VCD_TARGET source segments are read back through
+	 * a read-only mapping of output, so output must be open for reading as
+	 * well as writing if the delta file uses them.  Each call to
+	 * DecodeChunk(data, offset, len) writes the data decoded so far and
+	 * advances the position of output past it.  The decoded data must not be
+	 * modified until FinishDecoding(), as later windows may copy from it.
+	 */
+	public void StartDecoding(byte[] dictionary_ptr, FileChannel output) throws IOException {
+		if (start_decoding_was_called_) {
+			LOGGER.error("StartDecoding() called twice without FinishDecoding()");
+			return;
+		}
+		StartDecoding(ByteBuffer.wrap(dictionary_ptr), new FileDecodedTarget(output));
+		decoding_in_place_ = true;
+	}
+
+	/**
+	 * Returns the size of the target of the complete delta file in
+	 * data[offset, offset + len - 1], read from its window headers without
+	 * decoding it: the capacity that an output buffer given to
+	 * StartDecoding() needs.  Returns -1 if data does not hold a whole delta
+	 * file, if the delta file is invalid, or if its target is larger than
+	 * Integer.MAX_VALUE bytes.
+	 */
+	public static int GetTargetFileSize(byte[] data, int offset, int len) {
+		try {
+			final ByteBuffer delta = ByteBuffer.wrap(data, offset, len);
+			final long target_file_size = SumTargetWindowSizes(delta, -1);
+			return (target_file_size <= Integer.MAX_VALUE) ? (int) target_file_size : -1;
+		} catch (VarIntParseException e) {
+			return -1;
+		} catch (VarIntEndOfBufferException e) {
+			return -1;
+		}
+	}
+
+	// Skips the delta file header in delta, including any custom code table,
+	// and then the windows that follow it, adding up their target window
+	// lengths.  Stops at the end of delta, or once planned_size bytes have been
+	// counted if planned_size is not -1.  Returns the sum, or -1 if delta does
+	// not hold a whole delta file.
+	private static long SumTargetWindowSizes(ByteBuffer delta, int planned_size)
+			throws VarIntParseException, VarIntEndOfBufferException {
+		if (delta.remaining() < DeltaFileHeader.SERIALIZED_SIZE
+				|| delta.get() != (byte) 0xD6 || delta.get() != (byte) 0xC3 || delta.get() != (byte) 0xC4) {
+			return -1;
+		}
+		delta.get();  // Header4: the VCDIFF version
+		final byte hdr_indicator = delta.get();
+		if ((hdr_indicator & VCD_DECOMPRESS) != 0) {
+			return -1;
+		}
+		if ((hdr_indicator & VCD_CODETABLE) != 0) {
+			VarInt.getInt(delta);  // Size of near cache
+			VarInt.getInt(delta);  // Size of same cache
+			// The code table is an embedded delta file of its own.
+			if (SumTargetWindowSizes(delta, VCDiffCodeTableData.SERIALIZED_BYTE_SIZE) < 0) {
+				return -1;
+			}
+		}
+		long target_file_size = 0;
+		while (delta.hasRemaining() && target_file_size != planned_size) {
+			final byte win_indicator = delta.get();
+			if ((win_indicator & (VCD_SOURCE | VCD_TARGET)) != 0) {
+				VarInt.getInt(delta);   // Source segment length
+				VarInt.getLong(delta);  // Source segment position
+			}
+			final int delta_encoding_length = VarInt.getInt(delta);
+			final int delta_encoding_start = delta.position();
+			if (delta_encoding_length > delta.limit() - delta_encoding_start) {
+				return -1;
+			}
+			target_file_size += VarInt.getInt(delta);
+			delta.position(delta_encoding_start + delta_encoding_length);
+		}
+		return (planned_size == -1 || target_file_size == planned_size) ? target_file_size : -1;
+	}
+
+	private void StartDecoding(ByteBuffer dictionary, DecodedTarget decoded_target) {
+		unparsed_bytes_.clear().limit(0);
+		decoded_target_ = decoded_target;
 		decoded_target_.reset();  // delta_window_.Reset() depends on this
 		Reset();
-		dictionary_ptr_ = dictionary_ptr;
+		dictionary_ = dictionary.slice();
 		start_decoding_was_called_ = true;
 	}
 
 	public boolean DecodeChunk(byte[] data, int offset, int len, OutputStream output_string) throws IOException {
+		return DecodeChunk(ByteBuffer.wrap(data, offset, len), output_string);
+	}
+
+	/**
+	 * Like DecodeChunk(byte[], int, int, OutputStream), for the remaining
+	 * bytes of data, which may be a heap, direct or read-only buffer.  They
+	 * are all consumed, as those that cannot be decoded yet are kept for the
+	 * next call, so the position of data is moved to its limit.
+	 */
+	public boolean DecodeChunk(ByteBuffer data, OutputStream output_string) throws IOException {
+		if (decoding_in_place_ && start_decoding_was_called_) {
+			LOGGER.error("DecodeChunk() with an OutputStream called after StartDecoding() with an output buffer or file");
+			Reset();
+			return false;
+		}
+		return DecodeChunkInternal(data, new OutputStreamSink(output_string), false);
+	}
+
+	/**
+	 * Decodes data and passes the target to sink as it is decoded, window by
+	 * window, without copying it: see DecodedDataSink.  Exceptions thrown by
+	 * sink are passed on to the caller.
+	 */
+	public boolean DecodeChunk(byte[] data, int offset, int len, DecodedDataSink sink) throws IOException {
+		return DecodeChunk(ByteBuffer.wrap(data, offset, len), sink);
+	}
+
+	/**
+	 * Like DecodeChunk(byte[], int, int, DecodedDataSink), for the remaining
+	 * bytes of data, whose position is moved to its limit as in
+	 * DecodeChunk(ByteBuffer, OutputStream).
+	 */
+	public boolean DecodeChunk(ByteBuffer data, DecodedDataSink sink) throws IOException {
+		if (sink == null) {
+			throw new NullPointerException();
+		}
+		if (decoding_in_place_ && start_decoding_was_called_) {
+			LOGGER.error("DecodeChunk() with a DecodedDataSink called after StartDecoding() with an output buffer or file");
+			Reset();
+			return false;
+		}
+		return DecodeChunkInternal(data, sink, true);
+	}
+
+	/**
+	 * Decodes data into the output buffer or file given to StartDecoding(),
+	 * and advances its position past the target data decoded so far.  Only
+	 * writing to an output file can throw IOException.
+	 */
+	public boolean DecodeChunk(byte[] data, int offset, int len) throws IOException {
+		if (!decoding_in_place_ && start_decoding_was_called_) {
+			LOGGER.error("DecodeChunk() without an OutputStream called after StartDecoding() without an output buffer or file");
+			Reset();
+			return false;
+		}
+		return DecodeChunkInternal(ByteBuffer.wrap(data, offset, len), null, false);
+	}
+
+	private boolean DecodeChunkInternal(ByteBuffer data, DecodedDataSink output_sink,
+			boolean output_windows) throws IOException {
 		if (!start_decoding_was_called_) {
 			LOGGER.error("DecodeChunk() called without StartDecoding()");
 			Reset();
 			return false;
 		}
-        // TODO: there's a lot of room for optimization here
+		output_sink_ = output_sink;
+		output_windows_ = output_windows;
+		try {
+			return DecodeChunkInternal(data);
+		} finally {
+			output_sink_ = null;
+		}
+	}
+
+	private boolean DecodeChunkInternal(ByteBuffer data) throws IOException {
 		IoBuffer parseable_chunk;
-		if (unparsed_bytes_.remaining() > 0) {
-            parseable_chunk = IoBuffer.allocate(unparsed_bytes_.remaining() + len);
-            parseable_chunk.put(unparsed_bytes_);
-            parseable_chunk.put(data, offset, len);
-            parseable_chunk.flip();
-            unparsed_bytes_ = parseable_chunk.duplicate();
+		if (unparsed_bytes_.hasRemaining()) {
+			AppendUnparsedBytes(data);
+			parseable_chunk = unparsed_bytes_;
 		} else {
-			parseable_chunk = IoBuffer.wrap(data, offset, len);
+			// Parse the caller's data in place; only what is left over is
+			// copied, by KeepUnparsedBytes().
+			parseable_chunk = IoBuffer.wrap(data.slice());
 		}
+		data.position(data.limit());
 
 		int result = ReadDeltaFileHeader(parseable_chunk);
 		if (RESULT_SUCCESS == result) {
@@ -171,6 +392,10 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
 				if (RESULT_SUCCESS != result) {
 					break;
 				}
+				if (output_windows_) {
+					AppendNewOutputText();
+					output_sink_.EndWindow();
+				}
 				if (ReachedPlannedTargetFileSize()) {
 					// Found exactly the length we expected.  Stop decoding.
 					break;
@@ -179,7 +404,7 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
 					// VCD_TARGET will never be used to reference target data before the
 					// start of the current window, so flush and clear the contents of
 					// decoded_target_.
-					FlushDecodedTarget(output_string);
+					FlushDecodedTarget();
 				}
 			}
 		}
@@ -188,11 +413,47 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
 			return false;
 		}
 
-        unparsed_bytes_ = parseable_chunk;
-		AppendNewOutputText(output_string);
+		KeepUnparsedBytes(parseable_chunk);
+		AppendNewOutputText();
 		return true;
 	}
 
+	// Keeps the bytes of parseable_chunk that were not parsed for the next
+	// call to DecodeChunk().  Unless parseable_chunk is unparsed_bytes_ itself,
+	// they are copied, as the caller may reuse its array for the next chunk.
+	private void KeepUnparsedBytes(IoBuffer parseable_chunk) {
+		if (parseable_chunk != unparsed_bytes_) {
+			AppendUnparsedBytes(parseable_chunk.buf());
+		}
+	}
+
+	// Appends the remaining bytes of data to unparsed_bytes_, without changing
+	// the position of data.  When there is
+	// no room after its limit, the unparsed bytes are first moved to the start
+	// of the buffer if that leaves it at most half full, or else to a new
+	// buffer of at least twice the size.  Each input byte is then copied only a
+	// few times on average, however small the chunks that a window arrives
+	// in, instead of once per chunk.
+	private void AppendUnparsedBytes(ByteBuffer data) {
+		final int len = data.remaining();
+		final int remaining = unparsed_bytes_.remaining();
+		if (remaining == 0) {
+			unparsed_bytes_.clear().limit(0);
+		}
+		if (unparsed_bytes_.capacity() - unparsed_bytes_.limit() < len) {
+			final int required = remaining + len;
+			final byte[] array = (required <= unparsed_bytes_.capacity() / 2)
+					? unparsed_bytes_.array()
+					: new byte[Math.max(required, unparsed_bytes_.capacity() * 2)];
+			System.arraycopy(unparsed_bytes_.array(), unparsed_bytes_.arrayOffset() + unparsed_bytes_.position(),
+					array, 0, remaining);
+			unparsed_bytes_ = IoBuffer.wrap(array, 0, remaining);
+		}
+		final int end = unparsed_bytes_.limit();
+		unparsed_bytes_.limit(end + len);
+		data.duplicate().get(unparsed_bytes_.array(), unparsed_bytes_.arrayOffset() + end, len);
+	}
+
 	public boolean FinishDecoding() {
 		boolean success = true;
 		if (!start_decoding_was_called_) {
@@ -229,7 +490,22 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
 	// standard and is only available when the version code 'S' is specified.
 	public boolean AllowChecksum() { return vcdiff_version_code_ == 'S'; }
 
+	// If true, the checksums described in AllowChecksum() are CRC-32C rather
+	// than Adler32 checksums.  This is selected by the bit VCD_CRC32C in the
+	// Hdr_Indicator of an 'S' format delta file, and applies to all its windows.
+	public boolean UseCrc32cChecksum() {
+		return AllowChecksum() && (hdr_indicator_ & VCD_CRC32C) != 0;
+	}
+
 	public boolean SetMaximumTargetFileSize(int new_maximum_target_file_size) {
+		return SetMaximumTargetFileSize((long) new_maximum_target_file_size);
+	}
+
+	/**
+	 * Like SetMaximumTargetFileSize(int), but also accepts sizes larger than
+	 * Integer.MAX_VALUE bytes, for targets decoded into a FileChannel.
+	 */
+	public boolean SetMaximumTargetFileSize(long new_maximum_target_file_size) {
 		maximum_target_file_size_ = new_maximum_target_file_size;
 		return true;
 	}
@@ -292,7 +568,7 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
 			// but the addition might cause an integer overflow if target_bytes_to_add
 			// is very large.  So it is better to check target_bytes_to_add against
 			// the remaining planned target bytes.
-			int remaining_planned_target_file_size =
+			long remaining_planned_target_file_size =
 				planned_target_file_size_ - total_of_target_window_sizes_;
 			if (window_size > remaining_planned_target_file_size) {
 				LOGGER.error("Length of target window ({} bytes) plus previous windows ({} bytes) would exceed planned size of {} bytes",
@@ -300,7 +576,7 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
 				return true;
 			}
 		}
-		int remaining_maximum_target_bytes = maximum_target_file_size_ - total_of_target_window_sizes_;
+		long remaining_maximum_target_bytes = maximum_target_file_size_ - total_of_target_window_sizes_;
 		if (window_size > remaining_maximum_target_bytes) {
 			LOGGER.error("Length of target window ({} bytes) plus previous windows ({} bytes) would exceed maximum target file size of {} bytes",
                     window_size, total_of_target_window_sizes_, maximum_target_file_size_);
@@ -347,13 +623,14 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
 		}
 	}
 
-	public byte[] dictionary_ptr() { return dictionary_ptr_; }
+	// Returns the dictionary, with its position at its first byte.
+	public ByteBuffer dictionary() { return dictionary_.duplicate(); }
 
-	public int dictionary_size() { return dictionary_ptr_.length; }
+	public int dictionary_size() { return dictionary_.limit(); }
 
 	public VCDiffAddressCache addr_cache() { return addr_cache_; }
 
-	DecoratedByteArrayOutputStream decoded_target() { return decoded_target_; }
+	DecodedTarget decoded_target() { return decoded_target_; }
 
 	public boolean allow_vcd_target() { return allow_vcd_target_; }
 
@@ -365,6 +642,21 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
 		allow_vcd_target_ = allow_vcd_target;
 	}
 
+	/**
+	 * Makes DecodeChunk() output decoded data as soon as flush_threshold bytes
+	 * of it are waiting, after the instruction that decoded them, instead of
+	 * at the end of each window (for a DecodedDataSink) or of each call (for
+	 * an OutputStream).  1 outputs the data of every instruction; 0, the
+	 * default, turns this off.  Data output early has not had its window's
+	 * checksum verified yet.
+	 */
+	public void SetFlushThreshold(int flush_threshold) {
+		if (flush_threshold < 0) {
+			throw new IllegalArgumentException("Flush threshold " + flush_threshold + " is negative");
+		}
+		flush_threshold_ = flush_threshold;
+	}
+
 	// Reads the VCDiff delta file header section as described in RFC section 4.1,
 	// except the custom code table data.  Returns RESULT_ERROR if an error
 	// occurred, or RESULT_END_OF_DATA if the end of available data was reached
@@ -440,14 +732,16 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
 			}
 			if (data_size < DeltaFileHeader.SERIALIZED_SIZE) return RESULT_END_OF_DATA;
 		}
+		hdr_indicator_ = header.hdr_indicator;
 		// Secondary compressor not supported.
 		if ((header.hdr_indicator & VCD_DECOMPRESS) != 0) {
 			LOGGER.error("Secondary compression is not supported");
 			return RESULT_ERROR;
 		}
 		if ((header.hdr_indicator & VCD_CODETABLE) != 0) {
-			int bytes_parsed = InitCustomCodeTable(data.array(), data.arrayOffset() + data.position() + DeltaFileHeader.SERIALIZED_SIZE,
-					data.remaining() - DeltaFileHeader.SERIALIZED_SIZE);
+			final ByteBuffer cache_sizes = data.buf().duplicate();
+			cache_sizes.position(cache_sizes.position() + DeltaFileHeader.SERIALIZED_SIZE);
+			int bytes_parsed = InitCustomCodeTable(cache_sizes);
 			switch (bytes_parsed) {
 			case RESULT_ERROR:
 				return RESULT_ERROR;
@@ -474,15 +768,15 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
 	// custom code table in ReadCustomCodeTable().  Returns RESULT_ERROR if an
 	// error occurred, or RESULT_END_OF_DATA if the end of available data was
 	// reached before the custom cache sizes could be read.  Otherwise, returns
-	// the number of bytes read.
+	// the number of bytes read from the remaining bytes of data.
 	//
-	private int InitCustomCodeTable(byte[] data_start, int offset, int length) {
+	private int InitCustomCodeTable(ByteBuffer data) {
 		// A custom code table is being specified.  Parse the variable-length
 		// cache sizes and begin parsing the encoded custom code table.
 		Integer near_cache_size;
 		Integer same_cache_size;
 
-		VCDiffHeaderParser header_parser = new VCDiffHeaderParser(ByteBuffer.wrap(data_start, offset, length));
+		VCDiffHeaderParser header_parser = new VCDiffHeaderParser(data.slice());
 		if ((near_cache_size = header_parser.ParseInt32("size of near cache")) == null) {
 			LOGGER.warn("Failed to parse size of near cache");
 			return header_parser.GetResult();
@@ -529,15 +823,14 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
 		if (custom_code_table_decoder_ == null) {
 			return RESULT_SUCCESS;
 		}
-		if (custom_code_table_ != null) {
+		if (custom_code_table_ == null) {
 			LOGGER.error("Internal error:  custom_code_table_decoder_ is set, but custom_code_table_ is NULL");
 			return RESULT_ERROR;
 		}
 
 		boolean rc = false;
 		try {
-			rc = custom_code_table_decoder_.DecodeChunk(data.array(),
-					data.arrayOffset() + data.position(), data.remaining(), custom_code_table_string_);
+			rc = custom_code_table_decoder_.DecodeChunk(data.buf(), custom_code_table_string_);
 		} catch (IOException e) {
 			LOGGER.error("Failed to write to custom_code_table_string_.", e);
 		}
@@ -568,40 +861,51 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
 		return RESULT_SUCCESS;
 	}
 
-	// Called after the decoder exhausts all input data.  This function
-	// copies from decoded_target_ into output_string all the data that
-	// has not yet been output.  It sets decoded_target_output_position_
-	// to mark the start of the next data that needs to be output.
-	private void AppendNewOutputText(OutputStream output_string) throws IOException {
-		ByteBuffer decoded_target_buffer = decoded_target_.toByteBuffer();
-		decoded_target_buffer.position(decoded_target_output_position_);
+	// Called by delta_window_ once it has read the header of a target window
+	// of window_size bytes, and added it with AddToTotalTargetWindowSize().
+	void BeginTargetWindow(int window_size) throws IOException {
+		if (output_windows_) {
+			output_sink_.BeginWindow(total_of_target_window_sizes_ - window_size, window_size);
+		}
+	}
 
-        // TODO: optimize
-        while (decoded_target_buffer.hasRemaining()) {
-            output_string.write(decoded_target_buffer.get());
-        }
+	// Called by delta_window_ after each instruction.  Passes the data decoded
+	// so far to output_sink_ if at least flush_threshold_ bytes of it have not
+	// been output.
+	void OutputIfFlushThresholdReached() throws IOException {
+		if (flush_threshold_ > 0 && output_sink_ != null
+				&& decoded_target_.length() - decoded_target_output_position_ >= flush_threshold_) {
+			AppendNewOutputText();
+		}
+	}
 
-		decoded_target_output_position_ = decoded_target_buffer.limit();
+	// Called after the decoder exhausts all input data, and at the end of each
+	// window or when the flush threshold is reached.  This function passes
+	// to output_sink_ all the data in decoded_target_ that has not yet been
+	// output.  It sets decoded_target_output_position_ to mark the start of
+	// the next data that needs to be output.
+	private void AppendNewOutputText() throws IOException {
+		final long size = decoded_target_.length() - decoded_target_output_position_;
+		if (size > 0) {
+			decoded_target_.output(output_sink_, decoded_target_output_position_, size);
+		}
+		decoded_target_output_position_ = decoded_target_.length();
 	}
 
-	// Appends to output_string the portion of decoded_target_ that has
-	// not yet been output, then clears decoded_target_.  This function is
-	// called after each complete target window has been decoded if
-	// allow_vcd_target is false.  In that case, there is no need to retain
-	// target data from any window except the current window.
-	private void FlushDecodedTarget(OutputStream output_string) throws IOException {
-        output_string.write(
-                decoded_target_.getBuffer(),
-                decoded_target_output_position_,
-                decoded_target_.size() - decoded_target_output_position_
-        );
+	// Outputs the portion of decoded_target_ that has not yet been output,
+	// then clears decoded_target_.  This function is called after each
+	// complete target window has been decoded if allow_vcd_target is false.
+	// In that case, there is no need to retain target data from any window
+	// except the current window.
+	private void FlushDecodedTarget() throws IOException {
+		AppendNewOutputText();
 
 		decoded_target_.reset();
 		delta_window_.set_target_window_start_pos(0);
 		decoded_target_output_position_ = 0;
 	}
 
-	protected static class DecoratedByteArrayOutputStream extends ByteArrayOutputStream {
+	protected static class DecoratedByteArrayOutputStream extends ByteArrayOutputStream implements DecodedTarget {
 		public DecoratedByteArrayOutputStream() {
 			super();
 		}
@@ -617,5 +921,100 @@ public class VCDiffStreamingDecoderImpl implements VCDiffStreamingDecoder {
         public byte[] getBuffer() {
             return buf;
         }
+
+		// The DecodedTarget methods below append decoded data with bulk
+		// copies.  They are not synchronized, as the decoder that owns this
+		// stream is not threadsafe.
+
+		public long length() {
+			return count;
+		}
+
+		// Called once per target window with the advertised window length, so
+		// that decoding the window does not reallocate the buffer.  A byte
+		// array cannot hold more than Integer.MAX_VALUE bytes.
+		public boolean reserve(long capacity) {
+			if (capacity > Integer.MAX_VALUE) {
+				return false;
+			}
+			grow((int) capacity);
+			return true;
+		}
+
+		// Grows the buffer, if necessary, so that it holds at least capacity
+		// bytes.
+		private void grow(int capacity) {
+			if (capacity > buf.length) {
+				final int doubled = buf.length << 1;
+				buf = Arrays.copyOf(buf, (doubled > capacity) ? doubled : capacity);
+			}
+		}
+
+		public void append(ByteBuffer src, int size) {
+			grow(count + size);
+			src.get(buf, count, size);
+			count += size;
+		}
+
+		public void copyFrom(ByteBuffer src, int index, int size) {
+			grow(count + size);
+			if (src.hasArray()) {
+				System.arraycopy(src.array(), src.arrayOffset() + index, buf, count, size);
+			} else {
+				ByteBuffer from = src.duplicate();
+				from.position(index);
+				from.get(buf, count, size);
+			}
+			count += size;
+		}
+
+		public void fill(byte b, int size) {
+			grow(count + size);
+			Arrays.fill(buf, count, count + size, b);
+			count += size;
+		}
+
+		public void copyWithin(long position, int size) {
+			final int from = (int) position;
+			grow(count + size);
+			while (size > 0) {
+				final int block_size = Math.min(size, count - from);
+				System.arraycopy(buf, from, buf, count, block_size);
+				count += block_size;
+				size -= block_size;
+			}
+		}
+
+		public ByteBuffer segment(long position, int length) {
+			return ByteBuffer.wrap(buf, (int) position, length).slice();
+		}
+
+		public void updateChecksum(Checksum checksum, long start, int size) {
+			checksum.update(buf, (int) start, size);
+		}
+
+		public void output(DecodedDataSink sink, long start, long size) throws IOException {
+			sink.Output(ByteBuffer.wrap(buf, (int) start, (int) size));
+		}
+	}
+
+	// Adapts the OutputStream given to DecodeChunk() to a DecodedDataSink.
+	private static final class OutputStreamSink implements DecodedDataSink {
+		private final OutputStream out;
+
+		OutputStreamSink(OutputStream out) {
+			this.out = out;
+		}
+
+		public void BeginWindow(long target_position, int window_length) {
+		}
+
+		public void Output(ByteBuffer data) throws IOException {
+			// The data always comes from a DecoratedByteArrayOutputStream.
+			out.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+		}
+
+		public void EndWindow() {
+		}
 	}
 }
@@ -0,0 +1,61 @@
+package com.googlecode.jvcdiff.google;
+
+import com.googlecode.jvcdiff.codec.VCDiffStreamingDecoderImpl;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+
+/**
+ * The VCDiffStreamingDecoder of this package, which takes the dictionary and
+ * the delta file as ByteBuffers.  They may be heap, direct or read-only
+ * buffers, and are read where they are, without being copied to a byte
+ * array first.
+ *
+ * The dictionary is the remaining bytes of the buffer given to
+ * StartDecoding(); its position is not changed, and its contents must not
+ * change until FinishDecoding().  DecodeChunk() consumes all the remaining
+ * bytes of data, keeping any it cannot decode yet for the next call, so the
+ * buffer may be reused or returned to a pool as soon as it returns.
+ *
+ * The decoding is done by a codec.VCDiffStreamingDecoderImpl.
+ *
+ * NOT threadsafe.
+ */
+public class VCDiffByteBufferStreamingDecoder implements VCDiffStreamingDecoder {
+    private static final Logger LOGGER = LoggerFactory.getLogger(VCDiffByteBufferStreamingDecoder.class);
+
+    private final VCDiffStreamingDecoderImpl impl_ = new VCDiffStreamingDecoderImpl();
+
+    public void StartDecoding(ByteBuffer dictionary) {
+        impl_.StartDecoding(dictionary);
+    }
+
+    public boolean DecodeChunk(ByteBuffer data, OutputStream out) {
+        try {
+            return impl_.DecodeChunk(data, out);
+        } catch (IOException e) {
+            LOGGER.error("Failed to write the decoded target data", e);
+            impl_.Reset();  // Don't allow further DecodeChunk calls
+            return false;
+        }
+    }
+
+    public boolean FinishDecoding() {
+        return impl_.FinishDecoding();
+    }
+
+    public boolean SetMaximumTargetFileSize(int new_maximum_target_file_size) {
+        return impl_.SetMaximumTargetFileSize(new_maximum_target_file_size);
+    }
+
+    public boolean SetMaximumTargetWindowSize(int new_maximum_target_window_size) {
+        return impl_.SetMaximumTargetWindowSize(new_maximum_target_window_size);
+    }
+
+    public void SetAllowVcdTarget(boolean allow_vcd_target) {
+        impl_.SetAllowVcdTarget(allow_vcd_target);
+    }
+}
@@ -0,0 +1,162 @@
+package com.googlecode.jvcdiff;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class BlockHashIndexTest {
+
+    private byte[] dictionary_;
+    private byte[] target_;
+    private File index_file_;
+
+    @Before
+    public void setUp() throws IOException {
+        Random random = new Random(7);
+        // Few distinct symbols, so that there are long hash chains.
+        dictionary_ = new byte[100003];
+        for (int i = 0; i < dictionary_.length; i++) {
+            dictionary_[i] = (byte) ('a' + random.nextInt(4));
+        }
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        for (int i = 0; i < 200; i++) {
+            int start = random.nextInt(dictionary_.length - 500);
+            target.write(dictionary_, start, 20 + random.nextInt(480));
+            byte[] noise = new byte[random.nextInt(50)];
+            random.nextBytes(noise);
+            target.write(noise, 0, noise.length);
+        }
+        target_ = target.toByteArray();
+        index_file_ = File.createTempFile("blockhash", ".idx");
+    }
+
+    @After
+    public void tearDown() {
+        index_file_.delete();
+    }
+
+    private static ByteBuffer MapDictionary(byte[] dictionary) throws IOException {
+        File file = File.createTempFile("dictionary", ".bin");
+        file.deleteOnExit();
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.write(dictionary);
+            return raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, dictionary.length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static byte[] Encode(VCDiffEngine engine, byte[] target) throws IOException {
+        VCDiffCodeTableWriter coder = new VCDiffCodeTableWriter(false);
+        coder.Init(engine.dictionary_size());
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        engine.Encode(ByteBuffer.wrap(target), true, delta, coder);
+        return delta.toByteArray();
+    }
+
+    @Test
+    public void LoadedHashFindsSameMatches() throws IOException {
+        BlockHash built = BlockHash.CreateDictionaryHash(dictionary_);
+        BlockHashIndex.Write(built, index_file_);
+        BlockHash loaded = BlockHashIndex.Load(index_file_, MapDictionary(dictionary_));
+
+        RollingHash hasher = new RollingHash(BlockHash.kBlockSize);
+        for (int i = 0; i + BlockHash.kBlockSize <= target_.length; i += 7) {
+            int hash_value = (int) hasher.Hash(target_, i, BlockHash.kBlockSize);
+            BlockHash.Match expected = new BlockHash.Match();
+            BlockHash.Match actual = new BlockHash.Match();
+            built.FindBestMatch(hash_value, target_, i, target_, 0, expected);
+            loaded.FindBestMatch(hash_value, target_, i, target_, 0, actual);
+            assertEquals(expected.size(), actual.size());
+            assertEquals(expected.source_offset(), actual.source_offset());
+            assertEquals(expected.target_offset(), actual.target_offset());
+        }
+        assertEquals(0, loaded.TableMemoryUsage());
+    }
+
+    @Test
+    public void EngineWithLoadedHashProducesSameDelta() throws IOException {
+        VCDiffEngine built = new VCDiffEngine(dictionary_);
+        BlockHashIndex.Write(BlockHash.CreateDictionaryHash(dictionary_), index_file_);
+
+        ByteBuffer mapped = MapDictionary(dictionary_);
+        VCDiffEngine loaded = new VCDiffEngine(mapped, BlockHashIndex.Load(index_file_, mapped));
+        assertEquals(dictionary_.length, loaded.dictionary_size());
+        assertEquals(0, loaded.MemoryUsage());
+        assertArrayEquals(Encode(built, target_), Encode(loaded, target_));
+    }
+
+    @Test
+    public void HeapDictionaryCanBeLoaded() throws IOException {
+        BlockHashIndex.Write(BlockHash.CreateDictionaryHash(dictionary_), index_file_);
+        ByteBuffer dictionary = ByteBuffer.wrap(dictionary_);
+        VCDiffEngine loaded = new VCDiffEngine(dictionary, BlockHashIndex.Load(index_file_, dictionary));
+        assertArrayEquals(Encode(new VCDiffEngine(dictionary_), target_), Encode(loaded, target_));
+    }
+
+    @Test(expected = IOException.class)
+    public void DifferentDictionaryIsRejected() throws IOException {
+        BlockHashIndex.Write(BlockHash.CreateDictionaryHash(dictionary_), index_file_);
+        byte[] other = dictionary_.clone();
+        other[other.length / 2] ^= 1;
+        BlockHashIndex.Load(index_file_, ByteBuffer.wrap(other));
+    }
+
+    @Test(expected = IOException.class)
+    public void DifferentDictionarySizeIsRejected() throws IOException {
+        BlockHashIndex.Write(BlockHash.CreateDictionaryHash(dictionary_), index_file_);
+        BlockHashIndex.Load(index_file_, ByteBuffer.wrap(dictionary_, 0, dictionary_.length - 1));
+    }
+
+    @Test(expected = IOException.class)
+    public void TruncatedFileIsRejected() throws IOException {
+        BlockHashIndex.Write(BlockHash.CreateDictionaryHash(dictionary_), index_file_);
+        RandomAccessFile raf = new RandomAccessFile(index_file_, "rw");
+        try {
+            raf.setLength(raf.length() - 4);
+        } finally {
+            raf.close();
+        }
+        BlockHashIndex.Load(index_file_, ByteBuffer.wrap(dictionary_));
+    }
+
+    @Test
+    public void UnknownVersionIsRejected() throws IOException {
+        BlockHashIndex.Write(BlockHash.CreateDictionaryHash(dictionary_), index_file_);
+        RandomAccessFile raf = new RandomAccessFile(index_file_, "rw");
+        try {
+            raf.seek(4);
+            raf.write(BlockHashIndex.kVersion + 1);
+        } finally {
+            raf.close();
+        }
+        try {
+            BlockHashIndex.Load(index_file_, ByteBuffer.wrap(dictionary_));
+            fail();
+        } catch (IOException e) {
+            assertTrue(e.getMessage().contains("version"));
+        }
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void TargetHashCannotBeWritten() throws IOException {
+        BlockHashIndex.Write(BlockHash.CreateTargetHash(dictionary_, 0), index_file_);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void EngineRejectsHashForOtherDictionary() {
+        BlockHash hash = BlockHash.CreateDictionaryHash(dictionary_);
+        new VCDiffEngine(ByteBuffer.wrap(target_), hash);
+    }
+}
@@ -6,7 +6,9 @@ import org.junit.Test;
 
 import java.io.UnsupportedEncodingException;
 import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.Arrays;
+import java.util.Random;
 
 public class BlockHashTest {
     // Block numbers of certain characters within the sample text:
@@ -313,6 +315,137 @@ public class BlockHashTest {
         TimingTestForBlocksThatDifferAtByte(kBlockSize - 1);
     }
 
+    private static ByteBuffer LittleEndian(byte[] data) {
+        return ByteBuffer.wrap(data).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // The word-at-a-time versions of MatchingBytesToLeft and
+    // MatchingBytesToRight must give exactly the same results as the
+    // byte-at-a-time versions, wherever the mismatch falls within a word.
+    @Test
+    public void WordAtATimeMatchesByteAtATime() {
+        Random random = new Random(1);
+        byte[] source = new byte[300];
+        byte[] target = new byte[300];
+        for (int iteration = 0; iteration < 2000; iteration++) {
+            Arrays.fill(source, (byte) 'x');
+            Arrays.fill(target, (byte) 'x');
+            for (int mismatches = random.nextInt(4); mismatches > 0; mismatches--) {
+                target[random.nextInt(target.length)] = 'y';
+            }
+            int source_offset = 100 + random.nextInt(100);
+            int target_offset = 100 + random.nextInt(100);
+            int max_bytes = random.nextInt(100) - 1;
+            Assert.assertEquals(
+                    BlockHash.MatchingBytesToLeft(source, source_offset, target, target_offset, max_bytes),
+                    BlockHash.MatchingBytesToLeft(LittleEndian(source), source_offset, LittleEndian(target), target_offset, max_bytes));
+            Assert.assertEquals(
+                    BlockHash.MatchingBytesToRight(source, source_offset, target, target_offset, max_bytes),
+                    BlockHash.MatchingBytesToRight(LittleEndian(source), source_offset, LittleEndian(target), target_offset, max_bytes));
+        }
+    }
+
+    // Sliding a dictionary hash over a buffer whose contents move down must
+    // give the same tables as hashing the new contents from scratch.
+    @Test
+    public void SlideForwardMatchesNewHash() {
+        Random random = new Random(6);
+        byte[] source = new byte[1 << 18];
+        for (int i = 0; i < source.length; i++) {
+            source[i] = (byte) ('a' + random.nextInt(3));
+        }
+        byte[] segment = new byte[50000];
+        ByteBuffer segment_buffer = ByteBuffer.wrap(segment);
+        System.arraycopy(source, 0, segment, 0, segment.length);
+        BlockHash slid = BlockHash.CreateDictionaryHash(segment_buffer, VCDiffEngineParameters.kDefault);
+        int start = 0;
+        for (int shift : new int[] { kBlockSize, 6400, 49984, 50000, 12800 }) {
+            start += shift;
+            System.arraycopy(source, start, segment, 0, segment.length);
+            slid.SlideForward(shift);
+            BlockHash rebuilt = BlockHash.CreateDictionaryHash(segment_buffer, VCDiffEngineParameters.kDefault);
+            Assert.assertEquals(rebuilt.hash_table(), slid.hash_table());
+            Assert.assertEquals(rebuilt.next_block_table(), slid.next_block_table());
+            Assert.assertTrue(slid.IsFullyPopulated());
+        }
+    }
+
+    // A target hash grows its tables as blocks are added.  While it is being
+    // filled it must use less memory than a hash whose tables were sized for
+    // the whole target up front, and so may find different matches; once its
+    // tables have reached full size, it must find exactly the same matches.
+    @Test
+    public void GrowableTargetHashMatchesFixedSizeHash() {
+        Random random = new Random(5);
+        byte[] target = new byte[1 << 20];
+        for (int i = 0; i < target.length; i++) {
+            target[i] = (byte) ('a' + random.nextInt(3));
+        }
+        BlockHash growable = BlockHash.CreateTargetHash(target, 100);
+        BlockHash fixed = new BlockHash(target, 100, false);
+        long fixed_memory = fixed.TableMemoryUsage();
+
+        for (int end = 4096; end <= target.length; end += 4096) {
+            growable.AddAllBlocksThroughIndex(end);
+            fixed.AddAllBlocksThroughIndex(end);
+            if (end == target.length / 4) {
+                Assert.assertTrue(growable.TableMemoryUsage() < fixed_memory / 2);
+            }
+        }
+        Assert.assertEquals(fixed_memory, growable.TableMemoryUsage());
+
+        RollingHash hasher = new RollingHash(kBlockSize);
+        for (int i = 0; i + kBlockSize <= target.length; i += 997) {
+            int hash_value = (int) hasher.Hash(target, i, kBlockSize);
+            Match expected = new Match();
+            Match actual = new Match();
+            fixed.FindBestMatch(hash_value, target, i, target, 0, expected);
+            growable.FindBestMatch(hash_value, target, i, target, 0, actual);
+            Assert.assertEquals(expected.size(), actual.size());
+            Assert.assertEquals(expected.source_offset(), actual.source_offset());
+            Assert.assertEquals(expected.target_offset(), actual.target_offset());
+        }
+    }
+
+    @Test
+    public void WordAtATimeMatchExtensionTiming() {
+        byte[] compare_buffer_1_ = new byte[kTimingTestSize];
+        byte[] compare_buffer_2_ = new byte[kTimingTestSize];
+        Arrays.fill(compare_buffer_1_, (byte) 0xBE);
+        Arrays.fill(compare_buffer_2_, (byte) 0xBE);
+        ByteBuffer source = ByteBuffer.wrap(compare_buffer_1_);
+        ByteBuffer source_words = LittleEndian(compare_buffer_1_);
+        ByteBuffer target_words = LittleEndian(compare_buffer_2_);
+
+        System.out.printf("Extending matches over %d identical bytes:\n", kTimingTestSize);
+        for (int round = 0; round < 2; round++) {  // The first round warms up the JIT.
+            long byte_time = System.nanoTime();
+            for (int i = 0; i < kTimingTestIterations; ++i) {
+                Assert.assertEquals(kTimingTestSize, BlockHash.MatchingBytesToRight(
+                        source, 0, compare_buffer_2_, 0, kTimingTestSize));
+                Assert.assertEquals(kTimingTestSize, BlockHash.MatchingBytesToLeft(
+                        source, kTimingTestSize, compare_buffer_2_, kTimingTestSize, kTimingTestSize));
+            }
+            byte_time = System.nanoTime() - byte_time;
+
+            long word_time = System.nanoTime();
+            for (int i = 0; i < kTimingTestIterations; ++i) {
+                Assert.assertEquals(kTimingTestSize, BlockHash.MatchingBytesToRight(
+                        source_words, 0, target_words, 0, kTimingTestSize));
+                Assert.assertEquals(kTimingTestSize, BlockHash.MatchingBytesToLeft(
+                        source_words, kTimingTestSize, target_words, kTimingTestSize, kTimingTestSize));
+            }
+            word_time = System.nanoTime() - word_time;
+
+            if (round > 0) {
+                double bytes = 2.0 * kTimingTestSize * kTimingTestIterations;
+                System.out.printf("Byte at a time: %.3f ns per byte\n", byte_time / bytes);
+                System.out.printf("Word at a time: %.3f ns per byte (%.1fx)\n", word_time / bytes,
+                        (double) byte_time / word_time);
+            }
+        }
+    }
+
     @Test
     public void FindFailsBeforeHashing() {
         BlockHash th_ = BlockHash.CreateTargetHash(sample_text, 0);
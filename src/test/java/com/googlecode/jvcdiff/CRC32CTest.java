@@ -0,0 +1,59 @@
+package com.googlecode.jvcdiff;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class CRC32CTest {
+
+    private static long Crc(byte[] data) {
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, data.length);
+        return crc.getValue();
+    }
+
+    // The test vectors of RFC 3720, appendix B.4.
+    @Test
+    public void KnownValues() {
+        assertEquals(0x00000000L, Crc(new byte[0]));
+        assertEquals(0xE3069283L, Crc("123456789".getBytes()));
+        assertEquals(0x8A9136AAL, Crc(new byte[32]));
+        byte[] ones = new byte[32];
+        byte[] increasing = new byte[32];
+        byte[] decreasing = new byte[32];
+        for (int i = 0; i < 32; i++) {
+            ones[i] = (byte) 0xff;
+            increasing[i] = (byte) i;
+            decreasing[i] = (byte) (31 - i);
+        }
+        assertEquals(0x62A8AB43L, Crc(ones));
+        assertEquals(0x46DD794EL, Crc(increasing));
+        assertEquals(0x113FDB5CL, Crc(decreasing));
+    }
+
+    @Test
+    public void UpdateInPiecesMatchesWhole() {
+        Random random = new Random(1);
+        byte[] data = new byte[1000];
+        random.nextBytes(data);
+        long expected = Crc(data);
+        for (int piece : new int[] { 1, 3, 7, 8, 9, 64, 999 }) {
+            CRC32C crc = new CRC32C();
+            for (int i = 0; i < data.length; i += piece) {
+                if (piece == 1) {
+                    crc.update(data[i]);
+                } else {
+                    crc.update(data, i, Math.min(piece, data.length - i));
+                }
+            }
+            assertEquals(expected, crc.getValue());
+        }
+        CRC32C crc = new CRC32C();
+        crc.update(data, 0, 10);
+        crc.reset();
+        crc.update(data, 0, data.length);
+        assertEquals(expected, crc.getValue());
+    }
+}
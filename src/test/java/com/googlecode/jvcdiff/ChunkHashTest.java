@@ -0,0 +1,226 @@
+package com.googlecode.jvcdiff;
+
+import com.googlecode.jvcdiff.BlockHash.Match;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static com.googlecode.jvcdiff.VCDiffTestUtil.Decode;
+import static org.junit.Assert.*;
+
+public class ChunkHashTest {
+
+    private static final VCDiffEngineParameters kChunkParameters =
+            VCDiffEngineParameters.kDefault.WithMatchFinderType(MatchFinderType.CONTENT_DEFINED_CHUNKS);
+
+    private static List<Integer> Boundaries(ChunkHash hash, byte[] data) {
+        List<Integer> boundaries = new ArrayList<Integer>();
+        int pos = 0;
+        while (pos < data.length) {
+            pos = hash.NextBoundary(data, pos, data.length);
+            boundaries.add(pos);
+        }
+        return boundaries;
+    }
+
+    // Builds something like a disk image: 4 KB sectors of random data, text
+    // and zeros.
+    private static byte[] MakeImage(int size, Random random) {
+        byte[] image = new byte[size];
+        for (int sector = 0; sector < size; sector += 4096) {
+            int kind = random.nextInt(10);
+            int length = Math.min(4096, size - sector);
+            if (kind < 5) {
+                byte[] bytes = new byte[length];
+                random.nextBytes(bytes);
+                System.arraycopy(bytes, 0, image, sector, length);
+            } else if (kind < 8) {
+                for (int i = 0; i < length; i++) {
+                    image[sector + i] = (byte) ("abcdefgh ".charAt(random.nextInt(9)));
+                }
+            }
+        }
+        return image;
+    }
+
+    // Changes the image the way an update would: overwrites a few sectors
+    // with new data, and inserts and deletes a few short runs of bytes.
+    private static byte[] Modify(byte[] image, Random random) {
+        byte[] modified = image.clone();
+        for (int i = 0; i < image.length / 4096 / 20; i++) {
+            int sector = random.nextInt(image.length / 4096) * 4096;
+            byte[] bytes = new byte[4096];
+            random.nextBytes(bytes);
+            System.arraycopy(bytes, 0, modified, sector, bytes.length);
+        }
+        ByteArrayOutputStream result = new ByteArrayOutputStream(modified.length + 1024);
+        int pos = 0;
+        while (pos < modified.length) {
+            int run = Math.min(modified.length - pos, 100000 + random.nextInt(200000));
+            result.write(modified, pos, run);
+            pos += run;
+            if (random.nextBoolean()) {
+                byte[] inserted = new byte[1 + random.nextInt(100)];
+                random.nextBytes(inserted);
+                result.write(inserted, 0, inserted.length);
+            } else {
+                pos += random.nextInt(100);
+            }
+        }
+        return result.toByteArray();
+    }
+
+    private static byte[] Encode(VCDiffEngine engine, byte[] target, boolean look_for_target_matches)
+            throws IOException {
+        VCDiffStreamingEncoder<OutputStream> encoder = VCDiffStreamingEncoder.Create(engine,
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), look_for_target_matches, 1 << 24);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        assertTrue(encoder.StartEncoding(delta));
+        assertTrue(encoder.EncodeChunk(target, delta));
+        assertTrue(encoder.FinishEncoding(delta));
+        return delta.toByteArray();
+    }
+
+    @Test
+    public void ChunkSizesStayWithinLimits() {
+        byte[] data = MakeImage(1 << 20, new Random(1));
+        ChunkHash hash = ChunkHash.CreateDictionaryHash(ByteBuffer.wrap(data), kChunkParameters);
+        assertEquals(16 * ChunkHash.kChunkSizeFactor, hash.average_chunk_size());
+        List<Integer> boundaries = Boundaries(hash, data);
+        int previous = 0;
+        for (int i = 0; i < boundaries.size(); i++) {
+            int size = boundaries.get(i) - previous;
+            assertTrue(size <= hash.max_chunk_size());
+            if (i < boundaries.size() - 1) {
+                assertTrue(size > hash.min_chunk_size());
+            }
+            previous = boundaries.get(i);
+        }
+        assertEquals(boundaries.size(), hash.number_of_chunks());
+        // Runs of zeros are only cut at max_chunk_size(); everything else
+        // averages close to average_chunk_size().
+        assertTrue(boundaries.size() > data.length / (2 * hash.average_chunk_size()));
+    }
+
+    @Test
+    public void BoundariesResynchronizeAfterInsertion() {
+        Random random = new Random(2);
+        byte[] data = new byte[1 << 18];
+        random.nextBytes(data);
+        byte[] shifted = new byte[data.length + 37];
+        random.nextBytes(shifted);
+        System.arraycopy(data, 0, shifted, 37, data.length);
+
+        ChunkHash hash = ChunkHash.CreateDictionaryHash(ByteBuffer.wrap(data), kChunkParameters);
+        Set<Integer> original = new HashSet<Integer>(Boundaries(hash, data));
+        List<Integer> moved = Boundaries(hash, shifted);
+        int common = 0;
+        for (int boundary : moved) {
+            if (original.contains(boundary - 37)) {
+                common++;
+            }
+        }
+        // All but the first few chunks are cut at the same content.
+        assertTrue(common >= moved.size() - 3);
+    }
+
+    @Test
+    public void FindBestMatchExtendsChunkMatch() {
+        Random random = new Random(3);
+        byte[] dictionary = new byte[100000];
+        random.nextBytes(dictionary);
+        byte[] target = new byte[30000];
+        random.nextBytes(target);
+        System.arraycopy(dictionary, 40000, target, 5000, 20000);
+
+        ChunkHash hash = ChunkHash.CreateDictionaryHash(ByteBuffer.wrap(dictionary), kChunkParameters);
+        ByteBuffer target_words = ByteBuffer.wrap(target).order(ByteOrder.LITTLE_ENDIAN);
+        List<Integer> boundaries = Boundaries(hash, target);
+        Match best_match = new Match();
+        int chunk_start = 0;
+        for (int chunk_end : boundaries) {
+            hash.FindBestMatch(ChunkHash.Fingerprint(target_words, chunk_start, chunk_end - chunk_start),
+                    target_words, 1000, chunk_start, chunk_end - chunk_start, target.length, best_match);
+            chunk_start = chunk_end;
+        }
+        assertEquals(20000, best_match.size());
+        assertEquals(40000, best_match.source_offset());
+        assertEquals(4000, best_match.target_offset());
+    }
+
+    @Test
+    public void RoundTripWithChunkMatchFinder() throws IOException {
+        Random random = new Random(4);
+        byte[] dictionary = MakeImage(1 << 21, random);
+        byte[] target = Modify(dictionary, random);
+        VCDiffEngine engine = new VCDiffEngine(dictionary, kChunkParameters);
+        assertNull(engine.hashed_dictionary_);
+        assertArrayEquals(target, Decode(dictionary, Encode(engine, target, false)));
+        assertArrayEquals(target, Decode(dictionary, Encode(engine, target, true)));
+
+        // Short inputs and inputs without any match.
+        byte[] small = new byte[100];
+        random.nextBytes(small);
+        assertArrayEquals(small, Decode(dictionary, Encode(engine, small, true)));
+        assertArrayEquals(small, Decode(small, Encode(new VCDiffEngine(small, kChunkParameters), small, true)));
+    }
+
+    @Test
+    public void TargetMatchesFindRepeatedData() throws IOException {
+        Random random = new Random(5);
+        byte[] dictionary = new byte[10000];
+        random.nextBytes(dictionary);
+        byte[] repeated = new byte[50000];
+        random.nextBytes(repeated);
+        byte[] target = new byte[2 * repeated.length];
+        System.arraycopy(repeated, 0, target, 0, repeated.length);
+        System.arraycopy(repeated, 0, target, repeated.length, repeated.length);
+
+        VCDiffEngine engine = new VCDiffEngine(dictionary, kChunkParameters);
+        byte[] without = Encode(engine, target, false);
+        byte[] with = Encode(engine, target, true);
+        assertTrue(with.length < without.length * 6 / 10);
+        assertArrayEquals(target, Decode(dictionary, with));
+    }
+
+    // Compares the chunk match finder with the default one on a disk image
+    // that is mostly unchanged.  The delta may be somewhat larger, but the
+    // encoder must be much faster.
+    @Test
+    public void ChunkMatchFinderTiming() throws IOException {
+        Random random = new Random(6);
+        byte[] dictionary = MakeImage(1 << 23, random);
+        byte[] target = Modify(dictionary, random);
+
+        VCDiffEngine block_engine = new VCDiffEngine(dictionary);
+        VCDiffEngine chunk_engine = new VCDiffEngine(dictionary, kChunkParameters);
+        int block_delta = 0;
+        int chunk_delta = 0;
+        long best_block_time = Long.MAX_VALUE;
+        long best_chunk_time = Long.MAX_VALUE;
+        for (int i = 0; i < 3; i++) {
+            long time = System.nanoTime();
+            block_delta = Encode(block_engine, target, true).length;
+            best_block_time = Math.min(best_block_time, System.nanoTime() - time);
+            time = System.nanoTime();
+            chunk_delta = Encode(chunk_engine, target, true).length;
+            best_chunk_time = Math.min(best_chunk_time, System.nanoTime() - time);
+        }
+        System.out.printf("Encoding a %d-byte image:\n", target.length);
+        System.out.printf("Block hash: %d bytes, %.1f ms\n", block_delta, best_block_time / 1e6);
+        System.out.printf("Chunks:     %d bytes, %.1f ms (%.1fx)\n", chunk_delta, best_chunk_time / 1e6,
+                (double) best_block_time / best_chunk_time);
+
+        assertTrue(chunk_delta < block_delta * 11 / 10);
+    }
+}
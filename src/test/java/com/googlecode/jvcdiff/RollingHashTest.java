@@ -4,6 +4,9 @@ import com.googlecode.jvcdiff.RollingHash.RollingHashUtil;
 import org.junit.Assert;
 import org.junit.Test;
 
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
 import java.util.zip.CRC32;
 
@@ -36,7 +39,11 @@ public class RollingHashTest {
     }
 
     public void UpdateHashMatchesHashForBlockSize(int kBlockSize, Random random) {
-        RollingHash hasher = new RollingHash(kBlockSize);
+        UpdateHashMatchesHash(new RollingHash(kBlockSize), random);
+    }
+
+    public void UpdateHashMatchesHash(RollingHashFunction hasher, Random random) {
+        final int kBlockSize = hasher.window_size();
         for (int x = 0; x < kUpdateHashTestIterations; ++x) {
             int random_buffer_size = random.nextInt(kUpdateHashBlocks) + kBlockSize;
 
@@ -53,9 +60,77 @@ public class RollingHashTest {
                 // methods return the same hash value.
                 assertEquals(running_hash, hasher.Hash(buffer_, i + 1 - kBlockSize, buffer_.length - (i + 1 - kBlockSize)));
             }
+            assertEquals(hasher.Hash(buffer_, 0, buffer_.length), hasher.Hash(ByteBuffer.wrap(buffer_)));
         }
     }
 
+    // Text-like data: words from a small vocabulary separated by spaces, so
+    // that the byte values are few and their sums repeat often.
+    private static byte[] MakeText(int size, Random random) {
+        String[] words = new String[500];
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder word = new StringBuilder();
+            int length = 2 + random.nextInt(8);
+            for (int j = 0; j < length; j++) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = word.toString();
+        }
+        byte[] text = new byte[size];
+        int pos = 0;
+        while (pos < size) {
+            String word = words[random.nextInt(words.length)];
+            for (int j = 0; j < word.length() && pos < size; j++) {
+                text[pos++] = (byte) word.charAt(j);
+            }
+            if (pos < size) {
+                text[pos++] = ' ';
+            }
+        }
+        return text;
+    }
+
+    // Returns the fraction of blocks that BlockHash would put into a hash
+    // table bucket already used by a block with different contents; each of
+    // those costs FindBestMatch() a false probe.
+    private static double CollisionRate(RollingHashFunction hasher, byte[] data) {
+        final int block_size = hasher.window_size();
+        final int mask = BlockHash.CalcTableSize(data.length) - 1;
+        Map<Integer, String> buckets = new HashMap<Integer, String>();
+        int blocks = 0;
+        int collisions = 0;
+        for (int pos = 0; pos + block_size <= data.length; pos += block_size) {
+            int bucket = (int) hasher.Hash(data, pos, block_size) & mask;
+            String contents = new String(data, pos, block_size, java.nio.charset.StandardCharsets.ISO_8859_1);
+            String previous = buckets.get(bucket);
+            if (previous == null) {
+                buckets.put(bucket, contents);
+            } else if (!previous.equals(contents)) {
+                collisions++;
+            }
+            blocks++;
+        }
+        return (double) collisions / blocks;
+    }
+
+    // Returns the number of megabytes per second hashed by UpdateHash().
+    private static double UpdateHashThroughput(RollingHashFunction hasher, byte[] data) {
+        final int block_size = hasher.window_size();
+        long sink = 0;
+        long best = Long.MAX_VALUE;
+        for (int iter = 0; iter < 10; ++iter) {
+            long time = System.nanoTime();
+            long running_hash = hasher.Hash(data, 0, block_size);
+            for (int i = block_size; i < data.length; ++i) {
+                running_hash = hasher.UpdateHash(running_hash, data[i - block_size], data[i]);
+                sink += running_hash;
+            }
+            best = Math.min(best, System.nanoTime() - time);
+        }
+        Assert.assertTrue(sink != 1);  // keeps the loop from being optimized away
+        return (data.length / 1e6) / (Math.max(best, 1) / 1e9);
+    }
+
     private void RunTimingTestForBlockSize(int kBlockSize, Random random) {
         byte[] buffer = new byte[kUpdateHashBlocks + kLargestBlockSize];
         random.nextBytes(buffer);
@@ -169,6 +244,48 @@ public class RollingHashTest {
         UpdateHashMatchesHashForBlockSize(128, random);
     }
 
+    @Test
+    public void BuzHashUpdateHashMatchesHashFromScratch() {
+        Random random = new Random(1);
+
+        for (int block_size : new int[] { 2, 4, 8, 16, 32, 64, 128 }) {
+            UpdateHashMatchesHash(new BuzHash(block_size), random);
+        }
+    }
+
+    @Test
+    public void RollingHashTypesCreateTheirHashes() {
+        assertEquals(RollingHash.class, RollingHashType.RABIN_KARP.Create(16).getClass());
+        assertEquals(BuzHash.class, RollingHashType.BUZHASH.Create(16).getClass());
+        for (RollingHashType type : RollingHashType.values()) {
+            assertEquals(type, RollingHashType.ForId(type.id()));
+            assertEquals(32, type.Create(32).window_size());
+        }
+        Assert.assertNull(RollingHashType.ForId(-1));
+    }
+
+    // Compares the hash functions on 4 MB of text: the hash-chain collision
+    // rate of a dictionary hash table, and UpdateHash() throughput.  The low
+    // bits of the Rabin-Karp hash, which index the table, are little more than
+    // the sum of the bytes of the block, so on text Buzhash must collide less.
+    @Test
+    public void CompareRollingHashTypes() {
+        byte[] text = MakeText(1 << 22, new Random(5));
+        System.out.printf("block\ttype\tcollisions\tMB/s\n");
+        for (int block_size : new int[] { 8, 16, 32 }) {
+            double[] collision_rates = new double[RollingHashType.values().length];
+            for (RollingHashType type : RollingHashType.values()) {
+                RollingHashFunction hasher = type.Create(block_size);
+                double collision_rate = CollisionRate(hasher, text);
+                collision_rates[type.ordinal()] = collision_rate;
+                System.out.printf("%d\t%s\t%.4f\t%.1f\n", block_size, type, collision_rate,
+                        UpdateHashThroughput(hasher, text));
+            }
+            Assert.assertTrue(collision_rates[RollingHashType.BUZHASH.ordinal()]
+                    <= collision_rates[RollingHashType.RABIN_KARP.ordinal()]);
+        }
+    }
+
 
     @Test
     public void TimingTests() {
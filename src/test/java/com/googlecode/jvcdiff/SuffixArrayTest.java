@@ -0,0 +1,234 @@
+package com.googlecode.jvcdiff;
+
+import com.googlecode.jvcdiff.BlockHash.Match;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.EnumSet;
+import java.util.Random;
+
+import static com.googlecode.jvcdiff.VCDiffTestUtil.Decode;
+import static org.junit.Assert.*;
+
+public class SuffixArrayTest {
+
+    private static byte[] RandomBytes(Random random, int size, int alphabet) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) ('a' + random.nextInt(alphabet));
+        }
+        return data;
+    }
+
+    private static int CommonPrefix(byte[] a, int i, byte[] b, int j) {
+        int n = 0;
+        while (i + n < a.length && j + n < b.length && a[i + n] == b[j + n]) {
+            n++;
+        }
+        return n;
+    }
+
+    private static int[] NaiveSuffixArray(final byte[] data) {
+        Integer[] suffixes = new Integer[data.length];
+        for (int i = 0; i < data.length; i++) {
+            suffixes[i] = i;
+        }
+        Arrays.sort(suffixes, new Comparator<Integer>() {
+            public int compare(Integer x, Integer y) {
+                int n = CommonPrefix(data, x, data, y);
+                if (x + n == data.length) {
+                    return -1;
+                }
+                if (y + n == data.length) {
+                    return 1;
+                }
+                return (data[x + n] & 0xff) - (data[y + n] & 0xff);
+            }
+        });
+        int[] result = new int[data.length];
+        for (int i = 0; i < data.length; i++) {
+            result[i] = suffixes[i];
+        }
+        return result;
+    }
+
+    private static void CheckSuffixArray(byte[] data) {
+        int[] rank = new int[data.length];
+        int[] suffix_array = SuffixArray.BuildSuffixArray(ByteBuffer.wrap(data), data.length, rank);
+        assertArrayEquals(NaiveSuffixArray(data), suffix_array);
+        int[] lcp = SuffixArray.BuildLcpArray(ByteBuffer.wrap(data), data.length, suffix_array, rank);
+        for (int i = 0; i < data.length; i++) {
+            assertEquals(i, suffix_array[rank[i]]);
+            if (i > 0) {
+                assertEquals(CommonPrefix(data, suffix_array[i - 1], data, suffix_array[i]), lcp[i]);
+            }
+        }
+    }
+
+    @Test
+    public void SuffixArrayMatchesNaiveSort() {
+        Random random = new Random(1);
+        CheckSuffixArray(new byte[0]);
+        CheckSuffixArray(new byte[] { 'x' });
+        CheckSuffixArray("banana".getBytes());
+        CheckSuffixArray("aaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaaa".getBytes());
+        CheckSuffixArray("abababababababababababababababab".getBytes());
+        byte[] high_bytes = new byte[300];
+        random.nextBytes(high_bytes);
+        CheckSuffixArray(high_bytes);
+        for (int alphabet : new int[] { 1, 2, 4, 26 }) {
+            for (int size : new int[] { 2, 17, 1000 }) {
+                CheckSuffixArray(RandomBytes(random, size, alphabet));
+            }
+        }
+    }
+
+    @Test
+    public void FindBestMatchFindsLongestLowestMatch() {
+        Random random = new Random(2);
+        byte[] dictionary = RandomBytes(random, 3000, 3);
+        byte[] target = RandomBytes(random, 500, 3);
+        SuffixArray suffixes = new SuffixArray(ByteBuffer.wrap(dictionary),
+                VCDiffEngineParameters.ForMaximumCompression());
+        // The lowest offset is only guaranteed within max_matches_to_check
+        // equal matches, so check it where there are few of them.
+        for (int pos = 0; pos < target.length; pos++) {
+            int longest = 0;
+            int lowest = -1;
+            int count = 0;
+            for (int i = 0; i < dictionary.length; i++) {
+                int n = CommonPrefix(dictionary, i, target, pos);
+                if (n > longest) {
+                    longest = n;
+                    lowest = i;
+                    count = 1;
+                } else if (n == longest) {
+                    count++;
+                }
+            }
+            Match match = new Match();
+            suffixes.FindBestMatch(target, 0, pos, target.length, match);
+            assertEquals(longest, match.size());
+            assertEquals(pos, match.target_offset());
+            if (count <= 32) {
+                assertEquals(lowest, match.source_offset());
+            }
+            assertEquals(longest, CommonPrefix(dictionary, match.source_offset(), target, pos));
+        }
+    }
+
+    @Test
+    public void PreviousMatchFinderFindsLongestEarlierMatch() {
+        Random random = new Random(3);
+        byte[] window = RandomBytes(random, 2000, 2);
+        byte[] data = new byte[window.length + 10];
+        System.arraycopy(window, 0, data, 5, window.length);
+        SuffixArray.PreviousMatchFinder finder = new SuffixArray.PreviousMatchFinder(data, 5, 5 + window.length);
+        for (int pos = 0; pos < window.length; pos++) {
+            int longest = 0;
+            for (int i = 0; i < pos; i++) {
+                longest = Math.max(longest, CommonPrefix(window, i, window, pos));
+            }
+            Match match = new Match();
+            finder.FindBestMatch(5, 5 + pos, 1000, match);
+            assertEquals(longest, match.size());
+            if (longest > 0) {
+                assertTrue(match.source_offset() - 1000 < pos);
+                assertEquals(longest, CommonPrefix(window, match.source_offset() - 1000, window, pos));
+            }
+        }
+    }
+
+    private static byte[] Encode(VCDiffEngine engine, byte[] target) throws IOException {
+        return Encode(engine, target, 1 << 20);
+    }
+
+    private static byte[] Encode(VCDiffEngine engine, byte[] target, int window_size) throws IOException {
+        VCDiffStreamingEncoder<OutputStream> encoder = VCDiffStreamingEncoder.Create(engine,
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), true, window_size);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        assertTrue(encoder.StartEncoding(delta));
+        assertTrue(encoder.EncodeChunk(target, delta));
+        assertTrue(encoder.FinishEncoding(delta));
+        return delta.toByteArray();
+    }
+
+    // Text in which an edited copy of the dictionary changes one word in
+    // every few, so that most matches are shorter than the default minimum.
+    private static byte[][] MakeRelease(Random random) {
+        String[] words = new String[300];
+        for (int i = 0; i < words.length; i++) {
+            words[i] = new String(RandomBytes(random, 2 + random.nextInt(7), 26));
+        }
+        StringBuilder dictionary = new StringBuilder();
+        StringBuilder target = new StringBuilder();
+        for (int i = 0; i < 40000; i++) {
+            String word = words[random.nextInt(words.length)];
+            dictionary.append(word).append(' ');
+            target.append(random.nextInt(5) == 0 ? words[random.nextInt(words.length)] : word).append(' ');
+        }
+        return new byte[][] { dictionary.toString().getBytes(), target.toString().getBytes() };
+    }
+
+    @Test
+    public void MaximumCompressionRoundTrip() throws IOException {
+        Random random = new Random(4);
+        byte[][] release = MakeRelease(random);
+        byte[] dictionary = release[0];
+        byte[] target = release[1];
+
+        VCDiffEngine engine = new VCDiffEngine(dictionary, VCDiffEngineParameters.ForMaximumCompression());
+        long time = System.nanoTime();
+        byte[] delta = Encode(engine, target);
+        time = System.nanoTime() - time;
+        assertArrayEquals(target, Decode(dictionary, delta));
+
+        long default_time = System.nanoTime();
+        byte[] default_delta = Encode(new VCDiffEngine(dictionary), target);
+        default_time = System.nanoTime() - default_time;
+        System.out.printf("Delta of %d bytes of text:\n", target.length);
+        System.out.printf("Block hash:   %d bytes, %.1f ms\n", default_delta.length, default_time / 1e6);
+        System.out.printf("Suffix array: %d bytes, %.1f ms\n", delta.length, time / 1e6);
+        assertTrue(delta.length < default_delta.length * 9 / 10);
+
+        // Small and unmatched targets.
+        byte[] small = "abc".getBytes();
+        assertArrayEquals(small, Decode(dictionary, Encode(engine, small)));
+        byte[] other = new byte[5000];
+        random.nextBytes(other);
+        assertArrayEquals(other, Decode(dictionary, Encode(engine, other)));
+        byte[] repeated = RandomBytes(random, 10000, 1);
+        assertArrayEquals(repeated, Decode(dictionary, Encode(engine, repeated)));
+    }
+
+    // Every window after the first starts part way into the data passed to
+    // EncodeChunk(), so its target matches must be addressed from the start
+    // of the window, not of the data.
+    @Test
+    public void MaximumCompressionRoundTripInManyWindows() throws IOException {
+        Random random = new Random(5);
+        byte[][] release = MakeRelease(random);
+        byte[] dictionary = release[0];
+        byte[] target = Arrays.copyOf(release[1], 50000);
+        VCDiffEngineParameters parameters = VCDiffEngineParameters.ForMaximumCompression();
+        for (VCDiffEngineParameters each : new VCDiffEngineParameters[] {
+                parameters, parameters.WithCostAwareMatching(false) }) {
+            VCDiffEngine engine = new VCDiffEngine(dictionary, each);
+            assertArrayEquals(each.toString(), target, Decode(dictionary, Encode(engine, target, 1000)));
+        }
+
+        // A window that starts at a non-zero offset in its buffer.
+        VCDiffEngine engine = new VCDiffEngine(dictionary, parameters);
+        VCDiffCodeTableWriter coder = new VCDiffCodeTableWriter(false);
+        coder.Init(engine.dictionary_size());
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        coder.WriteHeader(delta, EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT));
+        engine.Encode(ByteBuffer.wrap(target, 700, 5000), true, delta, coder);
+        assertArrayEquals(Arrays.copyOfRange(target, 700, 5700), Decode(dictionary, delta.toByteArray()));
+    }
+}
@@ -527,4 +527,24 @@ public class VCDiffAddressCacheTest {
             assertEquals(0, large_address_stream.remaining());
         }
     }
+
+    @Test
+    public void FindModeDoesNotUpdateCache() {
+        VCDiffAddressCacheImpl cache = new VCDiffAddressCacheImpl();
+        VCDiffAddressCacheImpl copy = new VCDiffAddressCacheImpl();
+        cache.Init();
+        copy.Init();
+        Random random = new Random(1);
+        AtomicInteger found_addr = new AtomicInteger();
+        AtomicInteger encoded_addr = new AtomicInteger();
+        for (int i = 0; i < 10000; i++) {
+            int here_address = 1 + random.nextInt(1 << 20);
+            int address = random.nextBoolean() ? random.nextInt(here_address) : Math.max(0, here_address - 1 - random.nextInt(100));
+            short mode = cache.FindMode(address, here_address, found_addr);
+            assertEquals(mode, cache.FindMode(address, here_address, new AtomicInteger()));
+            assertEquals(mode, cache.EncodeAddress(address, here_address, encoded_addr));
+            assertEquals(encoded_addr.get(), found_addr.get());
+            assertEquals(mode, copy.EncodeAddress(address, here_address, encoded_addr));
+        }
+    }
 }
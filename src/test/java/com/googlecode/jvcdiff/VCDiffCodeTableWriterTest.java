@@ -11,6 +11,7 @@ import java.nio.charset.Charset;
 import static com.googlecode.jvcdiff.VCDiffCodeTableData.*;
 import static com.googlecode.jvcdiff.VCDiffCodeTableWriter.VCD_CHECKSUM;
 import static com.googlecode.jvcdiff.VCDiffCodeTableWriter.VCD_SOURCE;
+import static com.googlecode.jvcdiff.VCDiffCodeTableWriter.VCD_TARGET;
 import static org.junit.Assert.*;
 
 public class VCDiffCodeTableWriterTest {
@@ -131,6 +132,60 @@ public class VCDiffCodeTableWriterTest {
         }, out.toByteArray());
     }
 
+    @Test
+    public void StandardWriterEncodeAddWithSourceSegmentPosition() throws IOException {
+        standard_writer.Init(0x11);
+        standard_writer.SetSourceSegmentPosition(0x12345);
+        standard_writer.Add("foo".getBytes(US_ASCII), 0, 3);
+        final int window_size = standard_writer.getDeltaWindowSize();
+        standard_writer.Output(out);
+
+        byte[] expected = new byte[]{
+                VCD_SOURCE, // Win_Indicator: VCD_SOURCE (dictionary)
+                0x11,        // Source segment size: segment length
+                (byte) 0x84, (byte) 0xC6, 0x45,  // Source segment position: 0x12345
+                0x09,        // Length of the delta encoding
+                0x03,        // Size of the target window
+                0x00,        // Delta_indicator (no compression)
+                0x03,        // length of data for ADDs and RUNs
+                0x01,        // length of instructions section
+                0x00,        // length of addresses for COPYs
+                'f', 'o', 'o',
+                0x04,        // ADD(3) opcode
+        };
+        assertArrayEquals(expected, out.toByteArray());
+        assertEquals(expected.length, window_size);
+
+        // The position is kept for the next window.
+        out.reset();
+        standard_writer.Add("foo".getBytes(US_ASCII), 0, 3);
+        standard_writer.Output(out);
+        assertArrayEquals(expected, out.toByteArray());
+    }
+
+    @Test
+    public void StandardWriterEncodeAddFromTarget() throws IOException {
+        standard_writer.Init(0x11);
+        standard_writer.SetSourceSegmentFromTarget(true);
+        standard_writer.SetSourceSegmentPosition(0x22);
+        standard_writer.Add("foo".getBytes(US_ASCII), 0, 3);
+        standard_writer.Output(out);
+
+        assertArrayEquals(new byte[]{
+                VCD_TARGET, // Win_Indicator: VCD_TARGET (earlier target data)
+                0x11,        // Source segment size
+                0x22,        // Source segment position within the target
+                0x09,        // Length of the delta encoding
+                0x03,        // Size of the target window
+                0x00,        // Delta_indicator (no compression)
+                0x03,        // length of data for ADDs and RUNs
+                0x01,        // length of instructions section
+                0x00,        // length of addresses for COPYs
+                'f', 'o', 'o',
+                0x04,        // ADD(3) opcode
+        }, out.toByteArray());
+    }
+
     @Test
     public void ExerciseWriterEncodeAdd() throws IOException {
         exercise_writer.Init(0x11);
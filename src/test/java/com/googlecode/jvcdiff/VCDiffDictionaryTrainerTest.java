@@ -0,0 +1,156 @@
+package com.googlecode.jvcdiff;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class VCDiffDictionaryTrainerTest {
+
+    private static final VCDiffEngineParameters kParameters = VCDiffEngineParameters.ForBlockSize(8);
+
+    private static String RandomWord(Random random) {
+        StringBuilder word = new StringBuilder();
+        for (int length = 3 + random.nextInt(6); length > 0; length--) {
+            word.append((char) ('a' + random.nextInt(26)));
+        }
+        return word.toString();
+    }
+
+    // Pages of a web site: the same header and footer, one of a few
+    // navigation menus, some of a set of common phrases and some text that
+    // is unique to the page.
+    private static List<byte[]> MakePages(Random random, int pages) {
+        Random site = new Random(100);
+        StringBuilder header = new StringBuilder("<html><head><title>Site</title>");
+        for (int i = 0; i < 20; i++) {
+            header.append("<link rel=\"stylesheet\" href=\"/css/").append(RandomWord(site)).append(".css\">");
+        }
+        header.append("</head><body>");
+        String[] menus = new String[4];
+        for (int m = 0; m < menus.length; m++) {
+            StringBuilder menu = new StringBuilder("<ul class=\"menu\">");
+            for (int i = 0; i < 15; i++) {
+                menu.append("<li><a href=\"/").append(RandomWord(site)).append("\">")
+                        .append(RandomWord(site)).append("</a></li>");
+            }
+            menus[m] = menu.append("</ul>").toString();
+        }
+        String[] phrases = new String[50];
+        for (int i = 0; i < phrases.length; i++) {
+            phrases[i] = "<p class=\"note\">" + RandomWord(site) + " " + RandomWord(site) + " "
+                    + RandomWord(site) + " " + RandomWord(site) + "</p>";
+        }
+        String footer = "<div id=\"footer\">Copyright " + RandomWord(site) + " " + RandomWord(site)
+                + "</div><script src=\"/js/site.js\"></script></body></html>";
+
+        List<byte[]> result = new ArrayList<byte[]>();
+        for (int p = 0; p < pages; p++) {
+            StringBuilder page = new StringBuilder(header);
+            page.append(menus[random.nextInt(menus.length)]);
+            for (int i = 0; i < 30; i++) {
+                if (random.nextInt(3) == 0) {
+                    page.append(phrases[random.nextInt(phrases.length)]);
+                } else {
+                    page.append(RandomWord(random)).append(' ');
+                }
+            }
+            page.append(footer);
+            result.add(page.toString().getBytes());
+        }
+        return result;
+    }
+
+    private static boolean Contains(byte[] data, byte[] pattern) {
+        return new String(data).contains(new String(pattern));
+    }
+
+    @Test
+    public void DictionaryHoldsCommonContent() {
+        List<byte[]> samples = MakePages(new Random(1), 200);
+        byte[] dictionary = new VCDiffDictionaryTrainer(kParameters, 1 << 14).Train(samples);
+        assertTrue(dictionary.length > 0);
+        assertTrue(dictionary.length <= 1 << 14);
+        String text = new String(dictionary);
+        // The header is in every page, so it comes first.
+        assertTrue(text.startsWith("<html><head><title>Site</title>"));
+        assertTrue(text.contains("<script src=\"/js/site.js\"></script></body></html>"));
+        // Content is not repeated.
+        assertEquals(text.indexOf("<title>"), text.lastIndexOf("<title>"));
+    }
+
+    @Test
+    public void DictionarySizeIsBounded() {
+        List<byte[]> samples = MakePages(new Random(2), 100);
+        for (int size : new int[] { 100, 1000, 5000 }) {
+            byte[] dictionary = new VCDiffDictionaryTrainer(kParameters, size).Train(samples);
+            assertTrue(dictionary.length <= size);
+            assertTrue(dictionary.length > size / 2);
+        }
+    }
+
+    @Test
+    public void NoCommonContentGivesEmptyDictionary() {
+        Random random = new Random(3);
+        List<byte[]> samples = new ArrayList<byte[]>();
+        for (int i = 0; i < 10; i++) {
+            byte[] sample = new byte[1000];
+            random.nextBytes(sample);
+            samples.add(sample);
+        }
+        samples.add(new byte[3]);
+        assertEquals(0, new VCDiffDictionaryTrainer(kParameters, 1 << 14).Train(samples).length);
+        assertEquals(0, new VCDiffDictionaryTrainer(kParameters, 1 << 14)
+                .Train(Collections.<byte[]>emptyList()).length);
+    }
+
+    // A million blocks, whose 23-bit rolling hashes collide thousands of
+    // times, while no two blocks are equal.  With a minimum match size of
+    // one block, a single collision counted as common content would be a
+    // segment.
+    @Test
+    public void HashCollisionsAreNotCommonContent() {
+        List<byte[]> samples = new ArrayList<byte[]>();
+        for (int i = 0; i < 20; i++) {
+            samples.add(VCDiffTestUtil.RandomBytes(new Random(i), 50000));
+        }
+        VCDiffEngineParameters one_block = new VCDiffEngineParameters(8, 32, 16, 8);
+        assertEquals(0, new VCDiffDictionaryTrainer(one_block, 1 << 16).Train(samples).length);
+        assertEquals(0, new VCDiffDictionaryTrainer(VCDiffEngineParameters.kDefault, 1 << 16).Train(samples).length);
+    }
+
+    @Test
+    public void TrainedDictionaryCompressesHeldOutPages() throws IOException {
+        List<byte[]> samples = MakePages(new Random(4), 300);
+        List<byte[]> held_out = MakePages(new Random(5), 50);
+        int size = 1 << 14;
+        byte[] dictionary = new VCDiffDictionaryTrainer(kParameters, size).Train(samples);
+
+        // Compare with a dictionary made of the first few samples, which is
+        // what one would use without a trainer.
+        ByteArrayOutputStream naive = new ByteArrayOutputStream();
+        for (byte[] sample : samples) {
+            if (naive.size() + sample.length > size) {
+                break;
+            }
+            naive.write(sample, 0, sample.length);
+        }
+
+        VCDiffDictionaryTrainer.Evaluation trained = VCDiffDictionaryTrainer.Evaluate(dictionary, held_out, kParameters);
+        VCDiffDictionaryTrainer.Evaluation first_samples =
+                VCDiffDictionaryTrainer.Evaluate(naive.toByteArray(), held_out, kParameters);
+        VCDiffDictionaryTrainer.Print(trained, System.out);
+        System.out.printf("first samples as dictionary: %d bytes (%.1f%%)%n", first_samples.delta_bytes(),
+                100 * first_samples.compression_ratio());
+
+        assertEquals(trained.document_bytes(), first_samples.document_bytes());
+        assertTrue(trained.delta_bytes() < trained.baseline_delta_bytes() / 2);
+        assertTrue(trained.delta_bytes() < first_samples.delta_bytes());
+    }
+}
@@ -0,0 +1,69 @@
+package com.googlecode.jvcdiff;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class VCDiffEngineAllocationTest {
+
+    // Returns the number of bytes allocated by the current thread so far, or -1
+    // if the JVM cannot tell.
+    private static long AllocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean)) {
+            return -1;
+        }
+        com.sun.management.ThreadMXBean sun_bean = (com.sun.management.ThreadMXBean) bean;
+        if (!sun_bean.isThreadAllocatedMemorySupported() || !sun_bean.isThreadAllocatedMemoryEnabled()) {
+            return -1;
+        }
+        return sun_bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    // The encode loop visits every target position that is not covered by a
+    // COPY; none of those visits may allocate.  Only a few objects per window
+    // remain, so a 1 MB window must allocate far less than one object per
+    // position.
+    @Test
+    public void EncodeLoopDoesNotAllocatePerPosition() throws IOException {
+        Random random = new Random(3);
+        byte[] dictionary = new byte[1 << 16];
+        random.nextBytes(dictionary);
+        ByteArrayOutputStream target_stream = new ByteArrayOutputStream();
+        while (target_stream.size() < (1 << 20)) {
+            target_stream.write(dictionary, random.nextInt(dictionary.length - 1000), 1000);
+            byte[] noise = new byte[random.nextInt(4000)];
+            random.nextBytes(noise);
+            target_stream.write(noise, 0, noise.length);
+        }
+        byte[] target = target_stream.toByteArray();
+
+        VCDiffEngine engine = new VCDiffEngine(dictionary);
+        VCDiffCodeTableWriter coder = new VCDiffCodeTableWriter(false);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream(target.length);
+
+        // The first window grows the coder's buffers and warms up the JIT.
+        for (int i = 0; i < 3; i++) {
+            coder.Init(engine.dictionary_size());
+            delta.reset();
+            engine.Encode(ByteBuffer.wrap(target), false, delta, coder);
+        }
+
+        long before = AllocatedBytes();
+        if (before < 0) {
+            return;  // Allocation counting is not available on this JVM.
+        }
+        coder.Init(engine.dictionary_size());
+        delta.reset();
+        engine.Encode(ByteBuffer.wrap(target), false, delta, coder);
+        long allocated = AllocatedBytes() - before;
+
+        assertTrue("allocated " + allocated + " bytes", allocated < 64 * 1024);
+    }
+}
@@ -0,0 +1,141 @@
+package com.googlecode.jvcdiff;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.*;
+
+public class VCDiffEngineCacheTest {
+
+    private static byte[] MakeDictionary(int seed, int size) {
+        byte[] dictionary = new byte[size];
+        new Random(seed).nextBytes(dictionary);
+        return dictionary;
+    }
+
+    @Test
+    public void SameContentsShareEngine() {
+        VCDiffEngineCache cache = new VCDiffEngineCache(1 << 20);
+        byte[] dictionary = MakeDictionary(1, 1000);
+
+        VCDiffEngine first = cache.GetEngine(dictionary);
+        VCDiffEngine second = cache.GetEngine(dictionary.clone());
+
+        assertSame(first, second);
+        assertEquals(1, cache.miss_count());
+        assertEquals(1, cache.hit_count());
+        assertEquals(0, cache.eviction_count());
+        assertEquals(first.MemoryUsage(), cache.retained_bytes());
+    }
+
+    @Test
+    public void ReusedArrayIsHashedAgain() {
+        VCDiffEngineCache cache = new VCDiffEngineCache(1 << 20);
+        byte[] buffer = MakeDictionary(1, 1000);
+        VCDiffEngine first = cache.GetEngine(buffer);
+        System.arraycopy(MakeDictionary(2, 1000), 0, buffer, 0, buffer.length);
+        VCDiffEngine second = cache.GetEngine(buffer);
+
+        assertNotSame(first, second);
+        assertEquals(2, cache.miss_count());
+    }
+
+    @Test
+    public void CallerKeyIdentifiesDictionary() {
+        VCDiffEngineCache cache = new VCDiffEngineCache(1 << 20);
+        byte[] dictionary = MakeDictionary(1, 1000);
+        VCDiffEngine engine = cache.GetEngine("dictionary-v1", dictionary, VCDiffEngineParameters.kDefault);
+
+        assertSame(engine, cache.GetEngine("dictionary-v1", dictionary, VCDiffEngineParameters.kDefault));
+        assertNotSame(engine, cache.GetEngine("dictionary-v1", dictionary, VCDiffEngineParameters.ForBlockSize(32)));
+        assertNotSame(engine, cache.GetEngine(dictionary));
+        assertEquals(3, cache.miss_count());
+        assertEquals(1, cache.hit_count());
+    }
+
+    @Test
+    public void DifferentContentsGetDifferentEngines() {
+        VCDiffEngineCache cache = new VCDiffEngineCache(1 << 20);
+        VCDiffEngine first = cache.GetEngine(MakeDictionary(1, 1000));
+        VCDiffEngine second = cache.GetEngine(MakeDictionary(2, 1000));
+
+        assertNotSame(first, second);
+        assertEquals(2, cache.miss_count());
+        assertEquals(2, cache.size());
+    }
+
+    @Test
+    public void EvictsLeastRecentlyUsed() {
+        byte[] a = MakeDictionary(1, 1000);
+        byte[] b = MakeDictionary(2, 1000);
+        byte[] c = MakeDictionary(3, 1000);
+        long weight = new VCDiffEngine(a).MemoryUsage();
+
+        // Room for exactly two engines.
+        VCDiffEngineCache cache = new VCDiffEngineCache(2 * weight);
+        VCDiffEngine engine_a = cache.GetEngine(a);
+        cache.GetEngine(b);
+        // Touch a so that b becomes the least recently used entry.
+        assertSame(engine_a, cache.GetEngine(a));
+        cache.GetEngine(c);
+
+        assertEquals(1, cache.eviction_count());
+        assertEquals(2, cache.size());
+        assertEquals(2 * weight, cache.retained_bytes());
+        assertSame(engine_a, cache.GetEngine(a));
+
+        long misses = cache.miss_count();
+        cache.GetEngine(b);
+        assertEquals(misses + 1, cache.miss_count());
+    }
+
+    @Test
+    public void OversizedEngineIsNotRetained() {
+        VCDiffEngineCache cache = new VCDiffEngineCache(100);
+        VCDiffEngine engine = cache.GetEngine(MakeDictionary(1, 1000));
+        assertEquals(1000, engine.dictionary_size());
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.retained_bytes());
+    }
+
+    @Test
+    public void ClearDropsEntries() {
+        VCDiffEngineCache cache = new VCDiffEngineCache(1 << 20);
+        cache.GetEngine(MakeDictionary(1, 1000));
+        cache.Clear();
+        assertEquals(0, cache.size());
+        assertEquals(0, cache.retained_bytes());
+    }
+
+    @Test
+    public void ConcurrentRequestsBuildOnce() throws Exception {
+        final VCDiffEngineCache cache = new VCDiffEngineCache(1 << 24);
+        final byte[] dictionary = MakeDictionary(1, 1 << 18);
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<VCDiffEngine>> results = new ArrayList<Future<VCDiffEngine>>();
+            for (int i = 0; i < 32; i++) {
+                results.add(executor.submit(new Callable<VCDiffEngine>() {
+                    public VCDiffEngine call() {
+                        return cache.GetEngine(dictionary);
+                    }
+                }));
+            }
+            VCDiffEngine engine = results.get(0).get();
+            for (Future<VCDiffEngine> result : results) {
+                assertSame(engine, result.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(1, cache.miss_count());
+        assertEquals(31, cache.hit_count());
+    }
+}
@@ -0,0 +1,198 @@
+package com.googlecode.jvcdiff;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Random;
+
+import static com.googlecode.jvcdiff.VCDiffTestUtil.Decode;
+import static com.googlecode.jvcdiff.VCDiffTestUtil.MakeTarget;
+import static com.googlecode.jvcdiff.VCDiffTestUtil.RandomBytes;
+import static org.junit.Assert.*;
+
+// Tests of how VCDiffEngine chooses its instructions: lazy matching, RUN
+// instructions and cost-aware matching.
+public class VCDiffEngineMatchingTest {
+
+    private final Random random_ = new Random(12);
+    private final byte[] dictionary_ = RandomBytes(random_, 20000);
+    private final byte[] target_ = MakeTarget(random_, dictionary_);
+
+    private static byte[] Encode(VCDiffEngine engine, byte[] target, boolean look_for_target_matches)
+            throws IOException {
+        return VCDiffTestUtil.Encode(VCDiffStreamingEncoder.Create(engine,
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), look_for_target_matches, 1 << 20), target);
+    }
+
+    private static byte[] Encode(VCDiffEngine engine, byte[] target) throws IOException {
+        return Encode(engine, target, true);
+    }
+
+    // Text in which a few words of a copy of the dictionary are replaced,
+    // so that many matches are only a few words long.
+    private static byte[][] MakeEditedText(Random random) {
+        String[] words = new String[300];
+        for (int i = 0; i < words.length; i++) {
+            StringBuilder word = new StringBuilder();
+            for (int length = 2 + random.nextInt(7); length > 0; length--) {
+                word.append((char) ('a' + random.nextInt(26)));
+            }
+            words[i] = word.toString();
+        }
+        StringBuilder dictionary = new StringBuilder();
+        StringBuilder target = new StringBuilder();
+        for (int i = 0; i < 20000; i++) {
+            String word = words[random.nextInt(words.length)];
+            dictionary.append(word).append(' ');
+            target.append(random.nextInt(20) == 0 ? words[random.nextInt(words.length)] : word).append(' ');
+        }
+        return new byte[][] { dictionary.toString().getBytes(), target.toString().getBytes() };
+    }
+
+    // 8 KB pages that are filled with random data up to a random length and
+    // padded with zeros.
+    private static byte[] MakeSparsePages(Random random, int pages) {
+        byte[] data = new byte[pages * 8192];
+        for (int page = 0; page < pages; page++) {
+            int fill = random.nextInt(8192);
+            for (int i = 0; i < fill; i++) {
+                data[page * 8192 + i] = (byte) (1 + random.nextInt(255));
+            }
+        }
+        return data;
+    }
+
+    // Records that mostly repeat those of the dictionary, with some fields
+    // changed, so that most matches are of medium length.
+    private static byte[][] MakeEditedRecords(Random random) {
+        String[] names = new String[50];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = "name" + random.nextInt(100000);
+        }
+        StringBuilder dictionary = new StringBuilder();
+        StringBuilder target = new StringBuilder();
+        for (int i = 0; i < 5000; i++) {
+            String record = "{\"id\":" + i + ",\"name\":\"" + names[random.nextInt(names.length)]
+                    + "\",\"value\":" + random.nextInt(100) + "}\n";
+            dictionary.append(record);
+            if (random.nextInt(4) == 0) {
+                record = "{\"id\":" + i + ",\"name\":\"" + names[random.nextInt(names.length)]
+                        + "\",\"value\":" + random.nextInt(100) + "}\n";
+            }
+            target.append(record);
+        }
+        return new byte[][] { dictionary.toString().getBytes(), target.toString().getBytes() };
+    }
+
+    @Test
+    public void LazyMatchingFindsLongerMatches() throws IOException {
+        byte[][] text = MakeEditedText(new Random(12));
+        byte[] dictionary = text[0];
+        byte[] target = text[1];
+        VCDiffEngineParameters greedy = VCDiffEngineParameters.ForBlockSize(8);
+        VCDiffEngineParameters lazy = greedy.WithLazyMatchDistance(4);
+
+        byte[] greedy_delta = Encode(new VCDiffEngine(dictionary, greedy), target);
+        byte[] lazy_delta = Encode(new VCDiffEngine(dictionary, lazy), target);
+        assertTrue(lazy_delta.length < greedy_delta.length);
+        assertArrayEquals(target, Decode(dictionary, lazy_delta));
+    }
+
+    @Test
+    public void RoundTripWithLazyMatching() throws IOException {
+        for (int distance : new int[] { 1, 2, 16, 100 }) {
+            for (VCDiffEngineParameters parameters : new VCDiffEngineParameters[] {
+                    VCDiffEngineParameters.kDefault, VCDiffEngineParameters.ForBlockSize(4),
+                    VCDiffEngineParameters.ForMaximumCompression() }) {
+                VCDiffEngine engine = new VCDiffEngine(dictionary_, parameters.WithLazyMatchDistance(distance));
+                assertArrayEquals(parameters + ", lazy " + distance, target_,
+                        Decode(dictionary_, Encode(engine, target_)));
+            }
+        }
+        // Without lazy evaluation, the encoder is unchanged.
+        assertArrayEquals(Encode(new VCDiffEngine(dictionary_), target_),
+                Encode(new VCDiffEngine(dictionary_, VCDiffEngineParameters.kDefault.WithLazyMatchDistance(0)), target_));
+    }
+
+    @Test
+    public void RunsAreEncodedAsRunInstructions() throws IOException {
+        byte[] target = MakeSparsePages(new Random(13), 64);
+        int zeros = 0;
+        for (byte b : target) {
+            zeros += (b == 0) ? 1 : 0;
+        }
+        for (VCDiffEngineParameters parameters : new VCDiffEngineParameters[] {
+                VCDiffEngineParameters.kDefault, VCDiffEngineParameters.ForBlockSize(64),
+                VCDiffEngineParameters.kDefault.WithMatchFinderType(MatchFinderType.CONTENT_DEFINED_CHUNKS),
+                VCDiffEngineParameters.ForMaximumCompression().WithMinimumRunSize(0) }) {
+            VCDiffEngineParameters runs = parameters.WithMinimumRunSize(16);
+            // The dictionary has no long runs of zeros, so without RUN
+            // instructions the padding is ADDed.
+            byte[] without_runs = Encode(new VCDiffEngine(dictionary_, parameters), target, false);
+            byte[] with_runs = Encode(new VCDiffEngine(dictionary_, runs), target, false);
+            assertTrue(parameters.toString(), with_runs.length < without_runs.length - zeros + 64 * 8);
+            assertArrayEquals(target, Decode(dictionary_, with_runs));
+            assertArrayEquals(target, Decode(dictionary_, Encode(new VCDiffEngine(dictionary_, runs), target)));
+        }
+    }
+
+    @Test
+    public void RoundTripWithRuns() throws IOException {
+        // Runs of every length around the minimum, at the start and end of
+        // the target and between matches.
+        Random random = new Random(14);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        for (int length = 1; length < 40; length++) {
+            byte[] run = new byte[length];
+            Arrays.fill(run, (byte) random.nextInt(3));
+            target.write(run, 0, run.length);
+            target.write(dictionary_, random.nextInt(19000), random.nextInt(100));
+        }
+        byte[] data = target.toByteArray();
+        for (VCDiffEngineParameters parameters : new VCDiffEngineParameters[] {
+                VCDiffEngineParameters.kDefault, VCDiffEngineParameters.ForBlockSize(4),
+                VCDiffEngineParameters.kDefault.WithMatchFinderType(MatchFinderType.CONTENT_DEFINED_CHUNKS),
+                VCDiffEngineParameters.ForMaximumCompression() }) {
+            for (int minimum_run_size : new int[] { 2, 8, 32 }) {
+                VCDiffEngine engine = new VCDiffEngine(dictionary_, parameters.WithMinimumRunSize(minimum_run_size));
+                assertArrayEquals(parameters + ", runs " + minimum_run_size, data,
+                        Decode(dictionary_, Encode(engine, data)));
+                assertArrayEquals(data, Decode(dictionary_, Encode(engine, data, false)));
+            }
+        }
+    }
+
+    @Test
+    public void CostAwareMatchingMakesSmallerDeltas() throws IOException {
+        byte[][] records = MakeEditedRecords(new Random(14));
+        byte[] dictionary = records[0];
+        byte[] target = records[1];
+        VCDiffEngineParameters by_length = VCDiffEngineParameters.ForBlockSize(4);
+        VCDiffEngineParameters by_cost = by_length.WithCostAwareMatching(true);
+
+        byte[] length_delta = Encode(new VCDiffEngine(dictionary, by_length), target);
+        byte[] cost_delta = Encode(new VCDiffEngine(dictionary, by_cost), target);
+        assertTrue(cost_delta.length < length_delta.length);
+        assertArrayEquals(target, Decode(dictionary, cost_delta));
+
+        VCDiffEngineParameters suffix_array = VCDiffEngineParameters.ForMaximumCompression();
+        assertTrue(Encode(new VCDiffEngine(dictionary, suffix_array), target).length
+                < Encode(new VCDiffEngine(dictionary, suffix_array.WithCostAwareMatching(false)), target).length);
+    }
+
+    @Test
+    public void RoundTripWithCostAwareMatching() throws IOException {
+        byte[][] text = MakeEditedText(new Random(15));
+        for (VCDiffEngineParameters parameters : new VCDiffEngineParameters[] {
+                VCDiffEngineParameters.kDefault, VCDiffEngineParameters.ForBlockSize(4).WithLazyMatchDistance(4),
+                VCDiffEngineParameters.kDefault.WithMatchFinderType(MatchFinderType.CONTENT_DEFINED_CHUNKS),
+                VCDiffEngineParameters.ForMaximumCompression() }) {
+            VCDiffEngine engine = new VCDiffEngine(text[0], parameters.WithCostAwareMatching(true));
+            assertArrayEquals(parameters.toString(), text[1], Decode(text[0], Encode(engine, text[1])));
+            assertArrayEquals(parameters.toString(), target_, Decode(text[0], Encode(engine, target_)));
+        }
+    }
+}
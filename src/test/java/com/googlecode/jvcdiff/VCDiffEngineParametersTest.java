@@ -0,0 +1,232 @@
+package com.googlecode.jvcdiff;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import static com.googlecode.jvcdiff.VCDiffTestUtil.Decode;
+import static org.junit.Assert.*;
+
+public class VCDiffEngineParametersTest {
+
+    private static final byte[] kDictionary;
+    private static final byte[] kTarget;
+
+    static {
+        Random random = new Random(11);
+        kDictionary = new byte[20000];
+        random.nextBytes(kDictionary);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        for (int i = 0; i < 100; i++) {
+            target.write(kDictionary, random.nextInt(19000), 5 + random.nextInt(200));
+            byte[] noise = new byte[random.nextInt(20)];
+            random.nextBytes(noise);
+            target.write(noise, 0, noise.length);
+        }
+        kTarget = target.toByteArray();
+    }
+
+    private static byte[] Encode(VCDiffEngine engine, byte[] target) throws IOException {
+        return VCDiffTestUtil.Encode(VCDiffStreamingEncoder.Create(engine,
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), true, 1 << 20), target);
+    }
+
+    @Test
+    public void DefaultsMatchConstants() {
+        VCDiffEngineParameters defaults = VCDiffEngineParameters.kDefault;
+        assertEquals(BlockHash.kBlockSize, defaults.block_size());
+        assertEquals(BlockHash.kMaxMatchesToCheck, defaults.max_matches_to_check());
+        assertEquals(BlockHash.kMaxProbes, defaults.max_probes());
+        assertEquals(VCDiffEngine.kMinimumMatchSize, defaults.minimum_match_size());
+        assertEquals(defaults, new VCDiffEngine(kDictionary).parameters());
+    }
+
+    @Test
+    public void DefaultParametersGiveSameDelta() throws IOException {
+        assertArrayEquals(Encode(new VCDiffEngine(kDictionary), kTarget),
+                Encode(new VCDiffEngine(kDictionary, VCDiffEngineParameters.ForBlockSize(16)), kTarget));
+    }
+
+    @Test
+    public void RoundTripWithEachBlockSize() throws IOException {
+        for (int block_size : new int[] { 2, 4, 8, 32, 64, 128 }) {
+            VCDiffEngine engine = new VCDiffEngine(kDictionary, VCDiffEngineParameters.ForBlockSize(block_size));
+            assertArrayEquals("block size " + block_size, kTarget, Decode(kDictionary, Encode(engine, kTarget)));
+        }
+    }
+
+    @Test
+    public void RoundTripWithBuzHash() throws IOException {
+        for (int block_size : new int[] { 4, 16, 64 }) {
+            VCDiffEngineParameters parameters =
+                    VCDiffEngineParameters.ForBlockSize(block_size, RollingHashType.BUZHASH);
+            VCDiffEngine engine = new VCDiffEngine(kDictionary, parameters);
+            assertEquals(BuzHash.class, engine.hashed_dictionary_.rolling_hash().getClass());
+            assertArrayEquals("block size " + block_size, kTarget, Decode(kDictionary, Encode(engine, kTarget)));
+        }
+        assertFalse(VCDiffEngineParameters.kDefault.equals(
+                VCDiffEngineParameters.ForBlockSize(16, RollingHashType.BUZHASH)));
+        assertEquals(VCDiffEngineParameters.ForBlockSize(16, RollingHashType.BUZHASH),
+                VCDiffEngineParameters.kDefault.WithRollingHashType(RollingHashType.BUZHASH));
+    }
+
+    @Test
+    public void MatchFinderIsPartOfParameters() throws IOException {
+        VCDiffEngineParameters chunks =
+                VCDiffEngineParameters.kDefault.WithMatchFinderType(MatchFinderType.CONTENT_DEFINED_CHUNKS);
+        assertEquals(MatchFinderType.BLOCK_HASH, VCDiffEngineParameters.kDefault.match_finder_type());
+        assertEquals(MatchFinderType.CONTENT_DEFINED_CHUNKS, chunks.match_finder_type());
+        assertEquals(VCDiffEngineParameters.kDefault.block_size(), chunks.block_size());
+        assertFalse(VCDiffEngineParameters.kDefault.equals(chunks));
+        assertEquals(VCDiffEngineParameters.kDefault, chunks.WithMatchFinderType(MatchFinderType.BLOCK_HASH));
+
+        VCDiffEngineCache cache = new VCDiffEngineCache(1 << 24);
+        VCDiffEngine engine = cache.GetEngine(kDictionary, chunks);
+        assertNotSame(cache.GetEngine(kDictionary), engine);
+        assertArrayEquals(kTarget, Decode(kDictionary, Encode(engine, kTarget)));
+    }
+
+    @Test
+    public void LazyMatchDistanceIsPartOfParameters() {
+        VCDiffEngineParameters greedy = VCDiffEngineParameters.ForBlockSize(8);
+        VCDiffEngineParameters lazy = greedy.WithLazyMatchDistance(4);
+        assertEquals(0, greedy.lazy_match_distance());
+        assertEquals(4, lazy.lazy_match_distance());
+        assertFalse(greedy.equals(lazy));
+        assertEquals(greedy, lazy.WithLazyMatchDistance(0));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void LazyMatchDistanceMustNotBeNegative() {
+        VCDiffEngineParameters.kDefault.WithLazyMatchDistance(-1);
+    }
+
+    @Test
+    public void MinimumRunSizeIsPartOfParameters() {
+        for (VCDiffEngineParameters parameters : new VCDiffEngineParameters[] {
+                VCDiffEngineParameters.kDefault, VCDiffEngineParameters.ForBlockSize(64),
+                VCDiffEngineParameters.ForMaximumCompression().WithMinimumRunSize(0) }) {
+            VCDiffEngineParameters runs = parameters.WithMinimumRunSize(16);
+            assertEquals(16, runs.minimum_run_size());
+            assertEquals(parameters, runs.WithMinimumRunSize(0));
+        }
+        assertEquals(VCDiffEngineParameters.kMaximumCompressionRunSize,
+                VCDiffEngineParameters.ForMaximumCompression().minimum_run_size());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void MinimumRunSizeMustBeAtLeastTwo() {
+        VCDiffEngineParameters.kDefault.WithMinimumRunSize(1);
+    }
+
+    @Test
+    public void CostAwareMatchingIsPartOfParameters() {
+        VCDiffEngineParameters by_length = VCDiffEngineParameters.ForBlockSize(4);
+        VCDiffEngineParameters by_cost = by_length.WithCostAwareMatching(true);
+        assertFalse(by_length.cost_aware_matching());
+        assertTrue(by_cost.cost_aware_matching());
+        assertFalse(by_length.equals(by_cost));
+        assertEquals(by_length, by_cost.WithCostAwareMatching(false));
+        assertTrue(VCDiffEngineParameters.ForMaximumCompression().cost_aware_matching());
+    }
+
+    @Test
+    public void SmallerBlocksFindMoreMatches() throws IOException {
+        int small = Encode(new VCDiffEngine(kDictionary, VCDiffEngineParameters.ForBlockSize(8)), kTarget).length;
+        int large = Encode(new VCDiffEngine(kDictionary, VCDiffEngineParameters.ForBlockSize(64)), kTarget).length;
+        assertTrue(small < large);
+    }
+
+    @Test
+    public void LargerBlocksUseLessMemory() {
+        long small = new VCDiffEngine(kDictionary, VCDiffEngineParameters.ForBlockSize(8)).MemoryUsage();
+        long large = new VCDiffEngine(kDictionary, VCDiffEngineParameters.ForBlockSize(64)).MemoryUsage();
+        assertTrue(large < small);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void BlockSizeMustBePowerOfTwo() {
+        new VCDiffEngineParameters(24, 32, 16, 48);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void MinimumMatchSizeMustCoverBlock() {
+        new VCDiffEngineParameters(32, 32, 16, 16);
+    }
+
+    @Test
+    public void CacheKeepsEnginesPerParameters() {
+        VCDiffEngineCache cache = new VCDiffEngineCache(1 << 24);
+        VCDiffEngine small = cache.GetEngine(kDictionary, VCDiffEngineParameters.ForBlockSize(8));
+        VCDiffEngine large = cache.GetEngine(kDictionary, VCDiffEngineParameters.ForBlockSize(64));
+        assertNotSame(small, large);
+        assertSame(small, cache.GetEngine(kDictionary, VCDiffEngineParameters.ForBlockSize(8)));
+        assertSame(cache.GetEngine(kDictionary), cache.GetEngine(kDictionary, VCDiffEngineParameters.kDefault));
+    }
+
+    @Test
+    public void IndexRecordsBlockSize() throws IOException {
+        VCDiffEngineParameters parameters = VCDiffEngineParameters.ForBlockSize(32);
+        File index = File.createTempFile("blockhash", ".idx");
+        try {
+            BlockHashIndex.Write(BlockHash.CreateDictionaryHash(ByteBuffer.wrap(kDictionary), parameters), index);
+            BlockHash loaded = BlockHashIndex.Load(index, ByteBuffer.wrap(kDictionary));
+            assertEquals(parameters, loaded.parameters());
+            assertArrayEquals(Encode(new VCDiffEngine(kDictionary, parameters), kTarget),
+                    Encode(new VCDiffEngine(ByteBuffer.wrap(kDictionary), loaded), kTarget));
+            try {
+                BlockHashIndex.Load(index, ByteBuffer.wrap(kDictionary), VCDiffEngineParameters.kDefault);
+                fail();
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("block size"));
+            }
+        } finally {
+            index.delete();
+        }
+    }
+
+    @Test
+    public void IndexRecordsRollingHash() throws IOException {
+        VCDiffEngineParameters parameters = VCDiffEngineParameters.ForBlockSize(16, RollingHashType.BUZHASH);
+        File index = File.createTempFile("blockhash", ".idx");
+        try {
+            BlockHashIndex.Write(BlockHash.CreateDictionaryHash(ByteBuffer.wrap(kDictionary), parameters), index);
+            BlockHash loaded = BlockHashIndex.Load(index, ByteBuffer.wrap(kDictionary));
+            assertEquals(parameters, loaded.parameters());
+            assertArrayEquals(Encode(new VCDiffEngine(kDictionary, parameters), kTarget),
+                    Encode(new VCDiffEngine(ByteBuffer.wrap(kDictionary), loaded), kTarget));
+            try {
+                BlockHashIndex.Load(index, ByteBuffer.wrap(kDictionary), VCDiffEngineParameters.kDefault);
+                fail();
+            } catch (IOException e) {
+                assertTrue(e.getMessage().contains("rolling hash"));
+            }
+        } finally {
+            index.delete();
+        }
+    }
+
+    @Test
+    public void TunerReportsEachSetting() throws IOException {
+        List<VCDiffEngineParameters> settings = Arrays.asList(
+                VCDiffEngineParameters.ForBlockSize(8), VCDiffEngineParameters.ForBlockSize(32));
+        List<VCDiffEngineTuner.Result> results =
+                VCDiffEngineTuner.Run(kDictionary, Collections.singletonList(kTarget), settings, 1);
+        assertEquals(2, results.size());
+        for (int i = 0; i < settings.size(); i++) {
+            VCDiffEngineTuner.Result result = results.get(i);
+            assertEquals(settings.get(i), result.parameters());
+            assertEquals(kTarget.length, result.target_bytes());
+            assertTrue(result.delta_bytes() > 0);
+            assertTrue(result.memory_usage() > kDictionary.length);
+        }
+    }
+}
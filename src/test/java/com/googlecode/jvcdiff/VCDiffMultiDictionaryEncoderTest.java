@@ -0,0 +1,143 @@
+package com.googlecode.jvcdiff;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import static com.googlecode.jvcdiff.VCDiffTestUtil.Decode;
+import static org.junit.Assert.*;
+
+public class VCDiffMultiDictionaryEncoderTest {
+
+    private static final EnumSet<VCDiffFormatExtensionFlags> kFormat =
+            EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT);
+
+    private static byte[] RandomBytes(Random random, int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    // Returns a copy of data with a short random run of bytes written over it
+    // every 1000 bytes or so.
+    private static byte[] Edit(Random random, byte[] data) {
+        byte[] edited = data.clone();
+        for (int pos = random.nextInt(1000); pos + 20 < edited.length; pos += 500 + random.nextInt(1000)) {
+            System.arraycopy(RandomBytes(random, 20), 0, edited, pos, 20);
+        }
+        return edited;
+    }
+
+    private static List<VCDiffEngine> Engines(List<byte[]> dictionaries) {
+        List<VCDiffEngine> engines = new ArrayList<VCDiffEngine>();
+        for (byte[] dictionary : dictionaries) {
+            engines.add(new VCDiffEngine(dictionary));
+        }
+        return engines;
+    }
+
+    private static byte[] Encode(VCDiffEngine engine, byte[] target) throws IOException {
+        VCDiffStreamingEncoder<OutputStream> encoder = VCDiffStreamingEncoder.Create(engine, kFormat, true, 1 << 16);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        assertTrue(encoder.StartEncoding(delta));
+        assertTrue(encoder.EncodeChunk(target, delta));
+        assertTrue(encoder.FinishEncoding(delta));
+        return delta.toByteArray();
+    }
+
+    @Test
+    public void PicksTheClosestVersion() throws IOException {
+        Random random = new Random(1);
+        byte[] v1 = RandomBytes(random, 100000);
+        byte[] v2 = Edit(random, v1);
+        byte[] v3 = Edit(random, v2);
+        byte[] target = Edit(random, v3);
+        List<byte[]> dictionaries = Arrays.asList(v1, v2, v3, RandomBytes(random, 50000));
+
+        VCDiffMultiDictionaryEncoder encoder =
+                new VCDiffMultiDictionaryEncoder(Engines(dictionaries), kFormat, true, 1 << 16, 1);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        int[] selection = encoder.Encode(target, delta);
+        assertArrayEquals(new int[] { 2 }, selection);
+        assertArrayEquals(Encode(new VCDiffEngine(v3), target), delta.toByteArray());
+        assertArrayEquals(target, Decode(VCDiffMultiDictionaryEncoder.Concatenate(dictionaries, selection),
+                delta.toByteArray()));
+    }
+
+    @Test
+    public void CombinesDictionaries() throws IOException {
+        Random random = new Random(2);
+        byte[] code = RandomBytes(random, 60000);
+        byte[] data = RandomBytes(random, 60000);
+        byte[] unrelated = RandomBytes(random, 60000);
+        // The target takes most of its content from the second and fourth
+        // dictionaries, and a little from the first.
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        target.write(Edit(random, code), 0, code.length);
+        target.write(unrelated, 0, 100);
+        target.write(Edit(random, data), 0, data.length);
+        byte[] target_bytes = target.toByteArray();
+        List<byte[]> dictionaries = Arrays.asList(unrelated, code, RandomBytes(random, 60000), data);
+
+        VCDiffMultiDictionaryEncoder encoder =
+                new VCDiffMultiDictionaryEncoder(Engines(dictionaries), kFormat, true, 1 << 16, 4);
+        long[] copied_bytes = encoder.CopiedBytes(target_bytes, 0, target_bytes.length);
+        assertTrue(copied_bytes[0] > 0);
+        assertTrue(copied_bytes[0] * VCDiffMultiDictionaryEncoder.kMinimumShare < target_bytes.length);
+        assertEquals(0, copied_bytes[2]);
+
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        int[] selection = encoder.Encode(target_bytes, delta);
+        assertArrayEquals(new int[] { 1, 3 }, selection);
+        byte[] source = VCDiffMultiDictionaryEncoder.Concatenate(dictionaries, selection);
+        assertArrayEquals(target_bytes, Decode(source, delta.toByteArray()));
+
+        // Much smaller than a delta against either dictionary alone, and the
+        // same as one against a single engine for the concatenation.
+        assertTrue(delta.size() < Encode(new VCDiffEngine(code), target_bytes).length * 6 / 10);
+        assertArrayEquals(Encode(new VCDiffEngine(source), target_bytes), delta.toByteArray());
+
+        // Nothing in common with any dictionary.
+        byte[] other = RandomBytes(random, 10000);
+        delta.reset();
+        assertEquals(0, encoder.Encode(other, delta).length);
+        assertArrayEquals(other, Decode(new byte[0], delta.toByteArray()));
+    }
+
+    @Test
+    public void EngineAddressesConcatenatedDictionaries() throws IOException {
+        Random random = new Random(3);
+        List<byte[]> dictionaries = Arrays.asList(RandomBytes(random, 1000), new byte[0], RandomBytes(random, 500));
+        VCDiffMultiDictionaryEngine engine = new VCDiffMultiDictionaryEngine(Engines(dictionaries));
+        assertEquals(1500, engine.dictionary_size());
+        assertEquals(1000, engine.dictionary_offset(2));
+        assertEquals(0, engine.DictionaryAt(999));
+        assertEquals(2, engine.DictionaryAt(1000));
+        assertEquals(2, engine.DictionaryAt(1499));
+        assertEquals(-1, engine.DictionaryAt(1500));
+
+        byte[] target = VCDiffMultiDictionaryEncoder.Concatenate(dictionaries, new int[] { 2, 0 });
+        byte[] delta = Encode(engine, target);
+        assertArrayEquals(target, Decode(VCDiffMultiDictionaryEncoder.Concatenate(dictionaries, new int[] { 0, 1, 2 }),
+                delta));
+
+        // A single dictionary gives exactly the delta of its own engine.
+        VCDiffEngine single = new VCDiffEngine(dictionaries.get(0));
+        assertArrayEquals(Encode(single, target),
+                Encode(new VCDiffMultiDictionaryEngine(Collections.singletonList(single)), target));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void DictionariesMustUseTheSameParameters() {
+        new VCDiffMultiDictionaryEngine(Arrays.asList(new VCDiffEngine(new byte[100]),
+                new VCDiffEngine(new byte[100], VCDiffEngineParameters.ForBlockSize(8))));
+    }
+}
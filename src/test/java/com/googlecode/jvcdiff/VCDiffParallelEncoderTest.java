@@ -0,0 +1,115 @@
+package com.googlecode.jvcdiff;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.EnumSet;
+import java.util.concurrent.ForkJoinPool;
+
+import static com.googlecode.jvcdiff.VCDiffStreamingEncoderTest.Decode;
+import static com.googlecode.jvcdiff.VCDiffStreamingEncoderTest.MakeLargeTarget;
+import static com.googlecode.jvcdiff.VCDiffStreamingEncoderTest.kDictionary;
+import static org.junit.Assert.*;
+
+public class VCDiffParallelEncoderTest {
+
+    private final VCDiffEngine engine_ = new VCDiffEngine(kDictionary);
+
+    // The delta that VCDiffStreamingEncoder makes of target, which the
+    // parallel encoder must reproduce byte for byte.
+    private byte[] EncodeSerially(byte[] target, int window_size, EnumSet<VCDiffFormatExtensionFlags> flags)
+            throws IOException {
+        VCDiffStreamingEncoder<OutputStream> encoder = VCDiffStreamingEncoder.Create(engine_, flags, true, window_size);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        assertTrue(encoder.StartEncoding(delta));
+        assertTrue(encoder.EncodeChunk(target, delta));
+        assertTrue(encoder.FinishEncoding(delta));
+        return delta.toByteArray();
+    }
+
+    private byte[] EncodeInParallel(byte[] target, int window_size, int max_windows_in_flight,
+                                      EnumSet<VCDiffFormatExtensionFlags> flags) throws IOException {
+        ForkJoinPool pool = new ForkJoinPool(4);
+        try {
+            VCDiffParallelEncoder encoder =
+                    new VCDiffParallelEncoder(engine_, flags, true, window_size, pool, max_windows_in_flight);
+            ByteArrayOutputStream delta = new ByteArrayOutputStream();
+            encoder.Encode(target, delta);
+            return delta.toByteArray();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void MatchesStreamingEncoder() throws IOException {
+        byte[] target = MakeLargeTarget();
+        EnumSet<VCDiffFormatExtensionFlags> flags = EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT);
+        for (int window_size : new int[] { 100, 1024, 4096, target.length }) {
+            byte[] expected = EncodeSerially(target, window_size, flags);
+            assertArrayEquals(expected, EncodeInParallel(target, window_size, 8, flags));
+            assertArrayEquals(expected, EncodeInParallel(target, window_size, 1, flags));
+        }
+    }
+
+    @Test
+    public void ParallelRoundTripWithChecksum() throws IOException {
+        byte[] target = MakeLargeTarget();
+        byte[] delta = EncodeInParallel(target, 1000, 3, EnumSet.of(VCDiffFormatExtensionFlags.VCD_FORMAT_CHECKSUM));
+        assertArrayEquals(target, Decode(delta));
+    }
+
+    @Test
+    public void MatchesStreamingEncoderWithChecksums() throws IOException {
+        byte[] target = MakeLargeTarget();
+        for (VCDiffFormatExtensionFlags checksum : EnumSet.of(VCDiffFormatExtensionFlags.VCD_FORMAT_CHECKSUM,
+                VCDiffFormatExtensionFlags.VCD_FORMAT_CRC32C)) {
+            EnumSet<VCDiffFormatExtensionFlags> flags = EnumSet.of(checksum);
+            assertArrayEquals(EncodeSerially(target, 1000, flags),
+                    EncodeInParallel(target, 1000, 3, flags));
+        }
+    }
+
+    @Test
+    public void EmptyTargetProducesHeaderOnly() throws IOException {
+        byte[] delta = EncodeInParallel(new byte[0], 1000, 3, EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT));
+        assertEquals(5, delta.length);
+        assertArrayEquals(new byte[0], Decode(delta));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void JSONFormatIsRejected() {
+        ForkJoinPool pool = new ForkJoinPool(1);
+        try {
+            new VCDiffParallelEncoder(engine_, EnumSet.of(VCDiffFormatExtensionFlags.VCD_FORMAT_JSON), false, 1000, pool);
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void OutputErrorIsPropagated() {
+        ForkJoinPool pool = new ForkJoinPool(2);
+        try {
+            VCDiffParallelEncoder encoder = new VCDiffParallelEncoder(engine_,
+                    EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), false, 100, pool, 2);
+            encoder.Encode(MakeLargeTarget(), new OutputStream() {
+                private int bytes_written_ = 0;
+
+                @Override
+                public void write(int b) throws IOException {
+                    if (++bytes_written_ > 10) {
+                        throw new IOException("disk full");
+                    }
+                }
+            });
+            fail();
+        } catch (IOException e) {
+            assertEquals("disk full", e.getMessage());
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
@@ -0,0 +1,154 @@
+package com.googlecode.jvcdiff;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.EnumSet;
+import java.util.Random;
+
+import static com.googlecode.jvcdiff.VCDiffTestUtil.Decode;
+import static com.googlecode.jvcdiff.VCDiffTestUtil.RandomBytes;
+import static org.junit.Assert.*;
+
+public class VCDiffSourceWindowEncoderTest {
+
+    private static final int kSourceWindowSize = 32 * 1024;
+    private static final int kTargetWindowSize = 8 * 1024;
+
+    private final Random random_ = new Random(18);
+    private File source_file_;
+    private RandomAccessFile source_;
+
+    @Before
+    public void setUp() throws IOException {
+        source_file_ = File.createTempFile("source", ".bin");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        if (source_ != null) {
+            source_.close();
+        }
+        source_file_.delete();
+    }
+
+    private void WriteSource(byte[] source) throws IOException {
+        FileOutputStream out = new FileOutputStream(source_file_);
+        try {
+            out.write(source);
+        } finally {
+            out.close();
+        }
+        source_ = new RandomAccessFile(source_file_, "r");
+    }
+
+    // The source with an insertion, a deletion and a few changed bytes, so
+    // that the matching source data drifts away from the target position.
+    private byte[] EditSource(byte[] source) {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        target.write(source, 0, 100000);
+        byte[] inserted = RandomBytes(random_, 3000);
+        target.write(inserted, 0, inserted.length);
+        target.write(source, 100000, 80000);
+        target.write(source, 182000, source.length - 182000);
+        byte[] result = target.toByteArray();
+        for (int i = 0; i < 20; i++) {
+            result[random_.nextInt(result.length)] ^= 0x55;
+        }
+        return result;
+    }
+
+    private byte[] Encode(VCDiffEngineParameters parameters, EnumSet<VCDiffFormatExtensionFlags> flags,
+                          int source_window_size, byte[] target) throws IOException {
+        VCDiffSourceWindowEncoder encoder = new VCDiffSourceWindowEncoder(source_.getChannel(), parameters, flags,
+                true, source_window_size, kTargetWindowSize);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        encoder.Encode(new ByteArrayInputStream(target), delta);
+        return delta.toByteArray();
+    }
+
+    @Test
+    public void RoundTripFollowsInsertionsAndDeletions() throws IOException {
+        byte[] source = RandomBytes(random_, 256 * 1024);
+        WriteSource(source);
+        byte[] target = EditSource(source);
+        byte[] delta = Encode(VCDiffEngineParameters.kDefault,
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), kSourceWindowSize, target);
+        assertArrayEquals(target, Decode(source, delta));
+        // Only the inserted and changed bytes should need to be added.
+        assertTrue("delta size " + delta.length, delta.length < 8000);
+    }
+
+    @Test
+    public void RoundTripWithSuffixArrayAndChecksum() throws IOException {
+        byte[] source = RandomBytes(random_, 256 * 1024);
+        WriteSource(source);
+        byte[] target = EditSource(source);
+        byte[] delta = Encode(VCDiffEngineParameters.kDefault.WithMatchFinderType(MatchFinderType.SUFFIX_ARRAY),
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_FORMAT_CRC32C), kSourceWindowSize, target);
+        assertArrayEquals(target, Decode(source, delta));
+        assertTrue("delta size " + delta.length, delta.length < 8000);
+    }
+
+    @Test
+    public void SourceSmallerThanWindow() throws IOException {
+        byte[] source = RandomBytes(random_, 5000);
+        WriteSource(source);
+        ByteArrayOutputStream target_stream = new ByteArrayOutputStream();
+        for (int i = 0; i < 5; i++) {
+            target_stream.write(source, 0, source.length);
+            target_stream.write(RandomBytes(random_, 100), 0, 100);
+        }
+        byte[] target = target_stream.toByteArray();
+        byte[] delta = Encode(VCDiffEngineParameters.kDefault,
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_FORMAT_CHECKSUM), kSourceWindowSize, target);
+        assertArrayEquals(target, Decode(source, delta));
+    }
+
+    @Test
+    public void EmptyTargetProducesHeaderOnly() throws IOException {
+        WriteSource(RandomBytes(random_, 1000));
+        byte[] delta = Encode(VCDiffEngineParameters.kDefault,
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), kSourceWindowSize, new byte[0]);
+        assertEquals(5, delta.length);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void JSONFormatIsRejected() throws IOException {
+        WriteSource(RandomBytes(random_, 1000));
+        new VCDiffSourceWindowEncoder(source_.getChannel(), VCDiffEngineParameters.kDefault,
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_FORMAT_JSON), false);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ZeroSourceWindowSizeIsRejected() throws IOException {
+        WriteSource(RandomBytes(random_, 1000));
+        new VCDiffSourceWindowEncoder(source_.getChannel(), VCDiffEngineParameters.kDefault,
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), false, 0, kTargetWindowSize);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void SourceWindowSmallerThanTargetWindowIsRejected() throws IOException {
+        WriteSource(RandomBytes(random_, 1000));
+        new VCDiffSourceWindowEncoder(source_.getChannel(), VCDiffEngineParameters.kDefault,
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), false, kTargetWindowSize - 1,
+                kTargetWindowSize);
+    }
+
+    @Test
+    public void EqualSourceAndTargetWindowSizes() throws IOException {
+        byte[] source = RandomBytes(random_, 256 * 1024);
+        WriteSource(source);
+        byte[] target = EditSource(source);
+        byte[] delta = Encode(VCDiffEngineParameters.kDefault,
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), kTargetWindowSize, target);
+        assertArrayEquals(target, Decode(source, delta));
+    }
+}
@@ -0,0 +1,203 @@
+package com.googlecode.jvcdiff;
+
+import com.googlecode.jvcdiff.codec.VCDiffHeaderParser;
+import com.googlecode.jvcdiff.codec.VCDiffStreamingDecoderImpl;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.EnumSet;
+import java.util.Random;
+import java.util.zip.Adler32;
+
+import static org.junit.Assert.*;
+
+public class VCDiffStreamingEncoderTest {
+
+    protected static final Charset US_ASCII = Charset.forName("US-ASCII");
+
+    protected static final byte[] kDictionary = (
+            "\"Just the place for a Snark!\" the Bellman cried,\n" +
+                    "As he landed his crew with care;\n" +
+                    "Supporting each man on the top of the tide\n" +
+                    "By a finger entwined in his hair.\n"
+    ).getBytes(US_ASCII);
+
+    protected static final byte[] kTarget = (
+            "\"Just the place for a Snark! I have said it twice:\n" +
+                    "That alone should encourage the crew.\n" +
+                    "Just the place for a Snark! I have said it thrice:\n" +
+                    "What I tell you three times is true.\"\n"
+    ).getBytes(US_ASCII);
+
+    protected final VCDiffEngine engine_ = new VCDiffEngine(kDictionary);
+
+    protected static byte[] MakeLargeTarget() {
+        Random random = new Random(42);
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        for (int i = 0; i < 200; i++) {
+            if (random.nextBoolean()) {
+                target.write(kTarget, 0, kTarget.length);
+            } else {
+                target.write(kDictionary, 0, kDictionary.length);
+            }
+            byte[] noise = new byte[random.nextInt(40)];
+            random.nextBytes(noise);
+            target.write(noise, 0, noise.length);
+        }
+        return target.toByteArray();
+    }
+
+    protected byte[] EncodeInChunks(byte[] target, int chunk_size, int window_size,
+                                    EnumSet<VCDiffFormatExtensionFlags> flags) throws IOException {
+        VCDiffStreamingEncoder<java.io.OutputStream> encoder =
+                VCDiffStreamingEncoder.Create(engine_, flags, true, window_size);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        assertTrue(encoder.StartEncoding(delta));
+        for (int i = 0; i < target.length; i += chunk_size) {
+            assertTrue(encoder.EncodeChunk(target, i, Math.min(chunk_size, target.length - i), delta));
+        }
+        assertTrue(encoder.FinishEncoding(delta));
+        return delta.toByteArray();
+    }
+
+    protected static byte[] Decode(byte[] delta) throws IOException {
+        VCDiffStreamingDecoderImpl decoder = new VCDiffStreamingDecoderImpl();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        decoder.StartDecoding(kDictionary);
+        assertTrue(decoder.DecodeChunk(delta, 0, delta.length, output));
+        assertTrue(decoder.FinishDecoding());
+        return output.toByteArray();
+    }
+
+    @Test
+    public void EncodeSingleChunk() throws IOException {
+        byte[] delta = EncodeInChunks(kTarget, kTarget.length, VCDiffStreamingEncoder.kDefaultWindowSize,
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT));
+        assertArrayEquals(kTarget, Decode(delta));
+    }
+
+    @Test
+    public void EncodeManyWindowsRoundTrip() throws IOException {
+        byte[] target = MakeLargeTarget();
+        for (int chunk_size : new int[] { 1, 7, 100, 1000, target.length }) {
+            byte[] delta = EncodeInChunks(target, chunk_size, 1024,
+                    EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT));
+            assertArrayEquals(target, Decode(delta));
+        }
+    }
+
+    @Test
+    public void OutputDoesNotDependOnChunkSize() throws IOException {
+        byte[] target = MakeLargeTarget();
+        EnumSet<VCDiffFormatExtensionFlags> flags = EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT);
+        byte[] expected = EncodeInChunks(target, target.length, 4096, flags);
+        assertArrayEquals(expected, EncodeInChunks(target, 1, 4096, flags));
+        assertArrayEquals(expected, EncodeInChunks(target, 333, 4096, flags));
+        assertArrayEquals(expected, EncodeInChunks(target, 4096, 4096, flags));
+        assertArrayEquals(expected, EncodeInChunks(target, 5000, 4096, flags));
+    }
+
+    // Large enough that the target hash has to grow several times.
+    @Test
+    public void EncodeLargeRepetitiveTarget() throws IOException {
+        ByteArrayOutputStream target_stream = new ByteArrayOutputStream();
+        for (int i = 0; target_stream.size() < 400000; i++) {
+            byte[] line = ("2010-01-01 00:00:" + (i % 60) + " request " + (i * 7919 % 1000) + " served\n").getBytes(US_ASCII);
+            target_stream.write(line, 0, line.length);
+        }
+        byte[] target = target_stream.toByteArray();
+        byte[] delta = EncodeInChunks(target, 10000, VCDiffStreamingEncoder.kDefaultWindowSize,
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT));
+        assertTrue(delta.length < target.length / 10);
+        assertArrayEquals(target, Decode(delta));
+    }
+
+    @Test
+    public void EncodeWithChecksum() throws IOException {
+        byte[] target = MakeLargeTarget();
+        byte[] delta = EncodeInChunks(target, 500, 2048, EnumSet.of(
+                VCDiffFormatExtensionFlags.VCD_FORMAT_CHECKSUM));
+        assertEquals('S', delta[3]);
+        assertArrayEquals(target, Decode(delta));
+    }
+
+    // The checksum computed while encoding must be the Adler32 of the window,
+    // as if the caller had computed it beforehand.
+    @Test
+    public void ChecksumIsComputedWhileEncoding() throws IOException {
+        byte[] target = MakeLargeTarget();
+        int window_size = 2048;
+        ByteArrayOutputStream expected = new ByteArrayOutputStream();
+        VCDiffCodeTableWriter coder = new VCDiffCodeTableWriter(false);
+        coder.Init(engine_.dictionary_size());
+        coder.WriteHeader(expected, EnumSet.of(VCDiffFormatExtensionFlags.VCD_FORMAT_CHECKSUM));
+        for (int i = 0; i < target.length; i += window_size) {
+            int length = Math.min(window_size, target.length - i);
+            Adler32 adler32 = new Adler32();
+            adler32.update(target, i, length);
+            coder.AddChecksum((int) adler32.getValue());
+            engine_.Encode(ByteBuffer.wrap(target, i, length), true, expected, coder);
+        }
+        assertArrayEquals(expected.toByteArray(), EncodeInChunks(target, 500, window_size,
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_FORMAT_CHECKSUM)));
+    }
+
+    @Test
+    public void EncodeWithCrc32cChecksum() throws IOException {
+        byte[] target = MakeLargeTarget();
+        byte[] delta = EncodeInChunks(target, 500, 2048, EnumSet.of(
+                VCDiffFormatExtensionFlags.VCD_FORMAT_CRC32C));
+        assertEquals('S', delta[3]);
+        assertEquals(VCDiffHeaderParser.VCD_CRC32C, delta[4]);
+        assertArrayEquals(target, Decode(delta));
+
+        // Decoding with the wrong dictionary is detected.
+        byte[] dictionary = kDictionary.clone();
+        dictionary[1] = 'K';
+        VCDiffStreamingDecoderImpl decoder = new VCDiffStreamingDecoderImpl();
+        decoder.StartDecoding(dictionary);
+        assertFalse(decoder.DecodeChunk(delta, 0, delta.length, new ByteArrayOutputStream()));
+    }
+
+    @Test
+    public void EncodeDirectByteBuffer() throws IOException {
+        byte[] target = MakeLargeTarget();
+        ByteBuffer direct = ByteBuffer.allocateDirect(target.length);
+        direct.put(target);
+        direct.flip();
+
+        VCDiffStreamingEncoder<java.io.OutputStream> encoder = VCDiffStreamingEncoder.Create(engine_,
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), false, 1024);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        assertTrue(encoder.StartEncoding(delta));
+        assertTrue(encoder.EncodeChunk(direct, delta));
+        assertFalse(direct.hasRemaining());
+        assertTrue(encoder.FinishEncoding(delta));
+        assertArrayEquals(target, Decode(delta.toByteArray()));
+    }
+
+    @Test
+    public void EncodeChunkWithoutStart() throws IOException {
+        VCDiffStreamingEncoder<java.io.OutputStream> encoder = VCDiffStreamingEncoder.Create(engine_,
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), false, 1024);
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        assertFalse(encoder.EncodeChunk(kTarget, delta));
+        assertFalse(encoder.FinishEncoding(delta));
+        assertEquals(0, delta.size());
+    }
+
+    @Test
+    public void EncodeJSON() throws IOException {
+        VCDiffStreamingEncoder<Appendable> encoder = new VCDiffStreamingEncoder<Appendable>(engine_,
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_FORMAT_JSON), false, new JSONCodeTableWriter());
+        StringBuilder json = new StringBuilder();
+        assertTrue(encoder.StartEncoding(json));
+        assertTrue(encoder.EncodeChunk(kTarget, json));
+        assertTrue(encoder.FinishEncoding(json));
+        assertEquals('[', json.charAt(0));
+        assertEquals(']', json.charAt(json.length() - 1));
+    }
+}
@@ -0,0 +1,98 @@
+package com.googlecode.jvcdiff;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.EnumSet;
+import java.util.Random;
+
+import static com.googlecode.jvcdiff.VCDiffTestUtil.Encode;
+import static com.googlecode.jvcdiff.VCDiffTestUtil.RandomBytes;
+import static org.junit.Assert.*;
+
+public class VCDiffTargetWindowEncoderTest {
+
+    private static final int kWindowSize = 4096;
+    private static final int kHistorySize = 16 * 1024;
+
+    private final Random random_ = new Random(19);
+    private final byte[] dictionary_ = RandomBytes(random_, 20000);
+    private final VCDiffEngine engine_ = new VCDiffEngine(dictionary_);
+
+    // Records that repeat a few templates with small changes, like log lines;
+    // none of them is in the dictionary.
+    private byte[] MakeRepetitiveTarget() {
+        byte[][] templates = new byte[4][];
+        for (int i = 0; i < templates.length; i++) {
+            templates[i] = RandomBytes(random_, 300);
+        }
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        for (int i = 0; i < 400; i++) {
+            byte[] record = templates[random_.nextInt(templates.length)].clone();
+            record[random_.nextInt(record.length)] = (byte) i;
+            target.write(record, 0, record.length);
+        }
+        return target.toByteArray();
+    }
+
+    private byte[] Decode(byte[] delta) throws IOException {
+        return VCDiffTestUtil.Decode(dictionary_, delta);
+    }
+
+    @Test
+    public void RepetitiveTargetUsesEarlierTarget() throws IOException {
+        byte[] target = MakeRepetitiveTarget();
+        EnumSet<VCDiffFormatExtensionFlags> flags = EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT);
+        VCDiffTargetWindowEncoder encoder = new VCDiffTargetWindowEncoder(engine_, flags, true, kWindowSize, kHistorySize);
+        byte[] delta = Encode(encoder, target);
+        assertArrayEquals(target, Decode(delta));
+        assertTrue(encoder.target_source_windows() > 0);
+
+        byte[] dictionary_only = Encode(VCDiffStreamingEncoder.Create(engine_, flags, true, kWindowSize), target);
+        assertTrue("delta sizes " + delta.length + " and " + dictionary_only.length,
+                delta.length * 2 < dictionary_only.length);
+    }
+
+    @Test
+    public void DictionaryIsUsedWhenItMatchesBetter() throws IOException {
+        EnumSet<VCDiffFormatExtensionFlags> flags = EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT);
+        VCDiffTargetWindowEncoder encoder = new VCDiffTargetWindowEncoder(engine_, flags, true, kWindowSize, kHistorySize);
+        byte[] delta = Encode(encoder, dictionary_);
+        assertEquals(0, encoder.target_source_windows());
+        assertArrayEquals(Encode(VCDiffStreamingEncoder.Create(engine_, flags, true, kWindowSize), dictionary_), delta);
+    }
+
+    @Test
+    public void RoundTripWithChecksumAndSmallHistory() throws IOException {
+        byte[] target = MakeRepetitiveTarget();
+        for (VCDiffFormatExtensionFlags checksum : EnumSet.of(VCDiffFormatExtensionFlags.VCD_FORMAT_CHECKSUM,
+                VCDiffFormatExtensionFlags.VCD_FORMAT_CRC32C)) {
+            VCDiffTargetWindowEncoder encoder =
+                    new VCDiffTargetWindowEncoder(engine_, EnumSet.of(checksum), true, kWindowSize, 1000);
+            assertArrayEquals(target, Decode(Encode(encoder, target)));
+            assertTrue(encoder.target_source_windows() > 0);
+        }
+    }
+
+    @Test
+    public void EncoderCanBeReused() throws IOException {
+        byte[] target = MakeRepetitiveTarget();
+        VCDiffTargetWindowEncoder encoder = new VCDiffTargetWindowEncoder(engine_,
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), true, kWindowSize, kHistorySize);
+        byte[] first = Encode(encoder, target);
+        assertArrayEquals(first, Encode(encoder, target));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ZeroHistorySizeIsRejected() {
+        new VCDiffTargetWindowEncoder(engine_, EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT),
+                true, kWindowSize, 0);
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void JSONFormatIsRejected() {
+        new VCDiffTargetWindowEncoder(engine_, EnumSet.of(VCDiffFormatExtensionFlags.VCD_FORMAT_JSON),
+                true, kWindowSize, kHistorySize);
+    }
+}
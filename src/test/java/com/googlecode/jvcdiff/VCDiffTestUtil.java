@@ -0,0 +1,75 @@
+package com.googlecode.jvcdiff;
+
+import com.googlecode.jvcdiff.codec.VCDiffStreamingDecoderImpl;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.EnumSet;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Test data and round-trip helpers shared by the encoder and decoder tests.
+ */
+public final class VCDiffTestUtil {
+
+    private VCDiffTestUtil() {
+    }
+
+    public static byte[] RandomBytes(Random random, int length) {
+        byte[] bytes = new byte[length];
+        random.nextBytes(bytes);
+        return bytes;
+    }
+
+    // Pieces of the dictionary, runs, repeats of earlier target data and
+    // noise, so that a delta of it has every kind of instruction.  The
+    // dictionary must be longer than 1000 bytes.
+    public static byte[] MakeTarget(Random random, byte[] dictionary) {
+        ByteArrayOutputStream target = new ByteArrayOutputStream();
+        for (int i = 0; i < 30; i++) {
+            target.write(dictionary, random.nextInt(dictionary.length - 1000), 200 + random.nextInt(800));
+            byte[] run = new byte[random.nextInt(300)];
+            Arrays.fill(run, (byte) i);
+            target.write(run, 0, run.length);
+            byte[] earlier = target.toByteArray();
+            target.write(earlier, random.nextInt(earlier.length / 2), earlier.length / 4);
+            byte[] noise = RandomBytes(random, random.nextInt(50));
+            target.write(noise, 0, noise.length);
+        }
+        return target.toByteArray();
+    }
+
+    // Encodes target in one chunk.
+    public static byte[] Encode(VCDiffStreamingEncoder<OutputStream> encoder, byte[] target) throws IOException {
+        ByteArrayOutputStream delta = new ByteArrayOutputStream();
+        assertTrue(encoder.StartEncoding(delta));
+        assertTrue(encoder.EncodeChunk(target, delta));
+        assertTrue(encoder.FinishEncoding(delta));
+        return delta.toByteArray();
+    }
+
+    // Encodes target against dictionary in windows of window_size bytes.  If
+    // target_windows is set, VCDiffTargetWindowEncoder is used with a history
+    // of four windows, so that the delta also has VCD_TARGET windows.
+    public static byte[] Encode(byte[] dictionary, byte[] target, EnumSet<VCDiffFormatExtensionFlags> flags,
+                                boolean target_windows, int window_size) throws IOException {
+        VCDiffEngine engine = new VCDiffEngine(dictionary);
+        return Encode(target_windows
+                ? new VCDiffTargetWindowEncoder(engine, flags, true, window_size, 4 * window_size)
+                : VCDiffStreamingEncoder.Create(engine, flags, true, window_size), target);
+    }
+
+    // Decodes delta in one chunk.
+    public static byte[] Decode(byte[] dictionary, byte[] delta) throws IOException {
+        VCDiffStreamingDecoderImpl decoder = new VCDiffStreamingDecoderImpl();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        decoder.StartDecoding(dictionary);
+        assertTrue(decoder.DecodeChunk(delta, 0, delta.length, output));
+        assertTrue(decoder.FinishDecoding());
+        return output.toByteArray();
+    }
+}
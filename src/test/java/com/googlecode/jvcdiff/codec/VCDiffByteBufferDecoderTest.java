@@ -0,0 +1,110 @@
+package com.googlecode.jvcdiff.codec;
+
+import com.googlecode.jvcdiff.VCDiffFormatExtensionFlags;
+import com.googlecode.jvcdiff.VCDiffTestUtil;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.Random;
+
+import static com.googlecode.jvcdiff.VCDiffTestUtil.MakeTarget;
+import static com.googlecode.jvcdiff.VCDiffTestUtil.RandomBytes;
+import static org.junit.Assert.*;
+
+public class VCDiffByteBufferDecoderTest {
+
+    private static final int kWindowSize = 1000;
+
+    private final Random random_ = new Random(21);
+    private final byte[] dictionary_ = RandomBytes(random_, 5000);
+    private final byte[] target_ = MakeTarget(random_, dictionary_);
+
+    private byte[] Encode(EnumSet<VCDiffFormatExtensionFlags> flags, boolean target_windows) throws IOException {
+        return VCDiffTestUtil.Encode(dictionary_, target_, flags, target_windows, kWindowSize);
+    }
+
+    // Decodes delta into output in chunks of chunk_size bytes, and checks
+    // that the position of output ends just after the target.
+    private void DecodeInto(byte[] delta, ByteBuffer output, int chunk_size, boolean allow_vcd_target)
+            throws IOException {
+        final int start = output.position();
+        VCDiffStreamingDecoderImpl decoder = new VCDiffStreamingDecoderImpl();
+        decoder.SetAllowVcdTarget(allow_vcd_target);
+        decoder.StartDecoding(dictionary_, output);
+        for (int i = 0; i < delta.length; i += chunk_size) {
+            assertTrue(decoder.DecodeChunk(delta, i, Math.min(chunk_size, delta.length - i)));
+        }
+        assertTrue(decoder.FinishDecoding());
+        assertEquals(start + target_.length, output.position());
+    }
+
+    private void AssertHoldsTarget(ByteBuffer output, int start) {
+        byte[] decoded = new byte[target_.length];
+        ByteBuffer contents = output.duplicate();
+        contents.position(start);
+        contents.get(decoded);
+        assertArrayEquals(target_, decoded);
+    }
+
+    @Test
+    public void TargetFileSizeIsReadFromWindowHeaders() throws IOException {
+        byte[] delta = Encode(EnumSet.of(VCDiffFormatExtensionFlags.VCD_FORMAT_CHECKSUM), false);
+        assertEquals(target_.length, VCDiffStreamingDecoderImpl.GetTargetFileSize(delta, 0, delta.length));
+        assertEquals(-1, VCDiffStreamingDecoderImpl.GetTargetFileSize(delta, 0, delta.length - 1));
+        assertEquals(-1, VCDiffStreamingDecoderImpl.GetTargetFileSize(target_, 0, target_.length));
+    }
+
+    @Test
+    public void DecodeIntoHeapAndDirectBuffers() throws IOException {
+        byte[] delta = Encode(EnumSet.of(VCDiffFormatExtensionFlags.VCD_FORMAT_CRC32C), false);
+        final int size = VCDiffStreamingDecoderImpl.GetTargetFileSize(delta, 0, delta.length);
+        for (ByteBuffer output : new ByteBuffer[] { ByteBuffer.allocate(size), ByteBuffer.allocateDirect(size) }) {
+            DecodeInto(delta, output, delta.length, true);
+            AssertHoldsTarget(output, 0);
+        }
+    }
+
+    @Test
+    public void DecodeTargetWindowsIntoDirectBufferInChunks() throws IOException {
+        byte[] delta = Encode(EnumSet.of(VCDiffFormatExtensionFlags.VCD_FORMAT_CHECKSUM), true);
+        for (int chunk_size : new int[] { 1, 97, delta.length }) {
+            ByteBuffer output = ByteBuffer.allocateDirect(target_.length + 20);
+            output.position(10);
+            DecodeInto(delta, output, chunk_size, true);
+            AssertHoldsTarget(output, 10);
+        }
+    }
+
+    @Test
+    public void DecodeWithoutVcdTarget() throws IOException {
+        byte[] delta = Encode(EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), false);
+        byte[] array = new byte[target_.length + 5];
+        ByteBuffer output = ByteBuffer.wrap(array, 5, target_.length).slice();
+        DecodeInto(delta, output, 300, false);
+        AssertHoldsTarget(output, 0);
+    }
+
+    @Test
+    public void BufferTooSmallFails() throws IOException {
+        byte[] delta = Encode(EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), false);
+        VCDiffStreamingDecoderImpl decoder = new VCDiffStreamingDecoderImpl();
+        decoder.StartDecoding(dictionary_, ByteBuffer.allocate(target_.length - 1));
+        assertFalse(decoder.DecodeChunk(delta, 0, delta.length));
+    }
+
+    @Test
+    public void OutputStreamCannotBeUsedWithOutputBuffer() throws IOException {
+        byte[] delta = Encode(EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), false);
+        VCDiffStreamingDecoderImpl decoder = new VCDiffStreamingDecoderImpl();
+        decoder.StartDecoding(dictionary_, ByteBuffer.allocate(target_.length));
+        assertFalse(decoder.DecodeChunk(delta, 0, delta.length, new ByteArrayOutputStream()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void ReadOnlyBufferIsRejected() {
+        new VCDiffStreamingDecoderImpl().StartDecoding(dictionary_, ByteBuffer.allocate(10).asReadOnlyBuffer());
+    }
+}
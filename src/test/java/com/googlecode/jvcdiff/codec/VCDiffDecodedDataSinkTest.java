@@ -0,0 +1,134 @@
+package com.googlecode.jvcdiff.codec;
+
+import com.googlecode.jvcdiff.VCDiffFormatExtensionFlags;
+import com.googlecode.jvcdiff.VCDiffTestUtil;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Random;
+
+import static com.googlecode.jvcdiff.VCDiffTestUtil.MakeTarget;
+import static com.googlecode.jvcdiff.VCDiffTestUtil.RandomBytes;
+import static org.junit.Assert.*;
+
+public class VCDiffDecodedDataSinkTest {
+
+    private static final int kWindowSize = 1000;
+
+    private final Random random_ = new Random(24);
+    private final byte[] dictionary_ = RandomBytes(random_, 4000);
+    private final byte[] target_ = MakeTarget(random_, dictionary_);
+
+    private byte[] Encode() throws IOException {
+        return VCDiffTestUtil.Encode(dictionary_, target_, EnumSet.of(VCDiffFormatExtensionFlags.VCD_FORMAT_CHECKSUM),
+                false, kWindowSize);
+    }
+
+    // Collects the data output, and checks that the calls come in the order
+    // that DecodedDataSink describes.
+    private static class RecordingSink implements DecodedDataSink {
+        final ByteArrayOutputStream data = new ByteArrayOutputStream();
+        final List<Integer> output_sizes = new ArrayList<Integer>();
+        int windows;
+        long window_end = -1;
+
+        public void BeginWindow(long target_position, int window_length) {
+            assertEquals(-1, window_end);
+            assertEquals(data.size(), target_position);
+            window_end = target_position + window_length;
+        }
+
+        public void Output(ByteBuffer bytes) {
+            assertTrue(data.size() + bytes.remaining() <= window_end);
+            output_sizes.add(bytes.remaining());
+            while (bytes.hasRemaining()) {
+                data.write(bytes.get());
+            }
+        }
+
+        public void EndWindow() {
+            assertEquals(window_end, data.size());
+            window_end = -1;
+            ++windows;
+        }
+    }
+
+    private RecordingSink Decode(VCDiffStreamingDecoderImpl decoder, byte[] delta, int chunk_size)
+            throws IOException {
+        RecordingSink sink = new RecordingSink();
+        decoder.StartDecoding(dictionary_);
+        for (int i = 0; i < delta.length; i += chunk_size) {
+            assertTrue(decoder.DecodeChunk(delta, i, Math.min(chunk_size, delta.length - i), sink));
+        }
+        assertTrue(decoder.FinishDecoding());
+        assertArrayEquals(target_, sink.data.toByteArray());
+        return sink;
+    }
+
+    @Test
+    public void EachWindowIsOutputWhole() throws IOException {
+        RecordingSink sink = Decode(new VCDiffStreamingDecoderImpl(), Encode(), Integer.MAX_VALUE);
+        assertEquals((target_.length + kWindowSize - 1) / kWindowSize, sink.windows);
+        assertEquals(sink.windows, sink.output_sizes.size());
+    }
+
+    @Test
+    public void SmallChunksWithoutVcdTarget() throws IOException {
+        VCDiffStreamingDecoderImpl decoder = new VCDiffStreamingDecoderImpl();
+        decoder.SetAllowVcdTarget(false);
+        RecordingSink sink = Decode(decoder, Encode(), 97);
+        assertEquals(sink.windows, sink.output_sizes.size());
+    }
+
+    @Test
+    public void FlushThresholdOutputsWithinWindows() throws IOException {
+        byte[] delta = Encode();
+        VCDiffStreamingDecoderImpl decoder = new VCDiffStreamingDecoderImpl();
+        decoder.SetFlushThreshold(1);
+        RecordingSink every_instruction = Decode(decoder, delta, delta.length);
+        assertTrue(every_instruction.output_sizes.size() > 2 * every_instruction.windows);
+
+        decoder.SetFlushThreshold(300);
+        RecordingSink by_threshold = Decode(decoder, delta, delta.length);
+        assertTrue(by_threshold.output_sizes.size() > by_threshold.windows);
+        assertTrue(by_threshold.output_sizes.size() < every_instruction.output_sizes.size());
+    }
+
+    @Test
+    public void FlushThresholdAppliesToOutputStream() throws IOException {
+        byte[] delta = Encode();
+        final List<Integer> write_sizes = new ArrayList<Integer>();
+        ByteArrayOutputStream output = new ByteArrayOutputStream() {
+            @Override
+            public synchronized void write(byte[] b, int off, int len) {
+                write_sizes.add(len);
+                super.write(b, off, len);
+            }
+        };
+        VCDiffStreamingDecoderImpl decoder = new VCDiffStreamingDecoderImpl();
+        decoder.SetFlushThreshold(1);
+        decoder.StartDecoding(dictionary_);
+        assertTrue(decoder.DecodeChunk(delta, 0, delta.length, output));
+        assertTrue(decoder.FinishDecoding());
+        assertArrayEquals(target_, output.toByteArray());
+        assertTrue(write_sizes.size() > target_.length / kWindowSize);
+    }
+
+    @Test
+    public void SinkCannotBeUsedWithOutputBuffer() throws IOException {
+        byte[] delta = Encode();
+        VCDiffStreamingDecoderImpl decoder = new VCDiffStreamingDecoderImpl();
+        decoder.StartDecoding(dictionary_, ByteBuffer.allocate(target_.length));
+        assertFalse(decoder.DecodeChunk(delta, 0, delta.length, new RecordingSink()));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void NegativeFlushThresholdIsRejected() {
+        new VCDiffStreamingDecoderImpl().SetFlushThreshold(-1);
+    }
+}
@@ -0,0 +1,101 @@
+package com.googlecode.jvcdiff.codec;
+
+import com.googlecode.jvcdiff.VCDiffFormatExtensionFlags;
+import com.googlecode.jvcdiff.VCDiffTestUtil;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.EnumSet;
+import java.util.Random;
+
+import static com.googlecode.jvcdiff.VCDiffTestUtil.MakeTarget;
+import static com.googlecode.jvcdiff.VCDiffTestUtil.RandomBytes;
+import static org.junit.Assert.*;
+
+public class VCDiffFileDecoderTest {
+
+    private static final int kWindowSize = 1000;
+
+    private final Random random_ = new Random(22);
+    private final byte[] dictionary_ = RandomBytes(random_, 5000);
+    private final byte[] target_ = MakeTarget(random_, dictionary_);
+    private File output_file_;
+    private RandomAccessFile output_;
+
+    @Before
+    public void setUp() throws IOException {
+        output_file_ = File.createTempFile("target", ".bin");
+        output_ = new RandomAccessFile(output_file_, "rw");
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        output_.close();
+        output_file_.delete();
+    }
+
+    private byte[] Encode(EnumSet<VCDiffFormatExtensionFlags> flags, boolean target_windows) throws IOException {
+        return VCDiffTestUtil.Encode(dictionary_, target_, flags, target_windows, kWindowSize);
+    }
+
+    // Decodes delta into output_ in chunks of chunk_size bytes, and checks
+    // that the file holds the target from start and that its position ends
+    // just after it.
+    private void DecodeInto(VCDiffStreamingDecoderImpl decoder, byte[] delta, int start, int chunk_size)
+            throws IOException {
+        output_.setLength(0);
+        output_.write(RandomBytes(random_, start));
+        decoder.StartDecoding(dictionary_, output_.getChannel());
+        for (int i = 0; i < delta.length; i += chunk_size) {
+            assertTrue(decoder.DecodeChunk(delta, i, Math.min(chunk_size, delta.length - i)));
+        }
+        assertTrue(decoder.FinishDecoding());
+        assertEquals(start + target_.length, output_.getChannel().position());
+
+        byte[] decoded = new byte[target_.length];
+        output_.seek(start);
+        output_.readFully(decoded);
+        assertArrayEquals(target_, decoded);
+    }
+
+    @Test
+    public void DecodeTargetWindowsIntoFileInChunks() throws IOException {
+        byte[] delta = Encode(EnumSet.of(VCDiffFormatExtensionFlags.VCD_FORMAT_CHECKSUM), true);
+        for (int chunk_size : new int[] { 1, 97, delta.length }) {
+            DecodeInto(new VCDiffStreamingDecoderImpl(), delta, 10, chunk_size);
+        }
+    }
+
+    @Test
+    public void DecodeWithoutVcdTargetIntoFile() throws IOException {
+        byte[] delta = Encode(EnumSet.of(VCDiffFormatExtensionFlags.VCD_FORMAT_CRC32C), false);
+        VCDiffStreamingDecoderImpl decoder = new VCDiffStreamingDecoderImpl();
+        decoder.SetAllowVcdTarget(false);
+        DecodeInto(decoder, delta, 0, 300);
+    }
+
+    @Test
+    public void MaximumTargetFileSizeMayExceedIntegerRange() throws IOException {
+        byte[] delta = Encode(EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), true);
+        VCDiffStreamingDecoderImpl decoder = new VCDiffStreamingDecoderImpl();
+        assertTrue(decoder.SetMaximumTargetFileSize(10L << 30));
+        DecodeInto(decoder, delta, 0, delta.length);
+
+        decoder.SetMaximumTargetFileSize(target_.length - 1L);
+        decoder.StartDecoding(dictionary_, output_.getChannel());
+        assertFalse(decoder.DecodeChunk(delta, 0, delta.length));
+    }
+
+    @Test
+    public void OutputStreamCannotBeUsedWithOutputFile() throws IOException {
+        byte[] delta = Encode(EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), false);
+        VCDiffStreamingDecoderImpl decoder = new VCDiffStreamingDecoderImpl();
+        decoder.StartDecoding(dictionary_, output_.getChannel());
+        assertFalse(decoder.DecodeChunk(delta, 0, delta.length, new ByteArrayOutputStream()));
+    }
+}
@@ -84,6 +84,45 @@ public class VCDiffStandardDecoderTest extends VCDiffDecoderTest {
         assertArrayEquals(expected_target_, output_.toByteArray());
     }
 
+    // A window that ADDs a 7-byte pattern and then COPYs it from the start of
+    // the target window, as an encoder writes a long repeated pattern.  The
+    // COPY overlaps the data it produces, so it must be decoded as if byte by
+    // byte even though the decoder copies in bulk.
+    @Test
+    public void DecodeCopyThatOverlapsItsOutput() throws Exception {
+        final byte[] window = {
+                VCD_SOURCE,  // Win_Indicator: take source from dictionary
+                FirstByteOfStringLength(kDictionary),  // Source segment size
+                SecondByteOfStringLength(kDictionary),
+                0x00,  // Source segment position: start of dictionary
+                0x15,  // Length of the delta encoding
+                (byte) 0xAA, (byte) 0xDC, 0x60,  // Size of the target window (700000)
+                0x00,  // Delta_indicator (no compression)
+                0x07,  // length of data for ADDs and RUNs
+                0x05,  // length of instructions section
+                0x02,  // length of addresses for COPYs
+                // Data for ADD (length 7)
+                'S', 'n', 'a', 'r', 'k', '!', ' ',
+                // Instructions and sizes (length 5)
+                0x08,  // VCD_ADD size 7
+                0x13,  // VCD_COPY mode VCD_SELF, size 0
+                (byte) 0xAA, (byte) 0xDC, 0x59,  // Size of COPY (699993)
+                // Addresses for COPYs (length 2)
+                FirstByteOfStringLength(kDictionary),  // Start of target window
+                SecondByteOfStringLength(kDictionary)
+        };
+        byte[] pattern = "Snark! ".getBytes(US_ASCII);
+        byte[] expected = new byte[pattern.length * 100000];
+        for (int i = 0; i < expected.length; i++) {
+            expected[i] = pattern[i % pattern.length];
+        }
+        byte[] delta = ArraysExtra.concat(delta_file_header_, window);
+        decoder_.StartDecoding(dictionary_);
+        assertTrue(decoder_.DecodeChunk(delta, 0, delta.length, output_));
+        assertTrue(decoder_.FinishDecoding());
+        assertArrayEquals(expected, output_.toByteArray());
+    }
+
     // If we add a checksum to a standard-format delta file (without using format
     // extensions), it will be interpreted as random bytes inserted into the middle
     // of the file.  The decode operation should fail, but where exactly it fails is
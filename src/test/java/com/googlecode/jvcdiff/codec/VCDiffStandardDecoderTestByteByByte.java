@@ -88,6 +88,20 @@ public class VCDiffStandardDecoderTestByteByByte extends VCDiffDecoderTest {
         assertArrayEquals(expected_target_, output_.toByteArray());
     }
 
+    // Passes each byte in the same array, as a caller reusing its read buffer
+    // would; the decoder must not keep a reference to it between calls.
+    @Test
+    public void DecodeFromReusedInputArray() throws Exception {
+        byte[] chunk = new byte[1];
+        decoder_.StartDecoding(dictionary_);
+        for (int i = 0; i < delta_file_.length; ++i) {
+            chunk[0] = delta_file_[i];
+            assertTrue(decoder_.DecodeChunk(chunk, 0, 1, output_));
+        }
+        assertTrue(decoder_.FinishDecoding());
+        assertArrayEquals(expected_target_, output_.toByteArray());
+    }
+
     @Test
     public void DecodeNoVcdTarget() throws Exception {
         decoder_.SetAllowVcdTarget(false);
@@ -0,0 +1,151 @@
+package com.googlecode.jvcdiff.google;
+
+import com.googlecode.jvcdiff.VCDiffCodeTableData;
+import com.googlecode.jvcdiff.VCDiffFormatExtensionFlags;
+import com.googlecode.jvcdiff.VCDiffTestUtil;
+import com.googlecode.jvcdiff.codec.VCDiffHeaderParser;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.EnumSet;
+import java.util.Random;
+
+import static com.googlecode.jvcdiff.VCDiffTestUtil.MakeTarget;
+import static com.googlecode.jvcdiff.VCDiffTestUtil.RandomBytes;
+import static org.junit.Assert.*;
+
+public class VCDiffByteBufferStreamingDecoderTest {
+
+    private static final int kWindowSize = 1000;
+
+    private final Random random_ = new Random(25);
+    private final byte[] dictionary_ = RandomBytes(random_, 5000);
+    private final byte[] target_ = MakeTarget(random_, dictionary_);
+    private final byte[] delta_ = Encode();
+
+    private byte[] Encode() {
+        try {
+            return VCDiffTestUtil.Encode(dictionary_, target_,
+                    EnumSet.of(VCDiffFormatExtensionFlags.VCD_FORMAT_CHECKSUM), true, kWindowSize);
+        } catch (IOException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+    // Rewrites delta to declare a custom code table, the default one encoded
+    // against itself, with the default cache sizes, so that the windows of
+    // delta decode unchanged.
+    private static byte[] WithCustomCodeTable(byte[] delta) throws IOException {
+        byte[] code_table = VCDiffCodeTableData.kDefaultCodeTableData.getBytes();
+        byte[] encoded_code_table = VCDiffTestUtil.Encode(code_table, code_table,
+                EnumSet.of(VCDiffFormatExtensionFlags.VCD_STANDARD_FORMAT), false, code_table.length);
+        ByteArrayOutputStream custom = new ByteArrayOutputStream();
+        custom.write(delta, 0, 4);
+        custom.write(delta[4] | VCDiffHeaderParser.VCD_CODETABLE);
+        custom.write(4);  // near cache size
+        custom.write(3);  // same cache size
+        custom.write(encoded_code_table);
+        custom.write(delta, 5, delta.length - 5);
+        return custom.toByteArray();
+    }
+
+    private static ByteBuffer Direct(byte[] bytes) {
+        ByteBuffer buffer = ByteBuffer.allocateDirect(bytes.length);
+        buffer.put(bytes).flip();
+        return buffer;
+    }
+
+    // Decodes delta in chunks of chunk_size bytes, taken by moving the limit
+    // of delta, and checks that each chunk is consumed.
+    private byte[] Decode(ByteBuffer dictionary, ByteBuffer delta, int chunk_size) {
+        VCDiffByteBufferStreamingDecoder decoder = new VCDiffByteBufferStreamingDecoder();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        final int end = delta.limit();
+        decoder.StartDecoding(dictionary);
+        while (delta.position() < end) {
+            delta.limit(Math.min(delta.position() + chunk_size, end));
+            assertTrue(decoder.DecodeChunk(delta, output));
+            assertFalse(delta.hasRemaining());
+        }
+        assertTrue(decoder.FinishDecoding());
+        return output.toByteArray();
+    }
+
+    @Test
+    public void DecodeHeapBuffers() {
+        assertArrayEquals(target_, Decode(ByteBuffer.wrap(dictionary_), ByteBuffer.wrap(delta_), delta_.length));
+    }
+
+    @Test
+    public void DecodeDirectBuffersInChunks() {
+        for (int chunk_size : new int[] { 1, 1024, 4096 }) {
+            assertArrayEquals(target_, Decode(Direct(dictionary_), Direct(delta_), chunk_size));
+        }
+    }
+
+    @Test
+    public void DecodeReadOnlyBuffers() {
+        assertArrayEquals(target_, Decode(ByteBuffer.wrap(dictionary_).asReadOnlyBuffer(),
+                ByteBuffer.wrap(delta_).asReadOnlyBuffer(), 700));
+    }
+
+    @Test
+    public void DecodeCustomCodeTableFromDirectBuffer() throws IOException {
+        byte[] delta = WithCustomCodeTable(delta_);
+        for (int chunk_size : new int[] { 1, 100, delta.length }) {
+            assertArrayEquals(target_, Decode(Direct(dictionary_), Direct(delta), chunk_size));
+        }
+    }
+
+    @Test
+    public void DecodeCustomCodeTableFromReadOnlyBuffer() throws IOException {
+        byte[] delta = WithCustomCodeTable(delta_);
+        assertArrayEquals(target_, Decode(ByteBuffer.wrap(dictionary_),
+                ByteBuffer.wrap(delta).asReadOnlyBuffer(), delta.length));
+        assertArrayEquals(target_, Decode(ByteBuffer.wrap(dictionary_), ByteBuffer.wrap(delta), delta.length));
+    }
+
+    @Test
+    public void DictionaryIsRemainingBytesOfBuffer() {
+        ByteBuffer dictionary = ByteBuffer.allocateDirect(dictionary_.length + 10);
+        dictionary.position(7);
+        dictionary.put(dictionary_).flip().position(7);
+        assertArrayEquals(target_, Decode(dictionary, Direct(delta_), 2000));
+        assertEquals(7, dictionary.position());
+    }
+
+    // Copies each chunk into the same direct buffer, as a client reading from
+    // a socket into a pooled buffer would.
+    @Test
+    public void DecodeFromReusedDirectBuffer() {
+        VCDiffByteBufferStreamingDecoder decoder = new VCDiffByteBufferStreamingDecoder();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        ByteBuffer chunk = ByteBuffer.allocateDirect(4096);
+        decoder.StartDecoding(Direct(dictionary_));
+        for (int i = 0; i < delta_.length; ) {
+            final int chunk_size = Math.min(1024 + random_.nextInt(3072), delta_.length - i);
+            chunk.clear();
+            chunk.put(delta_, i, chunk_size).flip();
+            assertTrue(decoder.DecodeChunk(chunk, output));
+            i += chunk_size;
+        }
+        assertTrue(decoder.FinishDecoding());
+        assertArrayEquals(target_, output.toByteArray());
+    }
+
+    @Test
+    public void OutputStreamFailureFailsDecoding() {
+        VCDiffByteBufferStreamingDecoder decoder = new VCDiffByteBufferStreamingDecoder();
+        decoder.StartDecoding(ByteBuffer.wrap(dictionary_));
+        assertFalse(decoder.DecodeChunk(Direct(delta_), new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException("closed");
+            }
+        }));
+        assertFalse(decoder.FinishDecoding());
+    }
+}